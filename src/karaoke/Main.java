@@ -34,6 +34,8 @@ public class Main {
         while (!arguments.isEmpty())
             addSong(arguments.remove());
         
+        System.err.print(server.startupReport());
+        
         String publicIPAddress = getPublicIPAddress();
         
         System.out.println("Server running, browse to one of these URLs to view lyrics for a particular voice");
@@ -41,11 +43,28 @@ public class Main {
         System.out.println("http://" + publicIPAddress + ":8080/textStream[/voice]");
         System.out.println("http://" + publicIPAddress + ":8080/htmlStream[/voice]");
         System.out.println("http://" + publicIPAddress + ":8080/htmlWaitReload[/voice]");
+        System.out.println("http://" + publicIPAddress + ":8080/events[/voice] (Server-Sent Events)");
+        System.out.println("http://" + publicIPAddress + ":8080/timeline[/voice] (lyrics highlighted by the browser)");
+        if (WebServer.NIO_PORT >= 0)
+            System.out.println("the same lyric streams are also served by selector threads at http://"
+                    + publicIPAddress + ":" + WebServer.NIO_PORT + "/[stream][/voice]");
         System.out.println();
         System.out.println("To add songs to the jukebox, enter the command \"addSong sample.abc\" or browse to:");
         System.out.println("http://" + publicIPAddress + ":8080/addSong/[songfile]");
         System.out.println("To play the next song, enter the command \"play\" or browse to:");
         System.out.println("http://" + publicIPAddress + ":8080/play");
+        System.out.println("To play each next song as soon as the last one ends, browse to:");
+        System.out.println("http://" + publicIPAddress + ":8080/autoAdvance/on");
+        System.out.println("To show lyrics on time without playing music, on a server with no sound, browse to:");
+        System.out.println("http://" + publicIPAddress + ":8080/output/clock");
+        System.out.println("To mute or solo a voice part of the song playing, browse to:");
+        System.out.println("http://" + publicIPAddress + ":8080/mix/[mute, unmute, solo or unsolo]/[voice]");
+        System.out.println("To practice at a slower or faster tempo, such as three quarters of it, browse to:");
+        System.out.println("http://" + publicIPAddress + ":8080/tempo/0.75");
+        System.out.println("Every URL above also works for a separate room with its own jukebox, named by [id], at:");
+        System.out.println("http://" + publicIPAddress + ":8080/room/[id]/[addSong, play, textStream, ...]");
+        System.out.println("To view server statistics, such as startup times, browse to:");
+        System.out.println("http://" + publicIPAddress + ":8080/stats");
         System.out.println("To end the server, enter the command \"quit\".");
         System.out.println("Ready for commands:");
         
@@ -1,5 +1,6 @@
 package karaoke.music;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
 
@@ -46,6 +47,21 @@ public interface Music {
         return new Concat(first, second);
     }
     
+    /**
+     * @param parts music to play, in order
+     * @return music sequence that plays parts one after the other
+     */
+    public static Music sequence(List<Music> parts) {
+        switch (parts.size()) {
+        case 0:
+            return empty();
+        case 1:
+            return parts.get(0);
+        default:
+            return new Sequence(parts);
+        }
+    }
+    
     /**
      * @param first first music to play, defines this Music's duration
      * @param second second music to play
@@ -60,6 +76,7 @@ public interface Music {
      * Music = Rest(duration: double)
      *          + Note(duration: double, pitch: Pitch, instrument: Instrument, lyric: Optional<Lyric>)
      *          + Concat(first: Music, second: Music)
+     *          + Sequence(parts: List<Music>)
      *          + Together(first: Music, second: Music)
      */
 
@@ -86,6 +103,12 @@ public interface Music {
          */
         public R on(Concat concat);
         
+        /**
+         * @param sequence music as Sequence
+         * @return result of calling visitor on Sequence
+         */
+        public R on(Sequence sequence);
+        
         /**
          * @param together music as Together
          * @return result of calling visitor on Together
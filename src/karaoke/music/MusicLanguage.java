@@ -5,8 +5,11 @@ import static karaoke.music.Music.empty;
 import static karaoke.music.Music.rest;
 import static karaoke.music.Music.note;
 import static karaoke.music.Music.concat;
+import static karaoke.music.Music.sequence;
 import static karaoke.music.Music.together;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -61,13 +64,13 @@ public class MusicLanguage {
      * @return the music in notes played by instr
      */
     public static Music notes(String notes, Instrument instr) {
-        Music music = empty();
+        final List<Music> music = new ArrayList<>();
         for (String sym : notes.split("[\\s|]+")) {
             if (!sym.isEmpty()) {
-                music = concat(music, parseSymbol(sym, instr));
+                music.add(parseSymbol(sym, instr));
             }
         }
-        return music;
+        return sequence(music);
     }
 
     /* Parse a symbol into a Note or a Rest. */
@@ -183,13 +186,15 @@ public class MusicLanguage {
      * @return the repeated music
      */
     public static Music repeat(Music m, int times, Function<Music, Music> f) {
-        if (times == 0) {
-            return empty();
-        }
-        if (times == 1) {
-            return m;
+        final List<Music> repeats = new ArrayList<>(times);
+        Music next = m;
+        for (int i = 0; i < times; i++) {
+            if (i > 0) {
+                next = f.apply(next);
+            }
+            repeats.add(next);
         }
-        return concat(m, repeat(f.apply(m), times - 1, f));
+        return sequence(repeats);
     }
     
 }
@@ -0,0 +1,301 @@
+package karaoke.music;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.SequencePlayer;
+
+/**
+ * MusicTraversal walks Music trees with an explicit stack instead of recursion,
+ * so that operations on very deep trees (such as a long chain of Concats) take time
+ * proportional to the size of the tree and never overflow the call stack.
+ * The Music variants build their recursive operations on it.
+ */
+public class MusicTraversal {
+
+    /**
+     * Prevent instantiation.
+     */
+    private MusicTraversal() {}
+
+    /**
+     * Callbacks for a walk over a Music tree, in the order the music is written: each
+     * composite piece of music is entered, then its children are walked in order with
+     * between() called between consecutive children, then it is exited.
+     * Every callback is given the beat at which its piece of music starts.
+     */
+    public interface Walker {
+        /**
+         * Called for a rest.
+         * @param rest rest reached
+         * @param beat beat at which the rest starts
+         */
+        public default void rest(Rest rest, double beat) {}
+
+        /**
+         * Called for a note.
+         * @param note note reached
+         * @param beat beat at which the note starts
+         */
+        public default void note(Note note, double beat) {}
+
+        /**
+         * Called before the children of a Concat, Together or Sequence are walked.
+         * @param music composite music reached
+         * @param beat beat at which music starts
+         */
+        public default void enter(Music music, double beat) {}
+
+        /**
+         * Called after a child of a Concat, Together or Sequence, if another child follows.
+         * @param music composite music being walked
+         * @param child index of the next child to be walked, >= 1
+         */
+        public default void between(Music music, int child) {}
+
+        /**
+         * Called after all children of a Concat, Together or Sequence have been walked.
+         * @param music composite music reached
+         * @param beat beat at which music starts
+         */
+        public default void exit(Music music, double beat) {}
+    }
+
+    /**
+     * Walk a piece of music.
+     * @param music music to walk
+     * @param atBeat beat at which music starts
+     * @param walker callbacks to call for each piece of music in music
+     */
+    public static void walk(Music music, double atBeat, Walker walker) {
+        final Visit visit = new Visit(walker);
+        visit.start(music, atBeat);
+        final Deque<Frame> stack = visit.stack;
+        while (!stack.isEmpty()) {
+            final Frame top = stack.peek();
+            if (top.next == top.size) {
+                stack.pop();
+                walker.exit(top.music, top.beat);
+                continue;
+            }
+            if (top.next > 0)
+                walker.between(top.music, top.next);
+            final int child = top.next++;
+            visit.start(top.child(child), top.beat + top.offset(child));
+        }
+    }
+
+    /*
+     * Visitor that starts walking one piece of music: it calls the walker on a leaf,
+     * or enters a composite and pushes its frame onto the stack.
+     */
+    private static class Visit implements Music.Visitor<Void> {
+        private final Walker walker;
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private double beat;
+
+        private Visit(Walker walker) {
+            this.walker = walker;
+        }
+
+        private void start(Music music, double atBeat) {
+            beat = atBeat;
+            music.accept(this);
+        }
+
+        @Override public Void on(Rest rest) {
+            walker.rest(rest, beat);
+            return null;
+        }
+
+        @Override public Void on(Note note) {
+            walker.note(note, beat);
+            return null;
+        }
+
+        @Override public Void on(Concat concat) {
+            walker.enter(concat, beat);
+            stack.push(new Frame(concat, beat, 2) {
+                @Override Music child(int i) { return i == 0 ? concat.first() : concat.second(); }
+                @Override double offset(int i) { return i == 0 ? 0 : concat.first().duration(); }
+            });
+            return null;
+        }
+
+        @Override public Void on(Sequence sequence) {
+            walker.enter(sequence, beat);
+            stack.push(new Frame(sequence, beat, sequence.size()) {
+                @Override Music child(int i) { return sequence.get(i); }
+                @Override double offset(int i) { return sequence.offset(i); }
+            });
+            return null;
+        }
+
+        @Override public Void on(Together together) {
+            walker.enter(together, beat);
+            stack.push(new Frame(together, beat, 2) {
+                @Override Music child(int i) { return i == 0 ? together.first() : together.second(); }
+                @Override double offset(int i) { return 0; }
+            });
+            return null;
+        }
+    }
+
+    /*
+     * A composite piece of music being walked, and the index of its next child to walk.
+     */
+    private abstract static class Frame {
+        private final Music music;
+        private final double beat;
+        private final int size;
+        private int next = 0;
+
+        private Frame(Music music, double beat, int size) {
+            this.music = music;
+            this.beat = beat;
+            this.size = size;
+        }
+
+        abstract Music child(int i);
+
+        abstract double offset(int i);
+    }
+
+    /**
+     * Load a piece of music into a SequencePlayer.
+     * @param music music to load
+     * @param player player to play on
+     * @param atBeat when to play
+     * @param lyricConsumer function called when new lyrics are played, or null to ignore lyrics
+     */
+    public static void load(Music music, SequencePlayer player, double atBeat, Consumer<Lyric> lyricConsumer) {
+        walk(music, atBeat, new Walker() {
+            @Override public void note(Note note, double beat) {
+                note.load(player, beat, lyricConsumer);
+            }
+        });
+    }
+
+    /**
+     * Rebuild a piece of music with each note and rest replaced.
+     * @param music music to rebuild
+     * @param leaf function from each Note or Rest in music to its replacement
+     * @return music with the same structure of Concat, Together and Sequence as music,
+     *          with each note and rest r replaced by leaf.apply(r)
+     */
+    public static Music mapLeaves(Music music, UnaryOperator<Music> leaf) {
+        final Deque<Music> results = new ArrayDeque<>();
+        walk(music, 0, new Walker() {
+            @Override public void rest(Rest rest, double beat) {
+                results.push(leaf.apply(rest));
+            }
+            @Override public void note(Note note, double beat) {
+                results.push(leaf.apply(note));
+            }
+            @Override public void exit(Music composite, double beat) {
+                results.push(composite.accept(new Music.Visitor<Music>() {
+                    @Override public Music on(Rest rest) { throw new AssertionError("not composite"); }
+                    @Override public Music on(Note note) { throw new AssertionError("not composite"); }
+                    @Override public Music on(Concat concat) {
+                        final Music second = results.pop();
+                        return new Concat(results.pop(), second);
+                    }
+                    @Override public Music on(Together together) {
+                        final Music second = results.pop();
+                        return new Together(results.pop(), second);
+                    }
+                    @Override public Music on(Sequence sequence) {
+                        final Music[] parts = new Music[sequence.size()];
+                        for (int i = parts.length - 1; i >= 0; i--)
+                            parts[i] = results.pop();
+                        final List<Music> list = new ArrayList<>(parts.length);
+                        for (Music part : parts)
+                            list.add(part);
+                        return new Sequence(list);
+                    }
+                }));
+            }
+        });
+        assert results.size() == 1;
+        return results.pop();
+    }
+
+    /**
+     * @param music music to display
+     * @return the string representation of music: notes and rests as their own strings,
+     *          the pieces of a Concat or Sequence separated by spaces, and
+     *          the pieces of a Together concatenated within square brackets
+     */
+    public static String toString(Music music) {
+        final StringBuilder string = new StringBuilder();
+        walk(music, 0, new Walker() {
+            @Override public void rest(Rest rest, double beat) {
+                string.append(rest);
+            }
+            @Override public void note(Note note, double beat) {
+                string.append(note);
+            }
+            @Override public void enter(Music composite, double beat) {
+                if (composite instanceof Together)
+                    string.append('[');
+            }
+            @Override public void between(Music composite, int child) {
+                if (!(composite instanceof Together))
+                    string.append(' ');
+            }
+            @Override public void exit(Music composite, double beat) {
+                if (composite instanceof Together)
+                    string.append(']');
+            }
+        });
+        return string.toString();
+    }
+
+    /**
+     * @param first music to compare
+     * @param second music to compare
+     * @return true iff first and second have the same structure of Concat, Together and
+     *          Sequence, with equal notes and rests in the same places
+     */
+    public static boolean equal(Music first, Music second) {
+        final Deque<Music> pairs = new ArrayDeque<>();
+        pairs.push(second);
+        pairs.push(first);
+        while (!pairs.isEmpty()) {
+            final Music a = pairs.pop();
+            final Music b = pairs.pop();
+            if (a == b)
+                continue;
+            if (a.getClass() != b.getClass() || a.hashCode() != b.hashCode() || a.duration() != b.duration())
+                return false;
+            if (a instanceof Concat) {
+                pushPair(pairs, ((Concat) a).second(), ((Concat) b).second());
+                pushPair(pairs, ((Concat) a).first(), ((Concat) b).first());
+            } else if (a instanceof Together) {
+                pushPair(pairs, ((Together) a).second(), ((Together) b).second());
+                pushPair(pairs, ((Together) a).first(), ((Together) b).first());
+            } else if (a instanceof Sequence) {
+                final Sequence sa = (Sequence) a;
+                final Sequence sb = (Sequence) b;
+                if (sa.size() != sb.size())
+                    return false;
+                for (int i = sa.size() - 1; i >= 0; i--)
+                    pushPair(pairs, sa.get(i), sb.get(i));
+            } else if (!a.equals(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void pushPair(Deque<Music> pairs, Music a, Music b) {
+        pairs.push(b);
+        pairs.push(a);
+    }
+
+}
@@ -0,0 +1,142 @@
+package karaoke.music;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.SequencePlayer;
+
+/**
+ * Sequence represents any number of pieces of music played one after the other.
+ */
+public class Sequence implements Music {
+
+    /* Abstraction function:
+     *  AF(parts, offsets) =
+     *      the concatenation of parts[0], parts[1], ..., parts[parts.length-1],
+     *      played one after the other, where parts[i] starts offsets[i] beats
+     *      after the start of the sequence, and offsets[parts.length] is the
+     *      duration of the sequence
+     *
+     * Rep invariant:
+     *  all fields and elements of parts are not null
+     *  offsets.length == parts.length + 1
+     *  offsets[0] == 0
+     *  offsets[i+1] == offsets[i] + parts[i].duration() for 0 <= i < parts.length
+     *  hashCode == Arrays.hashCode(parts)
+     *
+     * Safety from rep exposure:
+     *  all fields are private and final
+     *  parts and offsets are never returned; the constructor copies its list of parts
+     *  elements of parts are immutable
+     *
+     * Thread safety argument:
+     *  This object and its fields are all immutable, and there is no
+     *  beneficent mutation
+     */
+
+    private final Music[] parts;
+    private final double[] offsets;
+    private final int hashCode;
+
+    private void checkRep() {
+        assert parts != null;
+        assert offsets != null;
+        assert offsets.length == parts.length + 1;
+        assert offsets[0] == 0;
+        for (Music part : parts)
+            assert part != null;
+    }
+
+    /**
+     * Make a Music sequence that plays parts one after the other.
+     * @param parts music to play, in order
+     */
+    public Sequence(List<Music> parts) {
+        this.parts = parts.toArray(new Music[parts.size()]);
+        this.offsets = new double[this.parts.length + 1];
+        for (int i = 0; i < this.parts.length; i++)
+            offsets[i + 1] = offsets[i] + this.parts[i].duration();
+        this.hashCode = Arrays.hashCode(this.parts);
+        checkRep();
+    }
+
+    /**
+     * @return number of pieces in this sequence
+     */
+    public int size() {
+        return parts.length;
+    }
+
+    /**
+     * @param index index of piece, 0 <= index < size()
+     * @return piece at index in this sequence
+     */
+    public Music get(int index) {
+        return parts[index];
+    }
+
+    /**
+     * @param index index of piece, 0 <= index < size()
+     * @return beat at which the piece at index starts, relative to the start of this sequence
+     */
+    public double offset(int index) {
+        if (index < 0 || index >= parts.length)
+            throw new IndexOutOfBoundsException("no piece at " + index);
+        return offsets[index];
+    }
+
+    /**
+     * @return unmodifiable list of the pieces in this sequence, in order
+     */
+    public List<Music> parts() {
+        return Collections.unmodifiableList(Arrays.asList(parts));
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+        return visitor.on(this);
+    }
+
+    /**
+     * @return duration of this sequence
+     */
+    @Override
+    public double duration() {
+        return offsets[parts.length];
+    }
+
+    /**
+     * Load this sequence.
+     */
+    @Override
+    public void load(SequencePlayer player, double atBeat, Consumer<Lyric> lyricConsumer) {
+        MusicTraversal.load(this, player, atBeat, lyricConsumer);
+    }
+
+    @Override
+    public Music augment(double augmentationFactor) {
+        return MusicTraversal.mapLeaves(this, leaf -> leaf.augment(augmentationFactor));
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+
+        return MusicTraversal.equal(this, (Sequence) obj);
+    }
+
+    @Override
+    public String toString() {
+        return MusicTraversal.toString(this);
+    }
+}
@@ -18,6 +18,8 @@ public class Together implements Music {
      * 
      * Rep invariant:
      *  all fields are not null
+     *  duration == first.duration()
+     *  hashCode == Objects.hash(first, second)
      * 
      * Safety from rep exposure:
      *  all fields are private, final, and immutable
@@ -29,10 +31,13 @@ public class Together implements Music {
     
     private final Music first;
     private final Music second;
+    private final double duration;
+    private final int hashCode;
     
     private void checkRep() {
         assert first != null;
         assert second != null;
+        assert duration == first.duration();
     }
 
     /**
@@ -43,6 +48,8 @@ public class Together implements Music {
     public Together(Music first, Music second) {
         this.first = first;
         this.second = second;
+        this.duration = first.duration();
+        this.hashCode = Objects.hash(first, second);
         checkRep();
     }
 
@@ -70,7 +77,7 @@ public class Together implements Music {
      */
     @Override
     public double duration() {
-        return first.duration();
+        return duration;
     }
 
     /**
@@ -78,20 +85,17 @@ public class Together implements Music {
      */
     @Override
     public void load(SequencePlayer player, double atBeat, Consumer<Lyric> lyricConsumer) {
-        first.load(player, atBeat, lyricConsumer);
-        second.load(player, atBeat, lyricConsumer);
+        MusicTraversal.load(this, player, atBeat, lyricConsumer);
     }
     
     @Override 
     public Music augment(double augmentationFactor) {
-        Music newFirst = first.augment(augmentationFactor);
-        Music newSecond = second.augment(augmentationFactor);
-        return new Together(newFirst, newSecond);
+        return MusicTraversal.mapLeaves(this, leaf -> leaf.augment(augmentationFactor));
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(first, second);
+        return hashCode;
     }
 
     @Override
@@ -100,13 +104,12 @@ public class Together implements Music {
         if (obj == null) return false;
         if (getClass() != obj.getClass()) return false;
         
-        final Together other = (Together) obj;
-        return first.equals(other.first) && second.equals(other.second);
+        return MusicTraversal.equal(this, (Together) obj);
     }
 
     @Override
     public String toString() {
-        return "["+first.toString() + second.toString()+"]";
+        return MusicTraversal.toString(this);
     }
 
 }
@@ -1,19 +1,23 @@
 package karaoke.parser;
 
-import static karaoke.music.Music.concat;
-import static karaoke.music.Music.empty;
 import static karaoke.music.Music.note;
 import static karaoke.music.Music.rest;
+import static karaoke.music.Music.sequence;
 import static karaoke.music.Music.together;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 
 import edu.mit.eecs.parserlib.ParseTree;
@@ -31,9 +35,57 @@ import karaoke.songs.Tempo;
 
 /**
  * ABCParser is a static class used to parse ABC songs from .abc files.
+ * 
+ * <p> Songs can be parsed by either of two engines, which produce the same ABC songs:
+ * the parserlib grammar in Abc.g, or a hand-written recursive-descent parser that emits
+ * songs directly without building a parse tree. The default engine is named by the
+ * system property karaoke.parser.engine (GRAMMAR or RECURSIVE_DESCENT in any case, default GRAMMAR,
+ * also if it names no engine), and can be changed at runtime with setDefaultEngine().
+ * 
+ * <p> The grammar is read from the classpath and compiled the first time it is needed,
+ * or ahead of time by compileGrammar().
  */
 public class ABCParser {
     
+    /**
+     * Parser engines that can parse abc songs.
+     */
+    public static enum Engine {
+        /** parser compiled by parserlib from the grammar in Abc.g */
+        GRAMMAR,
+        /** hand-written recursive-descent parser for the same grammar */
+        RECURSIVE_DESCENT,
+    }
+    
+    private static volatile Engine defaultEngine =
+            engineNamed(System.getProperty("karaoke.parser.engine", "grammar"));
+    
+    /**
+     * @param name name of an engine in any case, such as "recursive_descent"
+     * @return the engine named, or GRAMMAR if name names no engine
+     */
+    static Engine engineNamed(String name) {
+        for (Engine engine : Engine.values())
+            if (engine.name().equals(name.toUpperCase(Locale.ROOT)))
+                return engine;
+        return Engine.GRAMMAR;
+    }
+    
+    /**
+     * @return the engine used by parse(String)
+     */
+    public static Engine getDefaultEngine() {
+        return defaultEngine;
+    }
+    
+    /**
+     * Change the engine used by parse(String).
+     * @param engine engine to use
+     */
+    public static void setDefaultEngine(Engine engine) {
+        defaultEngine = engine;
+    }
+    
     // the nonterminals of the grammar
     private static enum ABCGrammar {
         ABC, ABC_HEADER, FIELD_NUMBER, FIELD_TITLE, OTHER_FIELDS, 
@@ -47,7 +99,14 @@ public class ABCParser {
     }
     
 
-    private static Parser<ABCGrammar> parser = makeParser();
+    // the grammar is compiled at most once, by the first thread that needs it,
+    // either a client of compileGrammar() or the first parse with the GRAMMAR engine
+    private static final FutureTask<Parser<ABCGrammar>> parser = new FutureTask<>(ABCParser::makeParser);
+    
+    // location of the grammar on the classpath, relative to this class
+    private static final String GRAMMAR_RESOURCE = "Abc.g";
+    // location of the grammar relative to the project root, if it isn't on the classpath
+    private static final String GRAMMAR_FILE = "src/karaoke/parser/Abc.g";
     
     /**
      * Compile the grammar into a parser. 
@@ -57,10 +116,14 @@ public class ABCParser {
      */
     private static Parser<ABCGrammar> makeParser() {
         try {
-            // read the grammar as a file, relative to the project root.
-            
-            final File grammarFile = new File("src/karaoke/parser/Abc.g");
-            return Parser.compile(grammarFile, ABCGrammar.ABC);
+            // read the grammar from the classpath, next to this class, so that the parser
+            // doesn't depend on the working directory; fall back to the project source tree
+            final InputStream grammarResource = ABCParser.class.getResourceAsStream(GRAMMAR_RESOURCE);
+            if (grammarResource == null)
+                return Parser.compile(new File(GRAMMAR_FILE), ABCGrammar.ABC);
+            try (InputStream grammar = grammarResource) {
+                return Parser.compile(grammar, ABCGrammar.ABC);
+            }
 
         // Parser.compile() throws two checked exceptions.
         // Translate these checked exceptions into unchecked RuntimeExceptions,
@@ -71,18 +134,86 @@ public class ABCParser {
             throw new RuntimeException("the grammar has a syntax error", e);
         }
     }
+    
+    /**
+     * Compile the grammar used by the GRAMMAR engine, if it hasn't been compiled already.
+     * Blocks until the grammar is compiled, by this thread or another one.
+     * Servers can call this on a background thread at startup, so that the first song
+     * they parse doesn't have to wait for the grammar.
+     * 
+     * @throws RuntimeException if grammar file can't be read or has syntax errors
+     */
+    public static void compileGrammar() {
+        getParser();
+    }
+    
+    /**
+     * @return parser for the grammar, compiling it in this thread if no other thread has started
+     * @throws RuntimeException if grammar file can't be read or has syntax errors
+     */
+    private static Parser<ABCGrammar> getParser() {
+        parser.run(); // does nothing if another thread has already started compiling
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return parser.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException("unable to compile the grammar", e.getCause());
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
 
     /**
-     * Parse the contents of an abc formatted string, and create an ABC object from these contents.
+     * Parse the contents of an abc formatted string with the default engine,
+     * and create an ABC object from these contents.
      * 
      * @param string string in abc format which will have its contents parsed
      * @return ABC the ABC song representing the parsed abc string
      * @throws UnableToParseException exception raised if the parser can't parse the given string
      */
     public static ABC parse(final String string) throws UnableToParseException {
+        return parse(string, defaultEngine);
+    }
+    
+    /**
+     * Parse the contents of an abc formatted string, and create an ABC object from these contents.
+     * 
+     * @param string string in abc format which will have its contents parsed
+     * @param engine parser engine to use
+     * @return ABC the ABC song representing the parsed abc string
+     * @throws UnableToParseException exception raised if the parser can't parse the given string
+     */
+    public static ABC parse(final String string, final Engine engine) throws UnableToParseException {
+        switch (engine) {
+        case GRAMMAR:
+            return parseWithGrammar(string);
+        case RECURSIVE_DESCENT:
+            return RecursiveDescentParser.parse(string);
+        default:
+            throw new AssertionError("unknown engine " + engine);
+        }
+    }
+    
+    /**
+     * Parse the contents of an abc formatted string with the parserlib grammar.
+     * 
+     * @param string string in abc format which will have its contents parsed
+     * @return ABC the ABC song representing the parsed abc string
+     * @throws UnableToParseException exception raised if the parser can't parse the given string
+     */
+    private static ABC parseWithGrammar(final String string) throws UnableToParseException {
  
         // Create a parsetree from the string
-        final ParseTree<ABCGrammar> parseTree = parser.parse(string);
+        final ParseTree<ABCGrammar> parseTree = getParser().parse(string);
         
         // Get the header and body of the parseTree
         ParseTree<ABCGrammar> abcHeaderTree = parseTree.children().get(0);
@@ -113,13 +244,7 @@ public class ABCParser {
      */
     private static Map<String, Music> parseBody(final ParseTree<ABCGrammar> abcBody,
             final AccidentalMap keySignature) throws UnableToParseException {
-        String voice = "";
-        final Map<String, Music> savedParts = new HashMap<>();
-        final Map<String, Music> newParts = new HashMap<>();
-        // version of music score that is currently being modified for each voice part,
-        // either savedParts or newParts
-        Map<String, Map<String, Music>> partMap = new HashMap<>();
-        final Map<String, LyricGenerator> lyricGenerators = new HashMap<>();
+        final ScoreBuilder score = new ScoreBuilder(keySignature);
         
         // abc_body ::= abc_line+;
         for (final ParseTree<ABCGrammar> abcLine : abcBody.children()) {
@@ -128,11 +253,7 @@ public class ABCParser {
             final ParseTree<ABCGrammar> first = line.get(0);
             switch (first.name()) {
             case ELEMENT:
-                if (!lyricGenerators.containsKey(voice))
-                    lyricGenerators.put(voice, new LyricGenerator(voice));
-                
-                final LyricGenerator lyricGenerator = lyricGenerators.get(voice);
-                
+                final LyricGenerator lyricGenerator;
                 final List<ParseTree<ABCGrammar>> elements;
                 
                 final int lastIndex = line.size() - 1;
@@ -144,11 +265,11 @@ public class ABCParser {
                                                              .stream()
                                                              .map(ParseTree::text)
                                                              .collect(Collectors.toList());
-                    lyricGenerator.loadLyrics(lyricalElements);
+                    lyricGenerator = score.startLine(lyricalElements);
                     break;
                 case ELEMENT:
                     elements = line.subList(0, lastIndex);
-                    lyricGenerator.loadNoLyrics();
+                    lyricGenerator = score.startLine(null);
                     break;
                 default:
                     throw new UnableToParseException("abc_line is malformed");
@@ -159,41 +280,13 @@ public class ABCParser {
                     final ParseTree<ABCGrammar> element = genericElement.children().get(0);
                     switch (element.name()) {
                     case MUSICAL_ELEMENT: // musical_element ::= note_element | rest_element | tuplet_element;
-                        final Music music = makeMusic(element, keySignature, lyricGenerator);
-                        final Map<String, Music> parts = partMap.getOrDefault(voice, newParts);
-                        addMusic(parts, voice, music);
+                        score.addMusic(makeMusic(element, score.keySignature(), lyricGenerator));
                         break;
                     case BARLINE: // barline ::= "|" | "||" | "[|" | "|]" | ":|" | "|:";
-                        keySignature.refresh();
-                        lyricGenerator.loadNextMeasure();
-                        switch (element.text()) {
-                        case "|":
-                            break;
-                        case "||":
-                        case "[|":
-                        case "|]":
-                        case "|:":
-                            partMap.put(voice, newParts);
-                            break;
-                        case ":|":
-                            addMusic(savedParts, voice, newParts.getOrDefault(voice, empty()));
-                            newParts.put(voice, empty());
-                            break;
-                        default:
-                            throw new UnableToParseException("barline is malformed");
-                        }
+                        score.addBarline(element.text());
                         break;
                     case NTH_REPEAT: // nth_repeat ::= "[1" | "[2";
-                        switch (element.text()) {
-                        case "[1":
-                            addMusic(savedParts, voice, newParts.getOrDefault(voice, empty()));
-                            partMap.put(voice, savedParts);
-                            break;
-                        case "[2":
-                            break;
-                        default:
-                            throw new UnableToParseException("nth_repeat is malformed");
-                        }
+                        score.addNthRepeat(element.text());
                         break;
                     case SPACE_OR_TAB: // space_or_tab ::= " " | "\t";
                         break;
@@ -204,7 +297,7 @@ public class ABCParser {
                 break;
             case MIDDLE_OF_BODY_FIELD: // middle_of_body_field ::= field_voice;
                 // field_voice ::= "V:" text end_of_line;
-                voice = first.children().get(0).children().get(0).text().trim();
+                score.setVoice(first.children().get(0).children().get(0).text().trim());
                 break;
             case COMMENT: // comment ::= space_or_tab* "%" comment_text newline;
                 break;
@@ -213,25 +306,7 @@ public class ABCParser {
             }
         }
         
-        for (String part : newParts.keySet())
-            addMusic(savedParts, part, newParts.get(part));
-        
-        return savedParts;
-    }
-    
-    /**
-     * Add music to the specified voice part of a score.
-     * @param parts music score
-     * @param voice voice part
-     * @param music music to add
-     */
-    private static void addMusic(Map<String, Music> parts, String voice, Music music) {
-        if (music.duration() == 0)
-            return;
-        else if (!parts.containsKey(voice))
-            parts.put(voice, music);
-        else
-            parts.put(voice, concat(parts.get(voice), music));
+        return score.build();
     }
     
     /**
@@ -285,10 +360,10 @@ public class ABCParser {
                 throw new UnableToParseException("tuplet_element is malformed");
             }
             
-            Music music = makeMusic(tuplet.get(1), accidentalMap, lyricGenerator).augment(augmentationFactor);
-            for (final ParseTree<ABCGrammar> noteElement : tuplet.subList(2, tuplet.size()))
-                music = concat(music, makeMusic(noteElement, accidentalMap, lyricGenerator).augment(augmentationFactor));
-            return music;
+            final List<Music> notes = new ArrayList<>();
+            for (final ParseTree<ABCGrammar> noteElement : tuplet.subList(1, tuplet.size()))
+                notes.add(makeMusic(noteElement, accidentalMap, lyricGenerator).augment(augmentationFactor));
+            return sequence(notes);
         }
         
         case CHORD: { // chord ::= "[" note+ "]";
@@ -0,0 +1,646 @@
+package karaoke.parser;
+
+import static karaoke.music.Music.note;
+import static karaoke.music.Music.rest;
+import static karaoke.music.Music.sequence;
+import static karaoke.music.Music.together;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.LyricGenerator;
+import karaoke.music.Instrument;
+import karaoke.music.Music;
+import karaoke.music.Pitch;
+import karaoke.songs.ABC;
+import karaoke.songs.AccidentalMap;
+import karaoke.songs.Key;
+import karaoke.songs.Meter;
+import karaoke.songs.Tempo;
+
+/**
+ * RecursiveDescentParser is a hand-written, single-pass parser for the subset of abc notation
+ * defined by Abc.g. It emits the ABC song directly while scanning the input, without building
+ * a parse tree, and produces exactly the same songs as the grammar-based parser:
+ * like parserlib, it always takes the longest alternative and repeats greedily, and it
+ * skips spaces and tabs around every token of the header.
+ */
+class RecursiveDescentParser {
+
+    /* Abstraction function:
+     *  AF(input, pos) = a parser for input that has consumed input.substring(0, pos)
+     *
+     * Rep invariant:
+     *  input is not null
+     *  0 <= pos <= input.length()
+     *
+     * Safety from rep exposure:
+     *  all fields are private, input is immutable
+     *
+     * Thread safety argument:
+     *  instances are confined to the thread that calls parse()
+     */
+
+    // character classes of the first character of each body element
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte BAR = 2;
+    private static final byte COLON = 3;
+    private static final byte BRACKET = 4;
+    private static final byte NOTE = 5;
+    private static final byte REST = 6;
+    private static final byte TUPLET = 7;
+
+    private static final byte[] ELEMENT_CLASS = new byte[128];
+    // characters that are a basenote
+    private static final boolean[] BASENOTE = new boolean[128];
+    // characters that can't appear in lyric_text
+    private static final boolean[] LYRIC_DELIMITER = new boolean[128];
+
+    static {
+        ELEMENT_CLASS[' '] = SPACE;
+        ELEMENT_CLASS['\t'] = SPACE;
+        ELEMENT_CLASS['|'] = BAR;
+        ELEMENT_CLASS[':'] = COLON;
+        ELEMENT_CLASS['['] = BRACKET;
+        ELEMENT_CLASS['z'] = REST;
+        ELEMENT_CLASS['('] = TUPLET;
+        for (char c : "^_=".toCharArray())
+            ELEMENT_CLASS[c] = NOTE;
+        for (char c : "CDEFGABcdefgab".toCharArray()) {
+            ELEMENT_CLASS[c] = NOTE;
+            BASENOTE[c] = true;
+        }
+        for (char c : " -_*|%\n\r".toCharArray())
+            LYRIC_DELIMITER[c] = true;
+    }
+
+    private static final int NO_ACCIDENTAL = Integer.MIN_VALUE;
+
+    private final String input;
+    private int pos = 0;
+
+    /**
+     * Parse the contents of an abc formatted string.
+     * @param input string in abc format
+     * @return the ABC song represented by input
+     * @throws UnableToParseException if input does not match Abc.g
+     */
+    static ABC parse(String input) throws UnableToParseException {
+        return new RecursiveDescentParser(input).abc();
+    }
+
+    private RecursiveDescentParser(String input) {
+        this.input = input;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert input != null;
+        assert 0 <= pos && pos <= input.length();
+    }
+
+    // abc ::= abc_header abc_body;
+    private ABC abc() throws UnableToParseException {
+        final Map<Character, Object> fields = new HashMap<>();
+        header(fields);
+
+        final AccidentalMap keySignature = ((Key) fields.get('K')).getAccidentalMap();
+        final Map<String, Music> parts = body(keySignature);
+        checkRep();
+        return new ABC(parts, fields);
+    }
+
+    ////////////////////////////////////////////////////
+    // Header
+    ////////////////////////////////////////////////////
+
+    // abc_header ::= field_number comment* field_title other_fields* field_key;
+    // every header production skips spaces and tabs before, between and after its parts
+    private void header(Map<Character, Object> fields) throws UnableToParseException {
+        skip();
+        expect("X:");
+        skip();
+        fields.put('X', number());
+        skip();
+        endOfLine();
+        skip();
+
+        while (at('%')) {
+            comment();
+            skip();
+        }
+
+        expect("T:");
+        skip();
+        fields.put('T', text().trim());
+        skip();
+        endOfLine();
+        skip();
+
+        while (otherField(fields))
+            skip();
+
+        expect("K:");
+        skip();
+        fields.put('K', key());
+        skip();
+        endOfLine();
+        skip();
+    }
+
+    /*
+     * other_fields ::= field_composer | field_default_length | field_meter | field_tempo | field_voice | comment;
+     * Returns false without consuming input if there is no such field.
+     */
+    private boolean otherField(Map<Character, Object> fields) throws UnableToParseException {
+        if (at('%')) {
+            comment();
+            return true;
+        } else if (at("C:")) { // field_composer ::= "C:" text end_of_line;
+            pos += 2;
+            skip();
+            fields.put('C', text().trim());
+        } else if (at("L:")) { // field_default_length ::= "L:" note_length_strict end_of_line;
+            pos += 2;
+            skip();
+            final int numerator = number();
+            expect("/");
+            final int denominator = number();
+            fields.put('L', new Meter(numerator, denominator));
+        } else if (at("M:")) { // field_meter ::= "M:" meter end_of_line;
+            pos += 2;
+            skip();
+            fields.put('M', meter());
+        } else if (at("Q:")) { // field_tempo ::= "Q:" tempo end_of_line;
+            pos += 2;
+            skip();
+            // tempo ::= meter_fraction "=" number;
+            final Meter beatLength = meterFraction();
+            skip();
+            expect("=");
+            skip();
+            fields.put('Q', new Tempo(beatLength, number()));
+        } else if (at("V:")) { // field_voice ::= "V:" text end_of_line;
+            pos += 2;
+            skip();
+            @SuppressWarnings("unchecked")
+            Set<String> voices = (Set<String>) fields.get('V');
+            if (voices == null) {
+                voices = new HashSet<>();
+                fields.put('V', voices);
+            }
+            voices.add(text().trim());
+        } else {
+            return false;
+        }
+        skip();
+        endOfLine();
+        return true;
+    }
+
+    // meter ::= "C" | "C|" | meter_fraction;
+    private Meter meter() throws UnableToParseException {
+        if (at("C|") || at('C')) {
+            // like the grammar, the meter symbol includes any trailing spaces
+            final int start = pos;
+            pos += at("C|") ? 2 : 1;
+            skip();
+            return new Meter(input.substring(start, pos));
+        }
+        final Meter meter = meterFraction();
+        skip();
+        return meter;
+    }
+
+    // meter_fraction ::= numerator "/" denominator;
+    private Meter meterFraction() throws UnableToParseException {
+        final int numerator = number();
+        skip();
+        expect("/");
+        skip();
+        return new Meter(numerator, number());
+    }
+
+    // key ::= keynote mode_minor?; keynote ::= basenote key_accidental?;
+    private Key key() throws UnableToParseException {
+        if (pos >= input.length() || !isBasenote(input.charAt(pos)))
+            throw error("basenote");
+        final StringBuilder key = new StringBuilder().append(input.charAt(pos++));
+        skip();
+        if (at('#') || at('b')) { // key_accidental ::= "#" | "b";
+            key.append(input.charAt(pos++) == '#' ? '$' : 'b');
+            skip();
+        }
+        if (at('m')) { // mode_minor ::= "m";
+            key.append('m');
+            pos++;
+        }
+        return Key.valueOf(key.toString());
+    }
+
+    ////////////////////////////////////////////////////
+    // Body
+    ////////////////////////////////////////////////////
+
+    // abc_body ::= abc_line+;
+    private Map<String, Music> body(AccidentalMap keySignature) throws UnableToParseException {
+        final ScoreBuilder score = new ScoreBuilder(keySignature);
+        do {
+            line(score);
+        } while (pos < input.length());
+        return score.build();
+    }
+
+    // abc_line ::= element+ end_of_line (lyric end_of_line)? | middle_of_body_field | comment;
+    private void line(ScoreBuilder score) throws UnableToParseException {
+        final int start = pos;
+        skip();
+        if (at("V:")) { // middle_of_body_field ::= field_voice;
+            pos += 2;
+            skip();
+            score.setVoice(text().trim());
+            skip();
+            endOfLine();
+            skip();
+            return;
+        }
+        pos = start;
+        if (at('%')) {
+            comment();
+            return;
+        }
+
+        // element+ ends at the first character that can't appear in an element
+        int end = start;
+        while (end < input.length() && !isEndOfLine(input.charAt(end)))
+            end++;
+        if (end == start)
+            throw error("element");
+        pos = end;
+        endOfLine();
+
+        final List<String> lyricalElements;
+        if (at("w:")) {
+            pos += 2;
+            lyricalElements = lyric();
+            endOfLine();
+        } else {
+            lyricalElements = null;
+        }
+        final int next = pos;
+
+        final LyricGenerator lyricGenerator = score.startLine(lyricalElements);
+        pos = start;
+        while (pos < end)
+            element(score, lyricGenerator);
+        pos = next;
+    }
+
+    // element ::= musical_element | barline | nth_repeat | space_or_tab;
+    private void element(ScoreBuilder score, LyricGenerator lyricGenerator) throws UnableToParseException {
+        final char c = input.charAt(pos);
+        switch (c < ELEMENT_CLASS.length ? ELEMENT_CLASS[c] : OTHER) {
+        case SPACE: // space_or_tab ::= " " | "\t";
+            pos++;
+            break;
+        case BAR: // barline ::= "|" | "||" | "[|" | "|]" | ":|" | "|:";
+            if (at("||") || at("|]") || at("|:")) {
+                score.addBarline(input.substring(pos, pos + 2));
+                pos += 2;
+            } else {
+                score.addBarline("|");
+                pos++;
+            }
+            break;
+        case COLON:
+            expect(":|");
+            score.addBarline(":|");
+            break;
+        case BRACKET:
+            if (at("[|")) {
+                pos += 2;
+                score.addBarline("[|");
+            } else if (at("[1") || at("[2")) { // nth_repeat ::= "[1" | "[2";
+                score.addNthRepeat(input.substring(pos, pos + 2));
+                pos += 2;
+            } else {
+                score.addMusic(chord(score.keySignature(), lyricGenerator));
+            }
+            break;
+        case NOTE:
+            score.addMusic(makeNote(noteSymbol(), score.keySignature(), lyricGenerator));
+            break;
+        case REST: // rest_element ::= "z" note_length?;
+            pos++;
+            score.addMusic(rest(noteLength()));
+            break;
+        case TUPLET:
+            score.addMusic(tuplet(score.keySignature(), lyricGenerator));
+            break;
+        default:
+            throw error("element");
+        }
+    }
+
+    // tuplet_element ::= tuplet_spec note_element+; tuplet_spec ::= "(" number;
+    private Music tuplet(AccidentalMap accidentalMap, LyricGenerator lyricGenerator) throws UnableToParseException {
+        final int duplet = 2;
+        final int triplet = 3;
+        final int quadruplet = 4;
+        final double dupletFactor = 3./2;
+        final double tripletFactor = 2./3;
+        final double quadrupletFactor = 3./4;
+
+        expect("(");
+        final int tupletSpec = number();
+        final double augmentationFactor;
+        switch (tupletSpec) {
+        case duplet:
+            augmentationFactor = dupletFactor;
+            break;
+        case triplet:
+            augmentationFactor = tripletFactor;
+            break;
+        case quadruplet:
+            augmentationFactor = quadrupletFactor;
+            break;
+        default:
+            throw new UnableToParseException("tuplet_element is malformed");
+        }
+
+        final List<Music> notes = new ArrayList<>();
+        do {
+            notes.add(noteElement(accidentalMap, lyricGenerator).augment(augmentationFactor));
+        } while (atChord() || atNote());
+        return sequence(notes);
+    }
+
+    // note_element ::= note | chord;
+    private Music noteElement(AccidentalMap accidentalMap, LyricGenerator lyricGenerator) throws UnableToParseException {
+        if (atChord())
+            return chord(accidentalMap, lyricGenerator);
+        return makeNote(noteSymbol(), accidentalMap, lyricGenerator);
+    }
+
+    // chord ::= "[" note+ "]";
+    private Music chord(AccidentalMap accidentalMap, LyricGenerator lyricGenerator) throws UnableToParseException {
+        expect("[");
+        final List<NoteSymbol> notes = new ArrayList<>();
+        do {
+            notes.add(noteSymbol());
+        } while (atNote());
+        expect("]");
+
+        lyricGenerator.setChordSize(notes.size());
+        Music music = makeNote(notes.get(0), accidentalMap, lyricGenerator);
+        for (final NoteSymbol note : notes.subList(1, notes.size()))
+            music = together(music, makeNote(note, accidentalMap, lyricGenerator));
+        return music;
+    }
+
+    // note ::= pitch note_length?; pitch ::= accidental? basenote octave?;
+    private NoteSymbol noteSymbol() throws UnableToParseException {
+        final int sharp = 1;
+        final int doubleSharp = 2;
+        final int flat = -1;
+        final int doubleFlat = -2;
+        final int natural = 0;
+
+        // accidental ::= "^" | "^^" | "_" | "__" | "=";
+        int accidental = NO_ACCIDENTAL;
+        if (at("^^")) {
+            accidental = doubleSharp;
+            pos += 2;
+        } else if (at("__")) {
+            accidental = doubleFlat;
+            pos += 2;
+        } else if (at('^')) {
+            accidental = sharp;
+            pos++;
+        } else if (at('_')) {
+            accidental = flat;
+            pos++;
+        } else if (at('=')) {
+            accidental = natural;
+            pos++;
+        }
+
+        if (pos >= input.length() || !isBasenote(input.charAt(pos)))
+            throw error("basenote");
+        final int start = pos++;
+        // octave ::= "'"+ | ","+;
+        if (at('\'') || at(',')) {
+            final char octave = input.charAt(pos);
+            while (at(octave))
+                pos++;
+        }
+        final String note = input.substring(start, pos);
+
+        return new NoteSymbol(accidental, note, noteLength());
+    }
+
+    /*
+     * Make the Music for a note, updating the accidentals of the current measure.
+     */
+    private static Music makeNote(NoteSymbol symbol, AccidentalMap accidentalMap, LyricGenerator lyricGenerator) {
+        Pitch pitch = Pitch.parsePitch(symbol.note);
+        if (symbol.accidental != NO_ACCIDENTAL) {
+            accidentalMap.put(pitch, symbol.accidental);
+        }
+        pitch = pitch.transpose(accidentalMap.get(pitch));
+
+        return note(symbol.duration, pitch, Instrument.PIANO, lyricGenerator.next());
+    }
+
+    /*
+     * note_length ::= numerator ("/" denominator?)? | ("/" denominator?);
+     * Returns 1 without consuming input if there is no note length.
+     */
+    private double noteLength() throws UnableToParseException {
+        int numerator = 1;
+        int denominator = 1;
+        if (atDigit())
+            numerator = number();
+        if (at('/')) {
+            pos++;
+            denominator = atDigit() ? number() : 2;
+        }
+        return (double) numerator / denominator;
+    }
+
+    // lyric ::= "w:" lyrical_element*;
+    private List<String> lyric() {
+        final List<String> lyricalElements = new ArrayList<>();
+        while (pos < input.length() && !isEndOfLine(input.charAt(pos))) {
+            final int start = pos;
+            // lyrical_element ::= " "+ | "-" | "_" | "*" | "|" | lyric_text;
+            final char c = input.charAt(pos);
+            if (c == ' ') {
+                while (at(' '))
+                    pos++;
+            } else if (c == '-' || c == '_' || c == '*' || c == '|') {
+                pos++;
+            } else {
+                // lyric_text ::= ("\\-" | [^ \-_*|%\n\r])+;
+                while (pos < input.length()) {
+                    if (at("\\-"))
+                        pos += 2;
+                    else if (!isLyricDelimiter(input.charAt(pos)))
+                        pos++;
+                    else
+                        break;
+                }
+            }
+            lyricalElements.add(input.substring(start, pos));
+        }
+        return lyricalElements;
+    }
+
+    ////////////////////////////////////////////////////
+    // General
+    ////////////////////////////////////////////////////
+
+    // comment ::= space_or_tab* "%" comment_text newline;
+    private void comment() throws UnableToParseException {
+        while (at(' ') || at('\t'))
+            pos++;
+        expect("%");
+        while (pos < input.length() && input.charAt(pos) != '\n' && input.charAt(pos) != '\r')
+            pos++;
+        newline();
+    }
+
+    // end_of_line ::= comment | newline;
+    private void endOfLine() throws UnableToParseException {
+        if (at('%'))
+            comment();
+        else
+            newline();
+    }
+
+    // newline ::= "\n" | "\r" "\n"?;
+    private void newline() throws UnableToParseException {
+        if (at('\n')) {
+            pos++;
+        } else if (at('\r')) {
+            pos++;
+            if (at('\n'))
+                pos++;
+        } else {
+            throw error("newline");
+        }
+    }
+
+    // text ::= [^%\n\r]*;
+    private String text() {
+        final int start = pos;
+        while (pos < input.length() && !isEndOfLine(input.charAt(pos)))
+            pos++;
+        return input.substring(start, pos);
+    }
+
+    // number ::= digit+;
+    private int number() throws UnableToParseException {
+        final int start = pos;
+        while (atDigit())
+            pos++;
+        if (start == pos)
+            throw error("number");
+        return Integer.parseInt(input.substring(start, pos));
+    }
+
+    /*
+     * Skip spaces and tabs, as @skip space_or_tab does.
+     */
+    private void skip() {
+        while (at(' ') || at('\t'))
+            pos++;
+    }
+
+    private void expect(String terminal) throws UnableToParseException {
+        if (!at(terminal))
+            throw error("\"" + terminal + "\"");
+        pos += terminal.length();
+    }
+
+    private boolean at(String terminal) {
+        return input.startsWith(terminal, pos);
+    }
+
+    private boolean at(char terminal) {
+        return pos < input.length() && input.charAt(pos) == terminal;
+    }
+
+    private boolean atDigit() {
+        return pos < input.length() && input.charAt(pos) >= '0' && input.charAt(pos) <= '9';
+    }
+
+    private boolean atNote() {
+        return isNote(pos);
+    }
+
+    private boolean atChord() {
+        return at('[') && isNote(pos + 1);
+    }
+
+    private boolean isNote(int index) {
+        if (index >= input.length())
+            return false;
+        final char c = input.charAt(index);
+        return c < ELEMENT_CLASS.length && ELEMENT_CLASS[c] == NOTE;
+    }
+
+    private static boolean isBasenote(char c) {
+        return c < BASENOTE.length && BASENOTE[c];
+    }
+
+    private static boolean isLyricDelimiter(char c) {
+        return c < LYRIC_DELIMITER.length && LYRIC_DELIMITER[c];
+    }
+
+    private static boolean isEndOfLine(char c) {
+        return c == '%' || c == '\n' || c == '\r';
+    }
+
+    /*
+     * Make an exception describing what was expected at the current position.
+     */
+    private UnableToParseException error(String expected) {
+        int line = 1;
+        int column = 1;
+        for (int i = 0; i < pos && i < input.length(); i++) {
+            if (input.charAt(i) == '\n') {
+                line++;
+                column = 1;
+            } else {
+                column++;
+            }
+        }
+        final String saw = pos < input.length() ? input.substring(pos, Math.min(pos + 10, input.length()))
+                                                : "end of string";
+        return new UnableToParseException("Error at offset " + pos + " (line " + line + " column " + column
+                + "): expected " + expected + " but saw " + saw);
+    }
+
+    /*
+     * A note as written in the abc file, before accidentals and lyrics are applied.
+     */
+    private static class NoteSymbol {
+        private final int accidental;
+        private final String note;
+        private final double duration;
+
+        private NoteSymbol(int accidental, String note, double duration) {
+            this.accidental = accidental;
+            this.note = note;
+            this.duration = duration;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package karaoke.parser;
+
+import static karaoke.music.Music.sequence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.LyricGenerator;
+import karaoke.music.Music;
+import karaoke.songs.AccidentalMap;
+
+/**
+ * ScoreBuilder assembles the voice parts of an abc body from a stream of body elements,
+ * in the order they appear in the abc file. It is shared by all ABCParser engines, so that
+ * every engine handles voices, repeats, accidentals and lyrics the same way.
+ * 
+ * <p> Each voice part is collected in a list and built into a single Sequence at the end,
+ * so adding an element takes amortized constant time no matter how long the part is.
+ */
+class ScoreBuilder {
+
+    /* Abstraction function:
+     *  AF(keySignature, voice, savedParts, newParts, partMap, lyricGenerators) =
+     *      a partially built music score for the current voice part voice, where
+     *      savedParts is the score so far and newParts is the music since the last repeat
+     *      boundary, each as a map from voice part to the list of its music in order, partMap is the version of the score currently
+     *      being modified for each voice part (either savedParts or newParts),
+     *      keySignature holds the key signature and accidentals of the current measure,
+     *      and lyricGenerators generates the lyrics for each voice part
+     *
+     * Rep invariant:
+     *  fields are not null
+     *  every value of partMap is savedParts or newParts
+     *  lists in savedParts and newParts are not empty and contain no music of duration 0
+     *
+     * Safety from rep exposure:
+     *  all fields are private
+     *  keySignature and lyric generators are returned to the parser that owns this builder,
+     *      which is the only client allowed to mutate them
+     *  build() returns a new map of immutable Music
+     */
+
+    private final AccidentalMap keySignature;
+    private String voice = "";
+    private final Map<String, List<Music>> savedParts = new HashMap<>();
+    private final Map<String, List<Music>> newParts = new HashMap<>();
+    private final Map<String, Map<String, List<Music>>> partMap = new HashMap<>();
+    private final Map<String, LyricGenerator> lyricGenerators = new HashMap<>();
+
+    /**
+     * Create an empty score.
+     * @param keySignature key signature of the score
+     */
+    ScoreBuilder(AccidentalMap keySignature) {
+        this.keySignature = keySignature;
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private void checkRep() {
+        assert keySignature != null;
+        assert voice != null;
+        assert partMap.values().stream().allMatch(parts -> parts == savedParts || parts == newParts);
+        assert savedParts.values().stream().noneMatch(List::isEmpty);
+        assert newParts.values().stream().noneMatch(List::isEmpty);
+    }
+
+    /**
+     * @return key signature, potentially with additional accidentals from the current measure
+     */
+    AccidentalMap keySignature() {
+        return keySignature;
+    }
+
+    /**
+     * Switch to another voice part.
+     * @param newVoice name of voice part
+     */
+    void setVoice(String newVoice) {
+        voice = newVoice;
+    }
+
+    /**
+     * Start a new line of music in the current voice part.
+     * @param lyricalElements lyrical elements of the lyric line accompanying the music,
+     *          according to Abc grammar, or null if there is no lyric line
+     * @return lyric generator for the notes of this line
+     */
+    LyricGenerator startLine(List<String> lyricalElements) {
+        if (!lyricGenerators.containsKey(voice))
+            lyricGenerators.put(voice, new LyricGenerator(voice));
+
+        final LyricGenerator lyricGenerator = lyricGenerators.get(voice);
+        if (lyricalElements == null)
+            lyricGenerator.loadNoLyrics();
+        else
+            lyricGenerator.loadLyrics(lyricalElements);
+        return lyricGenerator;
+    }
+
+    /**
+     * Add a musical element to the current voice part.
+     * @param music music to add
+     */
+    void addMusic(Music music) {
+        final Map<String, List<Music>> parts = partMap.getOrDefault(voice, newParts);
+        addMusic(parts, voice, music);
+    }
+
+    /**
+     * Add a barline to the current voice part.
+     * @param barline one of "|", "||", "[|", "|]", ":|", "|:"
+     * @throws UnableToParseException if barline is not a barline
+     */
+    void addBarline(String barline) throws UnableToParseException {
+        keySignature.refresh();
+        lyricGenerators.get(voice).loadNextMeasure();
+        switch (barline) {
+        case "|":
+            break;
+        case "||":
+        case "[|":
+        case "|]":
+        case "|:":
+            partMap.put(voice, newParts);
+            break;
+        case ":|":
+            addAllMusic(savedParts, voice, newParts.getOrDefault(voice, Collections.emptyList()));
+            newParts.remove(voice);
+            break;
+        default:
+            throw new UnableToParseException("barline is malformed");
+        }
+        checkRep();
+    }
+
+    /**
+     * Add the start of an nth ending to the current voice part.
+     * @param nthRepeat one of "[1", "[2"
+     * @throws UnableToParseException if nthRepeat is not an nth repeat
+     */
+    void addNthRepeat(String nthRepeat) throws UnableToParseException {
+        switch (nthRepeat) {
+        case "[1":
+            addAllMusic(savedParts, voice, newParts.getOrDefault(voice, Collections.emptyList()));
+            partMap.put(voice, savedParts);
+            break;
+        case "[2":
+            break;
+        default:
+            throw new UnableToParseException("nth_repeat is malformed");
+        }
+        checkRep();
+    }
+
+    /**
+     * Finish the score. This builder must not be used afterwards.
+     * @return complete music score as a map from voice part to Music
+     */
+    Map<String, Music> build() {
+        for (String part : newParts.keySet())
+            addAllMusic(savedParts, part, newParts.get(part));
+        
+        final Map<String, Music> score = new HashMap<>();
+        for (String part : savedParts.keySet())
+            score.put(part, sequence(savedParts.get(part)));
+        return score;
+    }
+
+    /**
+     * Add music to the end of the specified voice part of a score.
+     * @param parts music score
+     * @param voice voice part
+     * @param music music to add
+     */
+    private static void addMusic(Map<String, List<Music>> parts, String voice, Music music) {
+        if (music.duration() == 0)
+            return;
+        parts.computeIfAbsent(voice, v -> new ArrayList<>()).add(music);
+    }
+
+    /**
+     * Add a list of music, in order, to the end of the specified voice part of a score.
+     * @param parts music score
+     * @param voice voice part
+     * @param music music to add, must not be a list in parts
+     */
+    private static void addAllMusic(Map<String, List<Music>> parts, String voice, List<Music> music) {
+        if (music.isEmpty())
+            return;
+        parts.computeIfAbsent(voice, v -> new ArrayList<>()).addAll(music);
+    }
+
+}
@@ -0,0 +1,285 @@
+package karaoke.parser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.songs.ABC;
+
+/**
+ * SongCache is a thread-safe, bounded cache of compiled ABC songs in front of ABCParser.parse.
+ * Songs are keyed by a content hash of their abc text, so the same song is only parsed once
+ * no matter how many times (or from how many files) it is requested.
+ * The cache is bounded both by number of songs and by total weight, where the weight of
+ * a song is the length of its abc text; least recently used songs are evicted first.
+ */
+public class SongCache {
+
+    /**
+     * Default maximum number of songs in a cache.
+     */
+    public static final int DEFAULT_MAX_SONGS = 64;
+    /**
+     * Default maximum total weight of a cache, in characters of abc text.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 4 * 1024 * 1024;
+
+    /* Abstraction function:
+     *  AF(songs, files, maxSongs, maxWeight, weight, hits, misses, evictions) =
+     *      a cache of compiled songs, where songs maps the content hash of an abc text
+     *      to the song it compiles to, in order from least to most recently used;
+     *      files maps each abc file read by this cache to its last seen modification
+     *      time, length and content hash;
+     *      the cache holds at most maxSongs songs of total weight at most maxWeight,
+     *      weight is the current total weight, and hits, misses and evictions count
+     *      lookups that found a song, lookups that had to parse, and evicted songs
+     *
+     * Rep invariant:
+     *  fields are not null
+     *  maxSongs > 0, maxWeight > 0
+     *  songs.size() <= maxSongs
+     *  weight == sum of weights in songs, and weight <= maxWeight unless songs.size() == 1
+     *  hits, misses, evictions >= 0
+     *
+     * Safety from rep exposure:
+     *  all fields are private
+     *  songs and files are never passed in or returned
+     *  ABC is immutable
+     *
+     * Thread safety argument:
+     *  all accesses to songs, files and the counters are synchronized by this object's lock;
+     *  reading and parsing a song happens outside the lock, on data confined to the calling thread
+     */
+
+    private final Map<String, Entry> songs = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<File, FileStamp> files = new HashMap<>();
+    private final int maxSongs;
+    private final long maxWeight;
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create an empty cache with the default bounds.
+     */
+    public SongCache() {
+        this(DEFAULT_MAX_SONGS, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * Create an empty cache.
+     * @param maxSongs maximum number of songs to keep, must be > 0
+     * @param maxWeight maximum total length of abc text of songs to keep, must be > 0
+     */
+    public SongCache(int maxSongs, long maxWeight) {
+        if (maxSongs <= 0 || maxWeight <= 0)
+            throw new IllegalArgumentException("cache bounds must be positive");
+        this.maxSongs = maxSongs;
+        this.maxWeight = maxWeight;
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert songs != null;
+        assert files != null;
+        assert maxSongs > 0;
+        assert maxWeight > 0;
+        assert songs.size() <= maxSongs;
+        assert weight <= maxWeight || songs.size() == 1;
+        assert hits >= 0 && misses >= 0 && evictions >= 0;
+    }
+
+    /**
+     * Get the song in an abc file, parsing it only if the file's contents are not cached.
+     * The file is not read again unless its modification time or length has changed
+     * since it was last read.
+     * @param file abc file
+     * @return the song in file
+     * @throws FileNotFoundException if file does not exist
+     * @throws IOException if file can't be read
+     * @throws UnableToParseException if the contents of file can't be parsed
+     */
+    public ABC get(File file) throws IOException, UnableToParseException {
+        if (!file.isFile())
+            throw new FileNotFoundException(file.getPath());
+
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        synchronized (this) {
+            final FileStamp stamp = files.get(file);
+            if (stamp != null && stamp.lastModified == lastModified && stamp.length == length) {
+                final Entry entry = songs.get(stamp.hash);
+                if (entry != null) {
+                    hits++;
+                    return entry.song;
+                }
+            }
+        }
+
+        final String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        final String hash = hash(text);
+        synchronized (this) {
+            files.put(file, new FileStamp(lastModified, length, hash));
+        }
+        return get(text, hash);
+    }
+
+    /**
+     * Get the song represented by abc text, parsing it only if it is not cached.
+     * @param text song in abc format
+     * @return the song represented by text
+     * @throws UnableToParseException if text can't be parsed
+     */
+    public ABC parse(String text) throws UnableToParseException {
+        return get(text, hash(text));
+    }
+
+    /*
+     * Look up the song with the given content hash, parsing and caching text on a miss.
+     */
+    private ABC get(String text, String hash) throws UnableToParseException {
+        synchronized (this) {
+            final Entry entry = songs.get(hash);
+            if (entry != null) {
+                hits++;
+                return entry.song;
+            }
+            misses++;
+        }
+
+        final ABC song = ABCParser.parse(text);
+
+        synchronized (this) {
+            final Entry previous = songs.put(hash, new Entry(song, text.length()));
+            if (previous != null)
+                weight -= previous.weight;
+            weight += text.length();
+            evict();
+            checkRep();
+        }
+        return song;
+    }
+
+    /*
+     * Evict least recently used songs until this cache is within its bounds,
+     * always keeping the most recently used song.
+     */
+    private synchronized void evict() {
+        final Iterator<Entry> eldest = songs.values().iterator();
+        while (songs.size() > 1 && (songs.size() > maxSongs || weight > maxWeight)) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove all songs from this cache. Counters are not reset.
+     */
+    public synchronized void clear() {
+        songs.clear();
+        files.clear();
+        weight = 0;
+        checkRep();
+    }
+
+    /**
+     * @return number of songs in this cache
+     */
+    public synchronized int size() {
+        return songs.size();
+    }
+
+    /**
+     * @return total weight of songs in this cache, in characters of abc text
+     */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * @return number of lookups that found a compiled song
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that had to parse a song
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return number of songs evicted from this cache
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "songs: " + songs.size() + "/" + maxSongs + "\nweight: " + weight + "/" + maxWeight
+                + "\nhits: " + hits + "\nmisses: " + misses + "\nevictions: " + evictions;
+    }
+
+    /**
+     * @param text abc text
+     * @return hex SHA-256 hash of text
+     */
+    private static String hash(String text) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is unavailable", e);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8)))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /*
+     * A compiled song and its weight.
+     */
+    private static class Entry {
+        private final ABC song;
+        private final long weight;
+
+        private Entry(ABC song, long weight) {
+            this.song = song;
+            this.weight = weight;
+        }
+    }
+
+    /*
+     * The modification time, length and content hash of a file when it was last read.
+     */
+    private static class FileStamp {
+        private final long lastModified;
+        private final long length;
+        private final String hash;
+
+        private FileStamp(long lastModified, long length, String hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package karaoke.playback;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+
+/**
+ * CallbackTable is a mutable table of the callbacks scheduled on a MIDI track, grouped into
+ * numbered markers: all callbacks at the same tick share one marker, and the track holds one
+ * MIDI marker event per marker. Dispatching a marker event allocates nothing.
+ * Not threadsafe: callbacks must all be added before the track is played, and then only
+ * dispatched from the sequencer thread.
+ */
+class CallbackTable {
+
+    /**
+     * The generic marker meta message type.
+     */
+    static final int META_MARKER = 6;
+
+    // bytes in the data of a marker event
+    private static final int MARKER_BYTES = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int ticksPerBeat;
+    private int markers = 0;
+    private int[] tick = new int[INITIAL_CAPACITY];
+    private Double[] beat = new Double[INITIAL_CAPACITY];
+    private Consumer<Double>[] callback = newCallbacks(INITIAL_CAPACITY);
+    private final Map<Integer, Integer> markerAtTick = new HashMap<>();
+
+    /*
+     * Abstraction function:
+     *  AF(ticksPerBeat, markers, tick, beat, callback, markerAtTick) =
+     *      markers numbered 1 to markers, where marker n is at tick[n-1] and calls callback[n-1]
+     *      with the beat of that tick, beat[n-1], when dispatched
+     *
+     * Rep invariant:
+     *  ticksPerBeat > 0
+     *  0 <= markers <= tick.length == beat.length == callback.length
+     *  for 0 <= i < markers: tick[i] >= 0, beat[i] == tick[i] / ticksPerBeat, callback[i] != null,
+     *      and markerAtTick.get(tick[i]) == i + 1
+     *  markerAtTick.size() == markers
+     *
+     * Safety from rep exposure:
+     *  all fields are private, and no field is passed in or returned
+     *  Doubles and Consumers are immutable
+     */
+
+    private void checkRep() {
+        assert ticksPerBeat > 0;
+        assert 0 <= markers && markers <= tick.length;
+        assert tick.length == beat.length && beat.length == callback.length;
+        assert markerAtTick.size() == markers;
+    }
+
+    /**
+     * Make an empty callback table.
+     * @param ticksPerBeat number of ticks per beat of the track, > 0
+     */
+    CallbackTable(int ticksPerBeat) {
+        this.ticksPerBeat = ticksPerBeat;
+        checkRep();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Consumer<Double>[] newCallbacks(int length) {
+        return (Consumer<Double>[]) new Consumer<?>[length];
+    }
+
+    /**
+     * Schedule a callback. Callbacks at the same tick are called in the order they were added.
+     * @param atTick tick at which to call callback, >= 0
+     * @param callback function to call with the beat of atTick
+     * @return number of a new marker at atTick, which must be added to the track as marker(number),
+     *          or 0 if the track already has a marker at atTick
+     */
+    int add(int atTick, Consumer<Double> callback) {
+        final Integer existing = markerAtTick.get(atTick);
+        if (existing != null) {
+            this.callback[existing - 1] = this.callback[existing - 1].andThen(callback);
+            return 0;
+        }
+        if (markers == tick.length) {
+            final int capacity = tick.length * 2;
+            tick = Arrays.copyOf(tick, capacity);
+            beat = Arrays.copyOf(beat, capacity);
+            this.callback = Arrays.copyOf(this.callback, capacity);
+        }
+        tick[markers] = atTick;
+        beat[markers] = atTick / (double) ticksPerBeat;
+        this.callback[markers] = callback;
+        markers++;
+        markerAtTick.put(atTick, markers);
+        checkRep();
+        return markers;
+    }
+
+    /**
+     * @return number of markers in this table
+     */
+    int size() {
+        return markers;
+    }
+
+    /**
+     * Call the callbacks of a marker.
+     * @param number marker number, or any other int to do nothing
+     */
+    void dispatch(int number) {
+        if (number >= 1 && number <= markers)
+            callback[number - 1].accept(beat[number - 1]);
+    }
+
+    /**
+     * @param number marker number, >= 0; 0 is a marker that is never in a table
+     * @return a marker meta message whose data is number as a 4-byte big-endian int
+     */
+    static MetaMessage marker(int number) {
+        final byte[] data = new byte[MARKER_BYTES];
+        for (int i = MARKER_BYTES - 1, n = number; i >= 0; i--, n >>>= Byte.SIZE)
+            data[i] = (byte) n;
+        try {
+            return new Marker(number, data);
+        } catch (InvalidMidiDataException imde) {
+            throw new AssertionError("marker data is valid", imde);
+        }
+    }
+
+    /**
+     * @param meta meta message from a track
+     * @return the marker number of meta if it was made by marker(), decoded without allocating
+     *          when possible; otherwise 0
+     */
+    static int number(MetaMessage meta) {
+        if (meta instanceof Marker)
+            return ((Marker) meta).number;
+        if (meta.getType() != META_MARKER || meta.getLength() != 3 + MARKER_BYTES)
+            return 0;
+        final byte[] data = meta.getData();
+        int number = 0;
+        for (byte b : data)
+            number = (number << Byte.SIZE) | (b & 0xFF);
+        return number;
+    }
+
+    /*
+     * A marker meta message that remembers its number, so the number can be read without
+     * copying the message data.
+     */
+    private static class Marker extends MetaMessage {
+        private final int number;
+
+        private Marker(int number, byte[] data) throws InvalidMidiDataException {
+            super(META_MARKER, data, data.length);
+            this.number = number;
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package karaoke.playback;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import karaoke.music.Instrument;
+import karaoke.music.Pitch;
+
+/**
+ * Plays a sequence of events on a System.nanoTime() clock, with no sound and no Java Sound dependency,
+ * so songs can be played for their lyrics on servers with no MIDI device.
+ * Notes make no sound, but the song lasts until its last note ends.
+ * Each play runs on a thread of its own, which calls the events back in order of beat, at the time
+ * of their beat at the song's tempo scaled by the tempo factor; how late they are called is recorded,
+ * and jitter() reports it for every clock player in this process. VirtualSequencePlayer plays the same
+ * schedule on a virtual clock.
+ */
+public class ClockSequencePlayer implements SequencePlayer {
+
+    // how long before an event to stop parking and spin, since parking may overshoot its deadline
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static final Jitter JITTER = new Jitter(4096);
+
+    private final int beatsPerMinute;
+    private final int ticksPerBeat;
+
+    // event callbacks at each tick, in the order they were added
+    private final Map<Integer, List<Consumer<Double>>> events = new TreeMap<>();
+    // tick when the last note ends
+    private int endTick = 0;
+    // when the song is at which tick, and how fast it goes from there; guarded by this object's lock,
+    // since the tempo factor can be changed from any thread while the song plays
+    private Tempo tempo = new Tempo(0, 0, 1);
+    // thread of the clock playing, if any, woken when the tempo changes; guarded by this object's lock
+    private Thread clock = null;
+
+    /*
+     * Abstraction function:
+     *   AF(beatsPerMinute, ticksPerBeat, events, endTick, tempo, clock) = a song at beatsPerMinute
+     *      scaled by tempo.factor, lasting endTick / ticksPerBeat beats, that calls back events.get(t) at
+     *      tick t, with beat t / ticksPerBeat; if it is playing, on clock unless it is virtual, it is
+     *      tempo.songNanos into the song at its own tempo when now() is tempo.nanos
+     * Rep invariant:
+     *   beatsPerMinute and ticksPerBeat are positive,
+     *   events is non-null, every key of events is >= 0 and its list is non-empty,
+     *   endTick >= 0, tempo is non-null
+     * Safety from rep exposure:
+     *   all fields are private; events is never returned, and play() copies it for the clock thread;
+     *   tempo is immutable, and clock is never returned
+     * Thread safety argument:
+     *   not threadsafe while events are added, like MidiSequencePlayer; play() copies events before
+     *      starting the clock thread, which only uses its copy, and JITTER is threadsafe
+     *   tempo and clock are guarded by this object's lock; the clock thread reads the tempo again
+     *      whenever it wakes, and setTempoFactor() wakes it
+     */
+
+    private void checkRep() {
+        assert beatsPerMinute > 0 : "should be positive number of beats per minute";
+        assert ticksPerBeat > 0 : "should be positive number of ticks per beat";
+        assert events != null : "events should be non-null";
+        assert endTick >= 0 : "song should not end before it starts";
+        assert tempo != null : "tempo should be non-null";
+    }
+
+    /**
+     * Make a new clock sequence player.
+     * @param beatsPerMinute the number of beats per minute, > 0
+     * @param ticksPerBeat the number of ticks per beat, > 0; every event is called back at an integer
+     *          number of ticks
+     */
+    public ClockSequencePlayer(int beatsPerMinute, int ticksPerBeat) {
+        this.beatsPerMinute = beatsPerMinute;
+        this.ticksPerBeat = ticksPerBeat;
+        checkRep();
+    }
+
+    /**
+     * Notes make no sound, but the song lasts at least until this note ends.
+     */
+    @Override
+    public void addNote(Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+        endTick = Math.max(endTick, (int) ((startBeat + numBeats) * ticksPerBeat));
+        checkRep();
+    }
+
+    /**
+     * Schedule a callback when the clock reaches a time. Callbacks at the same tick are called
+     * in the order they were added, with the beat of that tick.
+     */
+    @Override
+    public void addEvent(double atBeat, Consumer<Double> callback) {
+        final int tick = (int) (atBeat * ticksPerBeat);
+        events.computeIfAbsent(tick, t -> new ArrayList<>()).add(callback);
+        endTick = Math.max(endTick, tick);
+        checkRep();
+    }
+
+    /**
+     * Start the clock on a new thread, calling back every event at its time.
+     * The future completes once the last note has ended, or completes exceptionally with
+     * the exception of a callback that throws one, after which no more events are called back.
+     */
+    @Override
+    public CompletableFuture<Void> play() {
+        final List<Map.Entry<Integer, List<Consumer<Double>>>> schedule = schedule();
+        final int end = endTick;
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        final Thread thread = new Thread(() -> {
+            try {
+                for (Map.Entry<Integer, List<Consumer<Double>>> entry : schedule) {
+                    waitUntil(entry.getKey());
+                    JITTER.record(System.nanoTime() - nanosOf(entry.getKey()));
+                    for (Consumer<Double> callback : entry.getValue())
+                        callback.accept(beatAt(entry.getKey()));
+                }
+                waitUntil(end);
+                finished.complete(null);
+            } catch (RuntimeException e) {
+                finished.completeExceptionally(e);
+            }
+        }, "lyric clock");
+        thread.setDaemon(true);
+        synchronized (this) {
+            start(System.nanoTime());
+            clock = thread;
+        }
+        thread.start();
+        return finished;
+    }
+
+    /**
+     * Scale the tempo of the song, taking effect at once if it is playing: events after the current
+     * tick are called back sooner or later, from now on, as if the song had been at the scaled tempo
+     * from its current tick.
+     */
+    @Override
+    public synchronized void setTempoFactor(double factor) {
+        assert factor > 0 : "tempo factor should be positive";
+        final long now = now();
+        tempo = new Tempo(now, tempo.songNanosAt(now), factor);
+        if (clock != null)
+            LockSupport.unpark(clock);
+        checkRep();
+    }
+
+    /**
+     * @return the tempo factor of the song
+     */
+    synchronized double getTempoFactor() {
+        return tempo.factor;
+    }
+
+    /**
+     * Start the song at tick 0 at time start, at the tempo factor set so far; requires this object's lock.
+     * @param start time by now() when the song starts
+     */
+    void start(long start) {
+        assert Thread.holdsLock(this);
+        tempo = new Tempo(start, 0, tempo.factor);
+    }
+
+    /**
+     * @return the current time of the clock this player plays on, in nanoseconds: System.nanoTime()
+     */
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param tick tick >= 0
+     * @return time by now() when the song playing reaches tick at its tempo factor, as far as it
+     *         is known from the last change of tempo
+     */
+    synchronized long nanosOf(int tick) {
+        return tempo.nanosOf(nanosAt(tick));
+    }
+
+    /**
+     * @return a copy of the scheduled events, in order of tick, with the callbacks at each tick
+     *         in the order they were added
+     */
+    List<Map.Entry<Integer, List<Consumer<Double>>>> schedule() {
+        final List<Map.Entry<Integer, List<Consumer<Double>>>> schedule = new ArrayList<>();
+        for (Map.Entry<Integer, List<Consumer<Double>>> entry : events.entrySet())
+            schedule.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                    new ArrayList<>(entry.getValue())));
+        return schedule;
+    }
+
+    /**
+     * @return tick when the last note ends, or the last event if it is later
+     */
+    int endTick() {
+        return endTick;
+    }
+
+    /**
+     * @param tick tick >= 0
+     * @return beat of tick
+     */
+    double beatAt(int tick) {
+        return tick / (double) ticksPerBeat;
+    }
+
+    /**
+     * @param tick tick >= 0
+     * @return nanoseconds from the start of the song to tick at this player's tempo
+     */
+    long nanosAt(int tick) {
+        return tick * TimeUnit.MINUTES.toNanos(1) / ((long) beatsPerMinute * ticksPerBeat);
+    }
+
+    /*
+     * Wait until System.nanoTime() reaches the time of tick: park until just before it, then spin.
+     * The time is worked out again whenever the thread wakes, in case the tempo has changed.
+     */
+    private void waitUntil(int tick) {
+        for (long left = nanosOf(tick) - System.nanoTime(); left > 0; left = nanosOf(tick) - System.nanoTime()) {
+            if (left > SPIN_NANOS)
+                LockSupport.parkNanos(left - SPIN_NANOS);
+            else
+                Thread.yield();
+        }
+    }
+
+    /**
+     * @return report of how late clock players in this process have called back events, over the
+     *         most recent events: "N events late by p50 x ms, p90 y ms, p99 z ms, max w ms",
+     *         or "no events" if none have been called back
+     */
+    public static String jitter() {
+        return JITTER.toString();
+    }
+
+    /**
+     * @return the scheduled events, one line per tick with the number of callbacks at that tick,
+     *         and then the tick when the song ends
+     */
+    @Override
+    public String toString() {
+        final StringBuilder info = new StringBuilder();
+        for (Map.Entry<Integer, List<Consumer<Double>>> entry : events.entrySet())
+            info.append("Events: ").append(entry.getValue().size()).append(" Tick: ").append(entry.getKey())
+                .append('\n');
+        return info.append("End Tick: ").append(endTick).append('\n').toString();
+    }
+
+    /*
+     * Immutable position of a song in time: songNanos into the song, as nanosAt() counts them at its own
+     * tempo, when a clock reads nanos, going factor times as fast as its own tempo from then on.
+     */
+    private static class Tempo {
+        private final long nanos;
+        private final long songNanos;
+        private final double factor;
+
+        private Tempo(long nanos, long songNanos, double factor) {
+            this.nanos = nanos;
+            this.songNanos = songNanos;
+            this.factor = factor;
+        }
+
+        /* how far into the song it is when the clock reads now */
+        private long songNanosAt(long now) {
+            return songNanos + Math.round((now - nanos) * factor);
+        }
+
+        /* when the clock reads at, as nanosAt() counts it, into the song */
+        private long nanosOf(long at) {
+            return nanos + Math.round((at - songNanos) / factor);
+        }
+    }
+
+    /*
+     * Threadsafe record of how late the most recent events were called back, in a ring of samples.
+     */
+    private static class Jitter {
+        private final long[] samples;
+        private long count = 0;
+
+        private Jitter(int capacity) {
+            this.samples = new long[capacity];
+        }
+
+        private synchronized void record(long lateNanos) {
+            samples[(int) (count % samples.length)] = lateNanos;
+            count++;
+        }
+
+        @Override
+        public String toString() {
+            final long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+            }
+            if (sorted.length == 0)
+                return "no events";
+            Arrays.sort(sorted);
+            return sorted.length + " events late by p50 " + millis(percentile(sorted, 50))
+                    + " ms, p90 " + millis(percentile(sorted, 90)) + " ms, p99 " + millis(percentile(sorted, 99))
+                    + " ms, max " + millis(sorted[sorted.length - 1]) + " ms";
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            return sorted[(int) Math.ceil(sorted.length * percent / 100.0) - 1];
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+}
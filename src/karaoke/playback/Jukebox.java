@@ -1,160 +1,920 @@
 package karaoke.playback;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import karaoke.lyrics.Lyric;
 import karaoke.songs.ABC;
 
 /**
  * Jukebox is a thread-safe playback handler that plays ABC songs in a queue.
+ * Its state is published as an immutable State, so reading it never blocks, even while signals
+ * are being broadcast.
+ * In auto-advance mode, the next song in the queue is loaded in the background while a song plays,
+ * and starts as soon as that song ends.
+ * Each jukebox plays songs to an Output: the MIDI synthesizer, or a lyric clock that needs no sound
+ * hardware.
  */
 public class Jukebox {
-    
+
+    /**
+     * Whether new jukeboxes auto-advance, from system property karaoke.jukebox.autoAdvance, or false.
+     */
+    public static final boolean DEFAULT_AUTO_ADVANCE = Boolean.getBoolean("karaoke.jukebox.autoAdvance");
+
+    /**
+     * Slowest tempo factor, a quarter of a song's own tempo.
+     */
+    public static final double MIN_TEMPO_FACTOR = 0.25;
+
+    /**
+     * Fastest tempo factor, four times a song's own tempo.
+     */
+    public static final double MAX_TEMPO_FACTOR = 4;
+
+    /**
+     * Output new jukeboxes play songs to, from system property karaoke.jukebox.output ("midi" or "clock"),
+     * or MIDI if it is not set or names no output.
+     */
+    public static final Output DEFAULT_OUTPUT = outputNamed(System.getProperty("karaoke.jukebox.output", "midi"));
+
+    // loads the next song of every jukebox in the background, one at a time, and starts the songs
+    // auto-advanced to that were not loaded in time, so no song is loaded on a MIDI callback thread
+    private static final ExecutorService PRELOADER = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "song preloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /* Abstraction function
-     *  AF(currentSong, queuedSongs, isPlaying, listeners)
-     *      = a jukebox that is currently playing currentSong, has
-     *      queuedSongs waiting in the queue, and has listeners
-     *      waiting for signals to be broadcast
-     *      
+     *  AF(state, listeners, dispatch, output, loader, advancer, autoAdvance, preload, transitions, mix,
+     *     tempoFactor, controls, playing) = a jukebox that
+     *      is currently playing state.currentSong, has state.queuedSongs waiting in the queue, and has the
+     *      listeners of listeners waiting for the signals of their subscriptions to be broadcast, having
+     *      broadcast state.sequence signals so far, that loads songs into players with loader, which
+     *      loads them for output.get() unless a test gave this jukebox a loader of its own,
+     *      starts the next song when a song ends iff autoAdvance, at once if its player is loaded and
+     *      otherwise once it is loaded by a task run by advancer, has the player of preload.get().song
+     *      loading or loaded if preload holds one, has timed the gaps between songs in transitions,
+     *      and sounds the voice parts of mix.get() at tempoFactor.get() times their tempo in every song,
+     *      including playing, the player of the song playing if any
+     *
      * Representation invariant
      *  no fields are null
-     *  if isPlaying, then currentSong.isPresent()
-     *  
+     *
      * Safety from rep exposure
-     *  all fields are private
-     *  currentSong is immutable
-     *  listeners is never passed in or returned
-     *  defensive copying when returning queuedSongs
-     * 
+     *  all fields are private, and all but playing are final
+     *  the State, Listeners and Transitions objects held by state, listeners and transitions are
+     *      immutable; dispatch, loader and preload are never passed in or returned
+     *  mix holds an immutable Mix and tempoFactor an immutable Double; controls and playing are
+     *      never passed in or returned
+     *
      * Thread safety argument
-     *  All methods are synchronized by this object's lock
+     *  state and listeners are atomic references to immutable objects, replaced by compare-and-set
+     *      with functions that have no side effects, so they may be retried; reading them never blocks
+     *  dispatch is held while a signal is broadcast, and every change of state.currentSong,
+     *      state.isPlaying and state.sequence is made while holding it, as part of broadcasting the
+     *      signal that announces it; so listeners receive signals in the order of their sequence numbers,
+     *      and a listener called back reads the state as of the signal it received
+     *  dispatch is also held while the tempo factor is set and listeners are told of it, so they are
+     *      told of each change in the order the changes were made
+     *  only adding a song to a jukebox that has a current song changes state without holding dispatch,
+     *      and it only appends to state.queuedSongs
+     *  listeners is replaced rather than mutated, so a listener can be added or removed by a
+     *      listener called back while it is being iterated
+     *  output, autoAdvance, preload and transitions are atomic; preload is replaced by compare-and-set, and
+     *      the player it holds is confined to the preloader thread until its future completes, and
+     *      then to the thread that takes it out of preload
+     *  loader is immutable, and must be threadsafe, since it is called on the preloader thread
+     *  advancer is immutable and threadsafe: the preloader, or a direct executor for a virtual clock
+     *  mix and tempoFactor are atomic, and are only set while holding controls, which guards playing;
+     *      so a player is given the latest mix and tempo factor when it starts, and every one set while
+     *      it plays; controls is taken while holding dispatch, never the other way around
      */
-    
-    private Optional<ABC> currentSong = Optional.empty();
-    private final Deque<ABC> queuedSongs = new ArrayDeque<>();
-    private boolean isPlaying = false;
-    private final List<Listener> listeners = new ArrayList<>();
-    
-    
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
+    private final AtomicReference<Listeners> listeners = new AtomicReference<>(Listeners.NONE);
+    private final Object dispatch = new Object();
+    private final AtomicReference<Output> output = new AtomicReference<>(DEFAULT_OUTPUT);
+    private final BiFunction<Timeline, Consumer<Lyric>, SequencePlayer> loader;
+    private final Executor advancer;
+    private final AtomicBoolean autoAdvance = new AtomicBoolean(DEFAULT_AUTO_ADVANCE);
+    private final AtomicReference<Optional<Preload>> preload = new AtomicReference<>(Optional.empty());
+    private final AtomicReference<Transitions> transitions = new AtomicReference<>(Transitions.NONE);
+    private final AtomicReference<Mix> mix = new AtomicReference<>(Mix.ALL_VOICES);
+    private final AtomicReference<Double> tempoFactor = new AtomicReference<>(1.0);
+    private final Object controls = new Object();
+    private Optional<SequencePlayer> playing = Optional.empty();
+
+
     /**
-     * Create a new empty Jukebox.
+     * @param name name of an output in any case, such as "clock"
+     * @return the output named, or MIDI if name names no output
+     */
+    static Output outputNamed(String name) {
+        for (Output output : Output.values())
+            if (output.name().equals(name.toUpperCase(Locale.ROOT)))
+                return output;
+        return Output.MIDI;
+    }
+
+    /**
+     * Create a new empty Jukebox that plays songs to DEFAULT_OUTPUT.
      */
     public Jukebox() {
+        this.loader = (timeline, lyricConsumer) -> output.get().load(timeline, lyricConsumer);
+        this.advancer = PRELOADER;
         checkRep();
     }
-    
+
+    /**
+     * Create a new empty Jukebox that plays songs on a virtual clock, whatever its output, so songs play
+     * as fast as their signals are broadcast once the clock is advanced. A song auto-advanced to starts
+     * on the thread that advances the clock, which never has to wait long for it to load.
+     * @param clock clock to play songs on
+     */
+    public Jukebox(VirtualClock clock) {
+        this((timeline, lyricConsumer) -> {
+            final SequencePlayer player = new VirtualSequencePlayer(clock, timeline.beatsPerMinute(),
+                    timeline.ticksPerBeat());
+            timeline.load(player, lyricConsumer);
+            return player;
+        }, Runnable::run);
+    }
+
+    /**
+     * Create a new empty Jukebox. Package-private so tests in this package can play songs without MIDI.
+     * @param loader makes a player with a timeline loaded, calling its lyric consumer for each lyric,
+     *          whatever the output of this jukebox; must be threadsafe
+     */
+    Jukebox(BiFunction<Timeline, Consumer<Lyric>, SequencePlayer> loader) {
+        this(loader, PRELOADER);
+    }
+
+    /*
+     * Create a new empty Jukebox.
+     * @param loader makes a player with a timeline loaded, as for Jukebox(loader)
+     * @param advancer runs the tasks that load and start the songs auto-advanced to that were not
+     *          loaded when the song before them ended
+     */
+    private Jukebox(BiFunction<Timeline, Consumer<Lyric>, SequencePlayer> loader, Executor advancer) {
+        this.loader = loader;
+        this.advancer = advancer;
+        checkRep();
+    }
+
     /*
      * Check rep invariant.
      */
-    private synchronized void checkRep() {
-        assert currentSong != null;
-        assert queuedSongs != null;
-        assert listeners != null;
-        assert !isPlaying || currentSong.isPresent();
+    private void checkRep() {
+        assert state.get() != null;
+        assert listeners.get() != null;
+        assert dispatch != null;
+        assert output.get() != null;
+        assert loader != null;
+        assert advancer != null;
+        assert preload.get() != null;
+        assert transitions.get() != null;
+        assert mix.get() != null;
+        assert tempoFactor.get() != null;
+        assert controls != null;
     }
-    
+
+    /**
+     * @return the current state of this jukebox, read without blocking
+     */
+    public State getState() {
+        return state.get();
+    }
+
     /**
      * @return song being played or next to be played if jukebox is not playing,
      *         may not exist if jukebox is empty
      */
-    public synchronized Optional<ABC> getCurrentSong() {
-        return currentSong;
+    public Optional<ABC> getCurrentSong() {
+        return state.get().getCurrentSong();
     }
-    
+
     /**
      * @return list of songs in queue
      */
-    public synchronized List<ABC> getQueuedSongs() {
-        return new ArrayList<>(queuedSongs);
+    public List<ABC> getQueuedSongs() {
+        return state.get().getQueuedSongs();
     }
-    
+
     /**
      * @return whether jukebox is playing a song
      */
-    public synchronized boolean isPlaying() {
-        return isPlaying;
+    public boolean isPlaying() {
+        return state.get().isPlaying();
     }
-    
+
     /**
      * Add a new song to the jukebox.
      * @param song song in ABC format
      * @return position of song in queue, or 0 if song is next up
      */
-    public synchronized int addSong(ABC song) {
-        queuedSongs.add(song);
-        if (!currentSong.isPresent())
-            updateCurrentSong();
+    public int addSong(ABC song) {
+        final State added = state.updateAndGet(before -> before.queued(song));
+        if (added.currentSong.isPresent()) {
+            preloadNext();
+            checkRep();
+            return added.queuedSongs.size();
+        }
+        synchronized (dispatch) {
+            // unless another song added at the same time got here first
+            if (!state.get().currentSong.isPresent())
+                broadcast(Signal.SIGNAL_SONG_CHANGE, State::advanced);
+        }
         checkRep();
-        return queuedSongs.size();
+        return added.queuedSongs.size() - 1;
     }
-    
+
     /**
      * Play the first song in the jukebox, or
      * do nothing if there is no song to play or the jukebox is already playing a song.
      * @return whether play request succeeded
      */
-    public synchronized boolean play() {
-        if (isPlaying || !currentSong.isPresent())
-            return false;
-        
-        ABC song = currentSong.get();
-        SequencePlayer player = SequencePlayer.load(song, lyric -> broadcast(Signal.lyric(lyric)));
-        player.addEvent(song.getMusic().duration(), beat -> {
-            isPlaying = false;
-            broadcast(Signal.SIGNAL_SONG_END);
-            updateCurrentSong();
-        });
-        isPlaying = true;
-        broadcast(Signal.SIGNAL_SONG_START);
-        player.play();
+    public boolean play() {
+        synchronized (dispatch) {
+            final State before = state.get();
+            if (before.isPlaying || !before.currentSong.isPresent())
+                return false;
+
+            final ABC song = before.currentSong.get();
+            start(song, load(song));
+        }
         checkRep();
         return true;
     }
-    
+
     /**
-     * Updates current song by taking from first song in queue, if it exists.
-     * Replaces current song if it exists.
+     * Start playing a song, requiring that it is the current song and the jukebox is not playing,
+     * and that the caller holds dispatch.
+     * @param song song to play
+     * @param player player with song loaded, not yet played
      */
-    private synchronized void updateCurrentSong() {
-        currentSong = queuedSongs.isEmpty() ? Optional.empty() :
-                                              Optional.of(queuedSongs.remove());
-        broadcast(Signal.SIGNAL_SONG_CHANGE);
+    private void start(ABC song, SequencePlayer player) {
+        player.addEvent(song.getMusic().duration(), beat -> finish());
+        broadcast(Signal.SIGNAL_SONG_START, State::started);
+        synchronized (controls) {
+            playing = Optional.of(player);
+            player.setMix(mix.get());
+            player.setTempoFactor(tempoFactor.get());
+        }
+        player.play();
+        preloadNext();
     }
-    
+
+    /**
+     * End the song being played, move on to the next song, and in auto-advance mode start playing it,
+     * recording how long the jukebox fell silent: at once if it was preloaded and is loaded, or else
+     * by advancer once it is loaded, so the thread calling back the end of the song, which a MIDI
+     * sequencer shares with every other, never waits for a song to load.
+     */
+    private void finish() {
+        final long ended = System.nanoTime();
+        final ABC next;
+        synchronized (dispatch) {
+            synchronized (controls) {
+                playing = Optional.empty();
+            }
+            broadcast(Signal.SIGNAL_SONG_END, State::stopped);
+            broadcast(Signal.SIGNAL_SONG_CHANGE, State::advanced);
+            final Optional<ABC> following = state.get().currentSong;
+            if (!autoAdvance.get() || !following.isPresent())
+                return;
+            next = following.get();
+            final Optional<SequencePlayer> loaded = loaded(next);
+            if (loaded.isPresent()) {
+                advance(next, loaded.get(), ended);
+                return;
+            }
+        }
+        advancer.execute(() -> {
+            final SequencePlayer player;
+            try {
+                player = load(next);
+            } catch (RuntimeException re) {
+                // stay stopped at next, so the failure reaches whoever asks to play it
+                return;
+            }
+            synchronized (dispatch) {
+                final State now = state.get();
+                // unless the song was played or skipped while it loaded
+                if (!now.isPlaying && now.currentSong.isPresent() && now.currentSong.get() == next)
+                    advance(next, player, ended);
+            }
+        });
+    }
+
+    /**
+     * Start playing the song auto-advanced to, requiring that the caller holds dispatch, and record the
+     * gap since the song before it ended.
+     * @param song song to play, the current song
+     * @param player player with song loaded, not yet played
+     * @param ended System.nanoTime() when the song before it ended
+     */
+    private void advance(ABC song, SequencePlayer player, long ended) {
+        start(song, player);
+        final long gap = System.nanoTime() - ended;
+        transitions.updateAndGet(before -> before.with(gap));
+    }
+
     /**
-     * Add a server listener for callback.
-     * 
+     * Take the preloaded player of song out of preload, if it has finished loading.
+     * @param song song to play
+     * @return the loaded player of song, or empty if it was not preloaded, is still loading,
+     *         or failed to load
+     */
+    private Optional<SequencePlayer> loaded(ABC song) {
+        final Optional<Preload> preloaded = preload.get();
+        if (!preloaded.isPresent() || preloaded.get().song != song || !preloaded.get().player.isDone()
+                || !preload.compareAndSet(preloaded, Optional.empty()))
+            return Optional.empty();
+        try {
+            return Optional.of(preloaded.get().player.get());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // loaded again by advancer
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Get a player with a song loaded: the preloaded player of song if there is one,
+     * otherwise one loaded now.
+     * @param song song to load
+     * @return player with song loaded, not yet played
+     */
+    private SequencePlayer load(ABC song) {
+        final Optional<Preload> preloaded = preload.getAndSet(Optional.empty());
+        if (preloaded.isPresent() && preloaded.get().song == song) {
+            try {
+                return preloaded.get().player.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ee) {
+                // load it again here, so the failure reaches whoever asked to play
+            }
+        }
+        return loader.apply(TimelineCache.shared().get(song), lyric -> broadcast(Signal.lyric(lyric)));
+    }
+
+    /**
+     * In auto-advance mode, while a song is playing, start loading the next song in the background
+     * unless it is already loading.
+     */
+    private void preloadNext() {
+        final State now = state.get();
+        if (!autoAdvance.get() || !now.isPlaying || now.queuedSongs.isEmpty())
+            return;
+        final ABC next = now.queuedSongs.get(0);
+        final Optional<Preload> current = preload.get();
+        if (current.isPresent() && current.get().song == next)
+            return;
+        final Preload loading = new Preload(next);
+        if (preload.compareAndSet(current, Optional.of(loading)))
+            loading.start();
+    }
+
+    /**
+     * Set whether this jukebox auto-advances: starts the next song in the queue as soon as a song ends,
+     * having loaded it in the background while that song played.
+     * @param on whether to auto-advance
+     */
+    public void setAutoAdvance(boolean on) {
+        autoAdvance.set(on);
+        preloadNext();
+    }
+
+    /**
+     * @return whether this jukebox auto-advances
+     */
+    public boolean isAutoAdvance() {
+        return autoAdvance.get();
+    }
+
+    /**
+     * Set the output this jukebox plays songs to, from the next song loaded on.
+     * The song playing, and a song already loaded in the background, play to the output they were
+     * loaded for.
+     * @param to output to play songs to
+     */
+    public void setOutput(Output to) {
+        output.set(to);
+    }
+
+    /**
+     * @return the output this jukebox plays songs to
+     */
+    public Output getOutput() {
+        return output.get();
+    }
+
+    /**
+     * Mute or unmute a voice part, in the song playing at once and in every song after it.
+     * @param voice name of a voice part
+     * @param mute whether the voice part should be silent
+     */
+    public void setMuted(String voice, boolean mute) {
+        remix(before -> before.muted(voice, mute));
+    }
+
+    /**
+     * Solo or unsolo a voice part, in the song playing at once and in every song after it.
+     * While any voice part is soloed, only soloed voice parts sound.
+     * @param voice name of a voice part
+     * @param solo whether the voice part should be soloed
+     */
+    public void setSoloed(String voice, boolean solo) {
+        remix(before -> before.soloed(voice, solo));
+    }
+
+    /**
+     * @return the voice parts this jukebox sounds
+     */
+    public Mix getMix() {
+        return mix.get();
+    }
+
+    /*
+     * Change the mix, and apply it to the song playing, if any.
+     */
+    private void remix(UnaryOperator<Mix> change) {
+        synchronized (controls) {
+            final Mix after = mix.updateAndGet(change);
+            playing.ifPresent(player -> player.setMix(after));
+        }
+    }
+
+    /**
+     * Set how fast songs play, for practice, in the song playing at once and in every song after it.
+     * Lyrics are broadcast at the beats of their notes at the scaled tempo, and every listener is
+     * called back with the new factor, whatever its subscription.
+     * @param factor how many times as fast as their own tempo songs play,
+     *          MIN_TEMPO_FACTOR <= factor <= MAX_TEMPO_FACTOR
+     * @throws IllegalArgumentException if factor is out of range
+     */
+    public void setTempoFactor(double factor) {
+        if (!(MIN_TEMPO_FACTOR <= factor && factor <= MAX_TEMPO_FACTOR))
+            throw new IllegalArgumentException("tempo factor must be from " + MIN_TEMPO_FACTOR
+                    + " to " + MAX_TEMPO_FACTOR);
+        synchronized (dispatch) {
+            synchronized (controls) {
+                tempoFactor.set(factor);
+                playing.ifPresent(player -> player.setTempoFactor(factor));
+            }
+            for (Listener listener : listeners.get().subscriptions.keySet())
+                listener.tempoChanged(factor);
+        }
+    }
+
+    /**
+     * @return how many times as fast as their own tempo songs play
+     */
+    public double getTempoFactor() {
+        return tempoFactor.get();
+    }
+
+    /**
+     * @return the gaps between songs this jukebox has auto-advanced from one to the next, each from
+     *         the end of one song to the start of the next
+     */
+    public Transitions getTransitions() {
+        return transitions.get();
+    }
+
+    /**
+     * Add a server listener for callback, receiving every signal.
+     *
+     * @param listener listener to add
+     */
+    public void addListener(Listener listener) {
+        addListener(listener, Subscription.ALL);
+    }
+
+    /**
+     * Add a server listener for callback, receiving only the signals of a subscription.
+     * Adding a listener already added replaces its subscription.
+     *
      * @param listener listener to add
+     * @param subscription signals the listener receives
      */
-    public synchronized void addListener(Listener listener) {
-        listeners.add(listener);
+    public void addListener(Listener listener, Subscription subscription) {
+        listeners.updateAndGet(before -> before.with(listener, subscription));
         checkRep();
     }
-    
+
     /**
      * Remove a server listener from callback.
-     * 
+     *
      * @param listener listener to remove
      */
-    public synchronized void removeListener(Listener listener) {
-        listeners.remove(listener);
+    public void removeListener(Listener listener) {
+        listeners.updateAndGet(before -> before.without(listener));
         checkRep();
     }
-    
+
     /**
-     * Broadcast a signal to all server listeners.
+     * @return number of signals this jukebox has broadcast; the sequence number of the last one
+     */
+    public long getSequence() {
+        return state.get().getSequence();
+    }
+
+    /**
+     * Broadcast a signal to the server listeners subscribed to it, numbered one more than the last signal.
+     * A lyric reaches only the listeners subscribed to its voice or to every voice, unless the current
+     * song has at most one voice, when it reaches every listener subscribed to lyrics.
+     * Package-private so tests in this package can broadcast signals without playing a song.
      * @param signal signal to broadcast
      */
-    private synchronized void broadcast(Signal signal) {
-        for (Listener listener : new ArrayList<>(listeners))
-            listener.signalReceived(signal);
+    void broadcast(Signal signal) {
+        broadcast(signal, UnaryOperator.identity());
     }
-    
+
+    /**
+     * Change the state of this jukebox and broadcast the signal announcing it, as one step that
+     * listeners and other broadcasts cannot see half done.
+     * @param signal signal to broadcast
+     * @param change change of state the signal announces, without side effects
+     */
+    private void broadcast(Signal signal, UnaryOperator<State> change) {
+        synchronized (dispatch) {
+            final State after = state.updateAndGet(before -> change.apply(before).numbered());
+            final Listeners receivers = listeners.get();
+            final long sequence = after.sequence;
+            if (signal.getType() != Signal.Type.LYRIC) {
+                for (Listener listener : receivers.byType.get(signal.getType()))
+                    listener.signalReceived(signal, sequence);
+            } else if (!after.currentSong.isPresent() || after.currentSong.get().getVoiceCount() <= 1) {
+                for (Listener listener : receivers.lyricsOfAnyVoice)
+                    listener.signalReceived(signal, sequence);
+            } else {
+                for (Listener listener : receivers.byType.get(Signal.Type.LYRIC))
+                    listener.signalReceived(signal, sequence);
+                for (Listener listener : receivers.lyricsByVoice.getOrDefault(signal.getLyric().getVoice(),
+                        Collections.emptyList()))
+                    listener.signalReceived(signal, sequence);
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the state of a Jukebox: the song being played or next to be played,
+     * the songs queued after it, whether it is playing, and how many signals it has broadcast.
+     */
+    public static class State {
+
+        private static final State EMPTY = new State(Optional.empty(), Collections.emptyList(), false, 0);
+
+        private final Optional<ABC> currentSong;
+        private final List<ABC> queuedSongs;
+        private final boolean isPlaying;
+        private final long sequence;
+
+        // Abstraction function:
+        //  AF(currentSong, queuedSongs, isPlaying, sequence) = the state of a jukebox that is playing
+        //      currentSong if isPlaying, or else will play it next, with queuedSongs waiting after it in
+        //      the queue, having broadcast sequence signals so far
+        // Representation invariant:
+        //  fields are not null
+        //  if isPlaying, then currentSong.isPresent()
+        //  sequence >= 0
+        // Safety from rep exposure:
+        //  all fields are private and final; currentSong is immutable
+        //  queuedSongs is an unmodifiable list that is never mutated, so it is returned without copying
+        // Thread safety argument:
+        //  This object is immutable, and queuedSongs is never mutated after construction
+
+        private State(Optional<ABC> currentSong, List<ABC> queuedSongs, boolean isPlaying, long sequence) {
+            this.currentSong = currentSong;
+            this.queuedSongs = queuedSongs;
+            this.isPlaying = isPlaying;
+            this.sequence = sequence;
+            checkRep();
+        }
+
+        /*
+         * Check rep invariant.
+         */
+        private void checkRep() {
+            assert currentSong != null;
+            assert queuedSongs != null;
+            assert !isPlaying || currentSong.isPresent();
+            assert sequence >= 0;
+        }
+
+        /**
+         * @return song being played or next to be played if not playing, may not exist if the jukebox
+         *         is empty
+         */
+        public Optional<ABC> getCurrentSong() {
+            return currentSong;
+        }
+
+        /**
+         * @return unmodifiable list of songs in queue after the current song
+         */
+        public List<ABC> getQueuedSongs() {
+            return queuedSongs;
+        }
+
+        /**
+         * @return whether the jukebox is playing the current song
+         */
+        public boolean isPlaying() {
+            return isPlaying;
+        }
+
+        /**
+         * @return number of signals the jukebox has broadcast; the sequence number of the last one
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /* @return this state with song added to the end of the queue */
+        private State queued(ABC song) {
+            final List<ABC> songs = new ArrayList<>(queuedSongs);
+            songs.add(song);
+            return new State(currentSong, Collections.unmodifiableList(songs), isPlaying, sequence);
+        }
+
+        /* @return this state with the first song in queue, if any, replacing the current song */
+        private State advanced() {
+            if (queuedSongs.isEmpty())
+                return new State(Optional.empty(), queuedSongs, false, sequence);
+            return new State(Optional.of(queuedSongs.get(0)),
+                    Collections.unmodifiableList(new ArrayList<>(queuedSongs.subList(1, queuedSongs.size()))),
+                    false, sequence);
+        }
+
+        /* @return this state playing the current song, requires that there is one */
+        private State started() {
+            return new State(currentSong, queuedSongs, true, sequence);
+        }
+
+        /* @return this state not playing */
+        private State stopped() {
+            return new State(currentSong, queuedSongs, false, sequence);
+        }
+
+        /* @return this state having broadcast one more signal */
+        private State numbered() {
+            return new State(currentSong, queuedSongs, isPlaying, sequence + 1);
+        }
+
+        @Override
+        public String toString() {
+            return (isPlaying ? "playing " : "next ")
+                    + currentSong.map(ABC::getInfo).orElse("nothing")
+                    + ", " + queuedSongs.size() + " queued, " + sequence + " signals";
+        }
+
+    }
+
+    /*
+     * The player of a song being loaded in the background, so it is ready when the song is played.
+     */
+    private class Preload {
+        private final ABC song;
+        private final FutureTask<SequencePlayer> player;
+
+        private Preload(ABC song) {
+            this.song = song;
+            this.player = new FutureTask<>(() ->
+                    loader.apply(TimelineCache.shared().get(song), lyric -> broadcast(Signal.lyric(lyric))));
+        }
+
+        /* start loading in the background, once this is in preload */
+        private void start() {
+            PRELOADER.execute(player);
+        }
+    }
+
+    /**
+     * Where a jukebox plays songs.
+     */
+    public enum Output {
+        /**
+         * Notes on the MIDI synthesizer, with lyrics timed by its sequencer.
+         */
+        MIDI {
+            @Override
+            SequencePlayer load(Timeline timeline, Consumer<Lyric> lyricConsumer) {
+                return SequencePlayer.load(timeline, lyricConsumer);
+            }
+        },
+        /**
+         * Lyrics only, timed by a System.nanoTime() clock, with no sound hardware needed.
+         */
+        CLOCK {
+            @Override
+            SequencePlayer load(Timeline timeline, Consumer<Lyric> lyricConsumer) {
+                final SequencePlayer player = new ClockSequencePlayer(timeline.beatsPerMinute(),
+                        timeline.ticksPerBeat());
+                timeline.load(player, lyricConsumer);
+                return player;
+            }
+        };
+
+        /**
+         * @param timeline timeline of the song to load
+         * @param lyricConsumer function called when new lyrics are played
+         * @return new player for this output with the song loaded
+         */
+        abstract SequencePlayer load(Timeline timeline, Consumer<Lyric> lyricConsumer);
+    }
+
+    /**
+     * An immutable summary of the gaps between songs of a jukebox that auto-advances.
+     */
+    public static class Transitions {
+
+        private static final Transitions NONE = new Transitions(0, 0, 0, 0);
+
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long lastNanos;
+
+        // Abstraction function:
+        //  AF(count, totalNanos, maxNanos, lastNanos) = count transitions from one song to the next,
+        //      whose gaps add up to totalNanos, the longest being maxNanos and the last lastNanos
+        // Representation invariant:
+        //  count, totalNanos, maxNanos, lastNanos >= 0
+        //  count == 0 implies totalNanos == maxNanos == lastNanos == 0
+        //  lastNanos <= maxNanos <= totalNanos
+        // Safety from rep exposure:
+        //  all fields are private, final and primitive
+        // Thread safety argument:
+        //  This object is immutable
+
+        private Transitions(long count, long totalNanos, long maxNanos, long lastNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.lastNanos = lastNanos;
+            checkRep();
+        }
+
+        /*
+         * Check rep invariant.
+         */
+        private void checkRep() {
+            assert count >= 0 && totalNanos >= 0 && maxNanos >= 0 && lastNanos >= 0;
+            assert count > 0 || (totalNanos == 0 && maxNanos == 0 && lastNanos == 0);
+            assert lastNanos <= maxNanos && maxNanos <= totalNanos;
+        }
+
+        /* @return these transitions and one more, with a gap of gapNanos */
+        private Transitions with(long gapNanos) {
+            return new Transitions(count + 1, totalNanos + gapNanos, Math.max(maxNanos, gapNanos), gapNanos);
+        }
+
+        /**
+         * @return number of transitions
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return the longest gap, in nanoseconds, or 0 if there have been no transitions
+         */
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * @return the last gap, in nanoseconds, or 0 if there have been no transitions
+         */
+        public long lastNanos() {
+            return lastNanos;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0)
+                return "no transitions";
+            return count + " transitions, gap mean " + millis(totalNanos / count) + " ms, max " + millis(maxNanos)
+                    + " ms, last " + millis(lastNanos) + " ms";
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+    }
+
+    /**
+     * An immutable set of listeners with their subscriptions, indexed by the signals they receive.
+     */
+    private static class Listeners {
+
+        private static final Listeners NONE = new Listeners(Collections.emptyMap());
+
+        private final Map<Listener, Subscription> subscriptions;
+        private final Map<Signal.Type, List<Listener>> byType = new EnumMap<>(Signal.Type.class);
+        private final Map<String, List<Listener>> lyricsByVoice = new HashMap<>();
+        private final List<Listener> lyricsOfAnyVoice = new ArrayList<>();
+
+        // Abstraction function:
+        //  AF(subscriptions, byType, lyricsByVoice, lyricsOfAnyVoice) = the listeners of subscriptions,
+        //      each receiving the signals of its subscription, where byType, lyricsByVoice and
+        //      lyricsOfAnyVoice index the listeners by the signals they receive
+        // Representation invariant:
+        //  fields are not null
+        //  byType maps each type other than LYRIC to the listeners subscribed to it, and LYRIC to
+        //      the listeners subscribed to lyrics of every voice
+        //  lyricsByVoice maps each voice to the listeners subscribed to its lyrics only
+        //  lyricsOfAnyVoice is every listener subscribed to lyrics
+        //  every list in the indexes is in the order listeners were added
+        // Safety from rep exposure:
+        //  all fields are private and final, and never passed in or returned;
+        //      subscriptions is a copy made by the constructor
+        // Thread safety argument:
+        //  This object is immutable: no field is mutated after construction, and the final fields
+        //      are safely published with it
+
+        /*
+         * Index listeners by the signals they receive.
+         * @param subscriptions listeners in the order they were added, with their subscriptions
+         */
+        private Listeners(Map<Listener, Subscription> subscriptions) {
+            this.subscriptions = Collections.unmodifiableMap(new LinkedHashMap<>(subscriptions));
+            for (Signal.Type type : Signal.Type.values())
+                byType.put(type, new ArrayList<>());
+            for (Map.Entry<Listener, Subscription> entry : subscriptions.entrySet()) {
+                final Listener listener = entry.getKey();
+                final Subscription subscription = entry.getValue();
+                for (Signal.Type type : subscription.types) {
+                    if (type != Signal.Type.LYRIC)
+                        byType.get(type).add(listener);
+                    else {
+                        lyricsOfAnyVoice.add(listener);
+                        if (subscription.voice.isPresent())
+                            lyricsByVoice.computeIfAbsent(subscription.voice.get(), voice -> new ArrayList<>())
+                                    .add(listener);
+                        else
+                            byType.get(type).add(listener);
+                    }
+                }
+            }
+            checkRep();
+        }
+
+        /*
+         * Check rep invariant.
+         */
+        private void checkRep() {
+            assert subscriptions != null;
+            assert byType.size() == Signal.Type.values().length;
+            assert lyricsOfAnyVoice.size() <= subscriptions.size();
+        }
+
+        /* @return these listeners with listener added, or its subscription replaced */
+        private Listeners with(Listener listener, Subscription subscription) {
+            final Map<Listener, Subscription> added = new LinkedHashMap<>(subscriptions);
+            added.put(listener, subscription);
+            return new Listeners(added);
+        }
+
+        /* @return these listeners without listener */
+        private Listeners without(Listener listener) {
+            if (!subscriptions.containsKey(listener))
+                return this;
+            final Map<Listener, Subscription> removed = new LinkedHashMap<>(subscriptions);
+            removed.remove(listener);
+            return new Listeners(removed);
+        }
+
+    }
+
     /**
      * A listener for WebServer, called back whenever signal is received.
      */
@@ -165,9 +925,127 @@ public class Jukebox {
          * @param signal signal broadcast from server
          */
         public void signalReceived(Signal signal);
+        
+        /**
+         * Called back whenever signal is received, with its sequence number. Signals are received
+         * in the order they are broadcast, numbered one more than the last signal broadcast, starting
+         * at 1; a listener skips the numbers of signals its subscription filters out.
+         * By default, calls signalReceived(signal).
+         * @param signal signal broadcast from server
+         * @param sequence sequence number of signal, > 0
+         */
+        public default void signalReceived(Signal signal, long sequence) {
+            signalReceived(signal);
+        }
+        
+        /**
+         * Called back whenever the tempo factor is set, between the signals broadcast before and after
+         * it. By default, does nothing.
+         * @param factor how many times as fast as their own tempo songs now play
+         */
+        public default void tempoChanged(double factor) {
+        }
     
     }
     
+    /**
+     * Represents which signals a Listener receives: signals of some types and, of the lyrics, either
+     * those of every voice or only those of one voice. When the song being played has at most one
+     * voice, its lyrics reach every listener subscribed to lyrics, whatever the voice.
+     */
+    public static class Subscription {
+        
+        /**
+         * Subscription to every signal, with the lyrics of every voice.
+         */
+        public static final Subscription ALL = new Subscription(Optional.empty(), EnumSet.allOf(Signal.Type.class));
+        
+        private final Optional<String> voice;
+        private final Set<Signal.Type> types;
+        
+        // Abstraction function:
+        //  AF(voice, types) = a subscription to the signals of types and, of lyrics, only those of
+        //      voice.get() if present, or else of every voice
+        // Representation invariant:
+        //  fields are not null
+        //  types is not empty
+        // Safety from rep exposure:
+        //  all fields are private and final; voice is immutable
+        //  types is a copy made by the factory methods, and never returned
+        // Thread safety argument:
+        //  This object is immutable, and types is never mutated after construction
+        
+        private Subscription(Optional<String> voice, Set<Signal.Type> types) {
+            this.voice = voice;
+            this.types = types;
+            checkRep();
+        }
+        
+        /*
+         * Check rep invariant.
+         */
+        private void checkRep() {
+            assert voice != null;
+            assert types != null;
+            assert !types.isEmpty();
+        }
+        
+        /**
+         * @param voice voice part whose lyrics to receive
+         * @return subscription to every signal, with only the lyrics of voice
+         */
+        public static Subscription voice(String voice) {
+            return new Subscription(Optional.of(voice), EnumSet.allOf(Signal.Type.class));
+        }
+        
+        /**
+         * @param voice voice part whose lyrics to receive, or empty for every voice
+         * @param type a type of signal to receive
+         * @param types other types of signal to receive
+         * @return subscription to the signals of those types, with only the lyrics of voice if present
+         */
+        public static Subscription of(Optional<String> voice, Signal.Type type, Signal.Type... types) {
+            return new Subscription(voice, EnumSet.of(type, types));
+        }
+        
+        /**
+         * @return voice part whose lyrics are received, or empty for every voice
+         */
+        public Optional<String> getVoice() {
+            return voice;
+        }
+        
+        /**
+         * @param type type of signal
+         * @return whether signals of type are received
+         */
+        public boolean receives(Signal.Type type) {
+            return types.contains(type);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(voice, types);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj == null) return false;
+            if (getClass() != obj.getClass()) return false;
+            
+            final Subscription other = (Subscription) obj;
+            return voice.equals(other.voice)
+                    && types.equals(other.types);
+        }
+        
+        @Override
+        public String toString() {
+            return types + " of " + voice.map(name -> "voice " + name).orElse("every voice");
+        }
+        
+    }
+    
     /**
      * Represents a signal broadcast from a Jukebox to any Listeners.
      */
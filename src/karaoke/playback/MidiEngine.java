@@ -0,0 +1,262 @@
+package karaoke.playback;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Patch;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+
+import karaoke.music.Instrument;
+
+/**
+ * MidiEngine is a thread-safe, long-lived MIDI synthesizer shared by every MidiSequencePlayer.
+ * The synthesizer is opened once, instruments are loaded into it the first time a song uses them,
+ * and one sequencer wired to it is reused for every song that doesn't overlap another.
+ * Sequencers are released off the Java Sound event thread once a song ends, so its meta events are
+ * never held up by teardown. It also records how long songs take to load, to start playing, and to be
+ * ready for the next song once they end.
+ */
+public class MidiEngine {
+
+    private static MidiEngine shared = null;
+
+    // stops and closes the sequencers of songs that have ended, one at a time
+    private static final ExecutorService TEARDOWN = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "midi teardown");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Synthesizer synthesizer;
+    private final Soundbank soundbank;
+    private final boolean[] loaded = new boolean[Instrument.values().length];
+    private final Sequencer sequencer;
+    private boolean sequencerInUse = false;
+    private int instrumentsLoaded = 0;
+    private int sequencersCreated = 1;
+    private final Latency loadLatency = new Latency();
+    private final Latency startLatency = new Latency();
+    private final Latency readyLatency = new Latency();
+
+    // Abstraction function:
+    //  AF(synthesizer, soundbank, loaded, sequencer, sequencerInUse, instrumentsLoaded, sequencersCreated,
+    //     loadLatency, startLatency, readyLatency)
+    //      = an open MIDI synthesizer with the instruments i from soundbank loaded for which loaded[i],
+    //      and a pooled sequencer playing into it that a song is playing on iff sequencerInUse,
+    //      where instrumentsLoaded instruments have been loaded, sequencersCreated sequencers have been
+    //      made for songs, and loadLatency, startLatency and readyLatency time loading and starting
+    //      songs and getting ready for the next song once one ends
+    //
+    // Representation invariant:
+    //  synthesizer and sequencer are open; fields are not null, except soundbank if the synthesizer has none
+    //  instrumentsLoaded == number of true values in loaded
+    //  sequencersCreated >= 1
+    //
+    // Safety from rep exposure:
+    //  all fields are private
+    //  synthesizer, soundbank and loaded are never returned
+    //  sequencer is only returned by acquireSequencer() to a player, which returns it
+    //      with releaseSequencer() before any other player can acquire it
+    //
+    // Thread safety argument:
+    //  shared is only accessed in static synchronized methods
+    //  all accesses to the other fields are synchronized by this object's lock
+    //  sequencer is confined to the player that acquired it until it is released
+    //  TEARDOWN is threadsafe, and only runs releaseSequencer(), which takes this object's lock
+
+    /**
+     * @return the MIDI engine shared by every MidiSequencePlayer, opening it if it isn't open yet
+     * @throws MidiUnavailableException if the MIDI synthesizer or sequencer is unavailable;
+     *          the next call tries to open them again
+     */
+    public static synchronized MidiEngine shared() throws MidiUnavailableException {
+        if (shared == null)
+            shared = new MidiEngine();
+        return shared;
+    }
+
+    /**
+     * @return the MIDI engine shared by every MidiSequencePlayer if it has been opened, without opening it
+     */
+    public static synchronized Optional<MidiEngine> sharedIfOpen() {
+        return Optional.ofNullable(shared);
+    }
+
+    /**
+     * Open a MIDI engine, with no instruments loaded yet.
+     * @throws MidiUnavailableException if the MIDI synthesizer or sequencer is unavailable
+     */
+    private MidiEngine() throws MidiUnavailableException {
+        this.synthesizer = MidiSystem.getSynthesizer();
+        synthesizer.open();
+        this.soundbank = synthesizer.getDefaultSoundbank();
+        try {
+            this.sequencer = openSequencer();
+        } catch (MidiUnavailableException | RuntimeException e) {
+            synthesizer.close();
+            throw e;
+        }
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert synthesizer != null && synthesizer.isOpen();
+        assert sequencer != null && sequencer.isOpen();
+        int count = 0;
+        for (boolean instrument : loaded)
+            if (instrument) count++;
+        assert instrumentsLoaded == count;
+        assert sequencersCreated >= 1;
+    }
+
+    /**
+     * @return a new open sequencer that plays into this engine's synthesizer
+     * @throws MidiUnavailableException if no sequencer is available
+     */
+    private Sequencer openSequencer() throws MidiUnavailableException {
+        final Sequencer newSequencer = MidiSystem.getSequencer(false);
+        newSequencer.open();
+        try {
+            newSequencer.getTransmitter().setReceiver(synthesizer.getReceiver());
+        } catch (MidiUnavailableException e) {
+            newSequencer.close();
+            throw e;
+        }
+        return newSequencer;
+    }
+
+    /**
+     * Load an instrument into the synthesizer, if it isn't loaded already.
+     * @param instrument instrument a song will play
+     */
+    public synchronized void loadInstrument(Instrument instrument) {
+        if (loaded[instrument.ordinal()])
+            return;
+        if (soundbank != null) {
+            final javax.sound.midi.Instrument sound = soundbank.getInstrument(new Patch(0, instrument.ordinal()));
+            if (sound != null)
+                synthesizer.loadInstrument(sound);
+        }
+        loaded[instrument.ordinal()] = true;
+        instrumentsLoaded++;
+        checkRep();
+    }
+
+    /**
+     * @return number of MIDI channels the synthesizer has
+     */
+    public int channels() {
+        return synthesizer.getChannels().length;
+    }
+
+    /**
+     * Get a sequencer to play a song on. The caller must release it with releaseSequencer()
+     * once the song is over.
+     * @return the pooled sequencer if no other song is playing on it, otherwise a new open sequencer
+     * @throws MidiUnavailableException if a new sequencer is needed but none is available
+     */
+    synchronized Sequencer acquireSequencer() throws MidiUnavailableException {
+        if (!sequencerInUse) {
+            sequencerInUse = true;
+            return sequencer;
+        }
+        final Sequencer extra = openSequencer();
+        sequencersCreated++;
+        checkRep();
+        return extra;
+    }
+
+    /**
+     * Stop a sequencer acquired from acquireSequencer(). The pooled sequencer is kept open
+     * for the next song; any other sequencer is closed.
+     * @param used sequencer the caller acquired, which the caller must not use again
+     */
+    synchronized void releaseSequencer(Sequencer used) {
+        used.stop();
+        if (used == sequencer)
+            sequencerInUse = false;
+        else
+            used.close();
+        checkRep();
+    }
+
+    /**
+     * Release a sequencer acquired from acquireSequencer() once its song has ended, on the teardown
+     * thread rather than the caller's, which may be the sequencer's own event thread.
+     * @param used sequencer the caller acquired, which the caller must not use again
+     * @param endedNanos System.nanoTime() when the song ended
+     * @return future that completes once used is released and the engine is ready for the next song
+     */
+    CompletableFuture<Void> releaseLater(Sequencer used, long endedNanos) {
+        return CompletableFuture.runAsync(() -> {
+            releaseSequencer(used);
+            synchronized (this) {
+                readyLatency.record(System.nanoTime() - endedNanos);
+            }
+        }, TEARDOWN);
+    }
+
+    /**
+     * Record how long it took a song to be loaded into a player and to start playing.
+     * @param loadNanos nanoseconds from making the player to asking it to play
+     * @param startNanos nanoseconds from asking the player to play to its sequencer starting
+     */
+    synchronized void recordPlay(long loadNanos, long startNanos) {
+        loadLatency.record(loadNanos);
+        startLatency.record(startNanos);
+    }
+
+    /**
+     * @return report with one line each for the instruments loaded, the sequencers made,
+     *          and the count, mean, max and last milliseconds to load songs, to start them, and
+     *          from the end of a song to being ready for the next
+     */
+    @Override
+    public synchronized String toString() {
+        return "instruments loaded: " + instrumentsLoaded + "/" + loaded.length
+                + "\nsequencers created: " + sequencersCreated
+                + "\nload latency: " + loadLatency
+                + "\nstart latency: " + startLatency
+                + "\nready latency: " + readyLatency;
+    }
+
+    /*
+     * Mutable summary of a series of latencies; not threadsafe, guarded by the engine's lock.
+     */
+    private static class Latency {
+        private long count = 0;
+        private long total = 0;
+        private long max = 0;
+        private long last = 0;
+
+        private void record(long nanos) {
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+            last = nanos;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0)
+                return "no songs played";
+            return count + " songs, mean " + millis(total / count) + " ms, max " + millis(max)
+                    + " ms, last " + millis(last) + " ms";
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+}
@@ -1,32 +1,32 @@
 package karaoke.playback;
 
-import java.math.BigInteger;
 import java.text.MessageFormat;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaEventListener;
 import javax.sound.midi.MetaMessage;
-import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
-import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.midi.ShortMessage;
-import javax.sound.midi.Synthesizer;
 import javax.sound.midi.Track;
 
 import karaoke.music.Instrument;
 import karaoke.music.Pitch;
 
 /**
- * Schedules and plays a sequence of notes using the MIDI synthesizer.
+ * Schedules and plays a sequence of notes using the MIDI synthesizer of a MidiEngine.
+ * Notes of each voice part go on a track of their own, so the sequencer can mute and solo voice parts
+ * while the song plays; notes of no voice part, instrument changes and event markers go on the first track.
  */
 public class MidiSequencePlayer implements SequencePlayer {
 
@@ -43,14 +43,14 @@ public class MidiSequencePlayer implements SequencePlayer {
     private static final int DEFAULT_VELOCITY = 100;
 
     // the generic marker meta message type
-    private static final int META_MARKER = 6;
+    private static final int META_MARKER = CallbackTable.META_MARKER;
     // the "end_of_track" meta message type
     private static final int META_END_OF_TRACK = 47;
 
     // MIDI note number representing middle C
     private static final int MIDI_NOTE_MIDDLE_C = 60;
     
-    private final Synthesizer synthesizer;
+    private final MidiEngine engine;
 
     // active MIDI channels, assigned to instruments
     private final Map<Instrument, Integer> channelForInstrument = new HashMap<>();
@@ -58,30 +58,48 @@ public class MidiSequencePlayer implements SequencePlayer {
     // next available channel number (not assigned to an instrument yet)
     private int nextChannel = 0;
 
-    private final Sequencer sequencer;
+    private final Sequence sequence;
     private final Track track;
+    // events waiting to be added to each track of sequence, sorted, when the song is played or shown;
+    // buffers.get(0) is the buffer of track
+    private final List<TrackBuffer> buffers = new ArrayList<>();
+    // index in sequence of the track of each voice part
+    private final Map<String, Integer> trackForVoice = new LinkedHashMap<>();
     private final int beatsPerMinute;
     private final int ticksPerBeat;
 
-    // event callback functions
-    private final SortedMap<Integer, Consumer<Double>> callbacks = new TreeMap<>();
-    private final MetaMessage keepalive = new MetaMessage(META_MARKER, new byte[] { 0 }, 1);
+    // event callback functions, one marker event per tick with callbacks
+    private final CallbackTable callbacks;
+
+    // System.nanoTime() when this player was made, to measure how long songs take to load
+    private final long created = System.nanoTime();
+
+    // voice parts that sound, how many times as fast as beatsPerMinute the song plays, and the
+    // sequencer playing this song, if any; guarded by this object's lock, since the mix and tempo
+    // can be changed from any thread while the song plays
+    private Mix mix = Mix.ALL_VOICES;
+    private double tempoFactor = 1;
+    private Sequencer active = null;
 
     /*
      * Rep invariant:
-     *   sequencer and track are non-null,
-     *   beatsPerMinute and ticksPerBeat are positive,
+     *   engine, sequence, track, buffers, trackForVoice and mix are non-null,
+     *   buffers has one buffer per track of sequence, track first,
+     *   the values of trackForVoice are the indices 1 to buffers.size() - 1,
+     *   beatsPerMinute, ticksPerBeat and tempoFactor are positive,
      *   channels and callbacks are non-null,
      *   channels does not contain value nextChannel
      */
 
     private void checkRep() {
-        assert sequencer != null : "sequencer should be non-null";
+        assert engine != null : "engine should be non-null";
+        assert sequence != null : "sequence should be non-null";
         assert track != null : "track should be non-null";
+        assert buffers.size() == sequence.getTracks().length : "buffers should match tracks";
+        assert trackForVoice.size() == buffers.size() - 1 : "each track but the first should have a voice";
         assert beatsPerMinute >= 0 : "should be positive number of beats per minute";
         assert ticksPerBeat >= 0 : "should be positive number of ticks per beat";
         assert callbacks != null : "callbacks should be non-null";
-        assert callbacks.keySet().stream().allMatch(n -> n >= 1) : "callback numbers should be positive";
         assert ! channelForInstrument.values().contains(nextChannel) : "nextChannel should not be assigned";
     }
 
@@ -95,7 +113,7 @@ public class MidiSequencePlayer implements SequencePlayer {
     }
 
     /**
-     * Make a new MIDI sequence player.
+     * Make a new MIDI sequence player that plays on the shared MidiEngine.
      * @param beatsPerMinute the number of beats per minute
      * @param ticksPerBeat the number of ticks per beat; every note plays for an integer number of ticks
      * @throws MidiUnavailableException if MIDI device unavailable
@@ -103,35 +121,65 @@ public class MidiSequencePlayer implements SequencePlayer {
      */
     public MidiSequencePlayer(int beatsPerMinute, int ticksPerBeat)
             throws MidiUnavailableException, InvalidMidiDataException {
-        synthesizer = MidiSystem.getSynthesizer();
-        synthesizer.open();
-        synthesizer.loadAllInstruments(synthesizer.getDefaultSoundbank());
+        this(MidiEngine.shared(), beatsPerMinute, ticksPerBeat);
+    }
 
-        this.sequencer = MidiSystem.getSequencer();
+    /**
+     * Make a new MIDI sequence player.
+     * @param engine MIDI engine to play on; instruments are loaded into it as notes are added
+     * @param beatsPerMinute the number of beats per minute
+     * @param ticksPerBeat the number of ticks per beat; every note plays for an integer number of ticks
+     * @throws InvalidMidiDataException if MIDI play fails
+     */
+    public MidiSequencePlayer(MidiEngine engine, int beatsPerMinute, int ticksPerBeat)
+            throws InvalidMidiDataException {
+        this.engine = engine;
 
         // create a sequence object with with tempo-based timing, where
         // the resolution of the time step is based on ticks per quarter note
-        Sequence sequence = new Sequence(Sequence.PPQ, ticksPerBeat);
+        this.sequence = new Sequence(Sequence.PPQ, ticksPerBeat);
         this.beatsPerMinute = beatsPerMinute;
         this.ticksPerBeat = ticksPerBeat;
+        this.callbacks = new CallbackTable(ticksPerBeat);
 
         // create an empty track; notes will be added to this track
         this.track = sequence.createTrack();
-
-        sequencer.setSequence(sequence);
+        this.buffers.add(new TrackBuffer(track));
 
         checkRep();
     }
 
     @Override
     public void addNote(Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+        addNote(buffers.get(0), instr, pitch, startBeat, numBeats);
+    }
+
+    /**
+     * Schedule a note on the track of its voice part, making the track if the voice part has none yet.
+     */
+    @Override
+    public void addNote(String voice, Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+        Integer index = trackForVoice.get(voice);
+        if (index == null) {
+            index = buffers.size();
+            buffers.add(new TrackBuffer(sequence.createTrack()));
+            trackForVoice.put(voice, index);
+            checkRep();
+        }
+        addNote(buffers.get(index), instr, pitch, startBeat, numBeats);
+    }
+
+    /*
+     * Schedule a note on the track of buffer.
+     */
+    private void addNote(TrackBuffer buffer, Instrument instr, Pitch pitch, double startBeat, double numBeats) {
         int channel = getChannel(instr);
         int note = getMidiNote(pitch);
         try {
             // schedule two events in the track, one for starting a note and
             // the other for ending the note.
-            addMidiNoteEvent(ShortMessage.NOTE_ON, channel, note, (int) (startBeat * ticksPerBeat));
-            addMidiNoteEvent(ShortMessage.NOTE_OFF, channel, note, (int) ((startBeat + numBeats) * ticksPerBeat));
+            addMidiNoteEvent(buffer, ShortMessage.NOTE_ON, channel, note, (int) (startBeat * ticksPerBeat));
+            addMidiNoteEvent(buffer, ShortMessage.NOTE_OFF, channel, note, (int) ((startBeat + numBeats) * ticksPerBeat));
         } catch (InvalidMidiDataException imde) {
             String msg = MessageFormat.format("Cannot add note with the pitch {0} at beat {1} " +
                                               "for duration {2}", note, startBeat, numBeats);
@@ -141,90 +189,138 @@ public class MidiSequencePlayer implements SequencePlayer {
 
     /**
      * Schedule a MIDI note event.
+     * @param buffer buffer of the track to schedule it on
      * @param eventType valid MidiMessage type in ShortMessage
      * @param channel valid channel
      * @param note valid pitch value
      * @param tick tick >= 0
      * @throws InvalidMidiDataException
      */
-    private void addMidiNoteEvent(int eventType, int channel, int note, int tick) throws InvalidMidiDataException {
-        ShortMessage msg = new ShortMessage(eventType, channel, note, DEFAULT_VELOCITY);
-        this.track.add(new MidiEvent(msg, tick));
+    private void addMidiNoteEvent(TrackBuffer buffer, int eventType, int channel, int note, int tick)
+            throws InvalidMidiDataException {
+        buffer.addShort(eventType, channel, note, DEFAULT_VELOCITY, tick);
     }
 
+    /**
+     * Schedule a callback when the synthesizer reaches a time. Callbacks at the same tick
+     * share one MIDI marker event and are called in the order they were added, with the
+     * beat of that tick.
+     */
     @Override
     public void addEvent(double atBeat, Consumer<Double> callback) {
-        int callbackNumber = saveCallback(callback);
-        try {
-            addMidiMetaEvent(callbackNumber, (int) (atBeat * ticksPerBeat));
-        } catch (InvalidMidiDataException imde) {
-            throw new RuntimeException("Cannot add event at beat " + atBeat, imde);
-        }
-    }
-
-    private int saveCallback(Consumer<Double> callback) {
-        int key = callbacks.isEmpty() ? 1 : callbacks.lastKey() + 1;
-        callbacks.put(key, callback);
+        final int tick = (int) (atBeat * ticksPerBeat);
+        final int marker = callbacks.add(tick, callback);
+        if (marker > 0)
+            addMidiMetaEvent(marker, tick);
         checkRep();
-        return key;
     }
 
     /**
-     * Schedule a MIDI meta event.
-     * @param callback active callback number
+     * Schedule a MIDI marker event.
+     * @param marker marker number in callbacks
      * @param tick tick >= 0
-     * @throws InvalidMidiDataException
      */
-    private void addMidiMetaEvent(int callback, int tick) throws InvalidMidiDataException {
-        byte[] bytes = BigInteger.valueOf(callback).toByteArray();
-        MetaMessage msg = new MetaMessage(META_MARKER, bytes, bytes.length);
-        this.track.add(new MidiEvent(msg, tick));
-        this.track.add(new MidiEvent(keepalive, tick+1));
+    private void addMidiMetaEvent(int marker, int tick) {
+        buffers.get(0).addMarker(marker, tick);
+        buffers.get(0).addMarker(0, tick+1);
     }
 
+    /**
+     * Start playing on a sequencer from the engine. At the end of the track the sequencer is handed
+     * back to the engine to release on its teardown thread, so the Java Sound event thread is free
+     * for the next song's meta events at once; the synthesizer stays open, so notes still sounding
+     * ring out as before.
+     */
     @Override
-    public void play() {
+    public CompletableFuture<Void> play() {
+        final long playing = System.nanoTime();
+        final Sequencer sequencer;
         try {
-            sequencer.open();
+            sequencer = engine.acquireSequencer();
         } catch (MidiUnavailableException mue) {
             throw new RuntimeException("Unable to open MIDI sequencer", mue);
         }
+        for (TrackBuffer buffer : buffers)
+            buffer.flush();
+        try {
+            sequencer.setSequence(sequence);
+        } catch (InvalidMidiDataException imde) {
+            engine.releaseSequencer(sequencer);
+            throw new RuntimeException("Unable to play MIDI sequence", imde);
+        }
+        sequencer.setTickPosition(0);
         sequencer.setTempoInBPM(this.beatsPerMinute);
+        synchronized (this) {
+            active = sequencer;
+            applyMix();
+            // the engine's sequencers are reused, so reset the factor a last song may have left
+            sequencer.setTempoFactor((float) tempoFactor);
+        }
 
-        sequencer.addMetaEventListener(meta -> {
-            if (meta.getType() == META_MARKER) {
-                // trigger event callback
-                int callbackNumber = new BigInteger(meta.getData()).intValue();
-                if (callbackNumber > 0) {
-                    callbacks.remove(callbackNumber).accept(sequencer.getTickPosition() / (double)ticksPerBeat);
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        sequencer.addMetaEventListener(new MetaEventListener() {
+            @Override public void meta(MetaMessage meta) {
+                if (meta.getType() == META_MARKER) {
+                    // trigger event callbacks
+                    callbacks.dispatch(CallbackTable.number(meta));
+                } else if (meta.getType() == META_END_OF_TRACK) {
+                    // give the sequencer back to the engine for the next song, without waiting here
+                    final long ended = System.nanoTime();
+                    sequencer.removeMetaEventListener(this);
+                    synchronized (MidiSequencePlayer.this) {
+                        active = null;
+                    }
+                    engine.releaseLater(sequencer, ended).whenComplete((done, error) -> {
+                        if (error == null)
+                            finished.complete(null);
+                        else
+                            finished.completeExceptionally(error);
+                    });
                 }
-            } else if (meta.getType() == META_END_OF_TRACK) {
-                // allow the sequencer to finish
-                try { Thread.sleep(Duration.ofSeconds(1).toMillis()); } catch (InterruptedException ie) { }
-                // notify thread if waiting for playback to finish
-                synchronized (this) {
-                    notify();
-                }
-                // stop & close the sequencer
-                sequencer.stop();
-                sequencer.close();
             }
         });
 
         // start playing!
         sequencer.start();
+        engine.recordPlay(playing - created, System.nanoTime() - playing);
+        return finished;
     }
-    
+
+    /**
+     * Mute and solo the tracks of voice parts, at once if the song is playing.
+     */
     @Override
-    public void playUntilFinished() {
-        play();
-        synchronized (this) {
-            try {
-                wait();
-            } catch (InterruptedException ie) {
-                return;
-            }
+    public synchronized void setMix(Mix mix) {
+        this.mix = mix;
+        applyMix();
+    }
+
+    /**
+     * Scale the tempo through the sequencer's tempo factor, at once if the song is playing; lyric
+     * markers are in the sequence, so they stay with the notes.
+     */
+    @Override
+    public synchronized void setTempoFactor(double factor) {
+        assert factor > 0 : "tempo factor should be positive";
+        this.tempoFactor = factor;
+        if (active != null)
+            active.setTempoFactor((float) factor);
+    }
+
+    /*
+     * Set the mute and solo of every track of the sequencer playing, if any, to mix; requires this object's
+     * lock. The first track is soloed whenever any voice part is, since the sequencer only sends the event
+     * markers of tracks that sound.
+     */
+    private void applyMix() {
+        if (active == null)
+            return;
+        for (Map.Entry<String, Integer> voice : trackForVoice.entrySet()) {
+            active.setTrackMute(voice.getValue(), mix.getMuted().contains(voice.getKey()));
+            active.setTrackSolo(voice.getValue(), mix.getSoloed().contains(voice.getKey()));
         }
+        active.setTrackMute(0, false);
+        active.setTrackSolo(0, !mix.getSoloed().isEmpty());
     }
 
     /**
@@ -239,6 +335,7 @@ public class MidiSequencePlayer implements SequencePlayer {
         }
         
         int channel = allocateChannel();
+        engine.loadInstrument(instr);
         patchInstrumentIntoChannel(channel, instr);
         channelForInstrument.put(instr, channel);
         checkRep();
@@ -249,16 +346,16 @@ public class MidiSequencePlayer implements SequencePlayer {
      * @return next available channel number
      */
     private int allocateChannel() {
-        MidiChannel[] channels = synthesizer.getChannels();
-        if (nextChannel >= channels.length) {
-            throw new RuntimeException("Tried to use too many instruments: limited to " + channels.length);
+        final int channels = engine.channels();
+        if (nextChannel >= channels) {
+            throw new RuntimeException("Tried to use too many instruments: limited to " + channels);
         }
         return nextChannel++;
     }
 
     private void patchInstrumentIntoChannel(int channel, Instrument instr) {
         try {
-            addMidiNoteEvent(ShortMessage.PROGRAM_CHANGE, channel, instr.ordinal(), 0);
+            addMidiNoteEvent(buffers.get(0), ShortMessage.PROGRAM_CHANGE, channel, instr.ordinal(), 0);
         } catch (InvalidMidiDataException imde) {
             throw new RuntimeException("Cannot set instrument", imde);
         }
@@ -277,10 +374,23 @@ public class MidiSequencePlayer implements SequencePlayer {
      * @return a string that displays the entire track information as a
      *         sequence of MIDI events, where each event is either turning on
      *         or off a note at a certain tick, a marker event, or the end of
-     *         the track
+     *         the track; followed by the same for the track of each voice part,
+     *         headed by the name of the voice part
      */
     @Override
     public String toString() {
+        for (TrackBuffer buffer : buffers)
+            buffer.flush();
+        String trackInfo = toString(track);
+        for (Map.Entry<String, Integer> voice : trackForVoice.entrySet())
+            trackInfo += "Voice: " + voice.getKey() + "\n" + toString(sequence.getTracks()[voice.getValue()]);
+        return trackInfo;
+    }
+
+    /*
+     * @return the events of track, one per line, as toString() shows them
+     */
+    private static String toString(Track track) {
         String trackInfo = "";
 
         for (int i = 0; i < track.size(); i++) {
@@ -0,0 +1,116 @@
+package karaoke.playback;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Mix is an immutable choice of which voice parts of a song sound: voices can be muted, and voices can be
+ * soloed, in which case only soloed voices sound. A muted voice is silent even if it is soloed.
+ * Lyrics are sung whatever the mix.
+ */
+public class Mix {
+
+    /**
+     * The mix in which every voice sounds.
+     */
+    public static final Mix ALL_VOICES = new Mix(Collections.emptySet(), Collections.emptySet());
+
+    private final Set<String> muted;
+    private final Set<String> soloed;
+
+    // Abstraction function:
+    //  AF(muted, soloed) = the mix in which voice v sounds iff v is not in muted, and soloed is empty
+    //      or contains v
+    // Representation invariant:
+    //  muted and soloed are not null, and are unmodifiable sorted sets
+    // Safety from rep exposure:
+    //  all fields are private and final; the sets are copied into unmodifiable sets when made,
+    //  and returned unmodifiable
+    // Thread safety argument:
+    //  this object is immutable
+
+    private Mix(Set<String> muted, Set<String> soloed) {
+        this.muted = Collections.unmodifiableSet(new TreeSet<>(muted));
+        this.soloed = Collections.unmodifiableSet(new TreeSet<>(soloed));
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private void checkRep() {
+        assert muted != null && soloed != null;
+    }
+
+    /**
+     * @param voice name of a voice part
+     * @param mute whether voice should be muted
+     * @return this mix with voice muted or not
+     */
+    public Mix muted(String voice, boolean mute) {
+        final Set<String> changed = new TreeSet<>(muted);
+        if (mute)
+            changed.add(voice);
+        else
+            changed.remove(voice);
+        return new Mix(changed, soloed);
+    }
+
+    /**
+     * @param voice name of a voice part
+     * @param solo whether voice should be soloed
+     * @return this mix with voice soloed or not
+     */
+    public Mix soloed(String voice, boolean solo) {
+        final Set<String> changed = new TreeSet<>(soloed);
+        if (solo)
+            changed.add(voice);
+        else
+            changed.remove(voice);
+        return new Mix(muted, changed);
+    }
+
+    /**
+     * @return voices muted, in sorted order
+     */
+    public Set<String> getMuted() {
+        return muted;
+    }
+
+    /**
+     * @return voices soloed, in sorted order
+     */
+    public Set<String> getSoloed() {
+        return soloed;
+    }
+
+    /**
+     * @param voice name of a voice part
+     * @return whether voice sounds in this mix
+     */
+    public boolean sounds(String voice) {
+        return !muted.contains(voice) && (soloed.isEmpty() || soloed.contains(voice));
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof Mix && muted.equals(((Mix) that).muted) && soloed.equals(((Mix) that).soloed);
+    }
+
+    @Override
+    public int hashCode() {
+        return muted.hashCode() * 31 + soloed.hashCode();
+    }
+
+    /**
+     * @return "all voices" if every voice sounds, otherwise "muted: [voices], solo: [voices]"
+     */
+    @Override
+    public String toString() {
+        if (muted.isEmpty() && soloed.isEmpty())
+            return "all voices";
+        return "muted: " + muted + ", solo: " + soloed;
+    }
+
+}
@@ -1,5 +1,6 @@
 package karaoke.playback;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 import javax.sound.midi.InvalidMidiDataException;
@@ -27,17 +28,24 @@ public interface SequencePlayer {
      * @return new SequencePlayer with song loaded
      */
     public static SequencePlayer load(ABC song, Consumer<Lyric> lyricConsumer) {
-        final int beatsPerMinute = song.getBeatsPerMinute();
-        final int ticksPerBeat = 64;
-        
+        return load(Timeline.compile(song, MidiSequencePlayer.DEFAULT_TICKS_PER_BEAT), lyricConsumer);
+    }
+    
+    /**
+     * Create a sequence player with a compiled song loaded, at the song's tempo and resolution.
+     * @param timeline timeline of the song to load into sequence player
+     * @param lyricConsumer lyricConsumer function called when new lyrics are played, or null to ignore lyrics
+     * @return new SequencePlayer with song loaded
+     */
+    public static SequencePlayer load(Timeline timeline, Consumer<Lyric> lyricConsumer) {
         SequencePlayer player;
         try {
-            player = new MidiSequencePlayer(beatsPerMinute, ticksPerBeat);
+            player = new MidiSequencePlayer(timeline.beatsPerMinute(), timeline.ticksPerBeat());
         } catch (InvalidMidiDataException | MidiUnavailableException e1) {
-            throw new RuntimeException("midi problems");
+            throw new RuntimeException("midi problems", e1);
         }
         
-        song.getMusic().load(player, 0, lyricConsumer);
+        timeline.load(player, lyricConsumer);
         return player;
     }
     
@@ -50,6 +58,20 @@ public interface SequencePlayer {
      */
     public void addNote(Instrument instr, Pitch pitch, double startBeat, double numBeats);
 
+    /**
+     * Schedule a note of a voice part to be played starting at startBeat for the duration numBeats.
+     * Players that can mix voice parts keep each part apart so setMix() can change how it sounds;
+     * by default, the note is scheduled like every other note.
+     * @param voice name of the voice part the note belongs to
+     * @param instr instrument for the note
+     * @param pitch pitch value of the note
+     * @param startBeat the starting beat
+     * @param numBeats the number of beats the note is played
+     */
+    public default void addNote(String voice, Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+        addNote(instr, pitch, startBeat, numBeats);
+    }
+
     /**
      * Schedule a callback when the synthesizer reaches a time.
      * @param atBeat beat at which to call the callback
@@ -60,13 +82,36 @@ public interface SequencePlayer {
     public void addEvent(double atBeat, Consumer<Double> callback);
     
     /**
-     * Play the scheduled music.
+     * Start playing the scheduled music, returning without waiting for it to finish.
+     * @return future that completes once the music has finished and the player has given back
+     *         whatever it played on, so the next song can start at once
+     */
+    public CompletableFuture<Void> play();
+    
+    /**
+     * Set which voice parts sound, before or while the music plays, taking effect at once without
+     * reloading it. By default, and in players that make no sound, the mix is ignored.
+     * @param mix voice parts muted and soloed
      */
-    public void play();
+    public default void setMix(Mix mix) {
+        // every voice part sounds alike
+    }
+    
+    /**
+     * Scale the tempo of the music, before or while it plays, taking effect at once without reloading
+     * it: events are called back at the same beats, sooner or later in time. By default the factor is
+     * ignored.
+     * @param factor how many times as fast as its own tempo the music plays, > 0
+     */
+    public default void setTempoFactor(double factor) {
+        // the music plays at its own tempo
+    }
     
     /**
      * Play the scheduled music, waiting until the music is finished.
      */
-    public void playUntilFinished();
+    public default void playUntilFinished() {
+        play().join();
+    }
 
 }
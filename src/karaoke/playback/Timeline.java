@@ -0,0 +1,448 @@
+package karaoke.playback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import karaoke.lyrics.Lyric;
+import karaoke.music.Instrument;
+import karaoke.music.Music;
+import karaoke.music.MusicTraversal;
+import karaoke.music.Note;
+import karaoke.music.Pitch;
+import karaoke.songs.ABC;
+
+/**
+ * Timeline is an immutable, flattened form of an ABC song: every note of the song as an event
+ * in primitive arrays of start tick, duration in ticks, MIDI note number, instrument and lyric.
+ * Events are grouped by voice part, and sorted by start time within each voice part;
+ * they can also be iterated across all voice parts in order of start time.
+ */
+public class Timeline {
+
+    // MIDI note number representing middle C
+    private static final int MIDI_NOTE_MIDDLE_C = 60;
+    // lyric index of an event with no lyric
+    private static final int NO_LYRIC = -1;
+
+    private final int ticksPerBeat;
+    private final int beatsPerMinute;
+    private final String[] voices;
+    private final int[] voiceStart;
+    private final int[] startTick;
+    private final int[] durationTick;
+    private final int[] midiNote;
+    private final int[] instrument;
+    private final int[] lyric;
+    private final int[] byTime;
+    private final Instrument[] instruments;
+    private final Lyric[] lyrics;
+    private final int endTick;
+
+    /* Abstraction function:
+     *  AF(ticksPerBeat, beatsPerMinute, voices, voiceStart, startTick, durationTick, midiNote,
+     *          instrument, lyric, byTime, instruments, lyrics, endTick) =
+     *      a song played at beatsPerMinute beats per minute, with ticksPerBeat ticks per beat,
+     *      made of the events 0 <= i < startTick.length, where event i is note midiNote[i]
+     *      played by instruments[instrument[i]] from tick startTick[i] for durationTick[i] ticks,
+     *      singing lyrics[lyric[i]] when it starts, or no lyric if lyric[i] == NO_LYRIC;
+     *      the events of voice part voices[v] are voiceStart[v] <= i < voiceStart[v+1];
+     *      byTime lists all events in order of start tick; and the song ends at tick endTick
+     *
+     * Rep invariant:
+     *  fields are not null
+     *  ticksPerBeat > 0, beatsPerMinute > 0
+     *  startTick, durationTick, midiNote, instrument, lyric, byTime all have the same length n
+     *  voiceStart.length == voices.length + 1, voiceStart[0] == 0, voiceStart[voices.length] == n,
+     *      and voiceStart is nondecreasing
+     *  voices is sorted
+     *  within each voice part, startTick is nondecreasing
+     *  byTime is a permutation of 0..n-1 with startTick[byTime[k]] nondecreasing in k
+     *  startTick[i] >= 0, durationTick[i] >= 0, startTick[i] + durationTick[i] <= endTick
+     *  0 <= instrument[i] < instruments.length
+     *  lyric[i] == NO_LYRIC or 0 <= lyric[i] < lyrics.length
+     *
+     * Safety from rep exposure:
+     *  all fields are private and final
+     *  arrays are created by the compiler and never passed in or returned;
+     *      observers return single elements or unmodifiable lists
+     *  Instrument, Lyric and String are immutable
+     *
+     * Thread safety argument:
+     *  This object is immutable: its arrays are never mutated after construction,
+     *  and there is no beneficent mutation
+     */
+
+    private Timeline(int ticksPerBeat, int beatsPerMinute, String[] voices, int[] voiceStart,
+            int[] startTick, int[] durationTick, int[] midiNote, int[] instrument, int[] lyric,
+            int[] byTime, Instrument[] instruments, Lyric[] lyrics, int endTick) {
+        this.ticksPerBeat = ticksPerBeat;
+        this.beatsPerMinute = beatsPerMinute;
+        this.voices = voices;
+        this.voiceStart = voiceStart;
+        this.startTick = startTick;
+        this.durationTick = durationTick;
+        this.midiNote = midiNote;
+        this.instrument = instrument;
+        this.lyric = lyric;
+        this.byTime = byTime;
+        this.instruments = instruments;
+        this.lyrics = lyrics;
+        this.endTick = endTick;
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private void checkRep() {
+        assert ticksPerBeat > 0;
+        assert beatsPerMinute > 0;
+        final int n = startTick.length;
+        assert durationTick.length == n && midiNote.length == n && instrument.length == n
+                && lyric.length == n && byTime.length == n;
+        assert voiceStart.length == voices.length + 1;
+        assert voiceStart[0] == 0 && voiceStart[voices.length] == n;
+        for (int v = 0; v < voices.length; v++) {
+            assert voiceStart[v] <= voiceStart[v + 1];
+            assert v == 0 || voices[v - 1].compareTo(voices[v]) < 0;
+            for (int i = voiceStart[v] + 1; i < voiceStart[v + 1]; i++)
+                assert startTick[i - 1] <= startTick[i];
+        }
+        for (int k = 1; k < n; k++)
+            assert startTick[byTime[k - 1]] <= startTick[byTime[k]];
+        for (int i = 0; i < n; i++) {
+            assert startTick[i] >= 0 && durationTick[i] >= 0;
+            assert startTick[i] + durationTick[i] <= endTick;
+            assert 0 <= instrument[i] && instrument[i] < instruments.length;
+            assert lyric[i] == NO_LYRIC || (0 <= lyric[i] && lyric[i] < lyrics.length);
+        }
+    }
+
+    /**
+     * Compile a song into a timeline with the default MIDI resolution.
+     * @param song song to compile
+     * @return timeline of song with MidiSequencePlayer.DEFAULT_TICKS_PER_BEAT ticks per beat
+     */
+    public static Timeline compile(ABC song) {
+        return compile(song, MidiSequencePlayer.DEFAULT_TICKS_PER_BEAT);
+    }
+
+    /**
+     * Compile a song into a timeline. Beats are converted to ticks the same way
+     * MidiSequencePlayer does, by rounding down to a whole tick.
+     * @param song song to compile
+     * @param ticksPerBeat number of ticks per beat, must be > 0
+     * @return timeline of song
+     */
+    public static Timeline compile(ABC song, int ticksPerBeat) {
+        if (ticksPerBeat <= 0)
+            throw new IllegalArgumentException("ticks per beat must be positive");
+
+        final List<String> voiceList = new ArrayList<>(song.getVoices());
+        Collections.sort(voiceList);
+        final String[] voices = voiceList.toArray(new String[voiceList.size()]);
+        final int[] voiceStart = new int[voices.length + 1];
+
+        final Compiler compiler = new Compiler(ticksPerBeat);
+        int songEndTick = 0;
+        for (int v = 0; v < voices.length; v++) {
+            final Music part = song.getVoicePart(voices[v]);
+            voiceStart[v] = compiler.size;
+            MusicTraversal.walk(part, 0, compiler);
+            compiler.sortSince(voiceStart[v]);
+            songEndTick = Math.max(songEndTick, (int) (part.duration() * ticksPerBeat));
+        }
+        voiceStart[voices.length] = compiler.size;
+
+        final int n = compiler.size;
+        final int[] startTick = Arrays.copyOf(compiler.startTick, n);
+        final int[] byTime = sortedByStartTick(startTick);
+        return new Timeline(ticksPerBeat, song.getBeatsPerMinute(), voices, voiceStart,
+                startTick, Arrays.copyOf(compiler.durationTick, n), Arrays.copyOf(compiler.midiNote, n),
+                Arrays.copyOf(compiler.instrument, n), Arrays.copyOf(compiler.lyric, n), byTime,
+                compiler.instruments.toArray(new Instrument[compiler.instruments.size()]),
+                compiler.lyrics.toArray(new Lyric[compiler.lyrics.size()]),
+                Math.max(songEndTick, compiler.endTick));
+    }
+
+    /**
+     * @param startTick start ticks of events
+     * @return indices of startTick in order of start tick, keeping equal ticks in index order
+     */
+    private static int[] sortedByStartTick(int[] startTick) {
+        // sort (tick, index) pairs packed into longs, so equal ticks stay in index order
+        final long[] keys = new long[startTick.length];
+        for (int i = 0; i < startTick.length; i++)
+            keys[i] = ((long) startTick[i] << Integer.SIZE) | i;
+        Arrays.sort(keys);
+        final int[] order = new int[keys.length];
+        for (int k = 0; k < keys.length; k++)
+            order[k] = (int) keys[k];
+        return order;
+    }
+
+    /**
+     * @return number of ticks per beat
+     */
+    public int ticksPerBeat() {
+        return ticksPerBeat;
+    }
+
+    /**
+     * @return tempo of the song in beats per minute
+     */
+    public int beatsPerMinute() {
+        return beatsPerMinute;
+    }
+
+    /**
+     * @return tick at which the song ends, at or after the end of its last note
+     */
+    public int endTick() {
+        return endTick;
+    }
+
+    /**
+     * @return number of note events in this timeline
+     */
+    public int size() {
+        return startTick.length;
+    }
+
+    /**
+     * @return names of the voice parts of the song, in sorted order
+     */
+    public List<String> voices() {
+        return Collections.unmodifiableList(Arrays.asList(voices));
+    }
+
+    /**
+     * @param voice index of a voice part in voices()
+     * @return index of the first event of the voice part
+     */
+    public int voiceStart(int voice) {
+        return voiceStart[voice];
+    }
+
+    /**
+     * @param voice index of a voice part in voices()
+     * @return index after the last event of the voice part; the events of the voice part
+     *          are the indices voiceStart(voice) <= i < voiceEnd(voice), in order of start tick
+     */
+    public int voiceEnd(int voice) {
+        return voiceStart[voice + 1];
+    }
+
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return tick at which the event starts
+     */
+    public int startTick(int event) {
+        return startTick[event];
+    }
+
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return number of ticks the event lasts
+     */
+    public int durationTick(int event) {
+        return durationTick[event];
+    }
+
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return MIDI note number of the event, where middle C is 60
+     */
+    public int midiNote(int event) {
+        return midiNote[event];
+    }
+
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return index in instruments() of the instrument that plays the event
+     */
+    public int instrumentIndex(int event) {
+        return instrument[event];
+    }
+
+    /**
+     * @return instruments used by the song, in order of first use
+     */
+    public List<Instrument> instruments() {
+        return Collections.unmodifiableList(Arrays.asList(instruments));
+    }
+
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return index in lyrics() of the lyric sung when the event starts, or -1 if none
+     */
+    public int lyricIndex(int event) {
+        return lyric[event];
+    }
+
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return lyric sung when the event starts, if any
+     */
+    public Optional<Lyric> lyric(int event) {
+        return lyric[event] == NO_LYRIC ? Optional.empty() : Optional.of(lyrics[lyric[event]]);
+    }
+
+    /**
+     * @return distinct lyrics sung in the song, in order of first use
+     */
+    public List<Lyric> lyrics() {
+        return Collections.unmodifiableList(Arrays.asList(lyrics));
+    }
+
+    /**
+     * @param k position in time order, 0 <= k < size()
+     * @return index of the kth event in order of start tick
+     */
+    public int eventAtTime(int k) {
+        return byTime[k];
+    }
+
+    /**
+     * Find where to resume playing the song from a given tick.
+     * @param tick tick >= 0
+     * @return least k such that eventAtTime(k) starts at or after tick, or size() if none does
+     */
+    public int seek(int tick) {
+        int low = 0;
+        int high = byTime.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (startTick[byTime[mid]] < tick)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Load this timeline into a SequencePlayer, in order of start tick, with each note in its voice part.
+     * The player should use the same number of ticks per beat as this timeline.
+     * @param player player to play on
+     * @param lyricConsumer function called when new lyrics are played, or null to ignore lyrics
+     */
+    public void load(SequencePlayer player, Consumer<Lyric> lyricConsumer) {
+        final int[] voiceOf = new int[startTick.length];
+        for (int v = 0; v < voices.length; v++)
+            Arrays.fill(voiceOf, voiceStart[v], voiceStart[v + 1], v);
+        for (int k = 0; k < byTime.length; k++) {
+            final int i = byTime[k];
+            final double startBeat = startTick[i] / (double) ticksPerBeat;
+            final Pitch pitch = Pitch.MIDDLE_C.transpose(midiNote[i] - MIDI_NOTE_MIDDLE_C);
+            player.addNote(voices[voiceOf[i]], instruments[instrument[i]], pitch, startBeat,
+                    durationTick[i] / (double) ticksPerBeat);
+            if (lyricConsumer != null && lyric[i] != NO_LYRIC) {
+                final Lyric sung = lyrics[lyric[i]];
+                player.addEvent(startBeat, beat -> lyricConsumer.accept(sung));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Timeline(" + size() + " events in " + voices.length + " voices, "
+                + endTick + " ticks at " + ticksPerBeat + " ticks per beat)";
+    }
+
+    /*
+     * Music walker that appends the notes of a piece of music to growable event arrays.
+     */
+    private static class Compiler implements MusicTraversal.Walker {
+
+        private static final int INITIAL_CAPACITY = 256;
+
+        private final int ticksPerBeat;
+        private int size = 0;
+        private int endTick = 0;
+        private int[] startTick = new int[INITIAL_CAPACITY];
+        private int[] durationTick = new int[INITIAL_CAPACITY];
+        private int[] midiNote = new int[INITIAL_CAPACITY];
+        private int[] instrument = new int[INITIAL_CAPACITY];
+        private int[] lyric = new int[INITIAL_CAPACITY];
+        private final List<Instrument> instruments = new ArrayList<>();
+        private final Map<Instrument, Integer> instrumentIndex = new HashMap<>();
+        private final List<Lyric> lyrics = new ArrayList<>();
+        private final Map<Lyric, Integer> lyricIndex = new HashMap<>();
+
+        private Compiler(int ticksPerBeat) {
+            this.ticksPerBeat = ticksPerBeat;
+        }
+
+        @Override
+        public void note(Note note, double beat) {
+            if (size == startTick.length)
+                grow();
+            // round to ticks exactly like MidiSequencePlayer.addNote
+            final int on = (int) (beat * ticksPerBeat);
+            final int off = (int) ((beat + note.duration()) * ticksPerBeat);
+            startTick[size] = on;
+            durationTick[size] = Math.max(off - on, 0);
+            midiNote[size] = MIDI_NOTE_MIDDLE_C + note.pitch().difference(Pitch.MIDDLE_C);
+            instrument[size] = indexOf(note.instrument(), instruments, instrumentIndex);
+            lyric[size] = note.lyric().isPresent() ? indexOf(note.lyric().get(), lyrics, lyricIndex) : NO_LYRIC;
+            endTick = Math.max(endTick, on + durationTick[size]);
+            size++;
+        }
+
+        /*
+         * Stably sort the events added since index from by start tick.
+         */
+        private void sortSince(int from) {
+            final int[] order = sortedByStartTick(Arrays.copyOfRange(startTick, from, size));
+            boolean sorted = true;
+            for (int k = 0; k < order.length && sorted; k++)
+                sorted = order[k] == k;
+            if (sorted)
+                return;
+            startTick = permute(startTick, from, order);
+            durationTick = permute(durationTick, from, order);
+            midiNote = permute(midiNote, from, order);
+            instrument = permute(instrument, from, order);
+            lyric = permute(lyric, from, order);
+        }
+
+        /*
+         * Rearrange values[from..] so that values[from + k] is the old values[from + order[k]].
+         */
+        private static int[] permute(int[] values, int from, int[] order) {
+            final int[] permuted = values.clone();
+            for (int k = 0; k < order.length; k++)
+                permuted[from + k] = values[from + order[k]];
+            return permuted;
+        }
+
+        private void grow() {
+            final int capacity = startTick.length * 2;
+            startTick = Arrays.copyOf(startTick, capacity);
+            durationTick = Arrays.copyOf(durationTick, capacity);
+            midiNote = Arrays.copyOf(midiNote, capacity);
+            instrument = Arrays.copyOf(instrument, capacity);
+            lyric = Arrays.copyOf(lyric, capacity);
+        }
+
+        /*
+         * Index of value in table, adding it to the end of table if it's not there yet.
+         */
+        private static <T> int indexOf(T value, List<T> table, Map<T, Integer> index) {
+            final Integer existing = index.get(value);
+            if (existing != null)
+                return existing;
+            table.add(value);
+            index.put(value, table.size() - 1);
+            return table.size() - 1;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package karaoke.playback;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import karaoke.songs.ABC;
+
+/**
+ * TimelineCache is a thread-safe, bounded cache of the timelines songs compile to, with the default
+ * MIDI resolution, so that a song played or followed in many jukeboxes is compiled only once.
+ * Songs are keyed by identity, since songs from a SongCache are shared and comparing songs by value
+ * means walking all their music; least recently used timelines are evicted first.
+ */
+public class TimelineCache {
+
+    /**
+     * Default maximum number of timelines in a cache, the same as the default number of songs in a
+     * SongCache.
+     */
+    public static final int DEFAULT_MAX_TIMELINES = 64;
+
+    private static final TimelineCache SHARED = new TimelineCache(DEFAULT_MAX_TIMELINES);
+
+    /* Abstraction function:
+     *  AF(timelines, maxTimelines, hits, misses, evictions) =
+     *      a cache of compiled timelines, where timelines maps each song, by identity, to its timeline,
+     *      in order from least to most recently used; the cache holds at most maxTimelines timelines,
+     *      and hits, misses and evictions count lookups that found a timeline, lookups that had to
+     *      compile, and evicted timelines
+     *
+     * Rep invariant:
+     *  fields are not null
+     *  maxTimelines > 0
+     *  timelines.size() <= maxTimelines
+     *  hits, misses, evictions >= 0
+     *
+     * Safety from rep exposure:
+     *  all fields are private
+     *  timelines is never passed in or returned
+     *  ABC and Timeline are immutable
+     *
+     * Thread safety argument:
+     *  all accesses to timelines and the counters are synchronized by this object's lock;
+     *  compiling a song happens outside the lock, on data confined to the calling thread
+     */
+
+    private final Map<Key, Timeline> timelines = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxTimelines;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @return the cache shared by every jukebox and lyric stream in this process
+     */
+    public static TimelineCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Create an empty cache.
+     * @param maxTimelines maximum number of timelines to keep, must be > 0
+     */
+    public TimelineCache(int maxTimelines) {
+        if (maxTimelines <= 0)
+            throw new IllegalArgumentException("cache bound must be positive");
+        this.maxTimelines = maxTimelines;
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert timelines != null;
+        assert maxTimelines > 0;
+        assert timelines.size() <= maxTimelines;
+        assert hits >= 0 && misses >= 0 && evictions >= 0;
+    }
+
+    /**
+     * Get the timeline of a song, compiling it only if it is not cached.
+     * @param song song to compile
+     * @return timeline of song with MidiSequencePlayer.DEFAULT_TICKS_PER_BEAT ticks per beat
+     */
+    public Timeline get(ABC song) {
+        final Key key = new Key(song);
+        synchronized (this) {
+            final Timeline timeline = timelines.get(key);
+            if (timeline != null) {
+                hits++;
+                return timeline;
+            }
+            misses++;
+        }
+
+        final Timeline timeline = Timeline.compile(song);
+
+        synchronized (this) {
+            timelines.put(key, timeline);
+            while (timelines.size() > maxTimelines) {
+                timelines.remove(timelines.keySet().iterator().next());
+                evictions++;
+            }
+            checkRep();
+        }
+        return timeline;
+    }
+
+    /**
+     * @return number of timelines in this cache
+     */
+    public synchronized int size() {
+        return timelines.size();
+    }
+
+    /**
+     * @return number of lookups that found a compiled timeline
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that had to compile a timeline
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "timelines: " + timelines.size() + "/" + maxTimelines
+                + "\nhits: " + hits + "\nmisses: " + misses + "\nevictions: " + evictions;
+    }
+
+    /*
+     * A song compared by identity.
+     */
+    private static class Key {
+        private final ABC song;
+
+        private Key(ABC song) {
+            this.song = song;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(song);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).song == song;
+        }
+    }
+
+}
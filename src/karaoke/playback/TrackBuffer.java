@@ -0,0 +1,150 @@
+package karaoke.playback;
+
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * TrackBuffer is a mutable buffer of the MIDI events of a track, kept in primitive arrays until they are
+ * flushed: then they are sorted once by tick and appended to the track in order.
+ * A Track keeps its events sorted as they are added, shifting later events along for each event added
+ * out of order, and songs are loaded one voice at a time, with each note's NOTE_OFF ahead of the notes
+ * after it; so adding events one by one costs time growing with the size of the track, and buffering
+ * them costs one sort.
+ * Events at the same tick reach the track in the order they were added.
+ * Not threadsafe: events must all be added and flushed by one thread, before the track is played.
+ */
+class TrackBuffer {
+
+    private static final int INITIAL_CAPACITY = 64;
+    // payload bit marking a marker event; the other bits of its payload are the marker number
+    private static final int MARKER = 1 << 30;
+    private static final int MAX_MARKER = MARKER - 1;
+    private static final int MAX_DATA = 127;
+    private static final int MAX_CHANNEL = 15;
+
+    private final Track track;
+    private final MetaMessage keepalive = CallbackTable.marker(0);
+    private int size = 0;
+    private long[] key = new long[INITIAL_CAPACITY];
+    private int[] payload = new int[INITIAL_CAPACITY];
+
+    /*
+     * Abstraction function:
+     *  AF(track, keepalive, size, key, payload) = the events of track, followed by size events waiting to
+     *      be added to it, where waiting event i is at tick key[i] >>> 32 and is marker payload[i] & MAX_MARKER
+     *      if payload[i] has the MARKER bit, otherwise the short message with status byte, data byte 1 and
+     *      data byte 2 in bits 16-23, 8-15 and 0-7 of payload[i]; marker 0 is keepalive
+     *
+     * Rep invariant:
+     *  track and keepalive are non-null
+     *  0 <= size <= key.length == payload.length
+     *  for 0 <= i < size: key[i] & 0xFFFFFFFF == i, key[i] >>> 32 is a tick >= 0
+     *
+     * Safety from rep exposure:
+     *  all fields are private; track is passed in, since the buffer fills it, but never returned
+     *  key and payload are never passed in or returned
+     */
+
+    private void checkRep() {
+        assert track != null && keepalive != null;
+        assert 0 <= size && size <= key.length;
+        assert key.length == payload.length;
+    }
+
+    /**
+     * Make an empty buffer of events for a track.
+     * @param track track the events are flushed to
+     */
+    TrackBuffer(Track track) {
+        this.track = track;
+        checkRep();
+    }
+
+    /**
+     * Buffer a short message, such as NOTE_ON, NOTE_OFF or PROGRAM_CHANGE.
+     * @param command command of the message, a ShortMessage channel message command
+     * @param channel channel, 0 to 15
+     * @param data1 first data byte, 0 to 127
+     * @param data2 second data byte, 0 to 127
+     * @param tick tick >= 0
+     * @throws InvalidMidiDataException if command, channel or data are out of range, as new ShortMessage() would
+     */
+    void addShort(int command, int channel, int data1, int data2, int tick) throws InvalidMidiDataException {
+        if (command < ShortMessage.NOTE_OFF || command > ShortMessage.PITCH_BEND || (command & 0x0F) != 0
+                || channel < 0 || channel > MAX_CHANNEL
+                || data1 < 0 || data1 > MAX_DATA || data2 < 0 || data2 > MAX_DATA)
+            throw new InvalidMidiDataException("command " + command + ", channel " + channel
+                    + ", data " + data1 + " " + data2 + " out of range");
+        add(tick, ((command | channel) << 16) | (data1 << 8) | data2);
+    }
+
+    /**
+     * Buffer a marker event, numbered for a CallbackTable.
+     * @param marker marker number, 0 for a keepalive marker that calls nothing back, < 2^30
+     * @param tick tick >= 0
+     */
+    void addMarker(int marker, int tick) {
+        assert 0 <= marker && marker <= MAX_MARKER;
+        add(tick, MARKER | marker);
+    }
+
+    /*
+     * Buffer an event at tick with payload.
+     */
+    private void add(int tick, int event) {
+        assert tick >= 0;
+        if (size == key.length) {
+            final int capacity = key.length * 2;
+            key = Arrays.copyOf(key, capacity);
+            payload = Arrays.copyOf(payload, capacity);
+        }
+        key[size] = ((long) tick << 32) | size;
+        payload[size] = event;
+        size++;
+    }
+
+    /**
+     * @return number of events waiting to be flushed
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Sort the events waiting by tick, keeping events at the same tick in the order they were added,
+     * and append them to the track. Events at ticks before the last event already in the track are
+     * still added in order, but cost the track an insertion each.
+     */
+    void flush() {
+        Arrays.sort(key, 0, size);
+        for (int i = 0; i < size; i++) {
+            final int event = payload[(int) key[i]];
+            final long tick = key[i] >>> 32;
+            track.add(new MidiEvent(message(event), tick));
+        }
+        size = 0;
+        checkRep();
+    }
+
+    /*
+     * @return message that payload encodes
+     */
+    private MidiMessage message(int event) {
+        if ((event & MARKER) != 0) {
+            final int marker = event & MAX_MARKER;
+            return marker == 0 ? keepalive : CallbackTable.marker(marker);
+        }
+        try {
+            return new ShortMessage(event >>> 16, (event >>> 8) & 0xFF, event & 0xFF);
+        } catch (InvalidMidiDataException imde) {
+            throw new AssertionError("data was checked when it was added", imde);
+        }
+    }
+
+}
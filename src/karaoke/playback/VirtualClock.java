@@ -0,0 +1,154 @@
+package karaoke.playback;
+
+import java.util.PriorityQueue;
+
+/**
+ * VirtualClock is a thread-safe clock whose time only moves when it is advanced, for playing songs
+ * with VirtualSequencePlayer as fast as their callbacks run. Tasks are scheduled at a time in
+ * nanoseconds, and run when the clock is advanced past it, in order of time and then of scheduling,
+ * on the thread that advances the clock. Tasks may schedule more tasks, even at the time they run.
+ */
+public class VirtualClock {
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private final Object advancing = new Object();
+    private long now = 0;
+    private long scheduled = 0;
+    private long ran = 0;
+
+    // Abstraction function:
+    //  AF(tasks, advancing, now, scheduled, ran) = a clock that reads now nanoseconds, with tasks waiting
+    //      to run, having had scheduled tasks scheduled and ran of them run
+    // Representation invariant:
+    //  fields are not null
+    //  now >= 0
+    //  every task in tasks is at a time >= now, and has a sequence number < scheduled
+    //  scheduled == ran + tasks.size()
+    // Safety from rep exposure:
+    //  all fields are private; tasks are never returned, and the Runnables passed in are only run
+    // Thread safety argument:
+    //  tasks, now, scheduled and ran are guarded by this object's lock
+    //  advancing is held while the clock is advanced, so tasks run one at a time, in order,
+    //      even if several threads advance the clock; it is taken before this object's lock,
+    //      and this object's lock is not held while a task runs, so a task may schedule more tasks
+
+    /**
+     * Make a clock reading 0, with no tasks scheduled.
+     */
+    public VirtualClock() {
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert tasks != null;
+        assert advancing != null;
+        assert now >= 0;
+        // the earliest task is enough: checking every task would make scheduling linear in waiting tasks
+        assert tasks.isEmpty() || (tasks.peek().atNanos >= now && tasks.peek().sequence < scheduled);
+        assert scheduled == ran + tasks.size();
+    }
+
+    /**
+     * @return the time of this clock, in nanoseconds since it was made
+     */
+    public synchronized long now() {
+        return now;
+    }
+
+    /**
+     * Schedule a task to run when this clock is advanced to a time.
+     * @param atNanos time to run the task; if it has passed, the task runs at the current time
+     * @param task task to run
+     */
+    public synchronized void schedule(long atNanos, Runnable task) {
+        tasks.add(new Task(Math.max(atNanos, now), scheduled++, task));
+        checkRep();
+    }
+
+    /**
+     * Advance this clock, running the tasks scheduled up to a time, including any they schedule.
+     * If a task throws an exception, the clock stops at that task's time and the exception is thrown.
+     * @param nanos how far to advance, >= 0
+     * @return number of tasks run
+     */
+    public int advance(long nanos) {
+        synchronized (advancing) {
+            final long until;
+            synchronized (this) {
+                until = now + nanos;
+            }
+            final int count = runUntil(until);
+            synchronized (this) {
+                now = until;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Advance this clock until no tasks are waiting, running each at its time, including any they schedule.
+     * If a task throws an exception, the clock stops at that task's time and the exception is thrown.
+     * @return number of tasks run
+     */
+    public int runUntilIdle() {
+        synchronized (advancing) {
+            return runUntil(Long.MAX_VALUE);
+        }
+    }
+
+    /*
+     * Run tasks in order up to time until, setting now to the time of each; requires advancing.
+     */
+    private int runUntil(long until) {
+        int count = 0;
+        while (true) {
+            final Task next;
+            synchronized (this) {
+                if (tasks.isEmpty() || tasks.peek().atNanos > until)
+                    return count;
+                next = tasks.poll();
+                now = next.atNanos;
+                ran++;
+            }
+            next.task.run();
+            count++;
+        }
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    public synchronized int pending() {
+        return tasks.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "virtual clock at " + now + " ns, " + ran + " tasks run, " + tasks.size() + " waiting";
+    }
+
+    /*
+     * A task scheduled at a time, ordered by time and then by sequence number.
+     */
+    private static class Task implements Comparable<Task> {
+        private final long atNanos;
+        private final long sequence;
+        private final Runnable task;
+
+        private Task(long atNanos, long sequence, Runnable task) {
+            this.atNanos = atNanos;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Task that) {
+            final int byTime = Long.compare(this.atNanos, that.atNanos);
+            return byTime != 0 ? byTime : Long.compare(this.sequence, that.sequence);
+        }
+    }
+
+}
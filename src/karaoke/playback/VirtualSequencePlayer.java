@@ -0,0 +1,150 @@
+package karaoke.playback;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Plays a sequence of events on a VirtualClock, with no sound, so a song takes only as long as its
+ * callbacks do once the clock is advanced. Events are called back in order of beat, at the virtual time
+ * of their beat at the song's tempo, on the thread advancing the clock.
+ * Only the next tick of a song playing waits on the clock, so many songs can play on one clock at once,
+ * and a change of tempo only has to schedule that tick again.
+ */
+public class VirtualSequencePlayer extends ClockSequencePlayer {
+
+    private final VirtualClock clock;
+    // the song playing, whose next task is scheduled again when the tempo changes; guarded by this
+    // object's lock
+    private Playback playback = null;
+
+    /*
+     * Abstraction function:
+     *   AF(clock, playback, super) = the song of super, played on clock, and playing from playback if
+     *      it is not null
+     * Rep invariant:
+     *   clock is non-null
+     * Safety from rep exposure:
+     *   clock and playback are never returned
+     * Thread safety argument:
+     *   as ClockSequencePlayer; play() copies the events, and the copy is only used by its Playback,
+     *      which is guarded by its own lock; this object's lock may be taken while holding the lock of
+     *      a Playback, as arm() does to read the time of a tick, never the other way around, so play()
+     *      and setTempoFactor() release this object's lock before arming their Playback
+     */
+
+    private void checkRep() {
+        assert clock != null : "clock should be non-null";
+    }
+
+    /**
+     * Make a new virtual clock sequence player.
+     * @param clock clock to play on
+     * @param beatsPerMinute the number of beats per minute, > 0
+     * @param ticksPerBeat the number of ticks per beat, > 0; every event is called back at an integer
+     *          number of ticks
+     */
+    public VirtualSequencePlayer(VirtualClock clock, int beatsPerMinute, int ticksPerBeat) {
+        super(beatsPerMinute, ticksPerBeat);
+        this.clock = clock;
+        checkRep();
+    }
+
+    /**
+     * Schedule the first event on the clock, from its current time. Nothing is called back until the clock
+     * is advanced. The future completes once the clock reaches the end of the last note, or completes
+     * exceptionally with the exception of a callback that throws one, after which no more events are
+     * called back.
+     */
+    @Override
+    public CompletableFuture<Void> play() {
+        final Playback started = new Playback(schedule().iterator());
+        synchronized (this) {
+            start(clock.now());
+            playback = started;
+        }
+        started.arm();
+        return started.finished;
+    }
+
+    /**
+     * Scale the tempo of the song, rescheduling its next event on the clock at once if it is playing.
+     */
+    @Override
+    public void setTempoFactor(double factor) {
+        final Playback current;
+        synchronized (this) {
+            super.setTempoFactor(factor);
+            current = playback;
+        }
+        if (current != null)
+            current.arm();
+    }
+
+    /**
+     * @return the current time of the virtual clock
+     */
+    @Override
+    long now() {
+        return clock.now();
+    }
+
+    /*
+     * A song playing on the clock, one tick at a time: only the task of its next tick is waiting on the
+     * clock, and it is superseded by a new task whenever the tempo changes.
+     */
+    private class Playback {
+        private final Iterator<Map.Entry<Integer, List<Consumer<Double>>>> schedule;
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        // next tick to call back, or null once only the end of the song is left
+        private Map.Entry<Integer, List<Consumer<Double>>> next;
+        // number of the latest task scheduled; earlier tasks were superseded, and do nothing
+        private long armed = 0;
+
+        private Playback(Iterator<Map.Entry<Integer, List<Consumer<Double>>>> schedule) {
+            this.schedule = schedule;
+            this.next = schedule.hasNext() ? schedule.next() : null;
+        }
+
+        /*
+         * Schedule the next tick, or the end of the song, at its time at the current tempo, superseding
+         * any task already scheduled.
+         */
+        private synchronized void arm() {
+            if (finished.isDone())
+                return;
+            final long task = ++armed;
+            final int tick = next == null ? endTick() : next.getKey();
+            clock.schedule(nanosOf(tick), () -> run(task));
+        }
+
+        /*
+         * Unless task was superseded, call back the events of the next tick, or finish the song,
+         * and schedule the tick after it.
+         */
+        private void run(long task) {
+            final Map.Entry<Integer, List<Consumer<Double>>> entry;
+            synchronized (this) {
+                if (task != armed || finished.isDone())
+                    return;
+                entry = next;
+                next = schedule.hasNext() ? schedule.next() : null;
+            }
+            if (entry == null) {
+                finished.complete(null);
+                return;
+            }
+            try {
+                for (Consumer<Double> callback : entry.getValue())
+                    callback.accept(beatAt(entry.getKey()));
+            } catch (RuntimeException e) {
+                finished.completeExceptionally(e);
+                return;
+            }
+            arm();
+        }
+    }
+
+}
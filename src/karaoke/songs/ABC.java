@@ -175,6 +175,15 @@ public class ABC {
     public Set<String> getVoices() {
         return new HashSet<String>(voices);
     }
+    
+    /**
+     * Gets the number of voices in a piece, without copying them
+     * 
+     *  @return number of this piece's voices, > 0
+     */
+    public int getVoiceCount() {
+        return voices.size();
+    }
 
     /** 
      * Get the meter associated with the piece
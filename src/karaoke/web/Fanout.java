@@ -0,0 +1,383 @@
+package karaoke.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fanout is a thread-safe stage between the jukebox and slow network clients: each client
+ * gets a bounded outbox of frames, and a small pool of writer threads drains the outboxes,
+ * so putting a frame in an outbox never blocks on the network. Frames are immutable, so one
+ * frame can wait in many outboxes and be written to every client as-is.
+ */
+class Fanout {
+
+    /**
+     * What an outbox does with a new frame when it is full.
+     */
+    static enum Overflow {
+        /** drop the oldest frame waiting in the outbox */
+        DROP_OLDEST,
+        /** drop every frame waiting in the outbox, so only the latest frame is sent */
+        COALESCE,
+        /** drop every frame waiting in the outbox and disconnect the client */
+        DISCONNECT,
+    }
+
+    /**
+     * Default number of writer threads, from system property karaoke.fanout.writers, or 4.
+     */
+    static final int DEFAULT_WRITERS = Integer.getInteger("karaoke.fanout.writers", 4);
+    /**
+     * Default outbox capacity in frames, from system property karaoke.fanout.capacity, or 64.
+     */
+    static final int DEFAULT_CAPACITY = Integer.getInteger("karaoke.fanout.capacity", 64);
+    /**
+     * Default overflow policy, from system property karaoke.fanout.overflow ("drop_oldest", "coalesce" or
+     * "disconnect"), or COALESCE if it is not set or names no policy.
+     */
+    static final Overflow DEFAULT_OVERFLOW = overflowNamed(System.getProperty("karaoke.fanout.overflow", "coalesce"));
+
+    private final ExecutorService writers;
+    private final int capacity;
+    private final Overflow overflow;
+
+    private final List<Outbox> outboxes = new ArrayList<>();
+    private int maxDepth = 0;
+    private long written = 0;
+    private long dropped = 0;
+    private long disconnected = 0;
+
+    // Abstraction function:
+    //  AF(writers, capacity, overflow, outboxes, maxDepth, written, dropped, disconnected)
+    //      = a fanout stage whose open outboxes are outboxes, each holding at most capacity frames
+    //      and handling overflow by the policy overflow, drained by the threads of writers,
+    //      where maxDepth is the most frames any outbox has held, written frames have been written,
+    //      dropped frames have been lost to overflow, and disconnected clients were disconnected by it
+    //
+    // Representation invariant:
+    //  fields are not null
+    //  capacity > 0
+    //  maxDepth, written, dropped, disconnected >= 0
+    //
+    // Safety from rep exposure:
+    //  all fields are private
+    //  writers and outboxes are never passed in or returned
+    //  outboxes are returned by open(), but their reps are only mutated with their own locks
+    //
+    // Thread safety argument:
+    //  capacity and overflow are final and immutable
+    //  writers is a threadsafe ExecutorService
+    //  all accesses to outboxes and the counters are synchronized by this object's lock
+    //  each Outbox guards its own rep with its own lock, and never calls into this Fanout
+    //      while holding it
+
+    /**
+     * @param name name of an overflow policy in any case, such as "drop_oldest"
+     * @return the policy named, or COALESCE if name names no policy
+     */
+    static Overflow overflowNamed(String name) {
+        for (Overflow overflow : Overflow.values())
+            if (overflow.name().equals(name.toUpperCase(Locale.ROOT)))
+                return overflow;
+        return Overflow.COALESCE;
+    }
+
+    /**
+     * Make a fanout stage with the default number of writers, capacity and overflow policy.
+     */
+    Fanout() {
+        this(DEFAULT_WRITERS, DEFAULT_CAPACITY, DEFAULT_OVERFLOW);
+    }
+
+    /**
+     * Make a fanout stage.
+     * @param writers number of writer threads, > 0
+     * @param capacity most frames each outbox holds, > 0
+     * @param overflow what an outbox does with a new frame when it is full
+     */
+    Fanout(int writers, int capacity, Overflow overflow) {
+        final AtomicInteger count = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writers, runnable -> {
+            final Thread thread = new Thread(runnable, "lyric writer " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.capacity = capacity;
+        this.overflow = overflow;
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert writers != null;
+        assert overflow != null;
+        assert outboxes != null;
+        assert capacity > 0;
+        assert maxDepth >= 0 && written >= 0 && dropped >= 0 && disconnected >= 0;
+    }
+
+    /**
+     * Open an outbox for a client.
+     * @param out where to write the client's frames; it is flushed after every batch of frames
+     * @param onClose called once, from a writer thread or a thread calling Outbox.send(), when the
+     *          outbox closes because the client disconnected, was disconnected, or was finished
+     * @return a new open outbox that writes to out
+     */
+    Outbox open(OutputStream out, Runnable onClose) {
+        final Outbox outbox = new Outbox(out, onClose);
+        synchronized (this) {
+            outboxes.add(outbox);
+        }
+        return outbox;
+    }
+
+    /**
+     * Stop the writer threads. Frames not yet written are dropped.
+     */
+    void shutdown() {
+        writers.shutdownNow();
+    }
+
+    /*
+     * Record that an outbox closed.
+     */
+    private synchronized void closed(Outbox outbox) {
+        outboxes.remove(outbox);
+    }
+
+    /*
+     * Record the depth of an outbox, and frames written, frames dropped and clients disconnected from it.
+     */
+    private synchronized void count(int depth, int newlyWritten, int newlyDropped, boolean disconnect) {
+        maxDepth = Math.max(maxDepth, depth);
+        written += newlyWritten;
+        dropped += newlyDropped;
+        if (disconnect)
+            disconnected++;
+        checkRep();
+    }
+
+    /**
+     * @return report with one line each for the overflow policy and capacity, the open outboxes and
+     *          the frames waiting in them, the most frames an outbox has held, the frames written and dropped,
+     *          and the clients disconnected because their outbox overflowed
+     */
+    @Override
+    public synchronized String toString() {
+        int depth = 0;
+        for (Outbox outbox : outboxes)
+            depth += outbox.depth();
+        return "overflow: " + overflow + " at " + capacity + " frames"
+                + "\nlisteners: " + outboxes.size()
+                + "\nqueued frames: " + depth
+                + "\nmax queue depth: " + maxDepth
+                + "\nwritten: " + written
+                + "\ndropped: " + dropped
+                + "\ndisconnected: " + disconnected;
+    }
+
+    /**
+     * A thread-safe bounded outbox of frames for one client.
+     */
+    class Outbox implements FrameSink {
+
+        private final OutputStream out;
+        private final Runnable onClose;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private boolean draining = false;
+        private boolean finishing = false;
+        private boolean closed = false;
+
+        // Abstraction function:
+        //  AF(out, onClose, frames, draining, finishing, closed) = the outbox of a client connected
+        //      by out, with frames waiting to be written in order, a writer task scheduled to write
+        //      them iff draining, to be closed once they're written iff finishing, and closed iff closed,
+        //      calling onClose when it closes
+        //
+        // Representation invariant:
+        //  fields are not null
+        //  frames.size() <= capacity
+        //  closed implies frames is empty
+        //
+        // Safety from rep exposure:
+        //  all fields are private
+        //  frames is never returned; the frames in it are immutable
+        //
+        // Thread safety argument:
+        //  out is only used by the one writer task running for this outbox at a time
+        //  all accesses to frames, draining, finishing and closed are synchronized by this object's lock
+        //  onClose is called without holding this object's lock
+
+        private Outbox(OutputStream out, Runnable onClose) {
+            this.out = out;
+            this.onClose = onClose;
+            checkRep();
+        }
+
+        private synchronized void checkRep() {
+            assert out != null;
+            assert onClose != null;
+            assert frames.size() <= capacity;
+            assert !closed || frames.isEmpty();
+        }
+
+        /**
+         * Queue a frame to be written to the client, without blocking on the network.
+         * If the outbox is full, the fanout's overflow policy applies.
+         * Does nothing if the outbox is closed or finishing.
+         * @param frame frame to write
+         */
+        @Override
+        public void send(Frame frame) {
+            int lost = 0;
+            boolean disconnect = false;
+            boolean schedule = false;
+            final int depth;
+            synchronized (this) {
+                if (closed || finishing)
+                    return;
+                if (frames.size() == capacity) {
+                    switch (overflow) {
+                    case DROP_OLDEST:
+                        frames.removeFirst();
+                        lost = 1;
+                        break;
+                    case COALESCE:
+                        lost = frames.size();
+                        frames.clear();
+                        break;
+                    case DISCONNECT:
+                        lost = frames.size() + 1;
+                        frames.clear();
+                        closed = true;
+                        disconnect = true;
+                        break;
+                    default:
+                        throw new AssertionError(overflow);
+                    }
+                }
+                if (!disconnect) {
+                    frames.addLast(frame);
+                    schedule = !draining;
+                    draining = true;
+                }
+                depth = frames.size();
+                checkRep();
+            }
+            count(depth, 0, lost, disconnect);
+            if (disconnect)
+                close();
+            else if (schedule) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // the fanout was shut down, so no frame will ever be written
+                    synchronized (this) {
+                        frames.clear();
+                        draining = false;
+                        closed = true;
+                    }
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Close this outbox once the frames already queued have been written.
+         */
+        @Override
+        public void finish() {
+            final boolean closeNow;
+            synchronized (this) {
+                if (closed || finishing)
+                    return;
+                finishing = true;
+                closeNow = !draining;
+                if (closeNow)
+                    closed = true;
+            }
+            if (closeNow)
+                close();
+        }
+
+        /**
+         * @return number of frames waiting to be written
+         */
+        synchronized int depth() {
+            return frames.size();
+        }
+
+        /*
+         * Write queued frames until none are left; run by one writer thread at a time.
+         */
+        private void drain() {
+            while (true) {
+                final List<Frame> batch;
+                boolean closeNow = false;
+                synchronized (this) {
+                    if (closed || frames.isEmpty()) {
+                        draining = false;
+                        if (finishing && !closed) {
+                            closed = true;
+                            closeNow = true;
+                        }
+                        batch = null;
+                    } else {
+                        batch = new ArrayList<>(frames);
+                        frames.clear();
+                    }
+                }
+                if (batch == null) {
+                    if (closeNow)
+                        close();
+                    return;
+                }
+                boolean failed = false;
+                try {
+                    for (Frame frame : batch)
+                        frame.writeTo(out);
+                    out.flush();
+                } catch (IOException e) {
+                    failed = true;
+                }
+                // frames that failed to send were never written
+                if (failed)
+                    count(0, 0, batch.size(), false);
+                else
+                    count(0, batch.size(), 0, false);
+                if (failed) {
+                    final boolean closeAfterFailure;
+                    synchronized (this) {
+                        frames.clear();
+                        draining = false;
+                        closeAfterFailure = !closed;
+                        closed = true;
+                    }
+                    if (closeAfterFailure)
+                        close();
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Tell the client and the fanout that this outbox closed; called once, after setting closed.
+         */
+        private void close() {
+            closed(this);
+            onClose.run();
+        }
+    }
+
+}
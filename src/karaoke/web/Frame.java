@@ -0,0 +1,116 @@
+package karaoke.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An immutable frame of bytes, encoded once and written as-is to any number of clients.
+ */
+class Frame {
+
+    /**
+     * Frame with no content.
+     */
+    static final Frame EMPTY = new Frame(new byte[0]);
+
+    private final byte[] bytes;
+    private volatile ByteBuffer direct = null;
+
+    // Abstraction function:
+    //  AF(bytes, direct) = the frame whose content is bytes, also copied outside the heap in direct
+    //      once a buffer of it has been made
+    //
+    // Representation invariant:
+    //  bytes is not null
+    //  direct is null, or a read-only buffer whose remaining content equals bytes
+    //
+    // Safety from rep exposure:
+    //  bytes and direct are private, and bytes is final
+    //  bytes is made by of() and never passed in or returned; writeTo() only reads it
+    //  direct is read-only, and buffer() only returns duplicates of it
+    //
+    // Thread safety argument:
+    //  bytes is never mutated after construction
+    //  direct is volatile; threads racing to make it may each make a copy, all equal, and keep any one
+
+    private Frame(byte[] bytes) {
+        this.bytes = bytes;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert bytes != null;
+        assert direct == null || direct.isReadOnly() && direct.remaining() == bytes.length;
+    }
+
+    /**
+     * @param text content of the frame, including any line terminators
+     * @return frame whose content is text encoded in UTF-8
+     */
+    static Frame of(String text) {
+        return new Frame(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param frames frames to join
+     * @return frame whose content is the content of frames in order, so they can be queued and
+     *          written together
+     */
+    static Frame join(List<Frame> frames) {
+        int length = 0;
+        for (Frame frame : frames)
+            length += frame.bytes.length;
+        final byte[] joined = new byte[length];
+        int offset = 0;
+        for (Frame frame : frames) {
+            System.arraycopy(frame.bytes, 0, joined, offset, frame.bytes.length);
+            offset += frame.bytes.length;
+        }
+        return new Frame(joined);
+    }
+
+    /**
+     * @return number of bytes in this frame
+     */
+    int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Write this frame to a stream, without flushing it.
+     * @param out stream to write to
+     * @throws IOException if out fails to write
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * @return a new read-only buffer of this frame's content, positioned at its start; every buffer of
+     *          this frame shares one copy of its content outside the heap, so channels write it as-is
+     */
+    ByteBuffer buffer() {
+        ByteBuffer shared = direct;
+        if (shared == null) {
+            final ByteBuffer copy = ByteBuffer.allocateDirect(bytes.length);
+            copy.put(bytes);
+            copy.flip();
+            shared = copy.asReadOnlyBuffer();
+            direct = shared;
+            checkRep();
+        }
+        return shared.duplicate();
+    }
+
+    /**
+     * @return content of this frame decoded from UTF-8
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
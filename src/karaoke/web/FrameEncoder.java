@@ -0,0 +1,259 @@
+package karaoke.web;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.playback.Jukebox.Signal.Type;
+import karaoke.playback.Timeline;
+import karaoke.songs.ABC;
+
+/**
+ * FrameEncoder renders jukebox signals into the frames that lyric streams send to their clients.
+ */
+class FrameEncoder {
+
+    /**
+     * Formats of lyric stream.
+     */
+    static enum Format {
+        /** plain text, one line per signal, with the syllable being sung in *asterisks* */
+        TEXT,
+        /** HTML, with the syllable being sung in bold, and a script after each signal that
+            scrolls the page down so the last line is in view */
+        HTML,
+        /** Server-Sent Events, one event per signal named song-start, song-end, song-change or lyric,
+            whose data are the signal's HTML lines */
+        EVENTS,
+        /** Server-Sent Events for clients that highlight lyrics themselves: a timeline event with every
+            lyric of a song when it starts, then only song-end and song-change events */
+        TIMELINE,
+    }
+
+    // send some Javascript to browser that makes it scroll down to the bottom of the page,
+    // so that the last line sent is always in view
+    private static final String SCROLL = "<script>document.body.scrollIntoView(false)</script>";
+    private static final String RULE = "--------------------";
+    private static final String ENOUGH_SPACES_TO_START_STREAMING = String.format("%2048s", "");
+
+    /**
+     * Frame of 2K spaces and a newline, which some web browsers need to receive before they
+     * start displaying a page.
+     */
+    static final Frame PADDING = Frame.of(ENOUGH_SPACES_TO_START_STREAMING + "\n");
+    /**
+     * Frame that starts an EVENTS stream: a comment of 2K spaces, for browsers and proxies that
+     * buffer the start of a response, and the milliseconds a client waits before reconnecting.
+     */
+    static final Frame EVENTS_PADDING = Frame.of(":" + ENOUGH_SPACES_TO_START_STREAMING + "\nretry: 2000\n\n");
+    /**
+     * Frame of an empty EVENTS comment, which keeps idle connections from timing out.
+     */
+    static final Frame KEEP_ALIVE = Frame.of(":\n\n");
+    /**
+     * Frame of an HTML page that follows the TIMELINE stream at [/room/id]/timelineEvents[/voice], where
+     * [/room/id] and [/voice] are the parts of the page's own path around /timeline, and highlights
+     * each lyric when its time comes.
+     */
+    static final Frame TIMELINE_PAGE = Frame.of(String.join("\n",
+            "<!DOCTYPE html>",
+            "<html><head><meta charset=\"utf-8\"><title>Karaoke</title></head>",
+            "<body><p id=\"song\"></p><div id=\"lyrics\"></div>",
+            "<script>",
+            "var timers = [];",
+            "function cancel() { timers.forEach(clearTimeout); timers = []; }",
+            "function line(voice) {",
+            "  var id = 'voice-' + voice, div = document.getElementById(id);",
+            "  if (!div) { div = document.createElement('div'); div.id = id; document.getElementById('lyrics').appendChild(div); }",
+            "  return div;",
+            "}",
+            "function status(html) { cancel(); document.getElementById('song').innerHTML = html; document.getElementById('lyrics').innerHTML = ''; }",
+            "var events = new EventSource(location.pathname.replace(/\\/timeline(\\/[^\\/]*)?$/, '/timelineEvents$1'));",
+            "events.addEventListener('timeline', function (e) {",
+            "  var timeline = JSON.parse(e.data), start = Date.now() - timeline.elapsed;",
+            "  status('Now playing ' + timeline.song);",
+            "  Object.keys(timeline.voices).forEach(function (voice) {",
+            "    timeline.voices[voice].forEach(function (lyric, i, lyrics) {",
+            "      var delay = start + lyric[0] - Date.now();",
+            "      // of the lyrics already sung, show only the last",
+            "      if (delay < 0 && i + 1 < lyrics.length && start + lyrics[i + 1][0] <= Date.now()) return;",
+            "      timers.push(setTimeout(function () { line(voice).innerHTML = lyric[1]; }, Math.max(0, delay)));",
+            "    });",
+            "  });",
+            "});",
+            "events.addEventListener('song-end', function (e) { status(e.data); });",
+            "events.addEventListener('song-change', function (e) { status(e.data); });",
+            "</script></body></html>",
+            ""));
+
+    /**
+     * Prevent instantiation.
+     */
+    private FrameEncoder() {}
+
+    /**
+     * Render a signal.
+     * @param signal signal broadcast by a jukebox
+     * @param song the jukebox's current song when signal was broadcast; must be present if signal's
+     *          type is SONG_START
+     * @param format format to render in
+     * @return frame with the complete lines to send to a client for signal in format, including
+     *          any script that follows them; an EVENTS frame has no id; a TIMELINE frame is
+     *          only made for SONG_END and SONG_CHANGE signals, and the song-start event is made by timeline()
+     */
+    static Frame encode(Signal signal, Optional<ABC> song, Format format) {
+        assert format != Format.TIMELINE || signal.getType() == Type.SONG_END || signal.getType() == Type.SONG_CHANGE;
+        if (format == Format.EVENTS || format == Format.TIMELINE)
+            return event("", signal, song);
+        return frame(format, render(signal, song, format == Format.TEXT));
+    }
+
+    /**
+     * Render a signal as a Server-Sent Event.
+     * @param id id of the event, which clients send back in a Last-Event-ID header when they reconnect
+     * @param signal signal broadcast by a jukebox
+     * @param song the jukebox's current song when signal was broadcast; must be present if signal's
+     *          type is SONG_START
+     * @return frame with the complete EVENTS event for signal, with id
+     */
+    static Frame event(long id, Signal signal, Optional<ABC> song) {
+        return event("id: " + id + "\n", signal, song);
+    }
+
+    /**
+     * Render the line that tells a client which song is next.
+     * @param song the jukebox's current song, if any
+     * @param format format to render in
+     * @return frame with the line naming song, or saying the jukebox is empty, in format
+     */
+    static Frame nextSong(Optional<ABC> song, Format format) {
+        return encode(Signal.SIGNAL_SONG_CHANGE, song, format);
+    }
+
+    /**
+     * Render an HTML page of lyrics that ends with a script to reload the page, asking for the lyrics
+     * after a signal.
+     * @param lyrics lyrics for the page
+     * @param since sequence number of the last signal the page shows; the reloaded page asks for the
+     *          lyrics broadcast after it
+     * @return frame with the HTML lines of lyrics in order, followed by the script
+     */
+    static Frame page(List<Lyric> lyrics, long since) {
+        final StringBuilder page = new StringBuilder();
+        for (Lyric lyric : lyrics)
+            page.append(lyric.toHtmlText()).append('\n');
+        return Frame.of(page.append("<script>location.replace('?since=").append(since).append("')</script>\n")
+                .toString());
+    }
+
+    /**
+     * Render the lyric timeline of a song as a TIMELINE event named timeline, whose data is a JSON object
+     * {"song": song info, "elapsed": milliseconds since the song started, "voices": {voice: [[ms, lyric
+     * HTML], ...], ...}}, listing when each lyric of each voice part is sung in milliseconds from the start
+     * of the song, played throughout at tempoFactor times its tempo.
+     * @param song song being played
+     * @param timeline timeline of song
+     * @param voice voice part whose lyrics to include, or "" for every voice part; if song has at most
+     *          one voice part, its lyrics are included whatever the voice
+     * @param tempoFactor how many times as fast as its own tempo song plays, > 0
+     * @param elapsedMillis milliseconds since the song would have started had it played at tempoFactor
+     *          times its tempo throughout, >= 0
+     * @return frame with the complete timeline event
+     */
+    static Frame timeline(ABC song, Timeline timeline, String voice, double tempoFactor, long elapsedMillis) {
+        final double millisPerTick = 60_000.0 / (timeline.beatsPerMinute() * timeline.ticksPerBeat() * tempoFactor);
+        final StringBuilder json = new StringBuilder("{\"song\":").append(json(song.getInfo()))
+                .append(",\"elapsed\":").append(elapsedMillis).append(",\"voices\":{");
+        boolean firstVoice = true;
+        for (int v = 0; v < timeline.voices().size(); v++) {
+            final String name = timeline.voices().get(v);
+            if (!voice.equals("") && timeline.voices().size() > 1 && !name.equals(voice))
+                continue;
+            json.append(firstVoice ? "" : ",").append(json(name)).append(":[");
+            firstVoice = false;
+            int lastTick = -1;
+            int lastLyric = -1;
+            for (int event = timeline.voiceStart(v); event < timeline.voiceEnd(v); event++) {
+                final int lyric = timeline.lyricIndex(event);
+                if (lyric < 0 || timeline.startTick(event) == lastTick && lyric == lastLyric)
+                    continue; // notes of a chord sing the same lyric once
+                json.append(lastTick < 0 ? "[" : ",[").append(Math.round(timeline.startTick(event) * millisPerTick))
+                        .append(',').append(json(timeline.lyrics().get(lyric).toHtmlText())).append(']');
+                lastTick = timeline.startTick(event);
+                lastLyric = lyric;
+            }
+            json.append(']');
+        }
+        return Frame.of("event: timeline\ndata: " + json.append("}}").toString() + "\n\n");
+    }
+
+    /*
+     * Quote a string as a JSON string.
+     */
+    private static String json(String text) {
+        final StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < ' ')
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /*
+     * Render the lines of a signal in plain text or HTML, without a final line terminator.
+     */
+    private static String render(Signal signal, Optional<ABC> song, boolean plain) {
+        switch (signal.getType()) {
+        case SONG_START:
+            return lines(plain, "Now playing " + song.get().getInfo(), RULE);
+        case SONG_END:
+            return lines(plain, RULE);
+        case SONG_CHANGE:
+            return lines(plain, song.isPresent() ? "Next song is " + song.get().getInfo() : "Jukebox is empty");
+        case LYRIC:
+            return plain ? signal.getLyric().toPlainText() : signal.getLyric().toHtmlText();
+        default:
+            throw new AssertionError(signal.getType());
+        }
+    }
+
+    /*
+     * Join lines of plain text or HTML, each HTML line ending with a line break.
+     */
+    private static String lines(boolean plain, String... lines) {
+        final String lineEnd = plain ? "" : "<br>";
+        return String.join(lineEnd + "\n", lines) + lineEnd;
+    }
+
+    /*
+     * Render text already in a format, followed by the format's script and a line terminator.
+     */
+    private static Frame frame(Format format, String text) {
+        switch (format) {
+        case TEXT:
+            return Frame.of(text + "\n");
+        case HTML:
+            return Frame.of(text + SCROLL + "\n");
+        default:
+            throw new AssertionError(format);
+        }
+    }
+
+    /*
+     * Render a signal as a Server-Sent Event whose fields start with idField.
+     */
+    private static Frame event(String idField, Signal signal, Optional<ABC> song) {
+        final StringBuilder event = new StringBuilder(idField)
+                .append("event: ").append(signal.getType().name().toLowerCase(Locale.ROOT).replace('_', '-')).append('\n');
+        for (String line : render(signal, song, false).split("\n"))
+            event.append("data: ").append(line).append('\n');
+        return Frame.of(event.append('\n').toString());
+    }
+
+}
@@ -0,0 +1,21 @@
+package karaoke.web;
+
+/**
+ * A client of lyric streams that frames are queued for, such as a Fanout outbox or a connection of
+ * an NioLyricServer. Implementations must be thread-safe, and must never block on the network.
+ */
+interface FrameSink {
+
+    /**
+     * Queue a frame to be written to the client, without blocking on the network.
+     * Does nothing if the client is closed or finishing.
+     * @param frame frame to write
+     */
+    void send(Frame frame);
+
+    /**
+     * Close the client once the frames already queued have been written.
+     */
+    void finish();
+
+}
@@ -0,0 +1,608 @@
+package karaoke.web;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.Jukebox;
+import karaoke.playback.Jukebox.Listener;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.playback.Jukebox.Signal.Type;
+import karaoke.playback.Timeline;
+import karaoke.playback.TimelineCache;
+import karaoke.songs.ABC;
+import karaoke.web.FrameEncoder.Format;
+
+/**
+ * LyricStreams is a thread-safe jukebox listener that sends the jukebox's signals to the clients of
+ * lyric streams and long polls. Each signal is encoded at most once per format, however many clients
+ * receive it, and the same frame is queued in every client's outbox.
+ * Signals are identified by the jukebox's sequence numbers, and the latest are kept in a bounded
+ * replay log, so EVENTS clients that reconnect and polls that fall behind can catch up on the signals
+ * they missed.
+ */
+class LyricStreams implements Listener {
+
+    /**
+     * Default number of signals kept for replay, from system property karaoke.sse.replay, or 1024.
+     */
+    static final int DEFAULT_REPLAY = Integer.getInteger("karaoke.sse.replay", 1024);
+
+    private final Jukebox jukebox;
+    private final Fanout fanout;
+    private final int replayCapacity;
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final Deque<Event> replay = new ArrayDeque<>();
+    private final Map<String, List<Poll>> parked = new HashMap<>();
+    private long lastId = 0;
+    // number of keep-alives sent so far, which time out polls parked for a whole keep-alive interval
+    private long keepAliveRounds = 0;
+    private Optional<Playing> playing = Optional.empty();
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong keepAlives = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong pollsAnsweredAtOnce = new AtomicLong();
+
+    // Abstraction function:
+    //  AF(jukebox, fanout, replayCapacity, subscribers, replay, parked, lastId, keepAliveRounds, playing,
+    //     encoded, sent, replayed, keepAlives, polls, pollsAnsweredAtOnce)
+    //      = the lyric streams of subscribers and the long polls parked until the next lyric for them,
+    //      the end or change of a song, or the keep-alive after the one following keepAliveRounds when
+    //      they were parked,
+    //      listening to jukebox and sending it its signals through fanout, where lastId is the sequence
+    //      number of the last signal received, the latest of which are the events of replay,
+    //      playing is the song the jukebox is playing, if any, and how far into it the jukebox is,
+    //      having encoded encoded frames and sent them sent times, replayed replayed events to
+    //      reconnecting clients, sent keepAlives keep-alives, and answered polls polls, of which
+    //      pollsAnsweredAtOnce were behind and answered without parking
+    //
+    // Representation invariant:
+    //  fields are not null
+    //  replayCapacity > 0
+    //  replay.size() <= replayCapacity
+    //  the ids of replay are increasing, ending with lastId
+    //  subscribers and parked map each voice to the clients of that voice, and "" to clients of every voice
+    //  encoded, sent, replayed, keepAlives, polls, pollsAnsweredAtOnce, keepAliveRounds >= 0
+    //  every list of parked is non-empty
+    //
+    // Safety from rep exposure:
+    //  all fields are private, and all but lastId and playing are final
+    //  jukebox and fanout are shared with the caller of the constructor, who owns them
+    //  subscribers, replay and parked are never passed in or returned
+    //  the outboxes passed to subscribe() and poll() are shared with their callers, who own the clients
+    //
+    // Thread safety argument:
+    //  jukebox and fanout are threadsafe
+    //  subscribers is a threadsafe map of threadsafe lists; each Subscriber's fields are final, and its
+    //      outbox is a threadsafe FrameSink
+    //  all accesses to replay, parked, lastId, keepAliveRounds and playing are synchronized by this object's lock, which is also
+    //      held while a signal is sent to subscribers and polls and while one is added, so each one
+    //      receives each signal after it was added once and in order
+    //  this object's lock is never held while calling into jukebox, whose lock is held while it calls
+    //      signalReceived() and tempoChanged()
+    //  the counters are threadsafe
+    //  Events are immutable, and so are frames, so one frame can be queued in many outboxes
+    //  Playing's timeline is only computed, and its tempo only read and set, with this object's lock held
+
+    /**
+     * Make lyric streams for a jukebox, keeping DEFAULT_REPLAY signals for replay; they receive signals
+     * once this is added as a listener of jukebox.
+     * @param jukebox jukebox whose current song is used to render signals
+     * @param fanout fanout that writes frames to clients
+     */
+    LyricStreams(Jukebox jukebox, Fanout fanout) {
+        this(jukebox, fanout, DEFAULT_REPLAY);
+    }
+
+    /**
+     * Make lyric streams for a jukebox; they receive signals once this is added as a listener of jukebox.
+     * @param jukebox jukebox whose current song is used to render signals
+     * @param fanout fanout that writes frames to clients
+     * @param replayCapacity most signals to keep for replay, > 0
+     */
+    LyricStreams(Jukebox jukebox, Fanout fanout, int replayCapacity) {
+        this.jukebox = jukebox;
+        this.fanout = fanout;
+        this.replayCapacity = replayCapacity;
+        checkRep();
+    }
+
+    private synchronized void checkRep() {
+        assert jukebox != null;
+        assert fanout != null;
+        assert subscribers != null;
+        assert replay != null;
+        assert parked != null;
+        assert playing != null;
+        assert replayCapacity > 0;
+        assert replay.size() <= replayCapacity;
+        assert replay.isEmpty() || replay.peekLast().id == lastId && replay.peekFirst().id <= lastId;
+        assert encoded.get() >= 0 && sent.get() >= 0 && replayed.get() >= 0 && keepAlives.get() >= 0;
+        assert polls.get() >= 0 && pollsAnsweredAtOnce.get() >= 0 && keepAliveRounds >= 0;
+        for (List<Poll> ofVoice : parked.values())
+            assert !ofVoice.isEmpty();
+    }
+
+    /*
+     * A signal kept for replay, with its EVENTS frame.
+     */
+    private static class Event {
+        private final long id;
+        private final Signal signal;
+        private final Optional<String> voice;
+        private final Frame frame;
+
+        private Event(long id, Signal signal, Optional<String> voice, Frame frame) {
+            this.id = id;
+            this.signal = signal;
+            this.voice = voice;
+            this.frame = frame;
+        }
+    }
+
+    /*
+     * A client of a lyric stream.
+     */
+    private static class Subscriber {
+        private final Format format;
+        private final FrameSink outbox;
+
+        private Subscriber(Format format, FrameSink outbox) {
+            this.format = format;
+            this.outbox = outbox;
+        }
+    }
+
+    /*
+     * A long poll parked until there is something to answer it with.
+     */
+    private static class Poll {
+        private final FrameSink outbox;
+        // sequence number of the last signal the client has seen
+        private final long since;
+        // keep-alives sent before the poll was parked
+        private final long round;
+
+        private Poll(FrameSink outbox, long since, long round) {
+            this.outbox = outbox;
+            this.since = since;
+            this.round = round;
+        }
+    }
+
+    /*
+     * A song being played, with its timeline, which is taken from the shared cache when a TIMELINE client
+     * first needs it, and how far into the song it was when its tempo factor was last set, as
+     * ClockSequencePlayer keeps its tempo.
+     */
+    private static class Playing {
+        private final ABC song;
+        private Optional<Timeline> timeline = Optional.empty();
+        // System.nanoTime() when the tempo factor was last set, how far into the song it was then in
+        // nanoseconds at the song's own tempo, and the factor
+        private long nanos;
+        private long songNanos;
+        private double factor;
+
+        private Playing(ABC song, long startNanos, double factor) {
+            this.song = song;
+            this.nanos = startNanos;
+            this.songNanos = 0;
+            this.factor = factor;
+        }
+
+        private Timeline timeline() {
+            if (!timeline.isPresent())
+                timeline = Optional.of(TimelineCache.shared().get(song));
+            return timeline.get();
+        }
+
+        /* play the rest of the song at factor times its tempo from when the clock reads now */
+        private void setTempoFactor(long now, double factor) {
+            this.songNanos = songNanosAt(now);
+            this.nanos = now;
+            this.factor = factor;
+        }
+
+        /* how far into the song it is when the clock reads now, at the song's own tempo */
+        private long songNanosAt(long now) {
+            return songNanos + Math.round((now - nanos) * factor);
+        }
+
+        /* the timeline event for a client of voice, joining when the clock reads now */
+        private Frame frame(String voice, long now) {
+            final long elapsedMillis = Math.round(songNanosAt(now) / factor) / 1_000_000;
+            return FrameEncoder.timeline(song, timeline(), voice, factor, elapsedMillis);
+        }
+    }
+
+    /*
+     * Whether a client of voice receives a signal whose lyric is only for signalVoice, if present.
+     */
+    private static boolean wants(String voice, Optional<String> signalVoice) {
+        return voice.equals("") || !signalVoice.isPresent() || signalVoice.get().equals(voice);
+    }
+
+    /*
+     * The voice a signal is only for: a lyric's voice, if its song has more than one voice.
+     */
+    private static Optional<String> voiceOf(Signal signal, Optional<ABC> song) {
+        if (signal.getType() != Type.LYRIC || !song.isPresent() || song.get().getVoiceCount() <= 1)
+            return Optional.empty();
+        return Optional.of(signal.getLyric().getVoice());
+    }
+
+    /**
+     * Start sending signals to a client through an outbox of fanout.
+     * @param out stream to the client
+     * @param format format of the stream
+     * @param voice voice whose lyrics the client receives, or "" for every voice; if the current song
+     *          has at most one voice, its lyrics are sent whatever the voice
+     * @param lastEventId id of the last event an EVENTS client received before it reconnected, if any
+     * @param onClose called once when the stream closes
+     * @see #subscribe(FrameSink, Format, String, OptionalLong)
+     */
+    void subscribe(OutputStream out, Format format, String voice, OptionalLong lastEventId, Runnable onClose) {
+        final FrameSink[] outbox = new FrameSink[1];
+        // nothing is sent to the outbox until it is subscribed, so it can't close before it is assigned
+        outbox[0] = fanout.open(out, () -> {
+            unsubscribe(outbox[0]);
+            onClose.run();
+        });
+        subscribe(outbox[0], format, voice, lastEventId);
+    }
+
+    /**
+     * Start sending signals to a client. Clients of format TEXT and HTML are first sent the next song,
+     * and then every signal until they disconnect. Clients of format EVENTS are sent the next song or,
+     * if they are resuming, the events after lastEventId that are still kept for replay, and then every
+     * signal until they disconnect, each as an event whose id is its sequence number. Clients of format
+     * TIMELINE are sent the timeline of the song being played, or else the next song, and then a timeline
+     * whenever a song starts or the tempo factor of the song being played is set, and the other signals
+     * except lyrics.
+     * The client must be unsubscribed when it closes.
+     * @param outbox where to queue the client's frames
+     * @param format format of the stream
+     * @param voice voice whose lyrics the client receives, or "" for every voice; if the current song
+     *          has at most one voice, its lyrics are sent whatever the voice
+     * @param lastEventId id of the last event an EVENTS client received before it reconnected, if any
+     */
+    void subscribe(FrameSink outbox, Format format, String voice, OptionalLong lastEventId) {
+        final Optional<ABC> song = jukebox.getCurrentSong();
+        synchronized (this) {
+            // subscribe before sending anything, so if sending closes the client it is unsubscribed
+            subscribers.computeIfAbsent(voice, key -> new CopyOnWriteArrayList<>())
+                    .add(new Subscriber(format, outbox));
+            if (format == Format.EVENTS && lastEventId.isPresent()) {
+                // send every missed event at once, so the client catches up in one round trip
+                final List<Frame> missed = new ArrayList<>();
+                for (Event event : replay)
+                    if (event.id > lastEventId.getAsLong() && wants(voice, event.voice))
+                        missed.add(event.frame);
+                if (!missed.isEmpty()) {
+                    outbox.send(Frame.join(missed));
+                    replayed.addAndGet(missed.size());
+                }
+            } else if (format == Format.TIMELINE && playing.isPresent()) {
+                outbox.send(playing.get().frame(voice, System.nanoTime()));
+                encoded.incrementAndGet();
+            } else
+                outbox.send(FrameEncoder.nextSong(song, format));
+        }
+    }
+
+    /**
+     * Stop sending signals to a client, or drop its parked poll; does nothing if it is neither
+     * subscribed nor parked.
+     * @param outbox outbox the client was subscribed or parked with
+     */
+    void unsubscribe(FrameSink outbox) {
+        for (List<Subscriber> ofVoice : subscribers.values())
+            ofVoice.removeIf(subscriber -> subscriber.outbox == outbox);
+        synchronized (this) {
+            for (List<Poll> ofVoice : parked.values())
+                ofVoice.removeIf(poll -> poll.outbox == outbox);
+            parked.values().removeIf(List::isEmpty);
+        }
+    }
+
+    /**
+     * Answer a long poll through an outbox of fanout.
+     * @param out stream to the client
+     * @param voice voice whose lyrics the client receives, or "" for every voice; if the current song
+     *          has at most one voice, its lyrics are sent whatever the voice
+     * @param since sequence number of the last signal the client has seen, if any
+     * @param onClose called once when the page has been sent, or the client disconnected
+     * @see #poll(FrameSink, String, OptionalLong)
+     */
+    void poll(OutputStream out, String voice, OptionalLong since, Runnable onClose) {
+        final FrameSink[] outbox = new FrameSink[1];
+        // nothing is sent to the outbox until it is parked or answered, so it can't close before it is assigned
+        outbox[0] = fanout.open(out, () -> {
+            unsubscribe(outbox[0]);
+            onClose.run();
+        });
+        poll(outbox[0], voice, since);
+    }
+
+    /**
+     * Answer a long poll with an HTML page of the lyrics broadcast after since, ending with a script
+     * that polls again for the lyrics after them. If there are none yet, or since is absent, the poll is
+     * parked until the next lyric, and answered with a page of no lyrics if the song ends or changes
+     * first; a poll still parked after a whole keep-alive interval is answered with the last lyric it
+     * showed, polling again from the same signal, so a client that has gone away is noticed.
+     * Lyrics no longer kept for replay are skipped.
+     * The outbox is finished once the page is queued, and must be unsubscribed when it closes.
+     * @param outbox where to queue the client's page
+     * @param voice voice whose lyrics the client receives, or "" for every voice; if the current song
+     *          has at most one voice, its lyrics are sent whatever the voice
+     * @param since sequence number of the last signal the client has seen, if any
+     */
+    void poll(FrameSink outbox, String voice, OptionalLong since) {
+        synchronized (this) {
+            if (since.isPresent()) {
+                final List<Lyric> missed = new ArrayList<>();
+                for (Event event : replay)
+                    if (event.id > since.getAsLong() && event.signal.getType() == Type.LYRIC
+                            && wants(voice, event.voice))
+                        missed.add(event.signal.getLyric());
+                if (!missed.isEmpty()) {
+                    outbox.send(FrameEncoder.page(missed, lastId));
+                    outbox.finish();
+                    polls.incrementAndGet();
+                    pollsAnsweredAtOnce.incrementAndGet();
+                    replayed.addAndGet(missed.size());
+                    return;
+                }
+            }
+            parked.computeIfAbsent(voice, key -> new ArrayList<>())
+                    .add(new Poll(outbox, since.orElse(lastId), keepAliveRounds));
+        }
+        checkRep();
+    }
+
+    /*
+     * Answer a parked poll with a page, and count it; requires this object's lock.
+     */
+    private void answer(Poll poll, Frame page) {
+        poll.outbox.send(page);
+        poll.outbox.finish();
+        sent.incrementAndGet();
+        polls.incrementAndGet();
+    }
+
+    /*
+     * Answer the polls parked since before the last keep-alive, each with the last lyric for its voice
+     * up to its since, if still kept for replay, polling again from since; requires this object's lock.
+     */
+    private void answerTimedOut() {
+        // take the polls out of parked before answering them, since finishing an outbox may close it
+        // and unsubscribe it from parked on this thread
+        final Map<Poll, String> timedOut = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, List<Poll>>> ofVoice = parked.entrySet().iterator(); ofVoice.hasNext(); ) {
+            final Map.Entry<String, List<Poll>> entry = ofVoice.next();
+            for (Iterator<Poll> polled = entry.getValue().iterator(); polled.hasNext(); ) {
+                final Poll poll = polled.next();
+                if (poll.round < keepAliveRounds) {
+                    timedOut.put(poll, entry.getKey());
+                    polled.remove();
+                }
+            }
+            if (entry.getValue().isEmpty())
+                ofVoice.remove();
+        }
+        for (Map.Entry<Poll, String> entry : timedOut.entrySet()) {
+            final Poll poll = entry.getKey();
+            List<Lyric> shown = Collections.emptyList();
+            for (Event event : replay)
+                if (event.id <= poll.since && event.signal.getType() == Type.LYRIC
+                        && wants(entry.getValue(), event.voice))
+                    shown = Collections.singletonList(event.signal.getLyric());
+            answer(poll, FrameEncoder.page(shown, poll.since));
+            encoded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Send a keep-alive to every EVENTS and TIMELINE client, and answer the polls parked since before
+     * the last keep-alive.
+     */
+    void keepAlive() {
+        synchronized (this) {
+            answerTimedOut();
+            keepAliveRounds++;
+        }
+        checkRep();
+        for (List<Subscriber> ofVoice : subscribers.values()) {
+            for (Subscriber subscriber : ofVoice) {
+                if (subscriber.format == Format.EVENTS || subscriber.format == Format.TIMELINE) {
+                    subscriber.outbox.send(FrameEncoder.KEEP_ALIVE);
+                    keepAlives.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of clients subscribed to streams
+     */
+    int size() {
+        int size = 0;
+        for (List<Subscriber> ofVoice : subscribers.values())
+            size += ofVoice.size();
+        return size;
+    }
+
+    /**
+     * @return number of long polls parked until the next lyric
+     */
+    synchronized int parked() {
+        int size = 0;
+        for (List<Poll> ofVoice : parked.values())
+            size += ofVoice.size();
+        return size;
+    }
+
+    /*
+     * The voices whose clients receive a signal whose lyric is only for signalVoice, if present:
+     * "" and signalVoice, or every voice with clients in index.
+     */
+    private static Collection<String> receivers(Optional<String> signalVoice, Map<String, ?> index) {
+        return signalVoice.isPresent() ? Arrays.asList("", signalVoice.get()) : new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * Send a signal that was not broadcast by a jukebox, numbered one more than the last signal received.
+     * @param signal signal to send
+     */
+    @Override
+    public void signalReceived(Signal signal) {
+        final long sequence;
+        synchronized (this) {
+            sequence = lastId + 1;
+        }
+        signalReceived(signal, sequence);
+    }
+
+    @Override
+    public void signalReceived(Signal signal, long sequence) {
+        final Optional<ABC> song = jukebox.getCurrentSong();
+        final Optional<String> signalVoice = voiceOf(signal, song);
+        final double factor = jukebox.getTempoFactor();
+        synchronized (this) {
+            lastId = sequence;
+            final Event event = new Event(sequence, signal, signalVoice, FrameEncoder.event(sequence, signal, song));
+            encoded.incrementAndGet();
+            if (replay.size() == replayCapacity)
+                replay.removeFirst();
+            replay.addLast(event);
+
+            final long now = System.nanoTime();
+            if (signal.getType() == Type.SONG_START)
+                playing = Optional.of(new Playing(song.get(), now, factor));
+            else if (signal.getType() == Type.SONG_END)
+                playing = Optional.empty();
+
+            final Frame[] frames = new Frame[Format.values().length];
+            frames[Format.EVENTS.ordinal()] = event.frame;
+            // timelines for each voice, which TIMELINE clients are sent instead of song-start
+            final Map<String, Frame> timelines = new HashMap<>();
+            for (String voice : receivers(signalVoice, subscribers)) {
+                for (Subscriber subscriber : subscribers.getOrDefault(voice, Collections.emptyList())) {
+                    try {
+                        final int format = subscriber.format.ordinal();
+                        if (subscriber.format == Format.TIMELINE && signal.getType() == Type.LYRIC)
+                            continue;
+                        if (subscriber.format == Format.TIMELINE && signal.getType() == Type.SONG_START) {
+                            if (!timelines.containsKey(voice)) {
+                                timelines.put(voice, playing.get().frame(voice, now));
+                                encoded.incrementAndGet();
+                            }
+                            subscriber.outbox.send(timelines.get(voice));
+                            sent.incrementAndGet();
+                            continue;
+                        }
+                        if (frames[format] == null) {
+                            frames[format] = FrameEncoder.encode(signal, song, subscriber.format);
+                            encoded.incrementAndGet();
+                        }
+                        subscriber.outbox.send(frames[format]);
+                        sent.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        subscriber.outbox.finish();
+                    }
+                }
+            }
+
+            final boolean lyric = signal.getType() == Type.LYRIC;
+            if ((lyric || signal.getType() == Type.SONG_END || signal.getType() == Type.SONG_CHANGE)
+                    && !parked.isEmpty()) {
+                // a lyric answers the polls of its voice with it, and the end or change of a song
+                // answers every poll with no lyrics
+                final Collection<String> voices = receivers(signalVoice, parked);
+                final List<Poll> answered = new ArrayList<>();
+                for (String voice : voices)
+                    answered.addAll(parked.getOrDefault(voice, Collections.emptyList()));
+                if (!answered.isEmpty()) {
+                    final Frame page = FrameEncoder.page(lyric ? Collections.singletonList(signal.getLyric())
+                                                               : Collections.emptyList(), sequence);
+                    encoded.incrementAndGet();
+                    // take the polls out of parked before answering them, as answerTimedOut() does
+                    parked.keySet().removeAll(voices);
+                    for (Poll poll : answered)
+                        answer(poll, page);
+                }
+            }
+        }
+        checkRep();
+    }
+
+    /**
+     * Send every TIMELINE client a fresh timeline of the song being played, if any, at the new tempo
+     * factor, so it highlights the rest of the song's lyrics when the jukebox sings them.
+     * @param factor how many times as fast as its own tempo the song now plays
+     */
+    @Override
+    public void tempoChanged(double factor) {
+        synchronized (this) {
+            if (!playing.isPresent())
+                return;
+            final long now = System.nanoTime();
+            playing.get().setTempoFactor(now, factor);
+            for (Map.Entry<String, List<Subscriber>> entry : subscribers.entrySet()) {
+                Optional<Frame> timeline = Optional.empty();
+                for (Subscriber subscriber : entry.getValue()) {
+                    if (subscriber.format != Format.TIMELINE)
+                        continue;
+                    try {
+                        if (!timeline.isPresent()) {
+                            timeline = Optional.of(playing.get().frame(entry.getKey(), now));
+                            encoded.incrementAndGet();
+                        }
+                        subscriber.outbox.send(timeline.get());
+                        sent.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        subscriber.outbox.finish();
+                    }
+                }
+            }
+        }
+        checkRep();
+    }
+
+    /**
+     * @return report with one line each for the clients subscribed, the frames encoded, the frames
+     *          sent to clients, the signals kept for replay and replayed, the keep-alives sent,
+     *          and the polls parked and answered
+     */
+    @Override
+    public synchronized String toString() {
+        return "streams: " + size()
+                + "\nframes encoded: " + encoded.get()
+                + "\nframes sent: " + sent.get()
+                + "\nevents kept for replay: " + replay.size() + "/" + replayCapacity
+                + (replay.isEmpty() ? "" : " (ids " + replay.peekFirst().id + " to " + lastId + ")")
+                + "\nevents replayed: " + replayed.get()
+                + "\nkeep-alives sent: " + keepAlives.get()
+                + "\npolls parked: " + parked()
+                + "\npolls answered: " + polls.get() + " (" + pollsAnsweredAtOnce.get() + " at once)";
+    }
+
+}
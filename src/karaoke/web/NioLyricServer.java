@@ -0,0 +1,629 @@
+package karaoke.web;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import karaoke.web.Fanout.Overflow;
+import karaoke.web.FrameEncoder.Format;
+
+/**
+ * NioLyricServer is a thread-safe front end that serves lyric streams over HTTP from a few selector
+ * threads, instead of tying each stream to an HttpExchange and a blocking OutputStream.
+ * Every connection is a non-blocking channel with a bounded write queue of the frames LyricStreams
+ * encodes once for all clients; its selector thread writes them as the socket accepts them.
+ * An open but idle connection holds no thread and only a few small objects, so one server can hold
+ * tens of thousands of them.
+ * It serves GET /textStream, /htmlStream, /htmlWaitReload, /events and /timelineEvents, each
+ * optionally followed by /voice, like WebServer, and closes every response by closing the connection.
+ */
+class NioLyricServer {
+
+    /**
+     * Default number of selector threads, from system property karaoke.nio.selectors, or 2.
+     */
+    static final int DEFAULT_SELECTORS = Integer.getInteger("karaoke.nio.selectors", 2);
+    /**
+     * Default most connections held open at once, from system property karaoke.nio.maxConnections,
+     * or 100000.
+     */
+    static final int DEFAULT_MAX_CONNECTIONS = Integer.getInteger("karaoke.nio.maxConnections", 100_000);
+
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final int MAX_BUFFERS_PER_WRITE = 16;
+
+    private static final Frame NOT_FOUND = response("404 Not Found", "No such lyric stream\n");
+    private static final Frame BAD_REQUEST = response("400 Bad Request", "Bad request\n");
+    private static final Frame SERVICE_UNAVAILABLE = response("503 Service Unavailable",
+            "Too many listeners, try again later\n");
+
+    private final LyricStreams lyricStreams;
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private final int maxConnections;
+    private final int capacity;
+    private final Overflow overflow;
+    private volatile boolean running = false;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong badRequests = new AtomicLong();
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    // Abstraction function:
+    //  AF(lyricStreams, server, loops, maxConnections, capacity, overflow, running, nextLoop, open,
+    //     accepted, rejected, badRequests, framesWritten, bytesWritten, maxDepth, dropped, disconnected)
+    //      = a front end accepting connections on server, serving the streams of lyricStreams, whose
+    //      connections are spread round-robin from nextLoop over the selector threads of loops, which
+    //      run iff running; open of at most maxConnections connections are open, each queueing at most
+    //      capacity frames and handling overflow by the policy overflow, having accepted accepted
+    //      connections, turned away rejected because it was full and badRequests because they were not
+    //      lyric streams, written framesWritten frames in bytesWritten bytes, queued at most maxDepth
+    //      frames for any connection, dropped dropped frames to overflow and disconnected disconnected
+    //      connections because they overflowed
+    //
+    // Representation invariant:
+    //  fields are not null
+    //  loops.length > 0
+    //  maxConnections > 0, capacity > 0
+    //  the counters are >= 0
+    //
+    // Safety from rep exposure:
+    //  all fields are private, and all but running are final
+    //  lyricStreams is shared with the caller of the constructor, who owns it
+    //  server, loops and the connections are never passed in or returned; connections are passed to
+    //      lyricStreams, which only calls their FrameSink methods
+    //
+    // Thread safety argument:
+    //  lyricStreams is threadsafe
+    //  server is only accepted from by the thread of loops[0]
+    //  each Loop's selector and the keys registered with it are confined to its thread; other threads
+    //      hand it connections through its threadsafe queues and wake it up
+    //  each Connection guards its write queue with its own lock, and its request with its loop's thread
+    //  running is volatile, and the counters are threadsafe
+    //  maxConnections, capacity and overflow are final and immutable
+
+    /**
+     * Make a lyric-streaming front end for lyric streams, with DEFAULT_MAX_CONNECTIONS and the default
+     * fanout capacity and overflow policy; it accepts connections once it is started.
+     * @param lyricStreams lyric streams to serve; they receive signals once they are a jukebox listener
+     * @param port port to listen on, or 0 for any free port
+     * @param selectors number of selector threads, > 0
+     * @throws IOException if the port can't be listened on
+     */
+    NioLyricServer(LyricStreams lyricStreams, int port, int selectors) throws IOException {
+        this(lyricStreams, port, selectors, DEFAULT_MAX_CONNECTIONS, Fanout.DEFAULT_CAPACITY, Fanout.DEFAULT_OVERFLOW);
+    }
+
+    /**
+     * Make a lyric-streaming front end for lyric streams; it accepts connections once it is started.
+     * @param lyricStreams lyric streams to serve; they receive signals once they are a jukebox listener
+     * @param port port to listen on, or 0 for any free port
+     * @param selectors number of selector threads, > 0
+     * @param maxConnections most connections to hold open at once, > 0; more are turned away with
+     *          503 Service Unavailable
+     * @param capacity most frames queued for each connection, > 0
+     * @param overflow what a connection does with a new frame when its queue is full
+     * @throws IOException if the port can't be listened on
+     */
+    NioLyricServer(LyricStreams lyricStreams, int port, int selectors, int maxConnections, int capacity,
+            Overflow overflow) throws IOException {
+        this.lyricStreams = lyricStreams;
+        this.maxConnections = maxConnections;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        this.loops = new Loop[selectors];
+        for (int i = 0; i < selectors; i++)
+            loops[i] = new Loop(i + 1);
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert lyricStreams != null;
+        assert server != null;
+        assert loops != null && loops.length > 0;
+        assert overflow != null;
+        assert maxConnections > 0 && capacity > 0;
+        assert open.get() >= 0 && accepted.get() >= 0 && rejected.get() >= 0 && badRequests.get() >= 0;
+        assert framesWritten.get() >= 0 && bytesWritten.get() >= 0 && maxDepth.get() >= 0;
+        assert dropped.get() >= 0 && disconnected.get() >= 0;
+    }
+
+    /*
+     * A complete response with a plain text body.
+     */
+    private static Frame response(String status, String body) {
+        return Frame.of("HTTP/1.1 " + status + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                + body.getBytes(StandardCharsets.UTF_8).length + "\r\nConnection: close\r\n\r\n" + body);
+    }
+
+    /*
+     * The status line and headers of a lyric stream, followed by padding.
+     */
+    private static Frame streamStart(String contentType, Frame padding) {
+        return Frame.join(Arrays.asList(Frame.of("HTTP/1.1 200 OK\r\nContent-Type: " + contentType
+                + "\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n"), padding));
+    }
+
+    /*
+     * A lyric stream this server serves.
+     */
+    private static enum Route {
+        TEXT_STREAM("/textStream", Format.TEXT, streamStart("text/plain; charset=utf-8", FrameEncoder.PADDING)),
+        HTML_STREAM("/htmlStream", Format.HTML, streamStart("text/html; charset=utf-8", FrameEncoder.PADDING)),
+        HTML_WAIT_RELOAD("/htmlWaitReload", Format.HTML, streamStart("text/html; charset=utf-8", Frame.EMPTY)),
+        EVENTS("/events", Format.EVENTS,
+                streamStart("text/event-stream; charset=utf-8", FrameEncoder.EVENTS_PADDING)),
+        TIMELINE_EVENTS("/timelineEvents", Format.TIMELINE,
+                streamStart("text/event-stream; charset=utf-8", FrameEncoder.EVENTS_PADDING));
+
+        private final String path;
+        private final Format format;
+        private final Frame start;
+
+        private Route(String path, Format format, Frame start) {
+            this.path = path;
+            this.format = format;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Start accepting connections and serving lyric streams in new background threads.
+     */
+    void start() {
+        running = true;
+        for (Loop loop : loops)
+            loop.thread.start();
+    }
+
+    /**
+     * Stop accepting connections and close every open connection. Once stopped, this server cannot be
+     * restarted.
+     */
+    void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // already closed, or closing anyway
+        }
+        for (Loop loop : loops)
+            loop.selector.wakeup();
+    }
+
+    /**
+     * @return the port on which this server is listening for connections
+     */
+    int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return report with one line each for the selector threads, the open connections, the connections
+     *          accepted and turned away, the frames and bytes written, the most frames a connection has
+     *          queued, the frames dropped and the connections disconnected because they overflowed
+     */
+    @Override
+    public String toString() {
+        return "selectors: " + loops.length
+                + "\nconnections: " + open.get() + "/" + maxConnections
+                + "\naccepted: " + accepted.get()
+                + "\nrejected: " + rejected.get() + " full, " + badRequests.get() + " not lyric streams"
+                + "\nwritten: " + framesWritten.get() + " frames, " + bytesWritten.get() + " bytes"
+                + "\noverflow: " + overflow + " at " + capacity + " frames"
+                + "\nmax queue depth: " + maxDepth.get()
+                + "\ndropped: " + dropped.get()
+                + "\ndisconnected: " + disconnected.get();
+    }
+
+    /*
+     * A selector thread, serving the connections registered with its selector.
+     */
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Connection> registering = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean woken = new AtomicBoolean();
+        // connections read their requests through this buffer one at a time, on this loop's thread
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+
+        private Loop(int number) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "lyric selector " + number);
+            thread.setDaemon(true);
+        }
+
+        /*
+         * Make the selector thread look at its queues, waking it up unless it has been woken already.
+         */
+        private void wake() {
+            if (woken.compareAndSet(false, true))
+                selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    // clear before draining the queues, so a connection queued after this wakes it again
+                    woken.set(false);
+                    for (Connection connection = registering.poll(); connection != null; connection = registering.poll())
+                        connection.register();
+                    for (Connection connection = writable.poll(); connection != null; connection = writable.poll())
+                        connection.write();
+                    final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        final SelectionKey key = selected.next();
+                        selected.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        final Connection connection = (Connection) key.attachment();
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // the selector failed, so its connections can't be served any more
+            } finally {
+                for (SelectionKey key : new ArrayList<>(selector.keys()))
+                    if (key.attachment() instanceof Connection)
+                        ((Connection) key.attachment()).close();
+                for (Connection connection = registering.poll(); connection != null; connection = registering.poll())
+                    connection.close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing more to do with it
+                }
+            }
+        }
+
+        /*
+         * Accept every pending connection, handing each to the next loop.
+         */
+        private void accept() throws IOException {
+            for (SocketChannel channel = server.accept(); channel != null; channel = server.accept()) {
+                channel.configureBlocking(false);
+                final Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                final Connection connection = new Connection(channel, loop);
+                accepted.incrementAndGet();
+                if (open.incrementAndGet() > maxConnections) {
+                    rejected.incrementAndGet();
+                    connection.request = null;
+                    connection.send(SERVICE_UNAVAILABLE);
+                    connection.finish();
+                }
+                loop.registering.add(connection);
+                loop.wake();
+            }
+        }
+    }
+
+    /*
+     * A connection from a client, which reads one request and then receives a lyric stream or a response.
+     */
+    private class Connection implements FrameSink {
+        private final SocketChannel channel;
+        private final Loop loop;
+        // confined to loop's thread, once the connection is handed to it
+        private SelectionKey key = null;
+        private StringBuilder request = new StringBuilder();
+        // guarded by this object's lock
+        private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean finishing = false;
+        private boolean closed = false;
+
+        // Abstraction function:
+        //  AF(channel, loop, key, request, queue, scheduled, finishing, closed) = a connection from a
+        //      client over channel, served by loop through key once it is registered, that has received
+        //      the start of request so far, or all of it if request is null, with the unwritten rest of
+        //      each frame in queue waiting to be written in order, loop asked to write them iff scheduled,
+        //      to be closed once they're written iff finishing, and closed iff closed
+        //
+        // Representation invariant:
+        //  channel, loop and queue are not null
+        //  queue.size() <= capacity
+        //  closed implies queue is empty
+        //
+        // Safety from rep exposure:
+        //  all fields are private
+        //  queue holds buffers of its own over frames, and is never returned
+        //
+        // Thread safety argument:
+        //  key and request are only used by loop's thread
+        //  channel is only read and written by loop's thread; closing it is threadsafe
+        //  all accesses to queue, scheduled, finishing and closed are synchronized by this object's lock,
+        //      which is held while writing to channel, so a frame is never dropped while partly written
+
+        private Connection(SocketChannel channel, Loop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        private synchronized void checkRep() {
+            assert channel != null && loop != null && queue != null;
+            assert queue.size() <= capacity;
+            assert !closed || queue.isEmpty();
+        }
+
+        /*
+         * Register with loop's selector, on its thread.
+         */
+        private void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            // a response queued before registering is written now
+            write();
+        }
+
+        /*
+         * Read what the client sent, on loop's thread: the request, then nothing but its disconnecting.
+         */
+        private void read() {
+            final ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            final int length;
+            try {
+                length = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (length < 0) {
+                close();
+                return;
+            }
+            if (request == null)
+                return;
+            buffer.flip();
+            request.append(StandardCharsets.ISO_8859_1.decode(buffer));
+            final int end = request.indexOf("\r\n\r\n");
+            if (end < 0) {
+                if (request.length() > MAX_REQUEST_BYTES)
+                    refuse(BAD_REQUEST);
+                return;
+            }
+            final String head = request.substring(0, end);
+            request = null;
+            handle(head);
+        }
+
+        /*
+         * Start the lyric stream a request asks for, or reject it.
+         */
+        private void handle(String head) {
+            final String[] lines = head.split("\r\n");
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[0].equals("GET")) {
+                refuse(BAD_REQUEST);
+                return;
+            }
+            final String target = requestLine[1];
+            final int queryStart = target.indexOf('?');
+            final String path = queryStart < 0 ? target : target.substring(0, queryStart);
+            final String query = queryStart < 0 ? "" : target.substring(queryStart + 1);
+
+            for (Route route : Route.values()) {
+                final String voice;
+                if (path.equals(route.path))
+                    voice = "";
+                else if (path.startsWith(route.path + "/"))
+                    voice = path.substring(route.path.length() + 1);
+                else
+                    continue;
+                send(route.start);
+                if (route == Route.HTML_WAIT_RELOAD)
+                    lyricStreams.poll(this, voice,
+                            number(query.startsWith("since=") ? query.substring("since=".length()) : null));
+                else
+                    lyricStreams.subscribe(this, route.format, voice,
+                            route == Route.EVENTS ? number(header(lines, "Last-Event-ID")) : OptionalLong.empty());
+                return;
+            }
+            refuse(NOT_FOUND);
+        }
+
+        /*
+         * Refuse a request that isn't for a lyric stream with a complete response, and close.
+         */
+        private void refuse(Frame response) {
+            request = null;
+            badRequests.incrementAndGet();
+            send(response);
+            finish();
+        }
+
+        @Override
+        public void send(Frame frame) {
+            boolean disconnect = false;
+            boolean schedule = false;
+            synchronized (this) {
+                if (closed || finishing)
+                    return;
+                if (queue.size() == capacity) {
+                    // a frame already partly written must be finished, or the stream would be corrupt
+                    final ByteBuffer started = queue.peekFirst().position() > 0 ? queue.removeFirst() : null;
+                    switch (overflow) {
+                    case DROP_OLDEST:
+                        if (!queue.isEmpty()) {
+                            queue.removeFirst();
+                            dropped.incrementAndGet();
+                        }
+                        break;
+                    case COALESCE:
+                        dropped.addAndGet(queue.size());
+                        queue.clear();
+                        break;
+                    case DISCONNECT:
+                        disconnect = true;
+                        break;
+                    default:
+                        throw new AssertionError(overflow);
+                    }
+                    if (started != null)
+                        queue.addFirst(started);
+                }
+                if (disconnect)
+                    dropped.addAndGet(queue.size() + 1);
+                else if (queue.size() == capacity)
+                    dropped.incrementAndGet(); // nothing could be dropped but a frame partly written
+                else {
+                    queue.addLast(frame.buffer());
+                    maxDepth.accumulateAndGet(queue.size(), Math::max);
+                    schedule = !scheduled;
+                    scheduled = true;
+                }
+            }
+            if (disconnect) {
+                disconnected.incrementAndGet();
+                close();
+            } else if (schedule) {
+                loop.writable.add(this);
+                loop.wake();
+            }
+        }
+
+        @Override
+        public void finish() {
+            final boolean closeNow;
+            synchronized (this) {
+                if (closed || finishing)
+                    return;
+                finishing = true;
+                // otherwise the next write closes it, once the queue is written
+                closeNow = queue.isEmpty() && !scheduled;
+            }
+            if (closeNow)
+                close();
+        }
+
+        /*
+         * Write as much of the queue as the socket accepts, on loop's thread, then wait for the socket to
+         * accept more if any is left, or close if finishing and all is written.
+         */
+        private void write() {
+            if (key == null)
+                return; // not registered yet; register() writes
+            boolean closeNow = false;
+            synchronized (this) {
+                if (closed)
+                    return;
+                scheduled = false;
+                final ByteBuffer[] buffers = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+                try {
+                    while (!queue.isEmpty()) {
+                        int count = 0;
+                        for (ByteBuffer buffer : queue) {
+                            buffers[count++] = buffer;
+                            if (count == buffers.length)
+                                break;
+                        }
+                        bytesWritten.addAndGet(channel.write(buffers, 0, count));
+                        while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+                            queue.removeFirst();
+                            framesWritten.incrementAndGet();
+                        }
+                        if (!queue.isEmpty() && queue.peekFirst().position() > 0)
+                            break; // the socket is full
+                    }
+                    if (queue.isEmpty() && finishing)
+                        closeNow = true;
+                    else if (key.isValid())
+                        key.interestOps(queue.isEmpty() ? SelectionKey.OP_READ
+                                                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } catch (IOException e) {
+                    closeNow = true;
+                }
+                checkRep();
+            }
+            if (closeNow)
+                close();
+        }
+
+        /*
+         * Close the connection and unsubscribe it; does nothing if already closed.
+         */
+        private void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                queue.clear();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+            lyricStreams.unsubscribe(this);
+            open.decrementAndGet();
+        }
+    }
+
+    /*
+     * The value of a header in the lines of a request head, if present.
+     */
+    private static String header(String[] lines, String name) {
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase(name))
+                return lines[i].substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    /*
+     * A number sent by a client, if it is one.
+     */
+    private static OptionalLong number(String text) {
+        if (text == null)
+            return OptionalLong.empty();
+        try {
+            return OptionalLong.of(Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            // not a number this server sent
+            return OptionalLong.empty();
+        }
+    }
+
+}
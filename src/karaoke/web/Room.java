@@ -0,0 +1,102 @@
+package karaoke.web;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import karaoke.playback.Jukebox;
+
+/**
+ * A karaoke room: a jukebox of its own and the lyric streams that follow it, whose frames are written
+ * by a fanout shared with other rooms. A room is idle when it is not playing, has no open lyric streams,
+ * and has not been used for a while.
+ */
+class Room {
+
+    private final String id;
+    private final Jukebox jukebox = new Jukebox();
+    private final LyricStreams lyricStreams;
+    private final AtomicLong lastUsedNanos = new AtomicLong(System.nanoTime());
+
+    // Abstraction function:
+    //  AF(id, jukebox, lyricStreams, lastUsedNanos) = the room named id, playing songs from jukebox
+    //      and streaming its lyrics to the clients of lyricStreams, last used at System.nanoTime()
+    //      lastUsedNanos
+    // Representation invariant:
+    //  fields are not null
+    //  lyricStreams follows jukebox
+    // Safety from rep exposure:
+    //  all fields are private and final; id is immutable
+    //  jukebox and lyricStreams are returned, since handlers use them, but never reassigned
+    // Thread safety argument:
+    //  jukebox, lyricStreams and lastUsedNanos are threadsafe; id is immutable
+
+    /**
+     * Make an empty room, last used now.
+     * @param id name of the room
+     * @param fanout fanout that writes the frames of the room's lyric streams
+     */
+    Room(String id, Fanout fanout) {
+        this.id = id;
+        this.lyricStreams = new LyricStreams(jukebox, fanout);
+        jukebox.addListener(lyricStreams);
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private void checkRep() {
+        assert id != null;
+        assert jukebox != null;
+        assert lyricStreams != null;
+        assert lastUsedNanos != null;
+    }
+
+    /**
+     * @return name of this room
+     */
+    String id() {
+        return id;
+    }
+
+    /**
+     * @return the jukebox of this room
+     */
+    Jukebox jukebox() {
+        return jukebox;
+    }
+
+    /**
+     * @return the lyric streams that follow this room's jukebox
+     */
+    LyricStreams lyricStreams() {
+        return lyricStreams;
+    }
+
+    /**
+     * Record that this room is used now.
+     */
+    void touch() {
+        lastUsedNanos.set(System.nanoTime());
+    }
+
+    /**
+     * @param nowNanos the current System.nanoTime()
+     * @param idleNanos how long a room must go unused to be idle, >= 0
+     * @return whether this room is not playing, has no open lyric streams, and was last used at least
+     *         idleNanos before nowNanos
+     */
+    boolean isIdle(long nowNanos, long idleNanos) {
+        return nowNanos - lastUsedNanos.get() >= idleNanos
+                && !jukebox.isPlaying()
+                && lyricStreams.size() == 0
+                && lyricStreams.parked() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return (id.isEmpty() ? "(default)" : id) + ": " + jukebox.getState()
+                + ", " + (lyricStreams.size() + lyricStreams.parked()) + " streams"
+                + (jukebox.isAutoAdvance() ? ", auto-advance: " + jukebox.getTransitions() : "");
+    }
+
+}
@@ -0,0 +1,191 @@
+package karaoke.web;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Rooms is a thread-safe registry of the karaoke rooms of one server: a default room, which is never
+ * evicted, and at most maxRooms rooms named by id, which are made the first time they are used and
+ * evicted once they are idle. Every room's lyric streams share one fanout, and its jukebox shares
+ * the process's song cache, timeline cache and MIDI engine, so a room costs little more than its
+ * jukebox state and the signals its lyric streams keep for replay.
+ */
+class Rooms {
+
+    /**
+     * Default most rooms named by id, from system property karaoke.rooms.max, or 100.
+     */
+    static final int DEFAULT_MAX_ROOMS = Integer.getInteger("karaoke.rooms.max", 100);
+    /**
+     * Default seconds a room must go unused to be evicted, from system property karaoke.rooms.idle,
+     * or 600.
+     */
+    static final int DEFAULT_IDLE_SECONDS = Integer.getInteger("karaoke.rooms.idle", 600);
+
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Fanout fanout;
+    private final Room lobby;
+    private final Map<String, Room> rooms = new TreeMap<>();
+    private final int maxRooms;
+    private final long idleNanos;
+    private long created = 0;
+    private long evicted = 0;
+    private long rejected = 0;
+
+    // Abstraction function:
+    //  AF(fanout, lobby, rooms, maxRooms, idleNanos, created, evicted, rejected) =
+    //      the default room lobby and the rooms named by the keys of rooms, whose lyric streams are
+    //      written by fanout, where a room unused for idleNanos is evicted once it is idle, and
+    //      created rooms have been made, evicted rooms evicted, and rejected rooms turned away
+    //      because there were already maxRooms
+    // Representation invariant:
+    //  fields are not null
+    //  maxRooms > 0, idleNanos >= 0
+    //  rooms.size() <= maxRooms
+    //  every key of rooms matches ID and is the id of its room
+    //  created == rooms.size() + evicted
+    //  rejected >= 0
+    // Safety from rep exposure:
+    //  all fields are private and final, except the counters, which are private
+    //  rooms is never passed in or returned; Room objects are returned, since handlers use them
+    // Thread safety argument:
+    //  all accesses to rooms and the counters are synchronized by this object's lock
+    //  fanout and the rooms are threadsafe
+    //  this object's lock is taken before the lock of a room's lyric streams, and never after it
+
+    /**
+     * Make a registry with only the default room, holding at most DEFAULT_MAX_ROOMS rooms named by id
+     * and evicting them after DEFAULT_IDLE_SECONDS unused.
+     * @param fanout fanout that writes the frames of every room's lyric streams
+     */
+    Rooms(Fanout fanout) {
+        this(fanout, DEFAULT_MAX_ROOMS, TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_SECONDS));
+    }
+
+    /**
+     * Make a registry with only the default room.
+     * @param fanout fanout that writes the frames of every room's lyric streams
+     * @param maxRooms most rooms named by id at once, > 0
+     * @param idleNanos how long a room must go unused before it can be evicted, >= 0
+     */
+    Rooms(Fanout fanout, int maxRooms, long idleNanos) {
+        this.fanout = fanout;
+        this.lobby = new Room("", fanout);
+        this.maxRooms = maxRooms;
+        this.idleNanos = idleNanos;
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert fanout != null;
+        assert lobby != null;
+        assert rooms != null;
+        assert maxRooms > 0 && idleNanos >= 0;
+        assert rooms.size() <= maxRooms;
+        for (Map.Entry<String, Room> entry : rooms.entrySet())
+            assert isId(entry.getKey()) && entry.getKey().equals(entry.getValue().id());
+        assert created == rooms.size() + evicted;
+        assert rejected >= 0;
+    }
+
+    /**
+     * @param id name of a room
+     * @return whether id can name a room: 1 to 64 letters, digits, underscores and hyphens
+     */
+    static boolean isId(String id) {
+        return ID.matcher(id).matches();
+    }
+
+    /**
+     * @return the default room, which is never evicted
+     */
+    Room lobby() {
+        return lobby;
+    }
+
+    /**
+     * Get the room named id, making it if there is none, and record that it is used now.
+     * @param id name of the room, must satisfy isId(id)
+     * @return the room named id, or empty if there is none and there are already maxRooms rooms
+     */
+    synchronized Optional<Room> get(String id) {
+        assert isId(id);
+        Room room = rooms.get(id);
+        if (room == null) {
+            if (rooms.size() >= maxRooms) {
+                rejected++;
+                return Optional.empty();
+            }
+            room = new Room(id, fanout);
+            rooms.put(id, room);
+            created++;
+            checkRep();
+        }
+        room.touch();
+        return Optional.of(room);
+    }
+
+    /**
+     * Evict every room named by id that is idle: not playing, with no open lyric streams, and unused
+     * for idleNanos.
+     * @return number of rooms evicted
+     */
+    synchronized int evictIdle() {
+        final long now = System.nanoTime();
+        int count = 0;
+        for (Iterator<Room> room = rooms.values().iterator(); room.hasNext(); ) {
+            if (room.next().isIdle(now, idleNanos)) {
+                room.remove();
+                count++;
+            }
+        }
+        evicted += count;
+        checkRep();
+        return count;
+    }
+
+    /**
+     * Send a keep-alive to the idle event streams of every room.
+     */
+    void keepAlive() {
+        for (Room room : all())
+            room.lyricStreams().keepAlive();
+    }
+
+    /**
+     * @return the default room and then the rooms named by id, in order of id
+     */
+    synchronized List<Room> all() {
+        final List<Room> all = new ArrayList<>();
+        all.add(lobby);
+        all.addAll(rooms.values());
+        return all;
+    }
+
+    /**
+     * @return number of rooms named by id
+     */
+    synchronized int size() {
+        return rooms.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder report = new StringBuilder("rooms: " + rooms.size() + "/" + maxRooms
+                + "\ncreated: " + created + "\nevicted: " + evicted + "\nrejected: " + rejected);
+        for (Room room : all())
+            report.append('\n').append(room);
+        return report.toString();
+    }
+
+}
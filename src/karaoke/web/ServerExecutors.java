@@ -0,0 +1,119 @@
+package karaoke.web;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ServerExecutors makes the executors that run a WebServer's HTTP handlers.
+ */
+class ServerExecutors {
+
+    /**
+     * Kinds of executor for HTTP handlers.
+     */
+    static enum Mode {
+        /** a new virtual thread per request if the JVM has them (Java 21+), otherwise BOUNDED */
+        VIRTUAL,
+        /** a fixed pool of platform threads with a bounded queue, which pushes back on the
+            server's dispatcher thread when the queue is full */
+        BOUNDED,
+        /** an unbounded cached pool of platform threads */
+        CACHED,
+    }
+
+    /**
+     * Default executor mode, from system property karaoke.web.executor ("virtual", "bounded" or "cached"),
+     * or VIRTUAL if it is not set or names no mode.
+     */
+    static final Mode DEFAULT_MODE = modeNamed(System.getProperty("karaoke.web.executor", "virtual"));
+    /**
+     * Number of threads in a BOUNDED pool, from system property karaoke.web.threads,
+     * or twice the number of processors.
+     */
+    static final int BOUNDED_THREADS =
+            Integer.getInteger("karaoke.web.threads", 2 * Runtime.getRuntime().availableProcessors());
+    /**
+     * Number of requests waiting in a BOUNDED pool's queue, from system property karaoke.web.queue, or 1024.
+     */
+    static final int BOUNDED_QUEUE = Integer.getInteger("karaoke.web.queue", 1024);
+
+    /**
+     * Prevent instantiation.
+     */
+    private ServerExecutors() {}
+
+    /**
+     * @param name name of a mode in any case, such as "bounded"
+     * @return the mode named, or VIRTUAL if name names no mode
+     */
+    static Mode modeNamed(String name) {
+        for (Mode mode : Mode.values())
+            if (mode.name().equals(name.toUpperCase(Locale.ROOT)))
+                return mode;
+        return Mode.VIRTUAL;
+    }
+
+    /**
+     * Make an executor for HTTP handlers.
+     * @param mode kind of executor
+     * @return new executor of kind mode, or a BOUNDED executor if mode is VIRTUAL and the JVM has no
+     *          virtual threads
+     */
+    static ExecutorService create(Mode mode) {
+        switch (mode) {
+        case VIRTUAL:
+            return virtualThreadPerTask().orElseGet(ServerExecutors::bounded);
+        case BOUNDED:
+            return bounded();
+        case CACHED:
+            return Executors.newCachedThreadPool();
+        default:
+            throw new AssertionError(mode);
+        }
+    }
+
+    /**
+     * @return true iff this JVM can run each task in a new virtual thread
+     */
+    static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor(), found by reflection so this compiles for Java 8.
+     */
+    private static Optional<ExecutorService> virtualThreadPerTask() {
+        try {
+            return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return Optional.empty();
+        }
+    }
+
+    /*
+     * Fixed pool of daemon threads with a bounded queue; when the queue is full, the thread
+     * submitting the request runs it, which slows down accepting new requests.
+     */
+    private static ExecutorService bounded() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(BOUNDED_THREADS, BOUNDED_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(BOUNDED_QUEUE), runnable -> {
+                    final Thread thread = new Thread(runnable, "http handler " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+}
@@ -0,0 +1,88 @@
+package karaoke.web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StartupTimer is a thread-safe record of when a server reached each phase of its startup,
+ * such as listening for connections or adding its first song.
+ */
+class StartupTimer {
+
+    private final long origin;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    // Abstraction function:
+    //  AF(origin, phases) = a timer started at System.nanoTime() == origin, where phases maps
+    //      each phase reached to the System.nanoTime() it was first reached,
+    //      in the order the phases were reached
+    //
+    // Representation invariant:
+    //  phases is not null
+    //  every value of phases is >= origin, and values are in nondecreasing order
+    //
+    // Safety from rep exposure:
+    //  all fields are private
+    //  phases is never passed in or returned
+    //
+    // Thread safety argument:
+    //  origin is final and immutable
+    //  all accesses to phases are synchronized by this object's lock
+
+    /**
+     * Start a timer now.
+     */
+    StartupTimer() {
+        this.origin = System.nanoTime();
+        checkRep();
+    }
+
+    /*
+     * Check rep invariant.
+     */
+    private synchronized void checkRep() {
+        assert phases != null;
+        long previous = origin;
+        for (long time : phases.values()) {
+            assert time >= previous;
+            previous = time;
+        }
+    }
+
+    /**
+     * Record that a phase was reached now. Only the first time a phase is reached is recorded.
+     * @param phase name of phase
+     */
+    synchronized void reached(String phase) {
+        if (!phases.containsKey(phase))
+            phases.put(phase, System.nanoTime());
+        checkRep();
+    }
+
+    /**
+     * @param phase name of phase
+     * @return true iff phase has been reached
+     */
+    synchronized boolean hasReached(String phase) {
+        return phases.containsKey(phase);
+    }
+
+    /**
+     * @return one line per phase reached, in order, with the milliseconds from the start
+     *          of this timer to the phase and from the previous phase to the phase
+     */
+    @Override
+    public synchronized String toString() {
+        final StringBuilder report = new StringBuilder();
+        long previous = origin;
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            report.append(phase.getKey())
+                  .append(": ").append(TimeUnit.NANOSECONDS.toMillis(phase.getValue() - origin)).append(" ms")
+                  .append(" (+").append(TimeUnit.NANOSECONDS.toMillis(phase.getValue() - previous)).append(" ms)\n");
+            previous = phase.getValue();
+        }
+        return report.toString();
+    }
+
+}
@@ -3,45 +3,98 @@ package karaoke.web;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Scanner;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiUnavailableException;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 import edu.mit.eecs.parserlib.UnableToParseException;
-import karaoke.lyrics.Lyric;
 import karaoke.parser.ABCParser;
+import karaoke.parser.SongCache;
+import karaoke.playback.ClockSequencePlayer;
 import karaoke.playback.Jukebox;
-import karaoke.playback.Jukebox.Listener;
-import karaoke.playback.Jukebox.Signal;
-import karaoke.playback.Jukebox.Signal.Type;
+import karaoke.playback.MidiEngine;
+import karaoke.playback.TimelineCache;
 import karaoke.songs.ABC;
+import karaoke.web.FrameEncoder.Format;
 
 /**
- * HTTP web karaoke server.
+ * HTTP web karaoke server, with a default room at the top level of its paths and more rooms at
+ * /room/[id]/..., each playing its own jukebox.
  */
 public class WebServer {
     
+    private final StartupTimer startup = new StartupTimer();
     private final HttpServer server;
-    private final Jukebox jukebox = new Jukebox();
+    private final SongCache songCache = new SongCache();
+    private final Fanout fanout = new Fanout();
+    private final Rooms rooms = new Rooms(fanout);
+    private final Map<String, RoomHandler> routes = new LinkedHashMap<>();
+    private final ScheduledExecutorService keepAlives;
+    private final ServerExecutors.Mode executorMode;
+    private final ExecutorService executor;
+    private final int maxStreams;
+    private final Semaphore streams;
+    private final AtomicLong rejectedStreams = new AtomicLong();
+    private final Optional<NioLyricServer> nioStreams;
     
     private static final int SUCCESS_CODE = 200;
+    private static final int NOT_FOUND_CODE = 404;
+    private static final int SERVICE_UNAVAILABLE_CODE = 503;
+    
+    /**
+     * Default most lyric streams a server holds open at once, from system property
+     * karaoke.web.maxStreams, or 10000.
+     */
+    public static final int DEFAULT_MAX_STREAMS = Integer.getInteger("karaoke.web.maxStreams", 10_000);
+    
+    /**
+     * Seconds between keep-alives sent to idle /events streams, from system property
+     * karaoke.sse.keepAlive, or 15.
+     */
+    public static final int KEEP_ALIVE_SECONDS = Integer.getInteger("karaoke.sse.keepAlive", 15);
+    
+    /**
+     * Port of the optional NIO front end that also serves lyric streams, from system property
+     * karaoke.nio.port, or -1 for none.
+     */
+    public static final int NIO_PORT = Integer.getInteger("karaoke.nio.port", -1);
     
     // Abstraction function:
-    //  AF(server, jukebox) =
-    //      a web server that plays songs from a jukebox of ABC songs
+    //  AF(startup, server, songCache, fanout, rooms, routes, keepAlives, executorMode, executor,
+    //     maxStreams, streams, rejectedStreams, nioStreams) =
+    //      a web server that plays songs from the jukebox of each of its rooms,
+    //      compiling songs from abc files through songCache,
+    //      and streaming lyrics to the clients of each room's lyric streams through fanout,
+    //      handling the requests to a room named in routes with the handler they map to,
+    //      keeping idle event streams open and evicting idle rooms with keepAlives,
+    //      handling requests on executor of kind executorMode,
+    //      with room for streams.availablePermits() more of at most maxStreams open lyric streams,
+    //      having turned away rejectedStreams streams because it was full,
+    //      and also serving the default room's lyric streams from selector threads through nioStreams,
+    //      if present,
+    //      where startup times the phases of starting the server up to playing its first song
     //
     // Representation invariant:
     //  fields are not null
+    //  0 <= streams.availablePermits() <= maxStreams
     //
     // Safety from rep exposure:
     //  No fields are passed in as parameters or returned by any methods
@@ -49,29 +102,113 @@ public class WebServer {
     //
     // Thread safety argument:
     //  Each exchange:HttpExchange is confined to a single thread
-    //  jukebox:Jukebox is threadsafe
+    //  songCache:SongCache is threadsafe
+    //  fanout:Fanout is threadsafe, and each stream's response body is only written by fanout
+    //  rooms:Rooms is threadsafe, and so are the jukebox and lyric streams of each room
+    //  routes is only mutated in the constructor, before the server starts handling requests
+    //  keepAlives:ScheduledExecutorService is threadsafe, and its thread only uses rooms
+    //  executor:ExecutorService, streams:Semaphore and rejectedStreams:AtomicLong are threadsafe
+    //  nioStreams:NioLyricServer is threadsafe, and its threads only use the default room's lyric streams
+    //  executorMode and maxStreams are final and immutable
+    //  startup:StartupTimer is threadsafe
+    //  the grammar compiler thread only uses ABCParser, which is threadsafe, and startup
+    //  the midi opener thread only uses MidiEngine, which is threadsafe, and startup
     //  server:HttpServer is confined and not used in any handle methods
     //  
     
     /**
-     * Make a new karaoke server that listens for connections on port.
+     * Make a new karaoke server that listens for connections on port,
+     * holding open at most DEFAULT_MAX_STREAMS lyric streams.
      * 
      * @param port server port number
      * @throws IOException if an error occurs starting the server
      */
     public WebServer(int port) throws IOException {
+        this(port, DEFAULT_MAX_STREAMS);
+    }
+    
+    /**
+     * Make a new karaoke server that listens for connections on port.
+     * Requests are handled by virtual threads if the JVM has them, otherwise by a bounded thread pool,
+     * or as set by system property karaoke.web.executor (VIRTUAL, BOUNDED or CACHED in any case).
+     * 
+     * @param port server port number
+     * @param maxStreams most lyric streams (/textStream, /htmlStream, /htmlWaitReload, /events and
+     *          /timelineEvents) to hold open
+     *          at once, > 0; more stream requests are turned away with 503 Service Unavailable
+     * @throws IOException if an error occurs starting the server
+     */
+    public WebServer(int port, int maxStreams) throws IOException {
+        this.executorMode = ServerExecutors.DEFAULT_MODE;
+        this.maxStreams = maxStreams;
+        this.streams = new Semaphore(maxStreams);
+        
+        // compile the parser grammar in the background while the server starts,
+        // so the first song added doesn't have to wait for it
+        final Thread grammarCompiler = new Thread(() -> {
+            ABCParser.compileGrammar();
+            startup.reached("grammar compiled");
+        }, "grammar compiler");
+        grammarCompiler.setDaemon(true);
+        grammarCompiler.start();
+        
+        // likewise open the MIDI synthesizer and sequencer, so the first song played doesn't wait for them
+        final Thread midiOpener = new Thread(() -> {
+            try {
+                MidiEngine.shared();
+                startup.reached("midi engine opened");
+            } catch (MidiUnavailableException e) {
+                // songs will try to open it again when they are played
+            }
+        }, "midi opener");
+        midiOpener.setDaemon(true);
+        midiOpener.start();
+        
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
         
-        // handle concurrent requests with multiple threads
-        server.setExecutor(Executors.newCachedThreadPool());
+        // handle concurrent requests with multiple threads; lyric streams don't hold a thread
+        // while they are open, since the fanout's writer threads write to them
+        this.executor = ServerExecutors.create(executorMode);
+        server.setExecutor(executor);
 
-        // register handlers
-        server.createContext("/addSong", this::handleAddSong);
-        server.createContext("/play", this::handlePlay);
-        server.createContext("/textStream", this::handleTextStream);
-        server.createContext("/htmlStream", this::handleHtmlStream);
-        server.createContext("/htmlWaitReload", this::handleHtmlWaitReload);
+        // in each room, one listener encodes each signal for every lyric stream;
+        // this thread keeps every room's idle event streams open, and evicts rooms nobody uses
+        this.keepAlives = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "event keep-alives");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepAlives.scheduleAtFixedRate(rooms::keepAlive, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        keepAlives.scheduleAtFixedRate(rooms::evictIdle, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
         
+        // the NIO front end shares the default room's listener, so each signal is still encoded once for everyone
+        this.nioStreams = NIO_PORT >= 0
+                ? Optional.of(new NioLyricServer(rooms.lobby().lyricStreams(), NIO_PORT,
+                                                 NioLyricServer.DEFAULT_SELECTORS))
+                : Optional.empty();
+
+        // register handlers, for the default room at the top level and for every other room under /room/[id]
+        routes.put("addSong", this::handleAddSong);
+        routes.put("play", this::handlePlay);
+        routes.put("autoAdvance", this::handleAutoAdvance);
+        routes.put("output", this::handleOutput);
+        routes.put("mix", this::handleMix);
+        routes.put("tempo", this::handleTempo);
+        routes.put("textStream", this::handleTextStream);
+        routes.put("htmlStream", this::handleHtmlStream);
+        routes.put("htmlWaitReload", this::handleHtmlWaitReload);
+        routes.put("events", this::handleEvents);
+        routes.put("timelineEvents", this::handleTimelineEvents);
+        routes.put("timeline", this::handleTimeline);
+        for (Map.Entry<String, RoomHandler> route : routes.entrySet()) {
+            final RoomHandler handler = route.getValue();
+            server.createContext("/" + route.getKey(),
+                    exchange -> handler.handle(exchange, rooms.lobby(), rest(exchange)));
+        }
+        server.createContext("/room/", this::handleRoom);
+        server.createContext("/stats", this::handleStats);
+        
+        startup.reached("server created");
         checkRep();
     }
 
@@ -79,29 +216,80 @@ public class WebServer {
      * Checks to make sure the rep invariants are satisfied
      */
     private void checkRep() {
+        assert startup != null;
         assert server != null;
-        assert jukebox != null;
+        assert songCache != null;
+        assert fanout != null;
+        assert rooms != null;
+        assert routes != null;
+        assert keepAlives != null;
+        assert executorMode != null;
+        assert executor != null;
+        assert streams != null;
+        assert rejectedStreams != null;
+        assert nioStreams != null;
+        assert 0 <= streams.availablePermits() && streams.availablePermits() <= maxStreams;
     }
 
+    /**
+     * A handler of requests to a room.
+     */
+    @FunctionalInterface
+    private interface RoomHandler {
+        
+        /**
+         * Handle a request to a room.
+         * @param exchange http exchange currently in progress
+         * @param room room the request is for
+         * @param rest rest of the request path after the handler's name and a slash, or "" if none
+         * @throws IOException thrown if there is a network problem
+         */
+        public void handle(HttpExchange exchange, Room room, String rest) throws IOException;
+        
+    }
+    
+    /**
+     * HTTP handler that finds or makes the room named by the request path /room/[id]/[handler][/rest],
+     * and passes the request on to the room handler named in routes.
+     * Requests for unknown handlers or invalid room names are answered 404 Not Found, and requests
+     * for a new room when there are already as many as allowed are answered 503 Service Unavailable.
+     * 
+     * @param exchange http exchange currently in progress
+     * @throws IOException thrown if there is a network problem
+     */
+    private void handleRoom(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String base = exchange.getHttpContext().getPath();
+        final String[] parts = path.substring(base.length()).split("/", 3);
+        if (parts.length < 2 || !Rooms.isId(parts[0]) || !routes.containsKey(parts[1])) {
+            respond(exchange, NOT_FOUND_CODE, path + " not found\n");
+            return;
+        }
+        final Optional<Room> room = rooms.get(parts[0]);
+        if (!room.isPresent()) {
+            exchange.getResponseHeaders().add("Retry-After", "10");
+            respond(exchange, SERVICE_UNAVAILABLE_CODE, "Too many rooms, try again later\n");
+            return;
+        }
+        routes.get(parts[1]).handle(exchange, room.get(), parts.length > 2 ? parts[2] : "");
+    }
+    
     /**
      * HTTP handler that adds a song to our current list of songs to play
      * 
      * @param exchange http exchange currently in progress
+     * @param room room whose jukebox to add to
+     * @param abcFile name of the song file in sample-abc
      * @throws IOException thrown if there is a network problem 
      */
-    private void handleAddSong(HttpExchange exchange) throws IOException {
+    private void handleAddSong(HttpExchange exchange, Room room, String abcFile) throws IOException {
         exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
         PrintWriter out = getPrintWriter(exchange);
         
-        final String path = exchange.getRequestURI().getPath();
-        final String base = exchange.getHttpContext().getPath();
-        final String abcFile = path.length() > base.length() ? path.substring(base.length() + 1) : "";
-        
-        try (
-            Scanner scan = new Scanner(new File("sample-abc/" + abcFile))
-        ) {
-            ABC song = ABCParser.parse(scan.useDelimiter("\\A").next());
-            int position = jukebox.addSong(song);
+        try {
+            ABC song = songCache.get(new File("sample-abc/" + abcFile));
+            int position = room.jukebox().addSong(song);
+            startup.reached("first song added");
             if (position == 0)
                 out.println("Next song is " + song.getInfo());
             else
@@ -114,21 +302,72 @@ public class WebServer {
         exchange.close();
     }
     
+    /**
+     * HTTP handler that reports server statistics, such as startup times, song cache hits and misses,
+     * and how long songs take to start playing
+     * 
+     * @param exchange http exchange currently in progress
+     * @throws IOException thrown if there is a network problem
+     */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        PrintWriter out = getPrintWriter(exchange);
+        
+        out.println("[startup]");
+        out.print(startup);
+        out.println();
+        out.println("[song cache]");
+        out.println(songCache);
+        out.println();
+        out.println("[timeline cache]");
+        out.println(TimelineCache.shared());
+        out.println();
+        out.println("[rooms]");
+        out.println(rooms);
+        out.println();
+        out.println("[midi]");
+        out.println(MidiEngine.sharedIfOpen().map(MidiEngine::toString).orElse("not open"));
+        out.println();
+        out.println("[lyric clock]");
+        out.println("jitter: " + ClockSequencePlayer.jitter());
+        out.println();
+        out.println("[fanout]");
+        out.println(rooms.lobby().lyricStreams());
+        out.println(fanout);
+        out.println();
+        out.println("[connections]");
+        out.println("executor: " + executorMode
+                + (executorMode == ServerExecutors.Mode.VIRTUAL && !ServerExecutors.hasVirtualThreads()
+                   ? " (no virtual threads, using " + ServerExecutors.Mode.BOUNDED + ")" : ""));
+        out.println("open streams: " + (maxStreams - streams.availablePermits()) + "/" + maxStreams);
+        out.println("rejected streams: " + rejectedStreams.get());
+        out.println("threads: " + Thread.activeCount());
+        out.println();
+        out.println("[nio]");
+        out.println(nioStreams.map(nio -> "port: " + nio.port() + "\n" + nio).orElse("not running"));
+        exchange.close();
+    }
+    
     /**
      * HTTP handler that plays the next song from our current list of songs to play
      * 
      * @param exchange http exchange currently in progress
+     * @param room room whose jukebox to play
+     * @param rest ignored
      * @throws IOException thrown if there is a network problem
      */
-    private void handlePlay(HttpExchange exchange) throws IOException {
+    private void handlePlay(HttpExchange exchange, Room room, String rest) throws IOException {
         exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
         PrintWriter out = getPrintWriter(exchange);
         
-        boolean success = jukebox.play();
-        Optional<ABC> song = jukebox.getCurrentSong();
+        boolean success = room.jukebox().play();
+        if (success)
+            startup.reached("first song playing");
+        Jukebox.State state = room.jukebox().getState();
+        Optional<ABC> song = state.getCurrentSong();
         if (success)
             out.println("Now playing " + song.get().getInfo());
-        else if (jukebox.isPlaying())
+        else if (state.isPlaying())
             out.println("Jukebox is already playing " + song.get().getInfo());
         else
             out.println("Jukebox is empty");
@@ -136,159 +375,310 @@ public class WebServer {
     }
     
     /**
-     * This handler sends a plain text stream to the web browser,
-     * one line at a time, pausing briefly between each line.
-     * Returns after the entire stream has been sent.
+     * HTTP handler that turns auto-advance on with /autoAdvance/on or off with /autoAdvance/off,
+     * and reports whether it is on and the gaps between songs it has advanced between
      * 
-     * @param exchange request/reply object
-     * @throws IOException if network problem
+     * @param exchange http exchange currently in progress
+     * @param room room whose jukebox to set
+     * @param setting "on", "off", or anything else to leave auto-advance as it is
+     * @throws IOException thrown if there is a network problem
      */
-    private void handleTextStream(HttpExchange exchange) throws IOException {
+    private void handleAutoAdvance(HttpExchange exchange, Room room, String setting) throws IOException {
         exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
         PrintWriter out = getPrintWriter(exchange);
         
-        final String path = exchange.getRequestURI().getPath();
-        final String base = exchange.getHttpContext().getPath();
-        final String voice = path.length() > base.length() ? path.substring(base.length() + 1) : "";
+        if (setting.equals("on") || setting.equals("off"))
+            room.jukebox().setAutoAdvance(setting.equals("on"));
+        out.println("Auto-advance is " + (room.jukebox().isAutoAdvance() ? "on" : "off")
+                + ", " + room.jukebox().getTransitions());
+        exchange.close();
+    }
+    
+    /**
+     * HTTP handler that sets where songs play from the next song loaded on, to the MIDI synthesizer with
+     * /output/midi or to a lyric clock that needs no sound hardware with /output/clock, and reports it
+     * 
+     * @param exchange http exchange currently in progress
+     * @param room room whose jukebox to set
+     * @param setting "midi", "clock", or anything else to leave the output as it is
+     * @throws IOException thrown if there is a network problem
+     */
+    private void handleOutput(HttpExchange exchange, Room room, String setting) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        PrintWriter out = getPrintWriter(exchange);
         
-        Optional<ABC> next = jukebox.getCurrentSong();
-        if (next.isPresent())
-            out.println("Next song is " + next.get().getInfo());
-        else
-            out.println("Jukebox is empty");
+        for (Jukebox.Output output : Jukebox.Output.values())
+            if (setting.equalsIgnoreCase(output.name()))
+                room.jukebox().setOutput(output);
+        out.println("Output is " + room.jukebox().getOutput().name().toLowerCase(Locale.ROOT));
+        exchange.close();
+    }
+    
+    /**
+     * HTTP handler that mutes, unmutes, solos or unsolos a voice part at once, in the song playing and
+     * the songs after it, with /mix/mute/[voice], /mix/unmute/[voice], /mix/solo/[voice] or
+     * /mix/unsolo/[voice], and reports which voice parts sound
+     * 
+     * @param exchange http exchange currently in progress
+     * @param room room whose jukebox to mix
+     * @param setting "[mute, unmute, solo or unsolo]/[voice]", or anything else to leave the mix as it is
+     * @throws IOException thrown if there is a network problem
+     */
+    private void handleMix(HttpExchange exchange, Room room, String setting) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        PrintWriter out = getPrintWriter(exchange);
         
-        jukebox.addListener(new Listener() {
-            @Override
-            public void signalReceived(Signal signal) {
-                try {
-                    Optional<ABC> song = jukebox.getCurrentSong();
-                    switch(signal.getType()) {
-                    case SONG_START:
-                        out.println("Now playing " + song.get().getInfo());
-                        out.println("--------------------");
-                        break;
-                    case SONG_END:
-                        out.println("--------------------");
-                        break;
-                    case SONG_CHANGE:
-                        if (song.isPresent())
-                            out.println("Next song is " + song.get().getInfo());
-                        else
-                            out.println("Jukebox is empty");
-                        break;
-                    case LYRIC:
-                        Lyric lyric = signal.getLyric();
-                        if (!voice.equals("") && song.get().getVoices().size() > 1 && !lyric.getVoice().equals(voice))
-                            return;
-                        out.println(lyric.toPlainText());
-                        break;
-                    default:
-                        throw new RuntimeException();
-                    }
-                } catch (Exception e) {
-                    exchange.close();
-                    jukebox.removeListener(this);
-                }
+        final String[] change = setting.split("/", 2);
+        if (change.length == 2 && !change[1].isEmpty()) {
+            switch (change[0]) {
+            case "mute":
+                room.jukebox().setMuted(change[1], true);
+                break;
+            case "unmute":
+                room.jukebox().setMuted(change[1], false);
+                break;
+            case "solo":
+                room.jukebox().setSoloed(change[1], true);
+                break;
+            case "unsolo":
+                room.jukebox().setSoloed(change[1], false);
+                break;
+            default:
+                break;
             }
-        });
+        }
+        out.println("Mix is " + room.jukebox().getMix());
+        exchange.close();
     }
     
     /**
-     * Sends an HTML stream to the web browser
+     * HTTP handler that sets how fast songs play at once, in the song playing and the songs after it,
+     * with /tempo/[factor], such as /tempo/0.75 to practice at three quarters of the written tempo,
+     * and reports it
      * 
-     * @param exchange request/reply object
-     * @throws IOException if network problem
-     * @throws InvalidMidiDataException 
-     * @throws MidiUnavailableException 
+     * @param exchange http exchange currently in progress
+     * @param room room whose jukebox to set
+     * @param setting tempo factor from Jukebox.MIN_TEMPO_FACTOR to Jukebox.MAX_TEMPO_FACTOR, or anything
+     *          else to leave the tempo as it is
+     * @throws IOException thrown if there is a network problem
      */
-    private void handleHtmlStream(HttpExchange exchange) throws IOException {
-        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+    private void handleTempo(HttpExchange exchange, Room room, String setting) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
         PrintWriter out = getPrintWriter(exchange);
         
-        final String path = exchange.getRequestURI().getPath();
-        final String base = exchange.getHttpContext().getPath();
-        final String voice = path.length() > base.length() ? path.substring(base.length() + 1) : "";
-        
-        Optional<ABC> next = jukebox.getCurrentSong();
-        if (next.isPresent())
-            out.println("Next song is " + next.get().getInfo() + "<br>");
-        else
-            out.println("Jukebox is empty<br>");
-        
-        jukebox.addListener(new Listener() {
-            @Override
-            public void signalReceived(Signal signal) {
-                try {
-                    Optional<ABC> song = jukebox.getCurrentSong();
-                    switch(signal.getType()) {
-                    case SONG_START:
-                        out.println("Now playing " + song.get().getInfo() + "<br>");
-                        out.println("--------------------<br>");
-                        break;
-                    case SONG_END:
-                        out.println("--------------------<br>");
-                        break;
-                    case SONG_CHANGE:
-                        if (song.isPresent())
-                            out.println("Next song is " + song.get().getInfo() + "<br>");
-                        else
-                            out.println("Jukebox is empty<br>");
-                        break;
-                    case LYRIC:
-                        Lyric lyric = signal.getLyric();
-                        if (!voice.equals("") && song.get().getVoices().size() > 1 && !lyric.getVoice().equals(voice))
-                            return;
-                        out.println(lyric.toHtmlText());
-                        break;
-                    default:
-                        throw new RuntimeException();
-                    }
-                    // send some Javascript to browser that makes it scroll down to the bottom of the page,
-                    // so that the last line sent is always in view
-                    out.println("<script>document.body.scrollIntoView(false)</script>");
-                } catch (Exception e) {
-                    exchange.close();
-                    jukebox.removeListener(this);
-                }
+        if (!setting.isEmpty()) {
+            try {
+                room.jukebox().setTempoFactor(Double.parseDouble(setting));
+            } catch (IllegalArgumentException e) {
+                // not a number, or out of range: leave the tempo as it is
             }
-        });
+        }
+        out.println("Tempo is " + room.jukebox().getTempoFactor() + "x");
+        exchange.close();
+    }
+    
+    /**
+     * This handler sends a plain text stream to the web browser, one line at a time.
+     * Returns as soon as the stream has started; the fanout's writer threads send the rest of it.
+     * 
+     * @param exchange request/reply object
+     * @param room room whose lyrics to stream
+     * @param voice voice whose lyrics to stream, or "" for every voice
+     * @throws IOException if network problem
+     */
+    private void handleTextStream(HttpExchange exchange, Room room, String voice) throws IOException {
+        handleStream(exchange, room, voice, "text/plain; charset=utf-8", Format.TEXT, OptionalLong.empty());
     }
     
     /**
-     * This handler waits for an event to occur in the server
+     * Sends an HTML stream to the web browser
+     * 
+     * @param exchange request/reply object
+     * @param room room whose lyrics to stream
+     * @param voice voice whose lyrics to stream, or "" for every voice
+     * @throws IOException if network problem
+     */
+    private void handleHtmlStream(HttpExchange exchange, Room room, String voice) throws IOException {
+        handleStream(exchange, room, voice, "text/html; charset=utf-8", Format.HTML, OptionalLong.empty());
+    }
+    
+    /**
+     * This handler is a long poll: it waits for an event to occur in the server
      * before sending a complete HTML page to the web browser.
-     * The page ends with a Javascript command that immediately starts
-     * reloading the page at the same URL, which causes this handler to be
+     * The page ends with a Javascript command that immediately loads the page again
+     * with ?since=[sequence number of the last signal the page shows], which causes this handler to be
      * run, wait for the next event, and send an updated HTML page.
-     * In this simple example, the "server event" is just a brief timeout, but it
-     * could synchronize with another thread instead.
+     * The "server event" is the next lyric sung by the jukebox after since; if the browser has
+     * missed lyrics since then, the page with all of them is sent at once.
+     * Waiting requests hold no thread, and their pages are written by the fanout's writer threads.
      * 
      * @param exchange request/reply object
+     * @param room room whose lyrics to show
+     * @param voice voice whose lyrics to show, or "" for every voice
      * @throws IOException if network problem
      */
-    private void handleHtmlWaitReload(HttpExchange exchange) throws IOException {
+    private void handleHtmlWaitReload(HttpExchange exchange, Room room, String voice) throws IOException {
+        OptionalLong since = OptionalLong.empty();
+        final String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("since=")) {
+            try {
+                since = OptionalLong.of(Long.parseLong(query.substring("since=".length())));
+            } catch (NumberFormatException e) {
+                // not a sequence number this server sent, so wait for the next lyric
+            }
+        }
+        
+        // the page is complete when it is sent, so browsers display it without padding
+        final Optional<OutputStream> stream = openStream(exchange, "text/html; charset=utf-8", Frame.EMPTY);
+        if (!stream.isPresent())
+            return;
+        room.lyricStreams().poll(stream.get(), voice, since, () -> {
+            exchange.close();
+            streams.release();
+        });
+    }
+    
+    /**
+     * Sends a Server-Sent Events stream to the web browser, one event per jukebox signal,
+     * each with an id one more than the last. A browser that reconnects with a Last-Event-ID header
+     * is first sent the events it missed, if they are still kept for replay.
+     * Idle streams are sent a keep-alive comment every KEEP_ALIVE_SECONDS.
+     * 
+     * @param exchange request/reply object
+     * @param room room whose signals to stream
+     * @param voice voice whose lyrics to stream, or "" for every voice
+     * @throws IOException if network problem
+     */
+    private void handleEvents(HttpExchange exchange, Room room, String voice) throws IOException {
+        OptionalLong lastEventId = OptionalLong.empty();
+        final String header = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (header != null) {
+            try {
+                lastEventId = OptionalLong.of(Long.parseLong(header.trim()));
+            } catch (NumberFormatException e) {
+                // not an id this server sent, so start the stream afresh
+            }
+        }
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        handleStream(exchange, room, voice, "text/event-stream; charset=utf-8", Format.EVENTS, lastEventId);
+    }
+    
+    /**
+     * Sends the HTML page of a browser that highlights lyrics itself, following the Server-Sent Events
+     * stream at /timelineEvents with the same voice.
+     * 
+     * @param exchange request/reply object
+     * @param room ignored, since the page follows the stream of the room in its own path
+     * @param voice ignored, since the page follows the stream of the voice in its own path
+     * @throws IOException if network problem
+     */
+    private void handleTimeline(HttpExchange exchange, Room room, String voice) throws IOException {
         exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
-        PrintWriter out = getPrintWriter(exchange);
+        exchange.sendResponseHeaders(SUCCESS_CODE, FrameEncoder.TIMELINE_PAGE.length());
+        FrameEncoder.TIMELINE_PAGE.writeTo(exchange.getResponseBody());
+        exchange.close();
+    }
+    
+    /**
+     * Sends a Server-Sent Events stream with the complete lyric timeline of each song when it starts,
+     * and how long it has been playing, so the browser highlights each lyric on its own clock.
+     * Lyrics themselves are not sent; only the song-end and song-change events that follow.
+     * A browser that connects while a song is playing is sent its timeline at once.
+     * 
+     * @param exchange request/reply object
+     * @param room room whose timelines to stream
+     * @param voice voice whose lyrics to include, or "" for every voice
+     * @throws IOException if network problem
+     */
+    private void handleTimelineEvents(HttpExchange exchange, Room room, String voice) throws IOException {
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        handleStream(exchange, room, voice, "text/event-stream; charset=utf-8", Format.TIMELINE,
+                OptionalLong.empty());
+    }
+    
+    /**
+     * Start a lyric stream of a voice, or of every voice, and subscribe it to the signals of a room's jukebox.
+     * 
+     * @param exchange request/reply object
+     * @param room room whose signals to stream
+     * @param voice voice whose lyrics to stream, or "" for every voice
+     * @param contentType content type of the stream
+     * @param format format of the stream
+     * @param lastEventId id of the last event received by an EVENTS client that is reconnecting, if any
+     * @throws IOException if network problem
+     */
+    private void handleStream(HttpExchange exchange, Room room, String voice, String contentType, Format format,
+            OptionalLong lastEventId) throws IOException {
+        final Optional<OutputStream> stream = openStream(exchange, contentType,
+                format == Format.EVENTS || format == Format.TIMELINE ? FrameEncoder.EVENTS_PADDING
+                                                                     : FrameEncoder.PADDING);
+        if (!stream.isPresent())
+            return;
         
+        // frames are queued for the client and written by the fanout's writer threads
+        room.lyricStreams().subscribe(stream.get(), format, voice, lastEventId, () -> {
+            exchange.close();
+            streams.release();
+        });
+    }
+    
+    /**
+     * @param exchange request to a handler of the default room
+     * @return the rest of the request path after the handler's path and a slash, or "" if none
+     */
+    private static String rest(HttpExchange exchange) {
         final String path = exchange.getRequestURI().getPath();
         final String base = exchange.getHttpContext().getPath();
-        final String voice = path.length() > base.length() ? path.substring(base.length() + 1) : "";
-        
-        jukebox.addListener(new Listener() {
-            @Override
-            public void signalReceived(Signal signal) {
-                if (signal.getType() == Type.LYRIC) {
-                    ABC song = jukebox.getCurrentSong().get();
-                    Lyric lyric = signal.getLyric();
-                    if (!voice.equals("") && song.getVoices().size() > 1 && !lyric.getVoice().equals(voice))
-                        return;
-                    out.println(lyric.toHtmlText());
-                    out.println("<script>location.reload()</script>");
-                    exchange.close();
-                    jukebox.removeListener(this);
-                }
-            }
-        });
+        return path.length() > base.length() ? path.substring(base.length() + 1) : "";
+    }
+    
+    /**
+     * Start a lyric stream if this server has room for another one, or else
+     * turn the request away with 503 Service Unavailable and close the exchange.
+     * A stream that is started must release its room in streams when it closes.
+     * 
+     * @param exchange http exchange currently in progress
+     * @param contentType content type of the stream
+     * @param padding frame to start the stream with, enough for browsers to start displaying it
+     * @return the response body of exchange, already sent padding, if the stream started, otherwise empty
+     * @throws IOException if network problem
+     */
+    private Optional<OutputStream> openStream(HttpExchange exchange, String contentType, Frame padding)
+            throws IOException {
+        if (!streams.tryAcquire()) {
+            rejectedStreams.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", "10");
+            respond(exchange, SERVICE_UNAVAILABLE_CODE, "Too many listeners, try again later\n");
+            return Optional.empty();
+        }
+        try {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+            final int lengthNotKnownYet = 0;
+            exchange.sendResponseHeaders(SUCCESS_CODE, lengthNotKnownYet);
+            final OutputStream out = exchange.getResponseBody();
+            padding.writeTo(out);
+            out.flush();
+            return Optional.of(out);
+        } catch (IOException | RuntimeException e) {
+            streams.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Send a complete plain text response and close the exchange.
+     * 
+     * @param exchange http exchange currently in progress
+     * @param code HTTP status code
+     * @param text body of the response
+     * @throws IOException if network problem
+     */
+    private static void respond(HttpExchange exchange, int code, String text) throws IOException {
+        final byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
     }
     
     /**
@@ -322,6 +712,20 @@ public class WebServer {
         return out;
     }
     
+    /**
+     * @return the lyric streams of this server's default room, for load tests in this package to send signals to
+     */
+    LyricStreams lyricStreams() {
+        return rooms.lobby().lyricStreams();
+    }
+    
+    /**
+     * @return the rooms of this server, for tests in this package
+     */
+    Rooms rooms() {
+        return rooms;
+    }
+    
     /** 
      * Gets the port on which the server is listening for connections
      * 
@@ -338,7 +742,20 @@ public class WebServer {
     public void start() {
         System.err.println("Server will listen on " + server.getAddress());
         server.start();
+        nioStreams.ifPresent(NioLyricServer::start);
+        startup.reached("listening");
+        checkRep();
+    }
+    
+    /**
+     * Reports how long this server took to reach each phase of starting up, from creating
+     * the server and compiling the parser grammar to adding and playing its first song.
+     * 
+     * @return one line per phase reached so far, with milliseconds since this server was created
+     */
+    public String startupReport() {
         checkRep();
+        return startup.toString();
     }
     
     /** 
@@ -347,6 +764,10 @@ public class WebServer {
     public void stop() {
         System.err.println("Server will stop");
         server.stop(0);
+        nioStreams.ifPresent(NioLyricServer::stop);
+        fanout.shutdown();
+        executor.shutdownNow();
+        keepAlives.shutdownNow();
         checkRep();
     }
     
@@ -0,0 +1,222 @@
+package karaoke.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.SequencePlayer;
+
+/**
+ * Test MusicTraversal and the operations on Concat, Together and Sequence built on it,
+ * including stress tests on synthetic scores of 1M notes.
+ */
+public class MusicTraversalTest {
+
+    /* Testing strategy
+     *  input:
+     *      tree shape: leaf, left-deep Concat chain, right-deep Concat chain,
+     *                  deeply nested Together, Sequence of deep chains
+     *      number of notes: 1, few, 1M
+     *      notes with and without lyrics, rests
+     *
+     *  output:
+     *      walk order and beats, duration(), load(), augment(),
+     *      equals() and hashCode() of equal and unequal trees, toString()
+     *
+     * Cover all parts
+     */
+
+    private static final int MILLION = 1_000_000;
+
+    private static final Music C = new Note(1, new Pitch('C'), Instrument.PIANO, Optional.empty());
+    private static final Music D = new Note(1./2, new Pitch('D'), Instrument.PIANO, Optional.empty());
+    private static final Music E = new Note(1, new Pitch('E'), Instrument.PIANO, Optional.of(new Lyric("e", "1")));
+    private static final Music Z = new Rest(1./2);
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* SequencePlayer that counts scheduled notes and lyric events, and remembers the last note's start */
+    private static class CountingPlayer implements SequencePlayer {
+        private int notes = 0;
+        private int events = 0;
+        private double lastStart = -1;
+
+        @Override
+        public void addNote(Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+            notes++;
+            lastStart = Math.max(lastStart, startBeat);
+        }
+
+        @Override
+        public void addEvent(double atBeat, Consumer<Double> callback) {
+            events++;
+        }
+
+        @Override public CompletableFuture<Void> play() { return CompletableFuture.completedFuture(null); }
+    }
+
+    /* helper to make a left-deep chain of n notes, cycling through C, D, E, Z, like the parser builds */
+    private static Music leftDeep(int n) {
+        final Music[] leaves = { C, D, E, Z };
+        Music music = leaves[0];
+        for (int i = 1; i < n; i++)
+            music = new Concat(music, leaves[i % leaves.length]);
+        return music;
+    }
+
+    /* helper to make a right-deep chain of n notes, cycling through C, D, E, Z */
+    private static Music rightDeep(int n) {
+        final Music[] leaves = { C, D, E, Z };
+        Music music = leaves[(n - 1) % leaves.length];
+        for (int i = n - 2; i >= 0; i--)
+            music = new Concat(leaves[i % leaves.length], music);
+        return music;
+    }
+
+    /* helper to make n notes played together, nested n deep */
+    private static Music deepChord(int n) {
+        Music music = C;
+        for (int i = 1; i < n; i++)
+            music = new Together(music, i % 2 == 0 ? C : E);
+        return music;
+    }
+
+    // input: few notes; output: walk order and beats
+    @Test
+    public void testWalkOrder() {
+        Music music = new Sequence(Arrays.asList(new Concat(C, D), new Together(E, Z), C));
+        List<String> calls = new ArrayList<>();
+        MusicTraversal.walk(music, 10, new MusicTraversal.Walker() {
+            @Override public void rest(Rest rest, double beat) { calls.add("rest " + beat); }
+            @Override public void note(Note note, double beat) { calls.add(note.pitch() + " " + beat); }
+            @Override public void enter(Music composite, double beat) { calls.add("enter " + beat); }
+            @Override public void between(Music composite, int child) { calls.add("between " + child); }
+            @Override public void exit(Music composite, double beat) { calls.add("exit " + beat); }
+        });
+
+        assertEquals(Arrays.asList("enter 10.0",
+                "enter 10.0", "C 10.0", "between 1", "D 11.0", "exit 10.0", "between 1",
+                "enter 11.5", "E 11.5", "between 1", "rest 11.5", "exit 11.5", "between 2",
+                "C 12.5", "exit 10.0"), calls);
+    }
+
+    // input: leaf; output: toString, augment, equals
+    @Test
+    public void testLeaf() {
+        assertEquals(C.toString(), MusicTraversal.toString(C));
+        assertEquals(C.augment(3), MusicTraversal.mapLeaves(C, leaf -> leaf.augment(3)));
+        assertEquals(true, MusicTraversal.equal(Z, new Rest(1./2)));
+        assertEquals(false, MusicTraversal.equal(C, D));
+    }
+
+    // input: few notes; output: toString matches the recursive definitions
+    @Test
+    public void testToStringFewNotes() {
+        assertEquals(C + " " + D, new Concat(C, D).toString());
+        assertEquals("[" + C + E + "]", new Together(C, E).toString());
+        assertEquals(C + " [" + D + Z + "] " + E, new Sequence(Arrays.asList(C, new Together(D, Z), E)).toString());
+    }
+
+    // input: 1M notes, left-deep chain; output: duration, load, augment, equals, hashCode, toString
+    @Test
+    public void testLeftDeepMillionNotes() {
+        Music music = leftDeep(MILLION);
+
+        assertEquals(MILLION * 3. / 4, music.duration(), 0);
+
+        CountingPlayer player = new CountingPlayer();
+        music.load(player, 0, lyric -> {});
+        assertEquals(MILLION / 4 * 3, player.notes);
+        assertEquals(MILLION / 4, player.events);
+        assertEquals(MILLION * 3. / 4 - 1./2 - 1, player.lastStart, 0);
+
+        Music augmented = music.augment(2);
+        assertEquals(MILLION * 3. / 2, augmented.duration(), 0);
+
+        Music same = leftDeep(MILLION);
+        assertEquals(same, music);
+        assertEquals(same.hashCode(), music.hashCode());
+        assertNotEquals(augmented, music);
+        assertNotEquals(leftDeep(MILLION - 1), music);
+
+        StringBuilder expected = new StringBuilder(C.toString());
+        for (int i = 1; i < MILLION; i++)
+            expected.append(' ').append(new Music[] { C, D, E, Z }[i % 4]);
+        assertEquals(expected.toString(), music.toString());
+    }
+
+    // input: 1M notes, right-deep chain; output: duration, load, equals to same notes grouped differently
+    @Test
+    public void testRightDeepMillionNotes() {
+        Music music = rightDeep(MILLION);
+
+        assertEquals(MILLION * 3. / 4, music.duration(), 0);
+
+        CountingPlayer player = new CountingPlayer();
+        music.load(player, 0, lyric -> {});
+        assertEquals(MILLION / 4 * 3, player.notes);
+        assertEquals(MILLION / 4, player.events);
+
+        assertEquals(rightDeep(MILLION), music);
+        assertNotEquals(leftDeep(MILLION), music);
+        assertEquals(leftDeep(MILLION).toString(), music.toString());
+        assertEquals(music.augment(2), rightDeep(MILLION).augment(2));
+    }
+
+    // input: 1M notes nested in Together, lyrics ignored; output: duration, load, augment, toString
+    @Test
+    public void testDeepChordMillionNotes() {
+        Music music = deepChord(MILLION);
+
+        assertEquals(1, music.duration(), 0);
+
+        CountingPlayer player = new CountingPlayer();
+        music.load(player, 5, null);
+        assertEquals(MILLION, player.notes);
+        assertEquals(0, player.events);
+        assertEquals(5, player.lastStart, 0);
+
+        assertEquals(4, music.augment(4).duration(), 0);
+        assertEquals(deepChord(MILLION), music);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i < MILLION; i++)
+            expected.append('[');
+        expected.append(C);
+        for (int i = 1; i < MILLION; i++)
+            expected.append(i % 2 == 0 ? C : E).append(']');
+        assertEquals(expected.toString(), music.toString());
+    }
+
+    // input: Sequence of deep chains totalling 1M notes; output: duration, load, augment, equals
+    @Test
+    public void testSequenceOfChainsMillionNotes() {
+        List<Music> parts = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            parts.add(i % 2 == 0 ? leftDeep(MILLION / 10) : rightDeep(MILLION / 10));
+        Music music = new Sequence(parts);
+
+        assertEquals(MILLION * 3. / 4, music.duration(), 0);
+
+        CountingPlayer player = new CountingPlayer();
+        music.load(player, 0, lyric -> {});
+        assertEquals(MILLION / 4 * 3, player.notes);
+
+        assertEquals(new Sequence(parts), music);
+        assertEquals(new Sequence(parts).hashCode(), music.hashCode());
+        assertEquals(new Sequence(parts).augment(1. / 2), music.augment(1. / 2));
+        assertEquals(MILLION * 3. / 8, music.augment(1. / 2).duration(), 0);
+    }
+
+}
@@ -0,0 +1,115 @@
+package karaoke.music;
+
+import static karaoke.music.Music.concat;
+import static karaoke.music.Music.rest;
+import static karaoke.music.Music.sequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+/**
+ * Test Sequence and the sequence() factory.
+ */
+public class SequenceTest {
+
+    /* Testing strategy
+     *  input:
+     *      number of parts: 0, 1, 2, many (100k)
+     *      parts contain Note, Rest, Concat, Sequence
+     *      parts have duration 0, (0, 1), 1, >1
+     *
+     *  output:
+     *      duration(), offset(), size(), get(), parts()
+     *      augment(), equals(), hashCode(), toString()
+     *
+     * Cover all parts
+     */
+
+    private static final Music C = new Note(1, new Pitch('C'), Instrument.PIANO, Optional.empty());
+    private static final Music D = new Note(1./2, new Pitch('D'), Instrument.PIANO, Optional.empty());
+    private static final Music E = new Note(3, new Pitch('E'), Instrument.PIANO, Optional.empty());
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // input: 0 parts, 1 part
+    @Test
+    public void testFactoryFewParts() {
+        assertEquals(0, sequence(Collections.emptyList()).duration(), 0);
+        assertSame(C, sequence(Arrays.asList(C)));
+    }
+
+    // input: many parts with Note, Rest, Concat; duration 0, (0, 1), 1, >1
+    @Test
+    public void testDurationAndOffsets() {
+        Sequence music = new Sequence(Arrays.asList(C, rest(0), D, concat(E, C), E));
+
+        assertEquals(5, music.size());
+        assertEquals(8.5, music.duration(), 0);
+        assertEquals(0, music.offset(0), 0);
+        assertEquals(1, music.offset(1), 0);
+        assertEquals(1, music.offset(2), 0);
+        assertEquals(1.5, music.offset(3), 0);
+        assertEquals(5.5, music.offset(4), 0);
+        assertSame(D, music.get(2));
+        assertEquals(Arrays.asList(C, rest(0), D, concat(E, C), E), music.parts());
+    }
+
+    // input: offset of a piece that doesn't exist
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testOffsetOutOfBounds() {
+        new Sequence(Arrays.asList(C, D)).offset(2);
+    }
+
+    // input: parts list changed after construction
+    @Test
+    public void testDefensiveCopy() {
+        List<Music> parts = new ArrayList<>(Arrays.asList(C, D));
+        Sequence music = new Sequence(parts);
+        parts.add(E);
+
+        assertEquals(2, music.size());
+        assertEquals(1.5, music.duration(), 0);
+    }
+
+    // input: 2 parts, nested Sequence; output: augment, equals, hashCode, toString
+    @Test
+    public void testAugmentEqualsToString() {
+        Sequence music = new Sequence(Arrays.asList(C, new Sequence(Arrays.asList(D, E))));
+        Music augmented = music.augment(2);
+
+        assertEquals(9, augmented.duration(), 0);
+        assertEquals(new Sequence(Arrays.asList(C.augment(2), new Sequence(Arrays.asList(D.augment(2), E.augment(2))))),
+                augmented);
+        assertEquals(new Sequence(Arrays.asList(C, new Sequence(Arrays.asList(D, E)))), music);
+        assertEquals(new Sequence(Arrays.asList(C, new Sequence(Arrays.asList(D, E)))).hashCode(), music.hashCode());
+        assertNotEquals(new Sequence(Arrays.asList(C, D, E)), music);
+        assertNotEquals(concat(C, new Sequence(Arrays.asList(D, E))), music);
+        assertEquals(C + " " + D + " " + E, music.toString());
+    }
+
+    // input: 100k parts; output: duration and offsets are exact sums
+    @Test
+    public void testManyParts() {
+        final int notes = 100_000;
+        List<Music> parts = new ArrayList<>();
+        for (int i = 0; i < notes; i++)
+            parts.add(i % 2 == 0 ? C : D);
+        Sequence music = new Sequence(parts);
+
+        assertEquals(notes * 3. / 4, music.duration(), 0);
+        assertEquals((notes - 2) / 2 * 3. / 2, music.offset(notes - 2), 0);
+        assertEquals(music, music.augment(1));
+    }
+
+}
@@ -1,6 +1,6 @@
 package karaoke.parser;
 
-import static karaoke.music.Music.concat;
+import static karaoke.music.Music.sequence;
 import static karaoke.music.Music.together;
 import static org.junit.Assert.assertEquals;
 
@@ -20,11 +20,11 @@ import org.junit.Test;
 
 import edu.mit.eecs.parserlib.UnableToParseException;
 import karaoke.lyrics.Lyric;
-import karaoke.music.Concat;
 import karaoke.music.Instrument;
 import karaoke.music.Music;
 import karaoke.music.Note;
 import karaoke.music.Pitch;
+import karaoke.music.Sequence;
 import karaoke.songs.ABC;
 import karaoke.songs.Key;
 import karaoke.songs.Meter;
@@ -46,7 +46,7 @@ public class ABCParserTest {
      *      with comments in file, without comments in file
      * 
      *  output:
-     *      resulting ABC object contains Note, Rest, Concat, Together
+     *      resulting ABC object contains Note, Rest, Sequence, Together
      *      subsets of those
      *      resulting ABC contains notes of duration 0, (0, 1), 1, >1
      * 
@@ -66,7 +66,7 @@ public class ABCParserTest {
         return actual;
     }
     
-    // output: Note, Concat, transposed notes
+    // output: Note, Sequence, transposed notes
     @Test
     public void testSample1() throws FileNotFoundException, UnableToParseException {
         ABC actual = helperGetActual("sample1");
@@ -75,7 +75,7 @@ public class ABCParserTest {
         Music m2 = new Note(2, new Pitch('C'), Instrument.PIANO, Optional.empty());
         Music m3 = new Note(1, new Pitch('C').transpose(2*Pitch.OCTAVE), Instrument.PIANO, Optional.empty());
         Music m4 = new Note(1, new Pitch('C').transpose(3*Pitch.OCTAVE), Instrument.PIANO, Optional.empty());
-        Music music = concat(concat(concat(m1, m2), m3), m4);
+        Music music = sequence(Arrays.asList(m1, m2, m3, m4));
         
         final Map<String, Music> parts = new HashMap<>();
         parts.put("", music);
@@ -295,6 +295,34 @@ public class ABCParserTest {
         helperGetActual("imYours");
     }
    
+    // input: 1 musical part, many musical parts; very long voice parts
+    // output: each voice part is a single flat Sequence
+    @Test
+    public void testParsingScaledFiles() throws FileNotFoundException, UnableToParseException {
+        final int copies = 100;
+        for (String filename : Arrays.asList("invention", "fur_elise")) {
+            Scanner scan = new Scanner(new File("sample-abc/" + filename + ".abc"));
+            String text = scan.useDelimiter("\\A").next();
+            scan.close();
+            
+            // repeat the body, everything after the K: line, many times
+            int bodyStart = text.indexOf('\n', text.indexOf("\nK:") + 1) + 1;
+            String body = text.substring(bodyStart).endsWith("\n") ? text.substring(bodyStart) : text.substring(bodyStart) + "\n";
+            StringBuilder scaled = new StringBuilder(text.substring(0, bodyStart));
+            for (int i = 0; i < copies; i++)
+                scaled.append(body);
+            
+            ABC original = ABCParser.parse(text);
+            ABC actual = ABCParser.parse(scaled.toString());
+            assertEquals(original.getVoices(), actual.getVoices());
+            for (String voice : actual.getVoices()) {
+                Music part = actual.getVoicePart(voice);
+                assertEquals(Sequence.class, part.getClass());
+                assertEquals(copies * original.getVoicePart(voice).duration(), part.duration(), 1e-6);
+            }
+        }
+    }
+   
     /* creates a note with empty lyric */
     private static Music createNote(double d, Pitch pitch) {
         return new Note(d, pitch, Instrument.PIANO, Optional.empty());
@@ -370,10 +398,6 @@ public class ABCParserTest {
     
     /* concats a bunch of musics into one music */
     private static Music concatChain(List<Music> musics) {
-        Iterator<Music> musicsItr = musics.iterator();
-        Music growing = musicsItr.next();
-        while (musicsItr.hasNext())
-            growing = new Concat(growing, musicsItr.next());
-        return growing;
+        return new Sequence(musics);
     }
 }
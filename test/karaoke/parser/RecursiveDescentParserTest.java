@@ -0,0 +1,163 @@
+package karaoke.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.parser.ABCParser.Engine;
+import karaoke.songs.ABC;
+
+/**
+ * Test that the recursive-descent ABCParser engine creates the same ADT as the grammar engine.
+ */
+public class RecursiveDescentParserTest {
+
+    /* Testing strategy
+     *  input:
+     *      every abc file in sample-abc
+     *      header: fields separated by extra whitespace, comments between fields,
+     *          meter C, C|, fraction; key with spaces and accidentals
+     *      body: barlines |, ||, [|, |], :|, |:, nth repeats, chords, tuplets, rests,
+     *          voices (indented, not indented), comments (own line, end of line, indented),
+     *          lyrics (empty, with every kind of hyphen and break)
+     *      line endings \n, \r\n, \r, missing at end of file
+     *      malformed abc text
+     *
+     *  output:
+     *      both engines parse the same ABC, both engines fail with the same exception
+     *
+     *  engineNamed(): lower case, upper case, unknown name
+     *
+     * Cover all parts
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to parse text with an engine, returning the ABC or the class of exception thrown */
+    private static Object parse(String text, Engine engine) {
+        try {
+            return ABCParser.parse(text, engine);
+        } catch (UnableToParseException e) {
+            return UnableToParseException.class;
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    /* helper to assert that both engines parse text to the same ABC, or fail the same way */
+    private static void assertSameParse(String text) {
+        Object expected = parse(text, Engine.GRAMMAR);
+        Object actual = parse(text, Engine.RECURSIVE_DESCENT);
+        assertEquals(text, expected, actual);
+        if (expected instanceof ABC) {
+            assertEquals(text, ((ABC) expected).getVoices(), ((ABC) actual).getVoices());
+            assertEquals(text, expected.toString(), actual.toString());
+        }
+    }
+
+    // input: every sample abc file
+    @Test
+    public void testSampleFiles() throws IOException {
+        File[] files = new File("sample-abc").listFiles((dir, name) -> name.endsWith(".abc"));
+        assertTrue(files.length > 0);
+        for (File file : files)
+            assertSameParse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    // input: header with extra whitespace, comments, every optional field
+    @Test
+    public void testHeaderFields() {
+        assertSameParse("X:1\nT:simple\nK:C\nC D E F|\n");
+        assertSameParse("  X: 7 \n% comment\n T: a title  \nC: me\nL: 1/4\nM: 3 / 4\nQ: 1/8 = 120\nK: C # m \nA B c|\n");
+        assertSameParse("X:1\nT:t\nM:C\nK:Bb\nB2 c2|\n");
+        assertSameParse("X:1\nT:t\nM:C| \nK:Eb\nE4|\n");
+        assertSameParse("X:1\nT:t\nM:C \nL:1/16\nK:F#m\nF4|\n");
+        assertSameParse("X:1\nT:t\nM:C\nL:1/16\nK:F#m\nF4|\n");
+        assertSameParse("X:1\nT:t\nV:1\nV:2\nK:G\nV:1\nG|\nV:2\nB|\n");
+    }
+
+    // input: every kind of body element
+    @Test
+    public void testBodyElements() {
+        assertSameParse("X:1\nT:t\nK:C\n|: C D [CEG] z/ | (3CDE (2[CE]G | ^F _B =B c' C,, |]\n");
+        assertSameParse("X:1\nT:t\nK:C\nC D E F || G A B c [| d e f g |]\n");
+        assertSameParse("X:1\nT:t\nK:C\n|: C D :| E F |[1 G A :|[2 B c |]\n");
+        assertSameParse("X:1\nT:t\nK:C\nC3/2 D/4 E3/ F2 G/ A/2 |\n");
+        assertSameParse("X:1\nT:t\nK:D\n^^C __D ^C C | C |\n");
+    }
+
+    // input: voices, comments and lyrics mixed in the body
+    @Test
+    public void testBodyLines() {
+        assertSameParse("X:1\nT:t\nV:1\nV:2\nK:C\n  V: 1\nC D E F | % end of line\nw: do re mi fa\n% own line\n"
+                + "V:2\n  % indented\nE F G A |\nw: sol la ti do\n");
+        assertSameParse("X:1\nT:t\nK:C\nC D E F |\nw:\n");
+        assertSameParse("X:1\nT:t\nK:C\nC D E F | G A B c |\nw: a-b-c d_ e * | f~g h\\-i -- j__ k\n");
+        assertSameParse("X:1\nT:t\nK:C\nC D E F | G A B c |\nw: |  one | two\t three\n");
+    }
+
+    // input: \r\n and \r line endings, no line ending at end of file
+    @Test
+    public void testLineEndings() {
+        assertSameParse("X:1\r\nT:t\r\nK:C\r\nC D E F|\r\nw: a b c d\r\n");
+        assertSameParse("X:1\rT:t\rK:C\rC D E F|\r");
+        assertSameParse("X:1\nT:t\nK:C\nC D E F|");
+        assertSameParse("X:1\nT:t\nK:C\nC D E F|\n% no line ending");
+    }
+
+    // input: malformed abc text; output: both fail
+    @Test
+    public void testMalformed() {
+        List<String> malformed = Arrays.asList(
+                "",
+                "not an abc song",
+                "T:t\nX:1\nK:C\nC|\n",
+                "X:1\nT:t\nC|\n",
+                "X:1\nT:t\nK:H\nC|\n",
+                "X:1\nT:t\nK:C\nC D [E F|\n",
+                "X:1\nT:t\nK:C\nC D | x |\n",
+                "X:1\nT:t\nK:C\nC D (3 |\n",
+                "X:one\nT:t\nK:C\nC|\n");
+        for (String text : malformed)
+            assertSameParse(text);
+    }
+
+    // engineNamed(): lower case, upper case, unknown name
+    @Test
+    public void testEngineNamed() {
+        assertEquals(Engine.RECURSIVE_DESCENT, ABCParser.engineNamed("recursive_descent"));
+        assertEquals(Engine.GRAMMAR, ABCParser.engineNamed("GRAMMAR"));
+        assertEquals(Engine.GRAMMAR, ABCParser.engineNamed("antlr"));
+        assertEquals(Engine.GRAMMAR, ABCParser.engineNamed(""));
+    }
+
+    // input: every sample abc file through the default engine selector
+    @Test
+    public void testDefaultEngine() throws IOException, UnableToParseException {
+        Engine previous = ABCParser.getDefaultEngine();
+        try {
+            String text = new String(Files.readAllBytes(new File("sample-abc/fur_elise.abc").toPath()),
+                    StandardCharsets.UTF_8);
+            ABCParser.setDefaultEngine(Engine.RECURSIVE_DESCENT);
+            assertEquals(Engine.RECURSIVE_DESCENT, ABCParser.getDefaultEngine());
+            ABC fast = ABCParser.parse(text);
+            ABCParser.setDefaultEngine(Engine.GRAMMAR);
+            assertEquals(ABCParser.parse(text), fast);
+        } finally {
+            ABCParser.setDefaultEngine(previous);
+        }
+    }
+
+}
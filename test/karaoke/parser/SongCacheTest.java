@@ -0,0 +1,167 @@
+package karaoke.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.songs.ABC;
+
+/**
+ * Test that SongCache only parses songs it has not seen before.
+ */
+public class SongCacheTest {
+
+    /* Testing strategy
+     *  input:
+     *      song requested by file, by text
+     *      file requested once, many times, after its contents changed,
+     *          after its modification time changed, doesn't exist
+     *      same text in different files
+     *      cache within bounds, over max songs, over max weight
+     *
+     *  output:
+     *      hit, miss, eviction
+     *
+     * Cover all parts
+     */
+
+    private static final String SONG_1 = "X:1\nT:one\nK:C\nC D E F|\n";
+    private static final String SONG_2 = "X:2\nT:two\nK:C\nG A B c|\n";
+    private static final String SONG_3 = "X:3\nT:three\nK:C\nc B A G|\n";
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to write text to a new temporary abc file */
+    private static File write(String text) throws IOException {
+        File file = File.createTempFile("songcache", ".abc");
+        file.deleteOnExit();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // input: by file, requested many times; output: miss then hits
+    @Test
+    public void testRepeatedFileHits() throws IOException, UnableToParseException {
+        SongCache cache = new SongCache();
+        File file = write(SONG_1);
+
+        ABC first = cache.get(file);
+        ABC second = cache.get(file);
+        ABC third = cache.get(file);
+
+        assertEquals("one", first.getTitle());
+        assertSame(first, second);
+        assertSame(first, third);
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    // input: sample file, same text by file and by text; output: hit
+    @Test
+    public void testSameContentHits() throws IOException, UnableToParseException {
+        SongCache cache = new SongCache();
+        ABC fromFile = cache.get(new File("sample-abc/fur_elise.abc"));
+        String text = new String(Files.readAllBytes(new File("sample-abc/fur_elise.abc").toPath()),
+                StandardCharsets.UTF_8);
+        ABC fromText = cache.parse(text);
+
+        assertSame(fromFile, fromText);
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+    }
+
+    // input: file contents changed with new modification time; output: miss
+    @Test
+    public void testModifiedFileInvalidated() throws IOException, UnableToParseException {
+        SongCache cache = new SongCache();
+        File file = write(SONG_1);
+        ABC before = cache.get(file);
+
+        Files.write(file.toPath(), SONG_2.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(file.lastModified() + 2000);
+        ABC after = cache.get(file);
+
+        assertNotSame(before, after);
+        assertEquals("two", after.getTitle());
+        assertEquals(2, cache.misses());
+    }
+
+    // input: modification time changed but contents didn't; output: hit
+    @Test
+    public void testTouchedFileHits() throws IOException, UnableToParseException {
+        SongCache cache = new SongCache();
+        File file = write(SONG_1);
+        ABC before = cache.get(file);
+
+        file.setLastModified(file.lastModified() + 2000);
+        ABC after = cache.get(file);
+
+        assertSame(before, after);
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+    }
+
+    // input: over max songs; output: least recently used song evicted
+    @Test
+    public void testEvictBySize() throws UnableToParseException {
+        SongCache cache = new SongCache(2, SongCache.DEFAULT_MAX_WEIGHT);
+        ABC one = cache.parse(SONG_1);
+        cache.parse(SONG_2);
+        assertSame(one, cache.parse(SONG_1));
+        cache.parse(SONG_3);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        assertSame(one, cache.parse(SONG_1));
+        cache.parse(SONG_2);
+        assertEquals(4, cache.misses());
+    }
+
+    // input: over max weight; output: songs evicted until within weight
+    @Test
+    public void testEvictByWeight() throws UnableToParseException {
+        SongCache cache = new SongCache(10, SONG_2.length() + SONG_3.length());
+        cache.parse(SONG_1);
+        cache.parse(SONG_2);
+        assertEquals(2, cache.size());
+
+        cache.parse(SONG_3);
+        assertEquals(SONG_3.length() + SONG_2.length(), cache.weight());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+    }
+
+    // input: file doesn't exist
+    @Test(expected=FileNotFoundException.class)
+    public void testMissingFile() throws IOException, UnableToParseException {
+        new SongCache().get(new File("sample-abc/bad.abc"));
+    }
+
+    // input: text that can't be parsed; output: miss, nothing cached
+    @Test
+    public void testUnparseableNotCached() {
+        SongCache cache = new SongCache();
+        try {
+            cache.parse("not an abc song");
+        } catch (UnableToParseException e) {
+            assertEquals(0, cache.size());
+            assertEquals(1, cache.misses());
+            return;
+        }
+        throw new AssertionError("expected UnableToParseException");
+    }
+
+}
@@ -0,0 +1,145 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.MetaMessage;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.parser.ABCParser;
+
+/**
+ * Test CallbackTable, including a benchmark of the memory allocated per lyric dispatched.
+ */
+public class CallbackTableTest {
+
+    /* Testing strategy
+     *  add(): new tick, tick that already has a marker, many markers (table grows)
+     *  dispatch(): marker in table, 0, negative, past the last marker
+     *  marker() and number(): 0, small, > 2 bytes; message made by marker(), copy of it,
+     *      message that isn't a marker
+     *  dispatching every lyric of the lyric-dense sample songs: bytes allocated per lyric
+     *
+     * Cover all parts
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // add(): new ticks, same tick; dispatch(): markers in table, and numbers that aren't
+    @Test
+    public void testAddAndDispatch() {
+        CallbackTable table = new CallbackTable(4);
+        List<String> calls = new ArrayList<>();
+
+        assertEquals(1, table.add(6, beat -> calls.add("a " + beat)));
+        assertEquals(2, table.add(0, beat -> calls.add("b " + beat)));
+        assertEquals(0, table.add(6, beat -> calls.add("c " + beat)));
+        assertEquals(2, table.size());
+
+        table.dispatch(1);
+        table.dispatch(2);
+        table.dispatch(0);
+        table.dispatch(-1);
+        table.dispatch(3);
+        assertEquals(Arrays.asList("a 1.5", "c 1.5", "b 0.0"), calls);
+    }
+
+    // add(): many markers
+    @Test
+    public void testManyMarkers() {
+        CallbackTable table = new CallbackTable(64);
+        final int[] sum = { 0 };
+        for (int i = 0; i < 10_000; i++) {
+            final int value = i;
+            assertEquals(i + 1, table.add(i, beat -> sum[0] += value));
+        }
+        for (int i = 1; i <= 10_000; i++)
+            table.dispatch(i);
+        assertEquals(10_000 * 9_999 / 2, sum[0]);
+    }
+
+    // marker() and number(): 0, small, > 2 bytes; marker, copy of marker, not a marker
+    @Test
+    public void testMarkerEncoding() throws Exception {
+        for (int number : new int[] { 0, 1, 255, 70_000, Integer.MAX_VALUE }) {
+            MetaMessage marker = CallbackTable.marker(number);
+            assertEquals(CallbackTable.META_MARKER, marker.getType());
+            assertEquals(4, marker.getData().length);
+            assertEquals(number, CallbackTable.number(marker));
+            assertEquals(number, CallbackTable.number((MetaMessage) marker.clone()));
+        }
+        assertEquals(0, CallbackTable.number(new MetaMessage(CallbackTable.META_MARKER, new byte[] { 5 }, 1)));
+        assertEquals(0, CallbackTable.number(new MetaMessage(47, new byte[0], 0)));
+    }
+
+    // benchmark: dispatch every lyric of the sample songs with lyrics, and count bytes allocated
+    @Test
+    public void testDispatchAllocationPerLyric() throws IOException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        final int[] dispatched = { 0 };
+        final List<CallbackTable> tables = new ArrayList<>();
+        final List<MetaMessage[]> markers = new ArrayList<>();
+        int lyrics = 0;
+        for (File file : new File("sample-abc").listFiles((dir, name) -> name.endsWith(".abc"))) {
+            final Timeline timeline;
+            try {
+                timeline = Timeline.compile(ABCParser.parse(
+                        new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+            } catch (UnableToParseException e) {
+                continue;
+            }
+            final CallbackTable table = new CallbackTable(timeline.ticksPerBeat());
+            final List<MetaMessage> messages = new ArrayList<>();
+            for (int event = 0; event < timeline.size(); event++) {
+                if (timeline.lyricIndex(event) < 0)
+                    continue;
+                lyrics++;
+                final int marker = table.add(timeline.startTick(event), beat -> dispatched[0]++);
+                if (marker > 0)
+                    messages.add(CallbackTable.marker(marker));
+            }
+            tables.add(table);
+            markers.add(messages.toArray(new MetaMessage[messages.size()]));
+        }
+        assertTrue(lyrics > 0);
+
+        final int rounds = 200;
+        final long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 2 * rounds; round++) {
+            final long before = threads.getThreadAllocatedBytes(threadId);
+            for (int song = 0; song < tables.size(); song++)
+                for (MetaMessage marker : markers.get(song))
+                    tables.get(song).dispatch(CallbackTable.number(marker));
+            final long after = threads.getThreadAllocatedBytes(threadId);
+            if (round >= rounds) // the first rounds warm up
+                allocated += after - before;
+        }
+
+        assertEquals(2 * rounds * lyrics, dispatched[0]);
+        final double bytesPerLyric = allocated / (double) (rounds * lyrics);
+        System.out.println("dispatched " + lyrics + " lyrics " + rounds + " times: "
+                + String.format("%.3f", bytesPerLyric) + " bytes allocated per lyric");
+        assertTrue("bytes per lyric: " + bytesPerLyric, bytesPerLyric < 1);
+    }
+
+}
@@ -0,0 +1,187 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.music.Instrument;
+import karaoke.music.Pitch;
+import karaoke.parser.ABCParser;
+import karaoke.playback.Jukebox.Output;
+import karaoke.playback.Jukebox.Signal;
+
+/**
+ * Test ClockSequencePlayer, and jukeboxes that play to it; needs no MIDI device.
+ */
+public class ClockSequencePlayerTest {
+
+    /* Testing strategy
+     *  addEvent(): events added out of order of beat, several at one beat
+     *  addNote(): last note ends after the last event, before it
+     *  play(): events called back in order of beat at their times, future completes when the last note
+     *      ends; callback throws
+     *  setTempoFactor(): before play(), while the clock waits for an event, slower and faster
+     *  jitter(): after events called back
+     *  toString(): events at several ticks
+     *  Jukebox with Output.CLOCK: song played to its end, signals in order, default output
+ *  Jukebox.outputNamed(): lower case, upper case, unknown name
+     *
+     * Cover all parts
+     */
+
+    // 600 beats per minute: 100 ms per beat
+    private static final int BEATS_PER_MINUTE = 600;
+    private static final long NANOS_PER_BEAT = TimeUnit.MILLISECONDS.toNanos(100);
+    // how late an event may be called back on a busy test machine
+    private static final long TOLERANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // addEvent(): out of order, several at one beat; addNote(): ends after last event;
+    // play(): in order at their times, completes when the last note ends; jitter()
+    @Test
+    public void testEventsInOrderOnTime() throws InterruptedException, ExecutionException, TimeoutException {
+        ClockSequencePlayer player = new ClockSequencePlayer(BEATS_PER_MINUTE, 64);
+        final List<String> called = Collections.synchronizedList(new ArrayList<>());
+        final long[] late = new long[1];
+        final long[] start = new long[1];
+        player.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 0, 4);
+        player.addEvent(2, beat -> called.add("b " + beat));
+        player.addEvent(0, beat -> called.add("a " + beat));
+        player.addEvent(2, beat -> {
+            called.add("c " + beat);
+            late[0] = System.nanoTime() - start[0] - 2 * NANOS_PER_BEAT;
+        });
+
+        start[0] = System.nanoTime();
+        player.play().get(10, TimeUnit.SECONDS);
+        final long elapsed = System.nanoTime() - start[0];
+
+        assertEquals(Arrays.asList("a 0.0", "b 2.0", "c 2.0"), called);
+        assertTrue("late by " + late[0], late[0] >= 0 && late[0] < TOLERANCE_NANOS);
+        assertTrue("took " + elapsed, elapsed >= 4 * NANOS_PER_BEAT && elapsed < 4 * NANOS_PER_BEAT + TOLERANCE_NANOS);
+        assertTrue(ClockSequencePlayer.jitter(), ClockSequencePlayer.jitter().contains(" events late by p50 "));
+    }
+
+    // setTempoFactor(): before play(), slower; while the clock waits for an event, faster
+    @Test
+    public void testTempoFactor() throws InterruptedException, ExecutionException, TimeoutException {
+        ClockSequencePlayer player = new ClockSequencePlayer(BEATS_PER_MINUTE, 64);
+        final CountDownLatch firstBeat = new CountDownLatch(1);
+        final long[] at = new long[2];
+        player.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 0, 10);
+        player.addEvent(1, beat -> {
+            at[0] = System.nanoTime();
+            firstBeat.countDown();
+        });
+        player.addEvent(9, beat -> at[1] = System.nanoTime());
+        player.setTempoFactor(0.5);
+        assertEquals(0.5, player.getTempoFactor(), 0);
+
+        final long start = System.nanoTime();
+        CompletableFuture<Void> finished = player.play();
+        assertTrue(firstBeat.await(10, TimeUnit.SECONDS));
+        final long changed = System.nanoTime();
+        player.setTempoFactor(4);
+        finished.get(10, TimeUnit.SECONDS);
+        final long elapsed = System.nanoTime() - start;
+
+        // a beat takes 200 ms at half tempo, then 25 ms at four times the tempo
+        final long first = at[0] - start;
+        assertTrue("first beat at " + first, first >= 2 * NANOS_PER_BEAT && first < 2 * NANOS_PER_BEAT + TOLERANCE_NANOS);
+        final long beatAfterChange = NANOS_PER_BEAT / 4;
+        final long ninth = at[1] - changed;
+        assertTrue("ninth beat " + ninth + " after the change", ninth >= 7 * beatAfterChange
+                && ninth < 8 * beatAfterChange + TOLERANCE_NANOS);
+        assertTrue("took " + elapsed, elapsed < 10 * NANOS_PER_BEAT);
+    }
+
+    // addNote(): ends before the last event; play(): callback throws
+    @Test
+    public void testCallbackThrows() throws InterruptedException {
+        ClockSequencePlayer player = new ClockSequencePlayer(BEATS_PER_MINUTE, 64);
+        final List<Double> called = Collections.synchronizedList(new ArrayList<>());
+        final RuntimeException problem = new RuntimeException("listener failed");
+        player.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 0, 1);
+        player.addEvent(1, beat -> { throw problem; });
+        player.addEvent(2, called::add);
+
+        CompletableFuture<Void> finished = player.play();
+        try {
+            finished.get(10, TimeUnit.SECONDS);
+            throw new AssertionError("should have failed");
+        } catch (ExecutionException ee) {
+            assertSame(problem, ee.getCause());
+        } catch (TimeoutException te) {
+            throw new AssertionError(te);
+        }
+        assertEquals(Collections.emptyList(), called);
+    }
+
+    // toString(): events at several ticks
+    @Test
+    public void testToString() {
+        ClockSequencePlayer player = new ClockSequencePlayer(BEATS_PER_MINUTE, 4);
+        player.addEvent(0.5, beat -> { });
+        player.addEvent(0.5, beat -> { });
+        player.addEvent(1, beat -> { });
+        player.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 1, 2);
+        assertEquals("Events: 2 Tick: 2\nEvents: 1 Tick: 4\nEnd Tick: 12\n", player.toString());
+    }
+
+    // Jukebox.outputNamed(): lower case, upper case, unknown name
+    @Test
+    public void testOutputNamed() {
+        assertSame(Output.CLOCK, Jukebox.outputNamed("clock"));
+        assertSame(Output.MIDI, Jukebox.outputNamed("MIDI"));
+        assertSame(Output.MIDI, Jukebox.outputNamed("speakers"));
+        assertSame(Output.MIDI, Jukebox.outputNamed(""));
+    }
+
+    // Jukebox with Output.CLOCK: played to its end, signals in order; default output
+    @Test
+    public void testJukeboxClockOutput() throws UnableToParseException, InterruptedException {
+        Jukebox jukebox = new Jukebox();
+        assertSame(Jukebox.DEFAULT_OUTPUT, jukebox.getOutput());
+        jukebox.setOutput(Output.CLOCK);
+        assertSame(Output.CLOCK, jukebox.getOutput());
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        // one song change when the song is added, and one when it ends
+        final CountDownLatch changes = new CountDownLatch(2);
+        jukebox.addListener(signal -> {
+            received.add(signal.toString());
+            if (signal.getType() == Signal.Type.SONG_CHANGE)
+                changes.countDown();
+        });
+        jukebox.addSong(ABCParser.parse("X:1\nT:quick\nL:1/4\nQ:1/4=600\nK:C\nC D E F|\nw: do re mi fa\n"));
+        final long start = System.nanoTime();
+        assertTrue(jukebox.play());
+        assertTrue(changes.await(10, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+
+        assertFalse(jukebox.isPlaying());
+        assertEquals(Arrays.asList("SONG_CHANGE", "SONG_START", "*do* re mi fa", "do *re* mi fa", "do re *mi* fa",
+                "do re mi *fa*", "SONG_END", "SONG_CHANGE"), received);
+        assertTrue("took " + elapsed, elapsed >= 4 * NANOS_PER_BEAT && elapsed < 4 * NANOS_PER_BEAT + TOLERANCE_NANOS);
+        System.out.println("lyric clock jitter: " + ClockSequencePlayer.jitter());
+    }
+
+}
@@ -0,0 +1,678 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.Lyric;
+import karaoke.music.Instrument;
+import karaoke.music.Pitch;
+import karaoke.parser.ABCParser;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.playback.Jukebox.State;
+import karaoke.playback.Jukebox.Signal.Type;
+import karaoke.playback.Jukebox.Subscription;
+import karaoke.playback.Jukebox.Transitions;
+import karaoke.songs.ABC;
+
+/**
+ * Test Jukebox state and listener subscriptions, including a benchmark of the listeners called back
+ * per lyric of a song with many voices, and one of reading the state while signals are broadcast.
+ */
+public class JukeboxTest {
+
+    /* Testing strategy
+     *  Subscription: ALL, voice(), of() with one type, many types; voice present, empty; equals
+     *  addListener(): without a subscription, with one, same listener again; removeListener()
+     *  broadcast(): lyric of the subscribed voice, of another voice; song with one voice, many voices,
+     *      no song; types subscribed, not subscribed; listener removing itself while called back
+     *  sequence numbers: consecutive for listeners of every signal, skipping filtered signals
+     *  many listeners of the voices of prelude.abc: callbacks and time per lyric, each listener
+     *      filtering every signal itself versus subscribed to its voice
+     *  getState(): empty, songs queued; snapshot taken before changes; read while a listener is
+     *      called back, and the state it reads
+     *  addSong(): to an empty jukebox, to one with a current song, while a listener is called back
+     *  readers of the state while a slow listener is called back: reads and reads that wait,
+     *      lock-free versus behind the lock held while broadcasting
+     *  auto-advance: on, off; next song preloaded, still loading when a song ends, added while playing,
+     *      none; gap between songs with the next song preloaded versus loaded when it is played;
+     *      end of song callback not waiting for the next song to load
+     *  mix: set before a song plays, while it plays, carried to the next song, set with no song playing;
+     *      notes loaded in their voice parts
+     *  tempo factor: default, set before a song plays, while it plays, carried to the next song;
+     *      out of range; listeners told of each factor set, whatever their subscription
+     *
+     * Cover all parts
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to parse a sample song */
+    private static ABC sample(String name) throws IOException, UnableToParseException {
+        return ABCParser.parse(new String(Files.readAllBytes(Paths.get("sample-abc", name)), StandardCharsets.UTF_8));
+    }
+
+    /* wait until jukebox plays the song it auto-advanced to, which starts on the preloader thread
+       unless it had finished loading when the song before it ended */
+    private static void awaitPlaying(Jukebox jukebox) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!jukebox.isPlaying() && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertTrue("next song not started", jukebox.isPlaying());
+    }
+
+    /* A listener that records the signals it receives and their sequence numbers, and the tempo factors set. */
+    private static class Recorder implements Jukebox.Listener {
+        private final List<String> received = new ArrayList<>();
+
+        @Override
+        public void signalReceived(Signal signal) {
+            throw new AssertionError("not called when signalReceived(signal, sequence) is overridden");
+        }
+
+        @Override
+        public void signalReceived(Signal signal, long sequence) {
+            received.add(sequence + " " + (signal.getType() == Type.LYRIC ? signal.getLyric().getVoice() : signal));
+        }
+
+        @Override
+        public void tempoChanged(double factor) {
+            received.add("tempo " + factor);
+        }
+    }
+
+    // Subscription: ALL, voice(), of(); equals
+    @Test
+    public void testSubscription() {
+        assertEquals(Optional.empty(), Subscription.ALL.getVoice());
+        for (Type type : Type.values())
+            assertTrue(Subscription.ALL.receives(type));
+
+        Subscription two = Subscription.voice("2");
+        assertEquals(Optional.of("2"), two.getVoice());
+        assertTrue(two.receives(Type.LYRIC) && two.receives(Type.SONG_END));
+
+        Subscription ends = Subscription.of(Optional.empty(), Type.SONG_START, Type.SONG_END);
+        assertFalse(ends.receives(Type.LYRIC));
+        assertTrue(ends.receives(Type.SONG_START));
+        assertEquals(ends, Subscription.of(Optional.empty(), Type.SONG_END, Type.SONG_START));
+        assertFalse(ends.equals(Subscription.of(Optional.of("1"), Type.SONG_END, Type.SONG_START)));
+        assertEquals(Subscription.ALL, Subscription.of(Optional.empty(), Type.LYRIC, Type.values()));
+    }
+
+    // many voices: lyric of the subscribed voice, another voice; types subscribed, not subscribed
+    @Test
+    public void testManyVoices() throws IOException, UnableToParseException {
+        Jukebox jukebox = new Jukebox();
+        Recorder all = new Recorder();
+        Recorder two = new Recorder();
+        Recorder lyricsOfThree = new Recorder();
+        jukebox.addListener(all);
+        jukebox.addListener(two, Subscription.voice("2"));
+        jukebox.addListener(lyricsOfThree, Subscription.of(Optional.of("3"), Type.LYRIC));
+
+        jukebox.addSong(sample("prelude.abc"));
+        jukebox.broadcast(Signal.SIGNAL_SONG_START);
+        for (String voice : new String[] { "1", "2", "3", "2" })
+            jukebox.broadcast(Signal.lyric(new Lyric(voice)));
+        jukebox.broadcast(Signal.SIGNAL_SONG_END);
+
+        assertEquals(Arrays.asList("1 SONG_CHANGE", "2 SONG_START", "3 1", "4 2", "5 3", "6 2", "7 SONG_END"),
+                all.received);
+        assertEquals(Arrays.asList("1 SONG_CHANGE", "2 SONG_START", "4 2", "6 2", "7 SONG_END"), two.received);
+        assertEquals(Arrays.asList("5 3"), lyricsOfThree.received);
+    }
+
+    // one voice and no song: lyrics reach every listener of lyrics; same listener again; removeListener()
+    @Test
+    public void testOneVoice() throws IOException, UnableToParseException {
+        Jukebox jukebox = new Jukebox();
+        Recorder two = new Recorder();
+        Recorder changes = new Recorder();
+        jukebox.addListener(two, Subscription.voice("2"));
+        jukebox.addListener(changes);
+        jukebox.addListener(changes, Subscription.of(Optional.empty(), Type.SONG_CHANGE));
+
+        jukebox.broadcast(Signal.lyric(new Lyric("1")));
+        jukebox.addSong(sample("scale.abc"));
+        jukebox.broadcast(Signal.lyric(new Lyric("1")));
+        jukebox.removeListener(two);
+        jukebox.broadcast(Signal.lyric(new Lyric("1")));
+
+        assertEquals(Arrays.asList("1 1", "2 SONG_CHANGE", "3 1"), two.received);
+        assertEquals(Arrays.asList("2 SONG_CHANGE"), changes.received);
+    }
+
+    // listener removing itself while called back
+    @Test
+    public void testRemoveWhileCalledBack() {
+        Jukebox jukebox = new Jukebox();
+        List<Signal> received = new ArrayList<>();
+        Recorder after = new Recorder();
+        jukebox.addListener(new Jukebox.Listener() {
+            @Override
+            public void signalReceived(Signal signal) {
+                received.add(signal);
+                jukebox.removeListener(this);
+            }
+        });
+        jukebox.addListener(after);
+
+        jukebox.broadcast(Signal.SIGNAL_SONG_END);
+        jukebox.broadcast(Signal.SIGNAL_SONG_END);
+        assertEquals(Arrays.asList(Signal.SIGNAL_SONG_END), received);
+        assertEquals(Arrays.asList("1 SONG_END", "2 SONG_END"), after.received);
+    }
+
+    /* A listener of one voice that counts the lyrics it shows, checking the voice of each itself,
+       the way a listener of every signal has to. */
+    private static class VoiceCounter implements Jukebox.Listener {
+        private final String voice;
+        private final ABC song;
+        private final boolean filters;
+        private long calls = 0;
+        private long shown = 0;
+
+        private VoiceCounter(String voice, ABC song, boolean filters) {
+            this.voice = voice;
+            this.song = song;
+            this.filters = filters;
+        }
+
+        @Override
+        public void signalReceived(Signal signal) {
+            calls++;
+            if (signal.getType() != Type.LYRIC)
+                return;
+            if (!filters || song.getVoices().size() <= 1 || signal.getLyric().getVoice().equals(voice))
+                shown++;
+        }
+    }
+
+    // many listeners of the voices of prelude.abc: callbacks and time per lyric
+    @Test
+    public void testDispatchPerVoice() throws IOException, UnableToParseException {
+        final ABC song = sample("prelude.abc");
+        final List<String> voices = new ArrayList<>(song.getVoices());
+        final List<Signal> lyrics = new ArrayList<>();
+        for (int i = 0; i < 300; i++)
+            lyrics.add(Signal.lyric(new Lyric(voices.get(i % voices.size()))));
+
+        for (int listeners : new int[] { 30, 300, 3000 }) {
+            final long[] nanos = new long[2];
+            final long[] calls = new long[2];
+            final long[] shown = new long[2];
+            for (int subscribed = 0; subscribed < 2; subscribed++) {
+                final Jukebox jukebox = new Jukebox();
+                jukebox.addSong(song);
+                final List<VoiceCounter> counters = new ArrayList<>();
+                for (int i = 0; i < listeners; i++) {
+                    final String voice = voices.get(i % voices.size());
+                    final VoiceCounter counter = new VoiceCounter(voice, song, subscribed == 0);
+                    counters.add(counter);
+                    if (subscribed == 0)
+                        jukebox.addListener(counter);
+                    else
+                        jukebox.addListener(counter, Subscription.voice(voice));
+                }
+                final int rounds = Math.max(1, 3_000_000 / (listeners * lyrics.size()));
+                for (int round = 0; round < 2 * rounds; round++) {
+                    final long start = System.nanoTime();
+                    for (Signal lyric : lyrics)
+                        jukebox.broadcast(lyric);
+                    if (round >= rounds) // the first rounds warm up
+                        nanos[subscribed] += System.nanoTime() - start;
+                }
+                for (VoiceCounter counter : counters) {
+                    calls[subscribed] += counter.calls;
+                    shown[subscribed] += counter.shown;
+                }
+                final double broadcasts = 2.0 * rounds * lyrics.size();
+                calls[subscribed] /= broadcasts;
+                shown[subscribed] /= broadcasts;
+                nanos[subscribed] /= rounds * lyrics.size();
+            }
+            System.out.println(String.format("%4d listeners of %d voices: %5d callbacks and %7.1f us per lyric"
+                    + " filtering every signal, %5d callbacks and %7.1f us subscribed per voice", listeners,
+                    voices.size(), calls[0], nanos[0] / 1000.0, calls[1], nanos[1] / 1000.0));
+            assertEquals("lyrics shown", shown[0], shown[1]);
+            assertEquals(listeners / voices.size(), calls[1]);
+        }
+    }
+
+    // getState(): empty, songs queued; snapshot taken before changes; addSong() to empty, to non-empty
+    @Test
+    public void testState() throws IOException, UnableToParseException {
+        final ABC scale = sample("scale.abc");
+        final ABC prelude = sample("prelude.abc");
+        Jukebox jukebox = new Jukebox();
+        State empty = jukebox.getState();
+
+        assertEquals(0, jukebox.addSong(scale));
+        assertEquals(1, jukebox.addSong(prelude));
+        assertEquals(2, jukebox.addSong(scale));
+
+        State state = jukebox.getState();
+        assertEquals(Optional.of(scale), state.getCurrentSong());
+        assertEquals(Arrays.asList(prelude, scale), state.getQueuedSongs());
+        assertFalse(state.isPlaying());
+        assertEquals(1, state.getSequence());
+        assertEquals(Arrays.asList(prelude, scale), jukebox.getQueuedSongs());
+        try {
+            state.getQueuedSongs().clear();
+            fail("queue of a snapshot modified");
+        } catch (UnsupportedOperationException expected) {
+            // snapshots are immutable
+        }
+
+        assertEquals(Optional.empty(), empty.getCurrentSong());
+        assertEquals(Arrays.asList(), empty.getQueuedSongs());
+        assertEquals(0, empty.getSequence());
+        assertSame(state, jukebox.getState());
+    }
+
+    // getState() and addSong() while a listener is called back, and the state the listener reads
+    @Test(timeout=10_000)
+    public void testReadsDuringDispatch() throws IOException, UnableToParseException, InterruptedException {
+        final ABC scale = sample("scale.abc");
+        final Jukebox jukebox = new Jukebox();
+        jukebox.addSong(scale);
+        final CountDownLatch calledBack = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> read = new ArrayList<>();
+        jukebox.addListener(new Jukebox.Listener() {
+            @Override
+            public void signalReceived(Signal signal) {
+                read.add(jukebox.getSequence());
+                calledBack.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new AssertionError(ie);
+                }
+            }
+        }, Subscription.of(Optional.empty(), Type.SONG_END));
+        final Thread broadcaster = new Thread(() -> jukebox.broadcast(Signal.SIGNAL_SONG_END));
+        broadcaster.start();
+        assertTrue(calledBack.await(5, TimeUnit.SECONDS));
+
+        // the listener still holds up the broadcast, but none of these wait for it
+        assertEquals(2, jukebox.getState().getSequence());
+        assertEquals(Optional.of(scale), jukebox.getCurrentSong());
+        assertFalse(jukebox.isPlaying());
+        assertEquals(1, jukebox.addSong(scale));
+        jukebox.addListener(new Recorder());
+
+        release.countDown();
+        broadcaster.join();
+        assertEquals(Arrays.asList(2L), read);
+        assertEquals(Arrays.asList(scale), jukebox.getQueuedSongs());
+    }
+
+    // readers of the state while a slow listener is called back
+    @Test
+    public void testReadContention() throws InterruptedException {
+        final long holdNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        for (int readers : new int[] { 1, 4 }) {
+            final long[] reads = new long[2];
+            final long[] stalls = new long[2];
+            for (int lockFree = 0; lockFree < 2; lockFree++) {
+                // a listener that holds the broadcast as long as writing to a slow client would,
+                // under the lock that status reads took when every Jukebox method was synchronized
+                final Object monitor = new Object();
+                final Jukebox jukebox = new Jukebox();
+                jukebox.addListener(signal -> {
+                    synchronized (monitor) {
+                        final long start = System.nanoTime();
+                        while (System.nanoTime() - start < holdNanos) { }
+                    }
+                });
+                final boolean locked = lockFree == 0;
+                final AtomicBoolean running = new AtomicBoolean(true);
+                final AtomicLong readCount = new AtomicLong();
+                final AtomicLong stalled = new AtomicLong();
+                final List<Thread> threads = new ArrayList<>();
+                threads.add(new Thread(() -> {
+                    while (running.get())
+                        jukebox.broadcast(Signal.SIGNAL_SONG_END);
+                }));
+                for (int i = 0; i < readers; i++) {
+                    threads.add(new Thread(() -> {
+                        long last = 0;
+                        while (running.get()) {
+                            final long start = System.nanoTime();
+                            final long sequence;
+                            if (locked) {
+                                synchronized (monitor) {
+                                    sequence = jukebox.getState().getSequence();
+                                }
+                            } else {
+                                sequence = jukebox.getState().getSequence();
+                            }
+                            final long nanos = System.nanoTime() - start;
+                            assertTrue("sequence went back", sequence >= last);
+                            last = sequence;
+                            readCount.incrementAndGet();
+                            if (nanos > holdNanos / 10)
+                                stalled.incrementAndGet();
+                        }
+                    }));
+                }
+                for (Thread thread : threads)
+                    thread.start();
+                Thread.sleep(500);
+                running.set(false);
+                for (Thread thread : threads)
+                    thread.join();
+                reads[lockFree] = readCount.get();
+                stalls[lockFree] = stalled.get();
+            }
+            System.out.println(String.format("%d readers during 1 ms callbacks for 500 ms: %8d reads, %6d over 100 us"
+                    + " behind the broadcast lock; %8d reads, %6d over 100 us lock-free", readers,
+                    reads[0], stalls[0], reads[1], stalls[1]));
+            assertTrue("no reads", reads[1] > 0);
+        }
+    }
+
+    /* A player that plays instantly: its events are called back, in order of beat, when a test finishes it. */
+    private static class InstantPlayer implements SequencePlayer {
+        private final Map<Double, List<Consumer<Double>>> events = new TreeMap<>();
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        private final Set<String> voices = new TreeSet<>();
+        private final List<Mix> mixes = new ArrayList<>();
+        private final List<Double> tempoFactors = new ArrayList<>();
+        private boolean playing = false;
+
+        @Override
+        public void addNote(Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+            // no sound
+        }
+
+        @Override
+        public synchronized void addNote(String voice, Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+            voices.add(voice);
+        }
+
+        @Override
+        public synchronized void setMix(Mix mix) {
+            mixes.add(mix);
+        }
+
+        private synchronized List<Mix> mixes() {
+            return new ArrayList<>(mixes);
+        }
+
+        @Override
+        public synchronized void setTempoFactor(double factor) {
+            tempoFactors.add(factor);
+        }
+
+        private synchronized List<Double> tempoFactors() {
+            return new ArrayList<>(tempoFactors);
+        }
+
+        @Override
+        public synchronized void addEvent(double atBeat, Consumer<Double> callback) {
+            events.computeIfAbsent(atBeat, beat -> new ArrayList<>()).add(callback);
+        }
+
+        @Override
+        public synchronized CompletableFuture<Void> play() {
+            playing = true;
+            return finished;
+        }
+
+        private synchronized boolean isPlaying() {
+            return playing;
+        }
+
+        /* call back every event, as if the song had been played to its end */
+        private void finish() {
+            final List<Map.Entry<Double, List<Consumer<Double>>>> scheduled;
+            synchronized (this) {
+                scheduled = new ArrayList<>(events.entrySet());
+            }
+            for (Map.Entry<Double, List<Consumer<Double>>> entry : scheduled)
+                for (Consumer<Double> callback : entry.getValue())
+                    callback.accept(entry.getKey());
+            finished.complete(null);
+        }
+    }
+
+    /* Loads songs into instant players, taking as long as loading into a MIDI sequencer might. */
+    private static class SlowLoader {
+        private final long delayMillis;
+        private final List<InstantPlayer> players = new ArrayList<>();
+
+        private SlowLoader(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        private SequencePlayer load(Timeline timeline, Consumer<Lyric> lyricConsumer) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+            final InstantPlayer player = new InstantPlayer();
+            timeline.load(player, lyricConsumer);
+            synchronized (this) {
+                players.add(player);
+            }
+            return player;
+        }
+
+        private synchronized int loads() {
+            return players.size();
+        }
+
+        private synchronized InstantPlayer player(int i) {
+            return players.get(i);
+        }
+
+        /* wait until count players have been loaded */
+        private void awaitLoads(int count) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (loads() < count && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(count, loads());
+        }
+    }
+
+    // auto-advance on: next song preloaded, none; gap between songs
+    @Test
+    public void testAutoAdvance() throws IOException, UnableToParseException, InterruptedException {
+        final ABC first = sample("scale.abc");
+        final ABC second = sample("waxies_dargle.abc");
+        final SlowLoader loader = new SlowLoader(200);
+        final Jukebox jukebox = new Jukebox(loader::load);
+        final Recorder recorder = new Recorder();
+        jukebox.addListener(recorder, Subscription.of(Optional.empty(), Type.SONG_START, Type.SONG_END, Type.SONG_CHANGE));
+        jukebox.setAutoAdvance(true);
+        assertTrue(jukebox.isAutoAdvance());
+
+        jukebox.addSong(first);
+        jukebox.addSong(second);
+        assertTrue(jukebox.play());
+        loader.awaitLoads(2);
+        loader.player(0).finish();
+        awaitPlaying(jukebox);
+
+        assertEquals(Optional.of(second), jukebox.getCurrentSong());
+        assertTrue(jukebox.isPlaying());
+        assertTrue(loader.player(1).isPlaying());
+        Transitions transitions = jukebox.getTransitions();
+        assertEquals(1, transitions.count());
+        assertTrue(transitions.toString(), transitions.lastNanos() < TimeUnit.MILLISECONDS.toNanos(50));
+
+        loader.player(1).finish();
+        assertFalse(jukebox.isPlaying());
+        assertEquals(Optional.empty(), jukebox.getCurrentSong());
+        assertEquals(2, loader.loads());
+        assertEquals(1, jukebox.getTransitions().count());
+        // the lyric of scale.abc and the 70 lyrics of waxies_dargle.abc are numbered in between
+        assertEquals(Arrays.asList("1 SONG_CHANGE", "2 SONG_START", "4 SONG_END", "5 SONG_CHANGE", "6 SONG_START",
+                "77 SONG_END", "78 SONG_CHANGE"), recorder.received);
+    }
+
+    // auto-advance on: next song still loading when a song ends, so it starts on the preloader thread
+    @Test
+    public void testAutoAdvanceLoading() throws IOException, UnableToParseException, InterruptedException {
+        final SlowLoader loader = new SlowLoader(300);
+        final Jukebox jukebox = new Jukebox(loader::load);
+        jukebox.setAutoAdvance(true);
+        jukebox.addSong(sample("scale.abc"));
+        jukebox.addSong(sample("scale.abc"));
+        assertTrue(jukebox.play());
+
+        final long ended = System.nanoTime();
+        loader.player(0).finish();
+        final long callbackNanos = System.nanoTime() - ended;
+        assertFalse("started before it was loaded", jukebox.isPlaying());
+        assertTrue("end of song callback waited " + callbackNanos + " ns",
+                callbackNanos < TimeUnit.MILLISECONDS.toNanos(100));
+
+        awaitPlaying(jukebox);
+        assertEquals("next song loaded twice", 2, loader.loads());
+        assertTrue(loader.player(1).isPlaying());
+        assertEquals(1, jukebox.getTransitions().count());
+        assertTrue(jukebox.getTransitions().toString(),
+                jukebox.getTransitions().lastNanos() > TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    // auto-advance off; next song added while playing; gap with the next song preloaded versus loaded when played
+    @Test
+    public void testAutoAdvanceGap() throws IOException, UnableToParseException, InterruptedException {
+        final ABC song = sample("waxies_dargle.abc");
+        final SlowLoader loader = new SlowLoader(200);
+        final Jukebox jukebox = new Jukebox(loader::load);
+        jukebox.setAutoAdvance(false);
+        jukebox.addSong(song);
+        jukebox.play();
+        jukebox.addSong(song);
+        Thread.sleep(300);
+        assertEquals("nothing preloaded", 1, loader.loads());
+
+        // the next song is loaded when it is played
+        final long ended = System.nanoTime();
+        loader.player(0).finish();
+        assertFalse(jukebox.isPlaying());
+        assertTrue(jukebox.play());
+        final long loadedGap = System.nanoTime() - ended;
+
+        // the song after it is loaded while it plays
+        jukebox.setAutoAdvance(true);
+        jukebox.addSong(song);
+        loader.awaitLoads(3);
+        loader.player(1).finish();
+        awaitPlaying(jukebox);
+        assertTrue(jukebox.isPlaying());
+        final long preloadedGap = jukebox.getTransitions().lastNanos();
+
+        System.out.println(String.format("gap between songs: %.1f ms with the next song loaded when played,"
+                + " %.3f ms preloaded", loadedGap / 1e6, preloadedGap / 1e6));
+        assertTrue(preloadedGap < loadedGap);
+    }
+
+    // mix: set before a song plays, while it plays, carried to the next song, with no song playing;
+    // notes in their voice parts
+    @Test
+    public void testMix() throws IOException, UnableToParseException, InterruptedException {
+        final SlowLoader loader = new SlowLoader(0);
+        final Jukebox jukebox = new Jukebox(loader::load);
+        jukebox.setAutoAdvance(true);
+        jukebox.addSong(sample("prelude.abc"));
+        jukebox.addSong(sample("scale.abc"));
+        assertEquals(Mix.ALL_VOICES, jukebox.getMix());
+
+        jukebox.setMuted("1", true);
+        final Mix muted = Mix.ALL_VOICES.muted("1", true);
+        assertEquals(muted, jukebox.getMix());
+        assertTrue(jukebox.play());
+        loader.awaitLoads(2);
+        final InstantPlayer prelude = loader.player(0);
+        assertEquals(new TreeSet<>(Arrays.asList("1", "2", "3")), prelude.voices);
+        assertEquals(Arrays.asList(muted), prelude.mixes());
+
+        jukebox.setSoloed("3", true);
+        final Mix soloed = muted.soloed("3", true);
+        assertEquals(Arrays.asList(muted, soloed), prelude.mixes());
+
+        prelude.finish();
+        awaitPlaying(jukebox);
+        assertEquals(Arrays.asList(soloed), loader.player(1).mixes());
+        loader.player(1).finish();
+        assertFalse(jukebox.isPlaying());
+        jukebox.setMuted("1", false);
+        assertEquals(Arrays.asList(muted, soloed), prelude.mixes());
+        assertEquals(Arrays.asList(soloed), loader.player(1).mixes());
+        assertEquals(Mix.ALL_VOICES.soloed("3", true), jukebox.getMix());
+    }
+
+    // tempo factor: default, before a song plays, while it plays, carried to the next song, out of range
+    @Test
+    public void testTempoFactor() throws IOException, UnableToParseException, InterruptedException {
+        final SlowLoader loader = new SlowLoader(0);
+        final Jukebox jukebox = new Jukebox(loader::load);
+        jukebox.setAutoAdvance(true);
+        jukebox.addSong(sample("scale.abc"));
+        jukebox.addSong(sample("scale.abc"));
+        assertEquals(1, jukebox.getTempoFactor(), 0);
+        final Recorder recorder = new Recorder();
+        jukebox.addListener(recorder, Subscription.of(Optional.empty(), Type.SONG_START));
+
+        jukebox.setTempoFactor(0.75);
+        assertTrue(jukebox.play());
+        loader.awaitLoads(2);
+        assertEquals(Arrays.asList(0.75), loader.player(0).tempoFactors());
+        jukebox.setTempoFactor(Jukebox.MAX_TEMPO_FACTOR);
+        assertEquals(Arrays.asList(0.75, Jukebox.MAX_TEMPO_FACTOR), loader.player(0).tempoFactors());
+        assertEquals(Arrays.asList("tempo 0.75", "2 SONG_START", "tempo " + Jukebox.MAX_TEMPO_FACTOR),
+                recorder.received);
+
+        for (double outOfRange : new double[] { 0, Jukebox.MIN_TEMPO_FACTOR / 2, Jukebox.MAX_TEMPO_FACTOR * 2, Double.NaN }) {
+            try {
+                jukebox.setTempoFactor(outOfRange);
+                fail("should not set tempo factor " + outOfRange);
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+        assertEquals(Jukebox.MAX_TEMPO_FACTOR, jukebox.getTempoFactor(), 0);
+
+        loader.player(0).finish();
+        awaitPlaying(jukebox);
+        assertEquals(Arrays.asList(Jukebox.MAX_TEMPO_FACTOR), loader.player(1).tempoFactors());
+        loader.player(1).finish();
+        jukebox.setTempoFactor(1);
+        assertEquals(Arrays.asList(Jukebox.MAX_TEMPO_FACTOR), loader.player(1).tempoFactors());
+    }
+
+}
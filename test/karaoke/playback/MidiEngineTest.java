@@ -0,0 +1,133 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+
+import org.junit.Test;
+
+import karaoke.music.Instrument;
+import karaoke.music.Pitch;
+
+/**
+ * Test MidiEngine.
+ * @category no_didit
+ */
+public class MidiEngineTest {
+
+    /* Testing strategy
+     *  shared(): called once, called again
+     *  loadInstrument(): instrument not loaded yet, already loaded
+     *  acquireSequencer(): pooled sequencer free, pooled sequencer in use
+     *  songs played: one after another on the pooled sequencer
+     *  play(): future completes after the end of track, with the sequencer released
+     *  toString(): before and after songs play, before and after songs end
+     *
+     * Cover all parts
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // helper to play a short song on engine and wait until it ends
+    private static void playShortSong(MidiEngine engine, Instrument instrument)
+            throws InvalidMidiDataException, InterruptedException {
+        MidiSequencePlayer player = new MidiSequencePlayer(engine, 240, 64);
+        player.addNote(instrument, Pitch.MIDDLE_C, 0, 1);
+        CountDownLatch done = new CountDownLatch(1);
+        player.addEvent(1, beat -> done.countDown());
+        player.play();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    // shared() called twice; loadInstrument() loaded and not loaded
+    @Test
+    public void testSharedAndInstruments() throws MidiUnavailableException {
+        MidiEngine engine = MidiEngine.shared();
+        assertSame(engine, MidiEngine.shared());
+        assertSame(engine, MidiEngine.sharedIfOpen().get());
+
+        engine.loadInstrument(Instrument.MARIMBA);
+        String loaded = engine.toString();
+        engine.loadInstrument(Instrument.MARIMBA);
+        assertEquals(loaded, engine.toString());
+    }
+
+    // acquireSequencer() with the pooled sequencer free and in use
+    @Test
+    public void testAcquireSequencer() throws MidiUnavailableException {
+        MidiEngine engine = MidiEngine.shared();
+        Sequencer pooled = engine.acquireSequencer();
+        Sequencer extra = engine.acquireSequencer();
+        assertTrue(pooled != extra);
+        assertTrue(extra.isOpen());
+        engine.releaseSequencer(extra);
+        engine.releaseSequencer(pooled);
+
+        assertTrue(pooled.isOpen());
+        assertSame(pooled, engine.acquireSequencer());
+        engine.releaseSequencer(pooled);
+    }
+
+    // songs played one after another; toString() reports their latency
+    @Test
+    public void testSongsReuseEngine() throws MidiUnavailableException, InvalidMidiDataException, InterruptedException {
+        MidiEngine engine = MidiEngine.shared();
+        playShortSong(engine, Instrument.PIANO);
+        playShortSong(engine, Instrument.VIOLIN);
+
+        String report = engine.toString();
+        assertTrue(report, report.contains("load latency: "));
+        assertTrue(report, !report.contains("no songs played"));
+    }
+
+    /* helper to get the number of sequencers engine has made */
+    private static String sequencersCreated(MidiEngine engine) {
+        for (String line : engine.toString().split("\n"))
+            if (line.startsWith("sequencers created: "))
+                return line;
+        throw new AssertionError("no sequencer count in " + engine);
+    }
+
+    // play(): future completes soon after the end of track, ready for the next song on the pooled sequencer
+    @Test
+    public void testReadyAfterEndOfTrack() throws MidiUnavailableException, InvalidMidiDataException,
+            InterruptedException, ExecutionException, TimeoutException {
+        MidiEngine engine = MidiEngine.shared();
+        final int songs = 5;
+        final String created = sequencersCreated(engine);
+        long total = 0;
+        long worst = 0;
+        for (int i = 0; i < songs; i++) {
+            MidiSequencePlayer player = new MidiSequencePlayer(engine, 240, 64);
+            player.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 0, 1);
+            AtomicLong ended = new AtomicLong();
+            player.addEvent(1, beat -> ended.set(System.nanoTime()));
+            player.play().get(10, TimeUnit.SECONDS);
+            final long ready = System.nanoTime() - ended.get();
+            total += ready;
+            worst = Math.max(worst, ready);
+        }
+
+        System.out.println(String.format("%d songs: %.1f ms mean, %.1f ms max from the last beat to ready"
+                + " for the next song", songs, total / songs / 1e6, worst / 1e6));
+        assertEquals(created, sequencersCreated(engine));
+        assertTrue("took " + worst + " ns", worst < TimeUnit.MILLISECONDS.toNanos(500));
+        String report = engine.toString();
+        assertTrue(report, report.contains("ready latency: "));
+        assertTrue(report, !report.contains("ready latency: no songs played"));
+    }
+
+}
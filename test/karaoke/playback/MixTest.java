@@ -0,0 +1,75 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Test Mix.
+ */
+public class MixTest {
+
+    /* Testing strategy
+     *  muted(): mute, unmute, voice already in that state
+     *  soloed(): solo, unsolo; no voice soloed, one, several
+     *  sounds(): voice muted, soloed, muted and soloed, neither, with and without others soloed
+     *  equals(), hashCode(): same changes in another order; toString(): all voices, some changed
+     *
+     * Cover all parts
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // muted(): mute, unmute, already in that state; sounds(): muted, neither; toString(): all voices
+    @Test
+    public void testMuted() {
+        Mix mix = Mix.ALL_VOICES.muted("alto", true).muted("bass", true).muted("bass", true);
+        assertEquals(new TreeSet<>(Arrays.asList("alto", "bass")), mix.getMuted());
+        assertFalse(mix.sounds("alto"));
+        assertTrue(mix.sounds("tenor"));
+
+        Mix unmuted = mix.muted("alto", false).muted("bass", false).muted("tenor", false);
+        assertTrue(unmuted.sounds("alto"));
+        assertEquals(Mix.ALL_VOICES, unmuted);
+        assertEquals("all voices", unmuted.toString());
+        assertFalse("mix should be immutable", mix.sounds("alto"));
+    }
+
+    // soloed(): solo one, several, unsolo; sounds(): soloed, muted and soloed, not soloed with others soloed
+    @Test
+    public void testSoloed() {
+        Mix one = Mix.ALL_VOICES.soloed("soprano", true);
+        assertTrue(one.sounds("soprano"));
+        assertFalse(one.sounds("alto"));
+
+        Mix several = one.soloed("alto", true).muted("alto", true);
+        assertEquals(new TreeSet<>(Arrays.asList("alto", "soprano")), several.getSoloed());
+        assertFalse(several.sounds("alto"));
+        assertTrue(several.sounds("soprano"));
+        assertFalse(several.sounds("bass"));
+        assertEquals("muted: [alto], solo: [alto, soprano]", several.toString());
+
+        Mix none = several.soloed("alto", false).soloed("soprano", false);
+        assertTrue(none.sounds("bass"));
+        assertFalse(none.sounds("alto"));
+    }
+
+    // equals(), hashCode(): same changes in another order
+    @Test
+    public void testEquals() {
+        Mix mix = Mix.ALL_VOICES.muted("1", true).soloed("2", true).soloed("3", true);
+        Mix same = Mix.ALL_VOICES.soloed("3", true).soloed("2", true).muted("1", true);
+        assertEquals(mix, same);
+        assertEquals(mix.hashCode(), same.hashCode());
+        assertFalse(mix.equals(Mix.ALL_VOICES.muted("1", true).soloed("2", true)));
+    }
+
+}
@@ -0,0 +1,80 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.parser.ABCParser;
+import karaoke.songs.ABC;
+
+/**
+ * Test that TimelineCache only compiles songs it has not seen before.
+ */
+public class TimelineCacheTest {
+
+    /* Testing strategy
+     *  input:
+     *      same song requested once, many times; equal songs that are different objects
+     *      cache within bounds, over max timelines
+     *
+     *  output:
+     *      hit, miss, eviction
+     *
+     * Cover all parts
+     */
+
+    private static final String SONG_1 = "X:1\nT:one\nK:C\nC D E F|\n";
+    private static final String SONG_2 = "X:2\nT:two\nK:C\nG A B c|\n";
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // input: requested many times; output: miss then hits
+    @Test
+    public void testRepeatedHits() throws UnableToParseException {
+        TimelineCache cache = new TimelineCache(4);
+        ABC song = ABCParser.parse(SONG_1);
+
+        Timeline first = cache.get(song);
+        assertSame(first, cache.get(song));
+        assertSame(first, cache.get(song));
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.hits());
+        assertEquals(4, first.size());
+        assertEquals(MidiSequencePlayer.DEFAULT_TICKS_PER_BEAT, first.ticksPerBeat());
+    }
+
+    // input: equal songs that are different objects; output: miss each
+    @Test
+    public void testByIdentity() throws UnableToParseException {
+        TimelineCache cache = new TimelineCache(4);
+        ABC song = ABCParser.parse(SONG_1);
+        ABC same = ABCParser.parse(SONG_1);
+
+        assertEquals(song, same);
+        assertNotSame(cache.get(song), cache.get(same));
+        assertEquals(2, cache.misses());
+    }
+
+    // input: over max timelines; output: eviction of least recently used
+    @Test
+    public void testEviction() throws UnableToParseException {
+        TimelineCache cache = new TimelineCache(1);
+        ABC one = ABCParser.parse(SONG_1);
+        ABC two = ABCParser.parse(SONG_2);
+
+        cache.get(one);
+        cache.get(two);
+        cache.get(one);
+        assertEquals(3, cache.misses());
+        assertEquals(1, cache.size());
+        assertTrue(cache.toString(), cache.toString().contains("evictions: 2"));
+    }
+
+}
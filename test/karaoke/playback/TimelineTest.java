@@ -0,0 +1,221 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.Lyric;
+import karaoke.music.Concat;
+import karaoke.music.Instrument;
+import karaoke.music.Music;
+import karaoke.music.Note;
+import karaoke.music.Pitch;
+import karaoke.parser.ABCParser;
+import karaoke.songs.ABC;
+import karaoke.songs.Key;
+
+/**
+ * Test that Timeline flattens songs into the same notes and lyrics that Music.load plays.
+ */
+public class TimelineTest {
+
+    /* Testing strategy
+     *  input:
+     *      song has 1 voice part, many voice parts
+     *      song has chords, tuplets, rests, repeats, lyrics, no lyrics
+     *      ticks per beat: default, small enough that notes round to a tick
+     *      music tree is shallow, 1M notes deep
+     *
+     *  output:
+     *      events match Music.load, events are sorted per voice part and by time,
+     *      seek to before first event, between events, after last event,
+     *      instruments and lyrics tables
+     *
+     * Cover all parts
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* SequencePlayer that records scheduled notes and lyric events as strings, in ticks */
+    private static class RecordingPlayer implements SequencePlayer {
+        private final int ticksPerBeat;
+        private final List<String> events = new ArrayList<>();
+
+        private RecordingPlayer(int ticksPerBeat) {
+            this.ticksPerBeat = ticksPerBeat;
+        }
+
+        @Override
+        public void addNote(Instrument instr, Pitch pitch, double startBeat, double numBeats) {
+            events.add("note " + instr + " " + pitch + " " + (int) (startBeat * ticksPerBeat)
+                    + "-" + (int) ((startBeat + numBeats) * ticksPerBeat));
+        }
+
+        @Override
+        public void addEvent(double atBeat, Consumer<Double> callback) {
+            final int tick = (int) (atBeat * ticksPerBeat);
+            callback.accept(atBeat);
+            events.set(events.size() - 1, events.get(events.size() - 1) + " at " + tick);
+        }
+
+        @Override public CompletableFuture<Void> play() { return CompletableFuture.completedFuture(null); }
+
+        /* the lyric consumer to use with this player */
+        private void lyric(Lyric lyric) {
+            events.add("lyric " + lyric.getVoice() + " " + lyric.toPlainText());
+        }
+
+        private List<String> sorted() {
+            final List<String> copy = new ArrayList<>(events);
+            Collections.sort(copy);
+            return copy;
+        }
+    }
+
+    /* helper to parse an abc file */
+    private static ABC parseFile(File file) throws IOException, UnableToParseException {
+        return ABCParser.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /* helper to assert that a song's timeline plays the same notes and lyrics as its music */
+    private static void assertSameAsMusic(ABC song, int ticksPerBeat) {
+        RecordingPlayer expected = new RecordingPlayer(ticksPerBeat);
+        song.getMusic().load(expected, 0, expected::lyric);
+        RecordingPlayer actual = new RecordingPlayer(ticksPerBeat);
+        Timeline.compile(song, ticksPerBeat).load(actual, actual::lyric);
+        assertEquals(expected.sorted(), actual.sorted());
+    }
+
+    /* helper to assert that a timeline is sorted within each voice part and in time order */
+    private static void assertSorted(Timeline timeline) {
+        for (int v = 0; v < timeline.voices().size(); v++)
+            for (int i = timeline.voiceStart(v) + 1; i < timeline.voiceEnd(v); i++)
+                assertTrue(timeline.startTick(i - 1) <= timeline.startTick(i));
+        boolean[] seen = new boolean[timeline.size()];
+        for (int k = 0; k < timeline.size(); k++) {
+            seen[timeline.eventAtTime(k)] = true;
+            if (k > 0)
+                assertTrue(timeline.startTick(timeline.eventAtTime(k - 1)) <= timeline.startTick(timeline.eventAtTime(k)));
+        }
+        for (boolean event : seen)
+            assertTrue(event);
+    }
+
+    // input: every sample song that parses, default and coarse ticks per beat
+    @Test
+    public void testSampleFilesMatchMusic() throws IOException {
+        File[] files = new File("sample-abc").listFiles((dir, name) -> name.endsWith(".abc"));
+        int compiled = 0;
+        for (File file : files) {
+            final ABC song;
+            try {
+                song = parseFile(file);
+            } catch (UnableToParseException e) {
+                continue;
+            }
+            assertSameAsMusic(song, MidiSequencePlayer.DEFAULT_TICKS_PER_BEAT);
+            assertSameAsMusic(song, 4);
+            assertSorted(Timeline.compile(song));
+            compiled++;
+        }
+        assertTrue(compiled > 0);
+    }
+
+    // input: many voice parts, lyrics; output: voice slices, lyrics table
+    @Test
+    public void testVoicesAndLyrics() throws UnableToParseException {
+        ABC song = ABCParser.parse("X:1\nT:t\nV:2\nV:1\nK:C\nV:2\nC D E|\nw: do re mi\nV:1\n[CE] z G|\nw: fa so\n");
+        Timeline timeline = Timeline.compile(song);
+
+        assertEquals(Arrays.asList("1", "2"), timeline.voices());
+        assertEquals(6, timeline.size());
+        assertEquals(0, timeline.voiceStart(0));
+        assertEquals(3, timeline.voiceEnd(0));
+        assertEquals(3, timeline.voiceStart(1));
+        assertEquals(6, timeline.voiceEnd(1));
+        assertEquals(Arrays.asList(Instrument.PIANO), timeline.instruments());
+        assertEquals(0, timeline.instrumentIndex(4));
+
+        // voice 2: C D E at beats 0, 1, 2 with one lyric each
+        assertEquals(60, timeline.midiNote(3));
+        assertEquals(2 * timeline.ticksPerBeat(), timeline.startTick(5));
+        assertEquals(timeline.ticksPerBeat(), timeline.durationTick(3));
+        assertEquals(Optional.of(timeline.lyrics().get(timeline.lyricIndex(3))), timeline.lyric(3));
+        assertTrue(timeline.lyric(3).get().getVoice().equals("2"));
+        assertEquals(3 * timeline.ticksPerBeat(), timeline.endTick());
+        assertSorted(timeline);
+    }
+
+    // output: seek before first event, between events, after last event
+    @Test
+    public void testSeek() throws UnableToParseException {
+        Timeline timeline = Timeline.compile(ABCParser.parse("X:1\nT:t\nK:C\nC D z E|\n"));
+        final int beat = timeline.ticksPerBeat();
+
+        assertEquals(0, timeline.seek(0));
+        assertEquals(1, timeline.seek(1));
+        assertEquals(1, timeline.seek(beat));
+        assertEquals(2, timeline.seek(beat + 1));
+        assertEquals(2, timeline.seek(3 * beat));
+        assertEquals(3, timeline.seek(3 * beat + 1));
+        assertEquals(4 * beat, timeline.endTick());
+    }
+
+    // input: tuplets, coarse ticks per beat; output: notes rounded down to ticks like MIDI
+    @Test
+    public void testTupletRounding() throws UnableToParseException {
+        ABC song = ABCParser.parse("X:1\nT:t\nL:1/4\nK:C\n(3CDE F|\n");
+        Timeline timeline = Timeline.compile(song, 4);
+
+        // triplet notes last 2/3 beat, 8/3 ticks
+        assertEquals(4, timeline.size());
+        assertEquals(0, timeline.startTick(0));
+        assertEquals(2, timeline.startTick(1));
+        assertEquals(5, timeline.startTick(2));
+        assertEquals(8, timeline.startTick(3));
+        assertEquals(5 - 2, timeline.durationTick(1));
+        assertSameAsMusic(song, 4);
+    }
+
+    // input: music tree 1M notes deep; output: all notes compiled in order
+    @Test
+    public void testDeepMusic() {
+        final int notes = 1_000_000;
+        Music music = new Note(1, Pitch.MIDDLE_C, Instrument.PIANO, Optional.empty());
+        for (int i = 1; i < notes; i++)
+            music = new Concat(music, new Note(1, Pitch.MIDDLE_C.transpose(i % 12), Instrument.PIANO, Optional.empty()));
+        Map<String, Music> parts = new HashMap<>();
+        parts.put("1", music);
+        Map<Character, Object> fields = new HashMap<>();
+        fields.put('X', 1);
+        fields.put('T', "deep");
+        fields.put('K', Key.valueOf("C"));
+        Timeline timeline = Timeline.compile(new ABC(parts, fields), 4);
+
+        assertEquals(notes, timeline.size());
+        assertEquals(4 * notes, timeline.endTick());
+        assertEquals(4 * (notes - 1), timeline.startTick(notes - 1));
+        assertEquals(60 + (notes - 1) % 12, timeline.midiNote(notes - 1));
+        assertSorted(timeline);
+    }
+
+}
@@ -0,0 +1,216 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.Test;
+
+/**
+ * Test TrackBuffer, including a benchmark of loading a large score into a track through it and with
+ * one Track.add() per event; needs no MIDI device.
+ */
+public class TrackBufferTest {
+
+    /* Testing strategy
+     *  addShort(): in range; command, channel, data out of range
+     *  addMarker(): keepalive, numbered marker
+     *  flush(): nothing waiting; events out of order of tick, several at one tick; after an earlier flush,
+     *      with events before and after the ones already flushed
+     *  tracks built through the buffer and one event at a time: same events in the same order;
+     *      load time for scores of many notes in several voices, loaded one voice after another
+     *
+     * Cover all parts
+     */
+
+    private static final int TICKS_PER_BEAT = 64;
+    private static final int VOICES = 4;
+    private static final int VELOCITY = 100;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to make an empty track */
+    private static Track newTrack() {
+        try {
+            return new Sequence(Sequence.PPQ, TICKS_PER_BEAT).createTrack();
+        } catch (InvalidMidiDataException imde) {
+            throw new AssertionError(imde);
+        }
+    }
+
+    /* @return each event of track as its tick and message bytes */
+    private static List<String> describe(Track track) {
+        final List<String> events = new ArrayList<>();
+        for (int i = 0; i < track.size(); i++)
+            events.add(track.get(i).getTick() + " " + Arrays.toString(track.get(i).getMessage().getMessage()));
+        return events;
+    }
+
+    // addShort(): in range; flush(): nothing waiting, out of order, several at one tick
+    @Test
+    public void testSortedOnFlush() throws InvalidMidiDataException {
+        Track track = newTrack();
+        TrackBuffer buffer = new TrackBuffer(track);
+        buffer.flush();
+        assertEquals(1, track.size()); // end of track
+
+        buffer.addShort(ShortMessage.NOTE_ON, 1, 60, VELOCITY, 0);
+        buffer.addShort(ShortMessage.NOTE_OFF, 1, 60, VELOCITY, 64);
+        buffer.addShort(ShortMessage.NOTE_ON, 1, 62, VELOCITY, 64);
+        buffer.addShort(ShortMessage.PROGRAM_CHANGE, 2, 40, VELOCITY, 0);
+        buffer.addShort(ShortMessage.NOTE_ON, 2, 67, VELOCITY, 0);
+        assertEquals(5, buffer.size());
+        buffer.flush();
+        assertEquals(0, buffer.size());
+
+        assertEquals(Arrays.asList("0 [-111, 60, 100]", "0 [-62, 40]", "0 [-110, 67, 100]",
+                "64 [-127, 60, 100]", "64 [-111, 62, 100]", "64 [-1, 47, 0]"), describe(track));
+    }
+
+    // addShort(): out of range
+    @Test
+    public void testOutOfRange() {
+        TrackBuffer buffer = new TrackBuffer(newTrack());
+        final int[][] invalid = {
+            { 0x70, 0, 60, VELOCITY }, { ShortMessage.NOTE_ON + 1, 0, 60, VELOCITY },
+            { ShortMessage.NOTE_ON, 16, 60, VELOCITY }, { ShortMessage.NOTE_ON, 0, 128, VELOCITY },
+            { ShortMessage.NOTE_ON, 0, 60, -1 },
+        };
+        for (int[] message : invalid) {
+            try {
+                buffer.addShort(message[0], message[1], message[2], message[3], 0);
+                throw new AssertionError("should not buffer " + Arrays.toString(message));
+            } catch (InvalidMidiDataException imde) {
+                // expected
+            }
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    // addMarker(): keepalive, numbered; flush() after an earlier flush, before and after it
+    @Test
+    public void testMarkersAndSecondFlush() throws InvalidMidiDataException {
+        Track track = newTrack();
+        TrackBuffer buffer = new TrackBuffer(track);
+        buffer.addMarker(7, 10);
+        buffer.addMarker(0, 11);
+        buffer.addMarker(0, 21);
+        buffer.flush();
+        buffer.addShort(ShortMessage.NOTE_ON, 0, 60, VELOCITY, 30);
+        buffer.addShort(ShortMessage.NOTE_ON, 0, 62, VELOCITY, 5);
+        buffer.flush();
+
+        assertEquals(7, CallbackTable.number((MetaMessage) track.get(1).getMessage()));
+        assertEquals(0, CallbackTable.number((MetaMessage) track.get(2).getMessage()));
+        assertSame(track.get(2).getMessage(), track.get(3).getMessage());
+        assertEquals(Arrays.asList(5L, 10L, 11L, 21L, 30L, 30L),
+                Arrays.asList(track.get(0).getTick(), track.get(1).getTick(), track.get(2).getTick(),
+                        track.get(3).getTick(), track.get(4).getTick(), track.get(5).getTick()));
+    }
+
+    /* Adds the events of a score to a track. */
+    private interface Loader {
+        void note(int channel, int note, int startTick, int endTick) throws InvalidMidiDataException;
+        void done();
+    }
+
+    /*
+     * Load a synthetic score of notes in VOICES voices one voice after another, as Timeline and Music do,
+     * each note's NOTE_OFF right after its NOTE_ON, with a marker for a lyric on every fourth note.
+     */
+    private static void loadScore(int notes, Loader loader) throws InvalidMidiDataException {
+        final int perVoice = notes / VOICES;
+        for (int voice = 0; voice < VOICES; voice++) {
+            for (int n = 0; n < perVoice; n++) {
+                final int start = n * TICKS_PER_BEAT / 2 + voice;
+                loader.note(voice, 48 + (n * 7 + voice) % 36, start, start + TICKS_PER_BEAT / 2 + voice);
+            }
+        }
+        loader.done();
+    }
+
+    /* Loader with one Track.add() per event. */
+    private static Loader eventByEvent(Track track) {
+        return new Loader() {
+            private int markers = 0;
+            @Override public void note(int channel, int note, int startTick, int endTick) throws InvalidMidiDataException {
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, note, VELOCITY), startTick));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, note, VELOCITY), endTick));
+                if (note % 4 == 0) {
+                    track.add(new MidiEvent(CallbackTable.marker(++markers), startTick));
+                    track.add(new MidiEvent(CallbackTable.marker(0), startTick + 1));
+                }
+            }
+            @Override public void done() { }
+        };
+    }
+
+    /* Loader through a TrackBuffer. */
+    private static Loader buffered(Track track) {
+        final TrackBuffer buffer = new TrackBuffer(track);
+        return new Loader() {
+            private int markers = 0;
+            @Override public void note(int channel, int note, int startTick, int endTick) throws InvalidMidiDataException {
+                buffer.addShort(ShortMessage.NOTE_ON, channel, note, VELOCITY, startTick);
+                buffer.addShort(ShortMessage.NOTE_OFF, channel, note, VELOCITY, endTick);
+                if (note % 4 == 0) {
+                    buffer.addMarker(++markers, startTick);
+                    buffer.addMarker(0, startTick + 1);
+                }
+            }
+            @Override public void done() {
+                buffer.flush();
+            }
+        };
+    }
+
+    // same events in the same order as one event at a time
+    @Test
+    public void testSameAsEventByEvent() throws InvalidMidiDataException {
+        Track expected = newTrack();
+        Track actual = newTrack();
+        loadScore(2000, eventByEvent(expected));
+        loadScore(2000, buffered(actual));
+        assertEquals(describe(expected), describe(actual));
+    }
+
+    /* @return milliseconds to load a score of notes with the loader made for a new track */
+    private static double millisToLoad(int notes, boolean buffer) throws InvalidMidiDataException {
+        final Track track = newTrack();
+        final long start = System.nanoTime();
+        loadScore(notes, buffer ? buffered(track) : eventByEvent(track));
+        return (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    // load time for scores of many notes, loaded one voice after another
+    @Test
+    public void testLoadBenchmark() throws InvalidMidiDataException {
+        // warm up both paths
+        millisToLoad(20000, false);
+        millisToLoad(20000, true);
+        for (int notes : new int[] { 5000, 10000, 20000 })
+            System.out.println(String.format("%6d notes in %d voices: %8.1f ms one event at a time, %6.1f ms buffered",
+                    notes, VOICES, millisToLoad(notes, false), millisToLoad(notes, true)));
+        // one event at a time grows with the square of the notes, so a big score is only loaded buffered
+        final int notes = 200000;
+        final double millis = millisToLoad(notes, true);
+        System.out.println(String.format("%6d notes in %d voices: %6.1f ms buffered", notes, VOICES, millis));
+        assertTrue("took " + millis + " ms", millis < TimeUnit.SECONDS.toMillis(30));
+    }
+
+}
@@ -0,0 +1,293 @@
+package karaoke.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.music.Instrument;
+import karaoke.music.Pitch;
+import karaoke.parser.SongCache;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.songs.ABC;
+
+/**
+ * Test VirtualClock and VirtualSequencePlayer, and play every song of sample-abc through a jukebox
+ * on a virtual clock, checking when each lyric is sung.
+ */
+public class VirtualSequencePlayerTest {
+
+    /* Testing strategy
+     *  VirtualClock:
+     *      schedule(): out of order of time, several at one time, in the past, from a running task
+     *      advance(): to before, at, after a task; runUntilIdle(): tasks waiting, none
+     *      task throws
+     *  VirtualSequencePlayer:
+     *      play(): nothing called back until the clock advances, events at their virtual times,
+     *          future completes at the end of the last note; callback throws; two songs on one clock
+     *      setTempoFactor(): before play(), between events, from a callback; slower, faster
+     *  Jukebox on a virtual clock:
+     *      every song of sample-abc: lyrics at the times of their notes, song ends at its duration
+     *      auto-advance through every song of sample-abc queued at once
+     *      tempo factor: set before a song plays, changed while it plays
+     *
+     * Cover all parts
+     */
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    // sample songs the grammar does not parse yet
+    private static final List<String> UNPARSED = Arrays.asList("lyricsMulti.abc", "piece1.abc", "piece3.abc");
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // schedule(): out of order, several at one time, in the past, from a running task;
+    // advance(): before, at, after a task; runUntilIdle(): waiting, none
+    @Test
+    public void testClock() {
+        VirtualClock clock = new VirtualClock();
+        List<String> ran = new ArrayList<>();
+        clock.schedule(2 * SECOND, () -> ran.add("c at " + clock.now()));
+        clock.schedule(SECOND, () -> ran.add("a at " + clock.now()));
+        clock.schedule(SECOND, () -> {
+            ran.add("b at " + clock.now());
+            clock.schedule(0, () -> ran.add("past at " + clock.now()));
+            clock.schedule(3 * SECOND, () -> ran.add("d at " + clock.now()));
+        });
+
+        assertEquals(0, clock.advance(SECOND - 1));
+        assertEquals(SECOND - 1, clock.now());
+        assertEquals(3, clock.advance(1));
+        assertEquals(Arrays.asList("a at 1000000000", "b at 1000000000", "past at 1000000000"), ran);
+        assertEquals(1, clock.advance(SECOND + 1));
+        assertEquals(2 * SECOND + 1, clock.now());
+        assertEquals(1, clock.pending());
+        assertEquals(1, clock.runUntilIdle());
+        assertEquals(3 * SECOND, clock.now());
+        assertEquals(0, clock.runUntilIdle());
+        assertEquals("virtual clock at 3000000000 ns, 5 tasks run, 0 waiting", clock.toString());
+    }
+
+    // task throws
+    @Test
+    public void testTaskThrows() {
+        VirtualClock clock = new VirtualClock();
+        RuntimeException problem = new RuntimeException("task failed");
+        clock.schedule(SECOND, () -> { throw problem; });
+        clock.schedule(2 * SECOND, () -> { });
+        try {
+            clock.runUntilIdle();
+            throw new AssertionError("should have thrown");
+        } catch (RuntimeException e) {
+            assertSame(problem, e);
+        }
+        assertEquals(SECOND, clock.now());
+        assertEquals(1, clock.pending());
+    }
+
+    // play(): nothing until advanced, at virtual times, completes at end of last note; two songs on one clock
+    @Test
+    public void testPlay() {
+        VirtualClock clock = new VirtualClock();
+        List<String> called = new ArrayList<>();
+        // 60 beats per minute: a second per beat
+        VirtualSequencePlayer first = new VirtualSequencePlayer(clock, 60, 4);
+        first.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 0, 3);
+        first.addEvent(1, beat -> called.add("first " + beat + " at " + clock.now()));
+        first.addEvent(0, beat -> called.add("first " + beat + " at " + clock.now()));
+        VirtualSequencePlayer second = new VirtualSequencePlayer(clock, 120, 4);
+        second.addEvent(1, beat -> called.add("second " + beat + " at " + clock.now()));
+
+        CompletableFuture<Void> firstDone = first.play();
+        clock.advance(SECOND / 4);
+        CompletableFuture<Void> secondDone = second.play();
+        assertEquals(Arrays.asList("first 0.0 at 0"), called);
+        assertEquals(4, clock.runUntilIdle());
+
+        assertEquals(Arrays.asList("first 0.0 at 0", "second 1.0 at 750000000", "first 1.0 at 1000000000"), called);
+        assertTrue(firstDone.isDone() && !firstDone.isCompletedExceptionally());
+        assertTrue(secondDone.isDone());
+        assertEquals(3 * SECOND, clock.now());
+    }
+
+    // setTempoFactor(): before play(), faster; between events, slower; from a callback, faster
+    @Test
+    public void testTempoFactor() {
+        VirtualClock clock = new VirtualClock();
+        List<String> called = new ArrayList<>();
+        // 60 beats per minute: a second per beat, at a tempo factor of 1
+        VirtualSequencePlayer player = new VirtualSequencePlayer(clock, 60, 4);
+        player.addNote(Instrument.PIANO, Pitch.MIDDLE_C, 0, 4);
+        player.addEvent(1, beat -> called.add(beat + " at " + clock.now()));
+        player.addEvent(2, beat -> {
+            called.add(beat + " at " + clock.now());
+            player.setTempoFactor(1);
+        });
+        player.addEvent(3, beat -> called.add(beat + " at " + clock.now()));
+        player.setTempoFactor(2);
+
+        CompletableFuture<Void> done = player.play();
+        clock.advance(3 * SECOND / 4);
+        assertEquals(Arrays.asList("1.0 at 500000000"), called);
+        // half a beat in, the second beat is half a beat away at half the tempo
+        player.setTempoFactor(0.5);
+        // the task for the second beat at twice the tempo still runs, but calls nothing back
+        assertEquals(1, clock.advance(SECOND / 2));
+        assertEquals(Arrays.asList("1.0 at 500000000"), called);
+        clock.runUntilIdle();
+
+        assertEquals(Arrays.asList("1.0 at 500000000", "2.0 at 1750000000", "3.0 at 2750000000"), called);
+        assertTrue(done.isDone() && !done.isCompletedExceptionally());
+        assertEquals(3750000000L, clock.now());
+    }
+
+    // play(): callback throws
+    @Test
+    public void testCallbackThrows() {
+        VirtualClock clock = new VirtualClock();
+        List<Double> called = new ArrayList<>();
+        VirtualSequencePlayer player = new VirtualSequencePlayer(clock, 60, 4);
+        player.addEvent(1, beat -> { throw new IllegalStateException("listener failed"); });
+        player.addEvent(2, called::add);
+
+        CompletableFuture<Void> done = player.play();
+        clock.runUntilIdle();
+        assertTrue(done.isCompletedExceptionally());
+        assertEquals(Arrays.asList(), called);
+    }
+
+    /* helper to list the .abc files of sample-abc that parse */
+    private static List<File> corpus() {
+        final File[] files = new File("sample-abc").listFiles((dir, name) -> name.endsWith(".abc")
+                && !UNPARSED.contains(name));
+        assertTrue("no sample songs", files != null && files.length > 0);
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /* @return the lyric signals a jukebox should broadcast as song plays, each at its virtual time, and then
+     *         the end of the song */
+    private static List<String> expectedSignals(ABC song) {
+        final Timeline timeline = TimelineCache.shared().get(song);
+        final VirtualSequencePlayer timing = new VirtualSequencePlayer(new VirtualClock(),
+                timeline.beatsPerMinute(), timeline.ticksPerBeat());
+        final List<String> expected = new ArrayList<>();
+        expected.add("SONG_START at 0");
+        for (int k = 0; k < timeline.size(); k++) {
+            final int event = timeline.eventAtTime(k);
+            if (timeline.lyric(event).isPresent())
+                expected.add(timeline.lyric(event).get().toPlainText() + " at " + timing.nanosAt(timeline.startTick(event)));
+        }
+        final int endTick = (int) (song.getMusic().duration() * timeline.ticksPerBeat());
+        expected.add("SONG_END at " + timing.nanosAt(endTick));
+        return expected;
+    }
+
+    // Jukebox on a virtual clock: every song of sample-abc, lyrics at the times of their notes
+    @Test
+    public void testCorpusLyricTiming() throws IOException, UnableToParseException {
+        final SongCache songs = new SongCache();
+        long songNanos = 0;
+        final long start = System.nanoTime();
+        for (File file : corpus()) {
+            final ABC song = songs.get(file);
+            final VirtualClock clock = new VirtualClock();
+            final Jukebox jukebox = new Jukebox(clock);
+            final List<String> received = new ArrayList<>();
+            jukebox.addSong(song);
+            final long[] started = new long[1];
+            jukebox.addListener(signal -> {
+                if (signal.getType() == Signal.Type.SONG_START)
+                    started[0] = clock.now();
+                if (signal.getType() != Signal.Type.SONG_CHANGE)
+                    received.add(signal + " at " + (clock.now() - started[0]));
+            });
+
+            assertTrue(file.getName(), jukebox.play());
+            clock.runUntilIdle();
+            assertEquals(file.getName(), expectedSignals(song), received);
+            assertFalse(file.getName(), jukebox.isPlaying());
+            songNanos += clock.now();
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d sample songs, %.0f s of music, played on a virtual clock in %.0f ms",
+                corpus().size(), songNanos / (double) SECOND, elapsed / 1e6));
+    }
+
+    /* @return virtual time of a signal expected by expectedSignals() */
+    private static long timeOf(String expected) {
+        return Long.parseLong(expected.substring(expected.lastIndexOf(" at ") + " at ".length()));
+    }
+
+    // Jukebox on a virtual clock: tempo factor set before a song plays, changed while it plays
+    @Test
+    public void testJukeboxTempoFactor() throws IOException, UnableToParseException {
+        final ABC song = new SongCache().get(new File("sample-abc", "waxies_dargle.abc"));
+        final VirtualClock clock = new VirtualClock();
+        final Jukebox jukebox = new Jukebox(clock);
+        final List<String> received = new ArrayList<>();
+        jukebox.addListener(signal -> {
+            if (signal.getType() != Signal.Type.SONG_CHANGE)
+                received.add(signal + " at " + clock.now());
+        });
+        jukebox.addSong(song);
+        jukebox.setTempoFactor(0.5);
+        assertEquals(0.5, jukebox.getTempoFactor(), 0);
+
+        // play at half the tempo for as long as the song is written to last, so half of it is sung,
+        // then at twice the tempo
+        final List<String> written = expectedSignals(song);
+        final long length = timeOf(written.get(written.size() - 1));
+        final long halfway = length / 2;
+        final List<String> expected = new ArrayList<>();
+        for (String signal : written) {
+            final long at = timeOf(signal);
+            final long scaled = at <= halfway ? 2 * at : length + Math.round((at - halfway) / 2.0);
+            expected.add(signal.substring(0, signal.lastIndexOf(" at ")) + " at " + scaled);
+        }
+        assertTrue(jukebox.play());
+        clock.advance(length);
+        jukebox.setTempoFactor(2);
+        clock.runUntilIdle();
+
+        assertEquals(expected, received);
+        assertFalse(jukebox.isPlaying());
+    }
+
+    // Jukebox on a virtual clock: auto-advance through the whole corpus queued at once
+    @Test
+    public void testCorpusAutoAdvance() throws IOException, UnableToParseException {
+        final SongCache songs = new SongCache();
+        final VirtualClock clock = new VirtualClock();
+        final Jukebox jukebox = new Jukebox(clock);
+        final List<String> ends = new ArrayList<>();
+        jukebox.addListener(signal -> {
+            if (signal.getType() == Signal.Type.SONG_END)
+                ends.add(String.valueOf(clock.now()));
+        });
+        for (File file : corpus())
+            jukebox.addSong(songs.get(file));
+        jukebox.setAutoAdvance(true);
+
+        assertTrue(jukebox.play());
+        clock.runUntilIdle();
+        assertEquals(corpus().size(), ends.size());
+        assertEquals(corpus().size() - 1, jukebox.getTransitions().count());
+        assertFalse(jukebox.isPlaying());
+        assertFalse(jukebox.getCurrentSong().isPresent());
+    }
+
+}
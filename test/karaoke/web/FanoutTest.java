@@ -0,0 +1,246 @@
+package karaoke.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import karaoke.web.Fanout.Outbox;
+import karaoke.web.Fanout.Overflow;
+
+/**
+ * Test Fanout.
+ */
+public class FanoutTest {
+
+    /* Testing strategy
+     *  client: fast, blocked on the network, disconnected (writes fail)
+     *  outbox: not full, full with overflow DROP_OLDEST, COALESCE, DISCONNECT
+     *  send(): one frame to many outboxes
+     *  finish(): with frames waiting, with no frames waiting, then send()
+     *  toString(): frames written, dropped, failed to send, clients disconnected, max queue depth
+     *  overflowNamed(): lower case, upper case, unknown name
+     *
+     * Cover all parts
+     */
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // overflowNamed(): lower case, upper case, unknown name
+    @Test
+    public void testOverflowNamed() {
+        assertEquals(Overflow.DROP_OLDEST, Fanout.overflowNamed("drop_oldest"));
+        assertEquals(Overflow.DISCONNECT, Fanout.overflowNamed("DISCONNECT"));
+        assertEquals(Overflow.COALESCE, Fanout.overflowNamed("drop-newest"));
+        assertEquals(Overflow.COALESCE, Fanout.overflowNamed(""));
+    }
+
+    /* OutputStream to a client that blocks on its first write until released */
+    private static class SlowClient extends OutputStream {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            blocked.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (received) {
+                received.write(bytes, offset, length);
+            }
+        }
+
+        private void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        private void release() {
+            released.countDown();
+        }
+
+        private String received() {
+            synchronized (received) {
+                return new String(received.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /* helper to make a frame of one line */
+    private static Frame line(String text) {
+        return Frame.of(text + "\n");
+    }
+
+    /* helper to send line 0 to a slow client and wait until writing it blocks,
+       then queue lines 1 to n */
+    private static void sendWhileBlocked(Outbox outbox, SlowClient client, int n) throws InterruptedException {
+        outbox.send(line("0"));
+        client.awaitBlocked();
+        for (int i = 1; i <= n; i++)
+            outbox.send(line(Integer.toString(i)));
+    }
+
+    /* helper to finish an outbox and wait until it closes */
+    private static void finishAndAwait(Outbox outbox, CountDownLatch closed) throws InterruptedException {
+        outbox.finish();
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    // fast client, outbox not full, finish() with frames waiting
+    @Test
+    public void testFastClient() throws InterruptedException {
+        Fanout fanout = new Fanout(2, 8, Overflow.DROP_OLDEST);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        CountDownLatch closed = new CountDownLatch(1);
+        Outbox outbox = fanout.open(client, closed::countDown);
+
+        outbox.send(line("hello"));
+        outbox.send(line("world"));
+        finishAndAwait(outbox, closed);
+
+        assertEquals("hello\nworld\n", new String(client.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(fanout.toString(), fanout.toString().contains("written: 2"));
+        assertTrue(fanout.toString(), fanout.toString().contains("listeners: 0"));
+        fanout.shutdown();
+    }
+
+    // blocked client doesn't block send(); full outbox with DROP_OLDEST
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 2, Overflow.DROP_OLDEST);
+        SlowClient client = new SlowClient();
+        CountDownLatch closed = new CountDownLatch(1);
+        Outbox outbox = fanout.open(client, closed::countDown);
+
+        sendWhileBlocked(outbox, client, 4);
+        assertEquals(2, outbox.depth());
+        client.release();
+        finishAndAwait(outbox, closed);
+
+        assertEquals("0\n3\n4\n", client.received());
+        assertTrue(fanout.toString(), fanout.toString().contains("dropped: 2"));
+        assertTrue(fanout.toString(), fanout.toString().contains("max queue depth: 2"));
+        fanout.shutdown();
+    }
+
+    // full outbox with COALESCE
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 2, Overflow.COALESCE);
+        SlowClient client = new SlowClient();
+        CountDownLatch closed = new CountDownLatch(1);
+        Outbox outbox = fanout.open(client, closed::countDown);
+
+        sendWhileBlocked(outbox, client, 5);
+        assertEquals(1, outbox.depth());
+        client.release();
+        finishAndAwait(outbox, closed);
+
+        assertEquals("0\n5\n", client.received());
+        assertTrue(fanout.toString(), fanout.toString().contains("dropped: 4"));
+        fanout.shutdown();
+    }
+
+    // full outbox with DISCONNECT; send() after the outbox closed
+    @Test
+    public void testDisconnect() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 2, Overflow.DISCONNECT);
+        SlowClient client = new SlowClient();
+        AtomicInteger closes = new AtomicInteger();
+        Outbox outbox = fanout.open(client, closes::incrementAndGet);
+
+        sendWhileBlocked(outbox, client, 3);
+        assertEquals(1, closes.get());
+        outbox.send(line("after"));
+        outbox.finish();
+        client.release();
+
+        assertEquals(0, outbox.depth());
+        assertEquals(1, closes.get());
+        assertTrue(fanout.toString(), fanout.toString().contains("disconnected: 1"));
+        assertTrue(fanout.toString(), fanout.toString().contains("dropped: 3"));
+        fanout.shutdown();
+    }
+
+    // disconnected client: writes fail; toString(): frames that failed counted as dropped
+    @Test
+    public void testClientGone() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        OutputStream gone = new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        CountDownLatch closed = new CountDownLatch(1);
+        Outbox outbox = fanout.open(gone, closed::countDown);
+
+        outbox.send(line("lost"));
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        outbox.send(line("ignored"));
+        assertEquals(0, outbox.depth());
+        // the frame that failed to send was dropped, not written
+        assertTrue(fanout.toString(), fanout.toString().contains("written: 0"));
+        assertTrue(fanout.toString(), fanout.toString().contains("dropped: 1"));
+        fanout.shutdown();
+    }
+
+    // finish() with no frames waiting
+    @Test
+    public void testFinishEmpty() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        AtomicInteger closes = new AtomicInteger();
+        Outbox outbox = fanout.open(new ByteArrayOutputStream(), closes::incrementAndGet);
+
+        outbox.finish();
+        outbox.finish();
+        assertEquals(1, closes.get());
+        fanout.shutdown();
+    }
+
+    // one frame to many outboxes: each client receives the same bytes
+    @Test
+    public void testSharedFrame() throws InterruptedException {
+        Fanout fanout = new Fanout(2, 8, Overflow.COALESCE);
+        Frame frame = Frame.of("<b>shared</b><br><script>document.body.scrollIntoView(false)</script>\n");
+        ByteArrayOutputStream[] clients = new ByteArrayOutputStream[10];
+        CountDownLatch closed = new CountDownLatch(clients.length);
+        Outbox[] outboxes = new Outbox[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new ByteArrayOutputStream();
+            outboxes[i] = fanout.open(clients[i], closed::countDown);
+        }
+
+        for (Outbox outbox : outboxes) {
+            outbox.send(frame);
+            outbox.finish();
+        }
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        for (ByteArrayOutputStream client : clients)
+            assertEquals(frame.toString(), new String(client.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(fanout.toString(), fanout.toString().contains("written: " + clients.length));
+        fanout.shutdown();
+    }
+
+}
@@ -0,0 +1,304 @@
+package karaoke.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.Lyric;
+import karaoke.parser.ABCParser;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.playback.Timeline;
+import karaoke.songs.ABC;
+import karaoke.web.FrameEncoder.Format;
+
+/**
+ * Test FrameEncoder, including a benchmark of the CPU time spent sending each syllable to
+ * many clients, compared with rendering and encoding the syllable separately for each client.
+ */
+public class FrameEncoderTest {
+
+    /* Testing strategy
+     *  encode(): signal SONG_START, SONG_END, SONG_CHANGE with and without a song,
+     *      LYRIC with and without a syllable; format TEXT, HTML, EVENTS
+     *  page(): no lyrics, one lyric, many lyrics
+     *  event(): one data line, many data lines; default locale English, Turkish
+     *  nextSong(): song present, empty
+     *  timeline(): one voice, many voices; voice "", a voice of the song, another voice;
+     *      tempo factor 1, < 1, > 1; elapsed 0, > 0; notes of a chord with one lyric
+     *  encode() in format TIMELINE: SONG_END, SONG_CHANGE
+     *  PADDING, EVENTS_PADDING: length
+     *  sending every syllable of a line to 1, 10, 100, 1000 clients: CPU time per syllable,
+     *      encoding once versus per client, and the bytes each client receives
+     *
+     * Cover all parts
+     */
+
+    private static final String SCROLL = "<script>document.body.scrollIntoView(false)</script>";
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to parse a sample song */
+    private static ABC sample(String name) throws IOException, UnableToParseException {
+        return ABCParser.parse(new String(Files.readAllBytes(Paths.get("sample-abc", name)), StandardCharsets.UTF_8));
+    }
+
+    // SONG_START, SONG_END in every format
+    @Test
+    public void testSongStartAndEnd() throws IOException, UnableToParseException {
+        Optional<ABC> song = Optional.of(sample("fur_elise.abc"));
+        String info = song.get().getInfo();
+
+        assertEquals("Now playing " + info + "\n--------------------\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_START, song, Format.TEXT).toString());
+        assertEquals("Now playing " + info + "<br>\n--------------------<br>" + SCROLL + "\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_START, song, Format.HTML).toString());
+        assertEquals("--------------------\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_END, song, Format.TEXT).toString());
+        assertEquals("--------------------<br>" + SCROLL + "\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_END, Optional.empty(), Format.HTML).toString());
+    }
+
+    // SONG_CHANGE with and without a song; nextSong()
+    @Test
+    public void testSongChange() throws IOException, UnableToParseException {
+        Optional<ABC> song = Optional.of(sample("fur_elise.abc"));
+        String info = song.get().getInfo();
+
+        assertEquals("Next song is " + info + "\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_CHANGE, song, Format.TEXT).toString());
+        assertEquals("Jukebox is empty<br>" + SCROLL + "\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_CHANGE, Optional.empty(), Format.HTML).toString());
+        assertEquals("Next song is " + info + "<br>" + SCROLL + "\n",
+                FrameEncoder.nextSong(song, Format.HTML).toString());
+        assertEquals("Jukebox is empty\n", FrameEncoder.nextSong(Optional.empty(), Format.TEXT).toString());
+    }
+
+    // LYRIC with and without a syllable
+    @Test
+    public void testLyric() {
+        Signal sung = Signal.lyric(new Lyric("1", "Row, row, row your boat", 5, 8));
+        Signal instrumental = Signal.lyric(new Lyric("1"));
+
+        assertEquals("Row, *row*, row your boat\n", FrameEncoder.encode(sung, Optional.empty(), Format.TEXT).toString());
+        assertEquals("Row, <b>row</b>, row your boat<br>" + SCROLL + "\n",
+                FrameEncoder.encode(sung, Optional.empty(), Format.HTML).toString());
+        assertEquals("***instrumental***\n", FrameEncoder.encode(instrumental, Optional.empty(), Format.TEXT).toString());
+    }
+
+    // page(): no lyrics, one lyric, many lyrics
+    @Test
+    public void testPage() {
+        Lyric row = new Lyric("1", "Row, row", 0, 3);
+        Lyric your = new Lyric("1", "your boat", 0, 4);
+
+        assertEquals("<script>location.replace('?since=0')</script>\n", FrameEncoder.page(Arrays.asList(), 0).toString());
+        assertEquals("<b>Row</b>, row<br>\n<script>location.replace('?since=12')</script>\n",
+                FrameEncoder.page(Arrays.asList(row), 12).toString());
+        assertEquals("<b>Row</b>, row<br>\n<b>your</b> boat<br>\n<script>location.replace('?since=14')</script>\n",
+                FrameEncoder.page(Arrays.asList(row, your), 14).toString());
+    }
+
+    // EVENTS: encode() without an id, event() with one or many data lines
+    @Test
+    public void testEvents() throws IOException, UnableToParseException {
+        Optional<ABC> song = Optional.of(sample("fur_elise.abc"));
+        String info = song.get().getInfo();
+
+        assertEquals("event: song-change\ndata: Jukebox is empty<br>\n\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_CHANGE, Optional.empty(), Format.EVENTS).toString());
+        assertEquals("id: 7\nevent: lyric\ndata: Row, <b>row</b>, row your boat<br>\n\n",
+                FrameEncoder.event(7, Signal.lyric(new Lyric("1", "Row, row, row your boat", 5, 8)), song).toString());
+        assertEquals("id: 8\nevent: song-start\ndata: Now playing " + info + "<br>\ndata: --------------------<br>\n\n",
+                FrameEncoder.event(8, Signal.SIGNAL_SONG_START, song).toString());
+    }
+
+    // event(): default locale Turkish, which lower-cases I to a dotless i
+    @Test
+    public void testEventsTurkishLocale() {
+        Locale before = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertEquals("id: 7\nevent: lyric\ndata: <b>la</b> la<br>\n\n",
+                    FrameEncoder.event(7, Signal.lyric(new Lyric("1", "la la", 0, 2)), Optional.empty()).toString());
+        } finally {
+            Locale.setDefault(before);
+        }
+    }
+
+    // timeline(): one voice; voice "" and another voice; elapsed 0, > 0
+    @Test
+    public void testTimelineOneVoice() throws UnableToParseException {
+        ABC song = ABCParser.parse("X:1\nT:Row\nL:1/4\nQ:1/4=120\nK:C\nC C C3/4 D/4|E\nw:Row, row, row your boat\n");
+        Timeline timeline = Timeline.compile(song);
+        String lyrics = "[[0,\"<b>Row,</b> row, row your boat<br>\"],"
+                + "[500,\"Row, <b>row,</b> row your boat<br>\"],"
+                + "[1000,\"Row, row, <b>row</b> your boat<br>\"],"
+                + "[1375,\"Row, row, row <b>your</b> boat<br>\"],"
+                + "[1500,\"Row, row, row your <b>boat</b><br>\"]]";
+        String voice = timeline.voices().get(0);
+
+        assertEquals("event: timeline\ndata: {\"song\":\"" + song.getInfo() + "\",\"elapsed\":0,"
+                + "\"voices\":{\"" + voice + "\":" + lyrics + "}}\n\n",
+                FrameEncoder.timeline(song, timeline, "", 1, 0).toString());
+        assertEquals("event: timeline\ndata: {\"song\":\"" + song.getInfo() + "\",\"elapsed\":1234,"
+                + "\"voices\":{\"" + voice + "\":" + lyrics + "}}\n\n",
+                FrameEncoder.timeline(song, timeline, "nobody", 1, 1234).toString());
+    }
+
+    // timeline(): one voice; tempo factor < 1, > 1; elapsed > 0
+    @Test
+    public void testTimelineTempoFactor() throws UnableToParseException {
+        ABC song = ABCParser.parse("X:1\nT:Row\nL:1/4\nQ:1/4=120\nK:C\nC C C3/4 D/4|E\nw:Row, row, row your boat\n");
+        Timeline timeline = Timeline.compile(song);
+
+        String slow = FrameEncoder.timeline(song, timeline, "", 0.5, 2000).toString();
+        assertTrue(slow, slow.contains("\"elapsed\":2000,"));
+        assertTrue(slow, slow.contains("[[0,\"<b>Row,</b>") && slow.contains("[1000,\"Row, <b>row,</b>")
+                && slow.contains("[2750,\"Row, row, row <b>your</b>") && slow.contains("[3000,\"Row, row, row your <b>boat"));
+
+        String fast = FrameEncoder.timeline(song, timeline, "", 2, 0).toString();
+        assertTrue(fast, fast.contains("[250,\"Row, <b>row,</b>") && fast.contains("[688,\"Row, row, row <b>your</b>")
+                && fast.contains("[750,\"Row, row, row your <b>boat"));
+    }
+
+    // timeline(): many voices; voice "" and a voice of the song; a chord with one lyric
+    @Test
+    public void testTimelineManyVoices() throws UnableToParseException {
+        ABC song = ABCParser.parse("X:1\nT:Rounds\nV:1\nV:2\nL:1/4\nQ:1/4=120\nK:C\n"
+                + "V:1\nC [CE] G2|\nw:Cee-chord Gee\nV:2\nz E2 G|\nw:Eee Gee\n");
+        Timeline timeline = Timeline.compile(song);
+        assertEquals(2, timeline.voices().size());
+
+        String all = FrameEncoder.timeline(song, timeline, "", 1, 0).toString();
+        assertTrue(all, all.contains("\"1\":[[0,\"<b>Cee</b>-chord Gee<br>\"],[500,\"Cee-<b>chord</b> Gee<br>\"],"
+                + "[1000,\"Cee-chord <b>Gee</b><br>\"]]")); // the chord's two notes sing chord once
+        assertTrue(all, all.contains("\"2\":[[500,\"<b>Eee</b> Gee<br>\"],[1500,\"Eee <b>Gee</b><br>\"]]"));
+
+        String one = FrameEncoder.timeline(song, timeline, "2", 1, 0).toString();
+        assertTrue(one, one.contains("\"2\":[[500,") && !one.contains("\"1\":"));
+    }
+
+    // encode() in format TIMELINE: SONG_END, SONG_CHANGE
+    @Test
+    public void testTimelineControlEvents() {
+        assertEquals("event: song-end\ndata: --------------------<br>\n\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_END, Optional.empty(), Format.TIMELINE).toString());
+        assertEquals("event: song-change\ndata: Jukebox is empty<br>\n\n",
+                FrameEncoder.encode(Signal.SIGNAL_SONG_CHANGE, Optional.empty(), Format.TIMELINE).toString());
+    }
+
+    // PADDING, EVENTS_PADDING
+    @Test
+    public void testPadding() {
+        assertEquals(2049, FrameEncoder.PADDING.length());
+        assertTrue(FrameEncoder.PADDING.toString().matches(" {2048}\n"));
+        assertTrue(FrameEncoder.EVENTS_PADDING.toString().matches(": {2048}\nretry: \\d+\n\n"));
+    }
+
+    /* OutputStream to a client that discards what it receives, like a fast network */
+    private static class NullClient extends OutputStream {
+        @Override public void write(int b) {}
+        @Override public void write(byte[] bytes, int offset, int length) {}
+    }
+
+    /* helper to make the lyrics of a line, one per syllable */
+    private static List<Signal> syllables(String line) {
+        final List<Signal> lyrics = new ArrayList<>();
+        int begin = 0;
+        for (int i = 1; i <= line.length(); i++) {
+            if (i == line.length() || " -".indexOf(line.charAt(i)) >= 0) {
+                lyrics.add(Signal.lyric(new Lyric("1", line, begin, i)));
+                begin = i + 1;
+            }
+        }
+        return lyrics;
+    }
+
+    /* helper to send every lyric to every client the way streams were sent before frames: rendering
+       each lyric and encoding it through each client's own PrintWriter */
+    private static void sendPerClient(List<Signal> lyrics, List<PrintWriter> clients) {
+        for (Signal lyric : lyrics)
+            for (PrintWriter client : clients)
+                client.println(lyric.getLyric().toHtmlText() + SCROLL);
+    }
+
+    /* helper to send every lyric to every client by encoding it once */
+    private static void sendFrames(List<Signal> lyrics, List<OutputStream> clients) throws IOException {
+        for (Signal lyric : lyrics) {
+            final Frame frame = FrameEncoder.encode(lyric, Optional.empty(), Format.HTML);
+            for (OutputStream client : clients) {
+                frame.writeTo(client);
+                client.flush();
+            }
+        }
+    }
+
+    // benchmark: CPU time per syllable sent to 1, 10, 100, 1000 clients
+    @Test
+    public void testCpuPerSyllable() throws IOException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled());
+
+        final List<Signal> lyrics = syllables("Mer-ri-ly, mer-ri-ly, mer-ri-ly, mer-ri-ly, life is but a dream");
+        final int sendsPerRun = 200_000;
+
+        for (int clients : new int[] { 1, 10, 100, 1000 }) {
+            final ByteArrayOutputStream firstOld = new ByteArrayOutputStream();
+            final ByteArrayOutputStream firstNew = new ByteArrayOutputStream();
+            final List<PrintWriter> writers = new ArrayList<>();
+            final List<OutputStream> streams = new ArrayList<>();
+            writers.add(new PrintWriter(new OutputStreamWriter(firstOld, StandardCharsets.UTF_8), true));
+            streams.add(firstNew);
+            for (int i = 1; i < clients; i++) {
+                writers.add(new PrintWriter(new OutputStreamWriter(new NullClient(), StandardCharsets.UTF_8), true));
+                streams.add(new NullClient());
+            }
+
+            final int rounds = Math.max(1, sendsPerRun / (clients * lyrics.size()));
+            long perClientNanos = 0;
+            long framesNanos = 0;
+            for (int round = 0; round < 2 * rounds; round++) {
+                final long start = threads.getCurrentThreadCpuTime();
+                sendPerClient(lyrics, writers);
+                final long middle = threads.getCurrentThreadCpuTime();
+                sendFrames(lyrics, streams);
+                final long end = threads.getCurrentThreadCpuTime();
+                if (round >= rounds) { // the first rounds warm up
+                    perClientNanos += middle - start;
+                    framesNanos += end - middle;
+                }
+            }
+
+            final double syllablesSent = rounds * lyrics.size();
+            System.out.println(String.format("%4d clients: %9.1f us per syllable rendered per client,"
+                    + " %9.1f us per syllable encoded once",
+                    clients, perClientNanos / syllablesSent / 1000, framesNanos / syllablesSent / 1000));
+            assertEquals(new String(firstOld.toByteArray(), StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n"),
+                    new String(firstNew.toByteArray(), StandardCharsets.UTF_8));
+            assertTrue(firstNew.size() > 0);
+        }
+    }
+
+}
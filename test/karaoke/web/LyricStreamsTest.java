@@ -0,0 +1,448 @@
+package karaoke.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.Lyric;
+import karaoke.parser.ABCParser;
+import karaoke.parser.SongCache;
+import karaoke.playback.Jukebox;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.playback.Timeline;
+import karaoke.playback.VirtualClock;
+import karaoke.songs.ABC;
+import karaoke.web.Fanout.Overflow;
+import karaoke.web.FrameEncoder.Format;
+
+/**
+ * Test LyricStreams.
+ */
+public class LyricStreamsTest {
+
+    /* Testing strategy
+     *  subscribers: none, one format, several formats, many per format
+     *  format: TEXT, HTML (sent the next song, then every signal)
+     *  poll(): since absent, behind, current; parked until a lyric, not until the first keep-alive;
+     *      answered by the end or change of a song, by the second keep-alive with the last lyric shown;
+     *      dropped when its outbox closes, when its client is unsubscribed; outbox closing as it is answered
+     *  format EVENTS: new, resuming after an event kept for replay, after an event no longer kept,
+     *      after the last event; keep-alives
+     *  signal: SONG_CHANGE, LYRIC
+     *  format TIMELINE: subscribing before a song starts, while it is playing; sent a timeline when
+     *      a song starts, no lyrics, song-end and song-change; timeline encoded once per voice;
+     *      tempo factor set before a song starts, while it plays, with no song playing
+     *  signal: SONG_START, SONG_END
+     *  frames encoded: once per format per signal, however many subscribers, and once for replay
+     *  a whole song sent to HTML and TIMELINE clients: bytes and frames per client
+     *  many jukeboxes on a virtual clock auto-advancing through many songs: frames to every client,
+     *      songs per minute
+     *
+     * Cover all parts
+     */
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to wait until a client has received text */
+    private static String await(ByteArrayOutputStream client, String text) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        String received;
+        synchronized (client) {
+            received = new String(client.toByteArray(), StandardCharsets.UTF_8);
+        }
+        while (!received.contains(text) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            synchronized (client) {
+                received = new String(client.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+        return received;
+    }
+
+    // no subscribers
+    @Test
+    public void testNoSubscribers() {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+
+        streams.signalReceived(Signal.lyric(new Lyric("1", "la")));
+        assertEquals(0, streams.size());
+        assertTrue(streams.toString(), streams.toString().contains("frames encoded: 1"));
+        assertTrue(streams.toString(), streams.toString().contains("frames sent: 0"));
+        fanout.shutdown();
+    }
+
+    // many TEXT and HTML subscribers; SONG_CHANGE, LYRIC; encoded once per format
+    @Test
+    public void testEncodeOncePerFormat() throws InterruptedException {
+        Fanout fanout = new Fanout(2, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+        ByteArrayOutputStream[] text = new ByteArrayOutputStream[5];
+        ByteArrayOutputStream[] html = new ByteArrayOutputStream[5];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = new ByteArrayOutputStream();
+            html[i] = new ByteArrayOutputStream();
+            streams.subscribe(text[i], Format.TEXT, "", OptionalLong.empty(), () -> {});
+            streams.subscribe(html[i], Format.HTML, "", OptionalLong.empty(), () -> {});
+        }
+        assertEquals(10, streams.size());
+
+        streams.signalReceived(Signal.SIGNAL_SONG_CHANGE);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "la la", 3, 5)));
+
+        for (ByteArrayOutputStream client : text)
+            assertEquals("Jukebox is empty\nJukebox is empty\nla *la*\n", await(client, "*la*"));
+        for (ByteArrayOutputStream client : html)
+            assertTrue(await(client, "<b>la</b>").endsWith("la <b>la</b><br><script>document.body.scrollIntoView(false)</script>\n"));
+        assertTrue(streams.toString(), streams.toString().contains("frames encoded: 6"));
+        assertTrue(streams.toString(), streams.toString().contains("frames sent: 20"));
+        fanout.shutdown();
+    }
+
+    // poll(): without since, parked until the next lyric, not until the first keep-alive, then closed
+    @Test
+    public void testPollParked() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        CountDownLatch closed = new CountDownLatch(1);
+        streams.poll(client, "", OptionalLong.empty(), closed::countDown);
+        assertEquals(1, streams.parked());
+
+        streams.keepAlive();
+        assertEquals(1, streams.parked());
+        streams.signalReceived(Signal.lyric(new Lyric("1", "la")), 5);
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals("la<br>\n<script>location.replace('?since=5')</script>\n",
+                new String(client.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(0, streams.parked());
+        assertTrue(streams.toString(), streams.toString().contains("polls answered: 1 (0 at once)"));
+        fanout.shutdown();
+    }
+
+    // poll(): since behind, answered at once with every lyric missed; since current, parked
+    @Test
+    public void testPollBehind() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "one")), 1);
+        streams.signalReceived(Signal.SIGNAL_SONG_END, 2);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "two")), 3);
+
+        ByteArrayOutputStream behind = new ByteArrayOutputStream();
+        CountDownLatch closed = new CountDownLatch(1);
+        streams.poll(behind, "", OptionalLong.of(0), closed::countDown);
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("one<br>\ntwo<br>\n<script>location.replace('?since=3')</script>\n",
+                new String(behind.toByteArray(), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream current = new ByteArrayOutputStream();
+        streams.poll(current, "", OptionalLong.of(3), () -> {});
+        assertEquals(1, streams.parked());
+        assertEquals(0, current.size());
+        assertTrue(streams.toString(), streams.toString().contains("polls answered: 1 (1 at once)"));
+        fanout.shutdown();
+    }
+
+    // poll(): answered by the end or change of a song with no lyrics
+    @Test
+    public void testPollSongEnds() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+        for (Signal signal : new Signal[] { Signal.SIGNAL_SONG_END, Signal.SIGNAL_SONG_CHANGE }) {
+            ByteArrayOutputStream client = new ByteArrayOutputStream();
+            CountDownLatch closed = new CountDownLatch(1);
+            streams.poll(client, "1", OptionalLong.empty(), closed::countDown);
+            streams.signalReceived(signal, 7);
+            assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals("<script>location.replace('?since=7')</script>\n",
+                    new String(client.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals(0, streams.parked());
+        }
+        fanout.shutdown();
+    }
+
+    // poll(): answered by the second keep-alive with the last lyric shown, polling again from since
+    @Test
+    public void testPollTimesOut() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "one")), 1);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "two")), 2);
+
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        CountDownLatch closed = new CountDownLatch(1);
+        streams.poll(client, "", OptionalLong.of(2), closed::countDown);
+        streams.keepAlive();
+        assertEquals(1, streams.parked());
+        streams.keepAlive();
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("two<br>\n<script>location.replace('?since=2')</script>\n",
+                new String(client.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(0, streams.parked());
+        fanout.shutdown();
+    }
+
+    // poll(): dropped when its outbox closes, when its client is unsubscribed; outbox closing as it is answered
+    @Test
+    public void testPollClosed() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout);
+        OutputStream gone = new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        CountDownLatch closed = new CountDownLatch(1);
+        streams.poll(gone, "", OptionalLong.empty(), closed::countDown);
+        streams.keepAlive();
+        streams.keepAlive();
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, streams.parked());
+
+        FrameSink sink = fanout.open(new ByteArrayOutputStream(), () -> {});
+        streams.poll(sink, "2", OptionalLong.empty());
+        assertEquals(1, streams.parked());
+        streams.unsubscribe(sink);
+        assertEquals(0, streams.parked());
+        assertTrue(streams.toString(), streams.toString().contains("polls parked: 0"));
+
+        // outboxes that close as soon as they are finished, on the thread answering them
+        List<String> answered = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            streams.poll(new FrameSink() {
+                @Override public void send(Frame frame) {
+                    answered.add(frame.toString());
+                }
+                @Override public void finish() {
+                    streams.unsubscribe(this);
+                }
+            }, "", OptionalLong.empty());
+        }
+        streams.keepAlive();
+        streams.keepAlive();
+        assertEquals(2, answered.size());
+        assertEquals(0, streams.parked());
+        fanout.shutdown();
+    }
+
+    // EVENTS: new, then every signal with ids; keep-alives
+    @Test
+    public void testEvents() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout, 4);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        streams.subscribe(client, Format.EVENTS, "", OptionalLong.empty(), () -> {});
+
+        streams.signalReceived(Signal.lyric(new Lyric("1", "la la", 0, 2)));
+        streams.keepAlive();
+
+        assertEquals("event: song-change\ndata: Jukebox is empty<br>\n\n"
+                + "id: 1\nevent: lyric\ndata: <b>la</b> la<br>\n\n"
+                + ":\n\n", await(client, ":\n\n"));
+        assertTrue(streams.toString(), streams.toString().contains("keep-alives sent: 1"));
+        fanout.shutdown();
+    }
+
+    // EVENTS: resuming after an event kept, after an event no longer kept, after the last event
+    @Test
+    public void testEventsResume() throws InterruptedException {
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(new Jukebox(), fanout, 4);
+        for (int i = 1; i <= 6; i++)
+            streams.signalReceived(Signal.lyric(new Lyric("1", "la" + i)));
+        assertTrue(streams.toString(), streams.toString().contains("events kept for replay: 4/4 (ids 3 to 6)"));
+
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        streams.subscribe(kept, Format.EVENTS, "", OptionalLong.of(4), () -> {});
+        assertEquals("id: 5\nevent: lyric\ndata: la5<br>\n\nid: 6\nevent: lyric\ndata: la6<br>\n\n",
+                await(kept, "la6"));
+
+        ByteArrayOutputStream lost = new ByteArrayOutputStream();
+        streams.subscribe(lost, Format.EVENTS, "", OptionalLong.of(1), () -> {});
+        String received = await(lost, "la6");
+        assertTrue(received, received.startsWith("id: 3\n") && !received.contains("la2"));
+
+        ByteArrayOutputStream current = new ByteArrayOutputStream();
+        streams.subscribe(current, Format.EVENTS, "", OptionalLong.of(6), () -> {});
+        streams.signalReceived(Signal.lyric(new Lyric("1", "la7")));
+        assertEquals("id: 7\nevent: lyric\ndata: la7<br>\n\n", await(current, "la7"));
+        assertTrue(streams.toString(), streams.toString().contains("events replayed: 6"));
+        fanout.shutdown();
+    }
+
+    /* helper to make a jukebox whose current song is a sample song */
+    private static Jukebox jukeboxOf(String name) throws IOException, UnableToParseException {
+        final Jukebox jukebox = new Jukebox();
+        jukebox.addSong(ABCParser.parse(new String(Files.readAllBytes(Paths.get("sample-abc", name)),
+                StandardCharsets.UTF_8)));
+        return jukebox;
+    }
+
+    /* helper to make the lyric signals a jukebox broadcasts while playing a song, in order */
+    private static List<Signal> lyricsOf(ABC song) {
+        final Timeline timeline = Timeline.compile(song);
+        final List<Signal> lyrics = new ArrayList<>();
+        for (int k = 0; k < timeline.size(); k++)
+            timeline.lyric(timeline.eventAtTime(k)).ifPresent(lyric -> lyrics.add(Signal.lyric(lyric)));
+        return lyrics;
+    }
+
+    // TIMELINE: subscribing before a song starts and while it is playing; SONG_START, LYRIC, SONG_END
+    @Test
+    public void testTimeline() throws IOException, UnableToParseException, InterruptedException {
+        Jukebox jukebox = jukeboxOf("fur_elise.abc");
+        ABC song = jukebox.getCurrentSong().get();
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(jukebox, fanout);
+        ByteArrayOutputStream[] before = { new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+        for (ByteArrayOutputStream client : before)
+            streams.subscribe(client, Format.TIMELINE, "", OptionalLong.empty(), () -> {});
+        String timeline = FrameEncoder.timeline(song, Timeline.compile(song), "", 1, 0).toString();
+
+        streams.signalReceived(Signal.SIGNAL_SONG_START);
+        streams.signalReceived(lyricsOf(song).get(0));
+        ByteArrayOutputStream during = new ByteArrayOutputStream();
+        streams.subscribe(during, Format.TIMELINE, "", OptionalLong.empty(), () -> {});
+        streams.signalReceived(Signal.SIGNAL_SONG_END);
+
+        for (ByteArrayOutputStream client : before)
+            assertEquals("event: song-change\ndata: Next song is " + song.getInfo() + "<br>\n\n" + timeline
+                    + "event: song-end\ndata: --------------------<br>\n\n", await(client, "song-end"));
+        String received = await(during, "song-end");
+        assertTrue(received, received.startsWith("event: timeline\ndata: {\"song\":")
+                && received.contains("\"elapsed\":") && !received.contains("event: lyric"));
+        // song-start and lyric events for replay, one timeline for both clients, another for the late one,
+        // song-end for replay and for TIMELINE clients
+        assertTrue(streams.toString(), streams.toString().contains("frames encoded: 6"));
+        fanout.shutdown();
+    }
+
+    // TIMELINE: tempo factor set before a song starts, while it plays, with no song playing
+    @Test
+    public void testTimelineTempoChanged() throws IOException, UnableToParseException, InterruptedException {
+        Jukebox jukebox = jukeboxOf("fur_elise.abc");
+        ABC song = jukebox.getCurrentSong().get();
+        Timeline compiled = Timeline.compile(song);
+        Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        LyricStreams streams = new LyricStreams(jukebox, fanout);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        streams.subscribe(client, Format.TIMELINE, "", OptionalLong.empty(), () -> {});
+        streams.tempoChanged(2); // no song playing: nothing sent
+
+        jukebox.setTempoFactor(0.5);
+        streams.signalReceived(Signal.SIGNAL_SONG_START);
+        streams.tempoChanged(2);
+        streams.signalReceived(Signal.SIGNAL_SONG_END);
+        streams.tempoChanged(1);
+
+        // the fresh timeline lists the lyrics at the new tempo, joining the song the moment it was set
+        String received = await(client, "song-end");
+        assertEquals("event: song-change\ndata: Next song is " + song.getInfo() + "<br>\n\n"
+                + FrameEncoder.timeline(song, compiled, "", 0.5, 0)
+                + FrameEncoder.timeline(song, compiled, "", 2, 0)
+                + "event: song-end\ndata: --------------------<br>\n\n",
+                received.replaceAll("\"elapsed\":[0-9]+,", "\"elapsed\":0,"));
+        fanout.shutdown();
+    }
+
+    // a whole song sent to HTML and TIMELINE clients: bytes and frames per client
+    @Test
+    public void testTimelineTraffic() throws IOException, UnableToParseException, InterruptedException {
+        for (String name : new String[] { "fur_elise.abc", "abc_song.abc", "waxies_dargle.abc" }) {
+            Jukebox jukebox = jukeboxOf(name);
+            ABC song = jukebox.getCurrentSong().get();
+            List<Signal> lyrics = lyricsOf(song);
+            Fanout fanout = new Fanout(1, lyrics.size() + 8, Overflow.DROP_OLDEST);
+            LyricStreams streams = new LyricStreams(jukebox, fanout);
+            ByteArrayOutputStream html = new ByteArrayOutputStream();
+            ByteArrayOutputStream timeline = new ByteArrayOutputStream();
+            streams.subscribe(html, Format.HTML, "", OptionalLong.empty(), () -> {});
+            streams.subscribe(timeline, Format.TIMELINE, "", OptionalLong.empty(), () -> {});
+
+            streams.signalReceived(Signal.SIGNAL_SONG_START);
+            for (Signal lyric : lyrics)
+                streams.signalReceived(lyric);
+            streams.signalReceived(Signal.SIGNAL_SONG_END);
+            await(html, lyrics.get(lyrics.size() - 1).getLyric().toHtmlText()
+                    + "<script>document.body.scrollIntoView(false)</script>\n--------------------<br>");
+            await(timeline, "event: song-end");
+
+            System.out.println(String.format("%-20s %4d lyrics: HTML client %7d bytes in %4d frames,"
+                    + " TIMELINE client %7d bytes in 3 frames",
+                    name, lyrics.size(), html.size(), lyrics.size() + 3, timeline.size()));
+            assertTrue(streams.toString(), streams.toString().contains("frames sent: " + (lyrics.size() + 4)));
+            fanout.shutdown();
+        }
+    }
+
+    // many jukeboxes on a virtual clock auto-advancing through many songs: frames to every client, songs per minute
+    @Test
+    public void testVirtualSongsFanout() throws IOException, UnableToParseException {
+        final int jukeboxes = 50;
+        final int clientsPerJukebox = 20;
+        final int songsPerJukebox = 20;
+        final String[] names = { "fur_elise.abc", "abc_song.abc", "waxies_dargle.abc", "scale.abc" };
+        final SongCache songs = new SongCache();
+        final VirtualClock clock = new VirtualClock();
+        final Fanout fanout = new Fanout(1, 8, Overflow.COALESCE);
+        final AtomicLong frames = new AtomicLong();
+        long expectedFrames = 0;
+        for (int j = 0; j < jukeboxes; j++) {
+            final Jukebox jukebox = new Jukebox(clock);
+            final LyricStreams streams = new LyricStreams(jukebox, fanout);
+            jukebox.addListener(streams);
+            for (int c = 0; c < clientsPerJukebox; c++) {
+                streams.subscribe(new FrameSink() {
+                    @Override public void send(Frame frame) { frames.incrementAndGet(); }
+                    @Override public void finish() { }
+                }, Format.TEXT, "", OptionalLong.empty());
+            }
+            for (int i = 0; i < songsPerJukebox; i++) {
+                final ABC song = songs.get(new File("sample-abc", names[(i + j) % names.length]));
+                jukebox.addSong(song);
+                // a song start, each lyric, a song end and a song change
+                expectedFrames += clientsPerJukebox * (lyricsOf(song).size() + 3);
+            }
+            jukebox.setAutoAdvance(true);
+            jukebox.play();
+        }
+
+        final long start = System.nanoTime();
+        clock.runUntilIdle();
+        final long elapsed = System.nanoTime() - start;
+
+        final int played = jukeboxes * songsPerJukebox;
+        System.out.println(String.format("%d songs on %d jukeboxes with %d clients each, %.0f minutes of music"
+                + " per jukebox, played on a virtual clock in %d ms: %.0f songs per minute, %d frames",
+                played, jukeboxes, clientsPerJukebox, clock.now() / (double) TimeUnit.MINUTES.toNanos(1),
+                TimeUnit.NANOSECONDS.toMillis(elapsed), played / (elapsed / (double) TimeUnit.MINUTES.toNanos(1)),
+                frames.get()));
+        // every client was also sent the empty jukebox when it subscribed, and the change to the first song
+        assertEquals(expectedFrames + 2 * jukeboxes * clientsPerJukebox, frames.get());
+        fanout.shutdown();
+    }
+
+}
@@ -0,0 +1,194 @@
+package karaoke.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.Jukebox;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.web.Fanout.Overflow;
+
+/**
+ * Test NioLyricServer.
+ * @category no_didit
+ */
+public class NioLyricServerTest {
+
+    /* Testing strategy
+     *  requests: /textStream, /htmlStream/voice, /events with and without Last-Event-ID,
+     *      /htmlWaitReload with since, unknown path, not GET, split across reads
+     *  connections: under maxConnections, over it; client disconnects
+     *  overflow: DISCONNECT when a client stops reading
+     *  signals: from the jukebox listener, keep-alives
+     *
+     * Cover all parts
+     */
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Jukebox jukebox;
+    private Fanout fanout;
+    private LyricStreams streams;
+    private NioLyricServer server;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* helper to start a server on any free port, listening to a new jukebox */
+    private void start(int maxConnections, int capacity, Overflow overflow) throws IOException {
+        jukebox = new Jukebox();
+        fanout = new Fanout(1, 8, Overflow.COALESCE);
+        streams = new LyricStreams(jukebox, fanout, 4);
+        jukebox.addListener(streams);
+        server = new NioLyricServer(streams, 0, 2, maxConnections, capacity, overflow);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        if (server != null)
+            server.stop();
+        if (fanout != null)
+            fanout.shutdown();
+    }
+
+    /* A client connected to the server. */
+    private class Client {
+        private final Socket socket = new Socket("localhost", server.port());
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        private Client(String... requestParts) throws IOException {
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            final OutputStream out = socket.getOutputStream();
+            for (String part : requestParts) {
+                out.write(part.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        }
+
+        /* read until the response contains text, and return all of it */
+        private String await(String text) throws IOException {
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[4096];
+            String response = new String(received.toByteArray(), StandardCharsets.UTF_8);
+            while (!response.contains(text)) {
+                final int length = in.read(buffer);
+                assertTrue("no " + text + " in " + response, length >= 0);
+                received.write(buffer, 0, length);
+                response = new String(received.toByteArray(), StandardCharsets.UTF_8);
+            }
+            return response;
+        }
+
+        /* read until the server closes the connection, and return the whole response */
+        private String awaitClose() throws IOException {
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[4096];
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer))
+                received.write(buffer, 0, length);
+            return new String(received.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /* helper to wait until a condition holds */
+    private static void awaitTrue(String message, BooleanSupplier condition)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertTrue(message, condition.getAsBoolean());
+    }
+
+    // /textStream, /htmlStream/voice; signals from the jukebox listener; request split across reads
+    @Test
+    public void testStreams() throws IOException, InterruptedException {
+        start(100, 8, Overflow.COALESCE);
+        Client text = new Client("GET /textStream HTTP/1.1\r\n", "Host: localhost\r\n\r\n");
+        Client html = new Client("GET /htmlStream/1 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertTrue(text.await("Jukebox is empty\n").startsWith("HTTP/1.1 200 OK\r\nContent-Type: text/plain"));
+        assertTrue(html.await("Jukebox is empty<br>").startsWith("HTTP/1.1 200 OK\r\nContent-Type: text/html"));
+        assertEquals(2, streams.size());
+
+        streams.signalReceived(Signal.lyric(new Lyric("1", "la la", 3, 5)), 1);
+        assertTrue(text.await("la *la*\n").endsWith("Jukebox is empty\nla *la*\n"));
+        html.await("la <b>la</b><br>");
+        assertTrue(server.toString(), server.toString().contains("connections: 2/100"));
+    }
+
+    // /events with and without Last-Event-ID; keep-alives
+    @Test
+    public void testEvents() throws IOException {
+        start(100, 8, Overflow.COALESCE);
+        Client first = new Client("GET /events HTTP/1.1\r\n\r\n");
+        assertTrue(first.await("Jukebox is empty").contains("Content-Type: text/event-stream"));
+        streams.signalReceived(Signal.lyric(new Lyric("1", "one")), 1);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "two")), 2);
+        first.await("id: 2\nevent: lyric\ndata: two<br>\n\n");
+
+        Client resumed = new Client("GET /events HTTP/1.1\r\nlast-event-id: 1\r\n\r\n");
+        String response = resumed.await("data: two");
+        assertTrue(response, !response.contains("data: one") && !response.contains("Jukebox is empty"));
+        streams.keepAlive();
+        resumed.await("data: two<br>\n\n:\n\n");
+    }
+
+    // /htmlWaitReload with since: answered at once, then closed
+    @Test
+    public void testPoll() throws IOException {
+        start(100, 8, Overflow.COALESCE);
+        streams.signalReceived(Signal.lyric(new Lyric("1", "one")), 1);
+        Client poll = new Client("GET /htmlWaitReload?since=0 HTTP/1.1\r\n\r\n");
+        assertTrue(poll.awaitClose().endsWith("\r\n\r\none<br>\n<script>location.replace('?since=1')</script>\n"));
+    }
+
+    // unknown path, not GET
+    @Test
+    public void testBadRequests() throws IOException {
+        start(100, 8, Overflow.COALESCE);
+        assertTrue(new Client("GET /play HTTP/1.1\r\n\r\n").awaitClose().startsWith("HTTP/1.1 404 Not Found"));
+        assertTrue(new Client("POST /events HTTP/1.1\r\n\r\n").awaitClose().startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(server.toString(), server.toString().contains("rejected: 0 full, 2 not lyric streams"));
+    }
+
+    // over maxConnections; client disconnects
+    @Test
+    public void testMaxConnections() throws IOException, InterruptedException {
+        start(1, 8, Overflow.COALESCE);
+        Client client = new Client("GET /textStream HTTP/1.1\r\n\r\n");
+        client.await("Jukebox is empty");
+        assertTrue(new Client().awaitClose().startsWith("HTTP/1.1 503 Service Unavailable"));
+
+        client.socket.close();
+        awaitTrue("stream still subscribed", () -> streams.size() == 0);
+        awaitTrue(server.toString(), () -> server.toString().contains("connections: 0/1"));
+        new Client("GET /textStream HTTP/1.1\r\n\r\n").await("Jukebox is empty");
+    }
+
+    // overflow DISCONNECT when a client stops reading
+    @Test
+    public void testOverflowDisconnect() throws IOException, InterruptedException {
+        start(100, 2, Overflow.DISCONNECT);
+        Client stalled = new Client("GET /textStream HTTP/1.1\r\n\r\n");
+        stalled.await("Jukebox is empty");
+        final String verse = String.format("%1000000s", "la");
+        for (int i = 1; i <= 100 && streams.size() > 0; i++)
+            streams.signalReceived(Signal.lyric(new Lyric("1", verse)), i);
+        awaitTrue(server.toString(), () -> server.toString().contains("disconnected: 1"));
+        assertEquals(0, streams.size());
+    }
+
+}
@@ -0,0 +1,217 @@
+package karaoke.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import karaoke.lyrics.Lyric;
+import karaoke.parser.SongCache;
+import karaoke.playback.Jukebox.Signal;
+import karaoke.songs.ABC;
+import karaoke.web.FrameEncoder.Format;
+
+/**
+ * Test Rooms, including a bound on the heap each of many rooms costs.
+ */
+public class RoomsTest {
+
+    /* Testing strategy
+     *  isId(): letters, digits, _ and -; empty, too long, other characters
+     *  get(): new room, same id again, other id, over maxRooms; lobby() separate from named rooms
+     *  evictIdle(): room unused for idleNanos, used recently, with an open stream; evicted id made again
+     *  rooms: signals of one room's jukebox reach only its own streams
+     *  many rooms with a song queued and a stream open: heap per room, with no signals and with
+     *      every room keeping as many signals for replay as it can
+     *
+     * Cover all parts
+     */
+
+    // most heap a room with a song queued and a stream open may allocate, and a full replay log may keep
+    private static final long MAX_BYTES_PER_ROOM = 16 * 1024;
+    private static final long MAX_BYTES_PER_REPLAY = 1024 * 1024;
+
+    private final Fanout fanout = new Fanout(1, 8, Fanout.Overflow.COALESCE);
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    @After
+    public void shutdown() {
+        fanout.shutdown();
+    }
+
+    /* A client that keeps the text of the frames sent to it. */
+    private static class Sink implements FrameSink {
+        private final StringBuilder received = new StringBuilder();
+
+        @Override
+        public synchronized void send(Frame frame) {
+            final ByteBuffer buffer = frame.buffer();
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            received.append(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void finish() {
+            // nothing to close
+        }
+
+        private synchronized String received() {
+            return received.toString();
+        }
+    }
+
+    // isId()
+    @Test
+    public void testIsId() {
+        assertTrue(Rooms.isId("a"));
+        assertTrue(Rooms.isId("Room_2-b"));
+        assertFalse(Rooms.isId(""));
+        assertFalse(Rooms.isId("a.b"));
+        assertFalse(Rooms.isId("a/b"));
+        assertFalse(Rooms.isId(String.format("%65s", "").replace(' ', 'a')));
+    }
+
+    // get(): new, same again, other, over maxRooms; lobby()
+    @Test
+    public void testGet() {
+        Rooms rooms = new Rooms(fanout, 2, TimeUnit.HOURS.toNanos(1));
+        Room a = rooms.get("a").get();
+        assertSame(a, rooms.get("a").get());
+        assertEquals("a", a.id());
+        Room b = rooms.get("b").get();
+        assertNotSame(a, b);
+        assertNotSame(a.jukebox(), b.jukebox());
+        assertEquals(Optional.empty(), rooms.get("c"));
+        assertSame(a, rooms.get("a").get());
+        assertEquals("", rooms.lobby().id());
+        assertEquals(2, rooms.size());
+        assertEquals(3, rooms.all().size());
+        assertTrue(rooms.toString(), rooms.toString().contains("rooms: 2/2\ncreated: 2\nevicted: 0\nrejected: 1"));
+    }
+
+    // evictIdle(): unused, used recently, open stream; evicted id made again
+    @Test
+    public void testEvictIdle() {
+        Rooms unused = new Rooms(fanout, 10, 0);
+        Room a = unused.get("a").get();
+        Room streaming = unused.get("streaming").get();
+        streaming.lyricStreams().subscribe(new Sink(), Format.TEXT, "", OptionalLong.empty());
+        assertEquals(1, unused.evictIdle());
+        assertEquals(1, unused.size());
+        assertSame(streaming, unused.get("streaming").get());
+        assertNotSame(a, unused.get("a").get());
+
+        Rooms recent = new Rooms(fanout, 10, TimeUnit.HOURS.toNanos(1));
+        recent.get("a");
+        assertEquals(0, recent.evictIdle());
+        assertEquals(1, recent.size());
+    }
+
+    // signals of one room's jukebox reach only its own streams
+    @Test
+    public void testRoomsApart() throws IOException, UnableToParseException {
+        Rooms rooms = new Rooms(fanout, 10, 0);
+        Sink a = new Sink();
+        Sink b = new Sink();
+        Sink lobby = new Sink();
+        rooms.get("a").get().lyricStreams().subscribe(a, Format.TEXT, "", OptionalLong.empty());
+        rooms.get("b").get().lyricStreams().subscribe(b, Format.TEXT, "", OptionalLong.empty());
+        rooms.lobby().lyricStreams().subscribe(lobby, Format.TEXT, "", OptionalLong.empty());
+
+        rooms.get("a").get().jukebox().addSong(new SongCache().get(new File("sample-abc/scale.abc")));
+        assertEquals("Jukebox is empty\nNext song is Simple scale by Unknown\n", a.received());
+        assertEquals("Jukebox is empty\n", b.received());
+        assertEquals("Jukebox is empty\n", lobby.received());
+    }
+
+    /* helper to read the bytes this thread has allocated on the heap so far */
+    private static long allocated() {
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /* helper to measure heap in use after collecting garbage */
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /* helper to make a room with a song queued and an HTML stream open */
+    private Room roomWithSong(String id, ABC song) {
+        final Room room = new Room(id, fanout);
+        room.jukebox().addSong(song);
+        room.lyricStreams().subscribe(new Sink() {
+            @Override
+            public void send(Frame frame) {
+                // discard, so only the room's own state is measured
+            }
+        }, Format.HTML, "", OptionalLong.empty());
+        return room;
+    }
+
+    // many rooms with a song queued and a stream open: heap per room, with no signals and with
+    // every room keeping as many signals for replay as it can
+    @Test
+    public void testHeapPerRoom() throws IOException, UnableToParseException, InterruptedException {
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue("allocation is not measured on this JVM", threads.isThreadAllocatedMemorySupported()
+                && threads.isThreadAllocatedMemoryEnabled());
+        final int count = 1000;
+        final int replaying = 20;
+        final ABC song = new SongCache().get(new File("sample-abc/waxies_dargle.abc"));
+        // load the classes a room uses before measuring
+        roomWithSong("warmup", song).lyricStreams().signalReceived(Signal.lyric(new Lyric("1", "la")), 1);
+
+        // everything a room allocates, kept or not, bounds the heap it keeps; rooms are made directly,
+        // since with assertions on the registry checks every room it holds whenever it makes one
+        final List<Room> named = new ArrayList<>(count);
+        final long beforeRooms = allocated();
+        for (int i = 0; i < count; i++)
+            named.add(roomWithSong("room" + i, song));
+        final long perRoom = (allocated() - beforeRooms) / count;
+
+        // encoding signals makes far more garbage than the replay log keeps, so measure what is left of
+        // the heap after collecting it, over enough rooms that the log outweighs the noise
+        final long beforeReplay = usedHeap();
+        for (Room room : named.subList(0, replaying))
+            for (int i = 1; i <= LyricStreams.DEFAULT_REPLAY; i++)
+                room.lyricStreams().signalReceived(Signal.lyric(new Lyric("1", "la la la la", 3, 5)), i);
+        final long perReplay = (usedHeap() - beforeReplay) / replaying;
+
+        System.out.println(String.format("%d rooms: at most %d bytes of heap per room with a song queued,"
+                + " %d more with %d signals kept for replay", count, perRoom, perReplay,
+                LyricStreams.DEFAULT_REPLAY));
+        assertEquals(count, named.size());
+        assertTrue(perRoom + " bytes per room", perRoom < MAX_BYTES_PER_ROOM);
+        assertTrue(perReplay + " bytes per room replaying", 0 < perReplay && perReplay < MAX_BYTES_PER_REPLAY);
+    }
+
+}
@@ -0,0 +1,287 @@
+package karaoke.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import karaoke.lyrics.Lyric;
+import karaoke.playback.Jukebox;
+import karaoke.playback.Jukebox.Signal;
+
+/**
+ * Load test WebServer with many open lyric streams, reporting the threads and heap each stream costs,
+ * and with many browsers polling /htmlWaitReload, comparing reloading the same page after each lyric
+ * with polling for the lyrics since the last one seen.
+ * The numbers of clients are set by system property karaoke.loadtest.clients, a comma-separated
+ * list that defaults to 1000; for example -Dkaraoke.loadtest.clients=1000,10000
+ * (each client needs two file descriptors). The number of polling browsers is set by system property
+ * karaoke.loadtest.pollers, and defaults to 200. The numbers of connections held open by NioLyricServer are
+ * set by system property karaoke.loadtest.nioClients, a comma-separated list that defaults to 5000; for
+ * example -Dkaraoke.loadtest.nioClients=50000 with at least 100k file descriptors.
+ * @category no_didit
+ */
+public class StreamLoadTest {
+
+    /*
+     * Testing strategy:
+     *  clients: 1k by default, more when configured
+     *  streams: /textStream under the cap, one more than the cap
+     *  polls: /htmlWaitReload reloaded without since, as the page did before it had one; with since
+     *  NioLyricServer: 5k idle /events connections by default, more when configured; a lyric sent to all
+     */
+
+    private static final int PORT = 8090;
+    private static final int POLL_PORT = 8091;
+    private static final int NIO_PORT = 8092;
+    private static final int LYRICS = 100;
+    private static final long LYRIC_MILLIS = 10;
+    // threads the server may start no matter how many streams are open, such as writer and handler pools
+    private static final int MAX_EXTRA_THREADS = 64;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /* A client that has opened a lyric stream; it keeps no buffers, so the heap it uses is mostly the server's. */
+    private static class Client {
+        private final Socket socket;
+
+        private Client(String request) throws IOException {
+            this(PORT, request);
+        }
+
+        private Client(int port, String request) throws IOException {
+            this.socket = new Socket("localhost", port);
+            final OutputStream out = socket.getOutputStream();
+            out.write(("GET " + request + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        /* read the response until it contains text; return the first line read */
+        private String await(String text) throws IOException {
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            String received = "";
+            while (!received.contains(text)) {
+                final int length = in.read(buffer);
+                assertTrue("no " + text + " in " + received, length >= 0);
+                response.write(buffer, 0, length);
+                received = new String(response.toByteArray(), StandardCharsets.UTF_8);
+            }
+            return received.contains("\r\n") ? received.substring(0, received.indexOf("\r\n")) : received;
+        }
+    }
+
+    /* helper to measure heap in use after collecting garbage */
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // clients: as configured; streams: under the cap, one more than the cap
+    @Test
+    public void testManyStreams() throws IOException, InterruptedException {
+        for (String count : System.getProperty("karaoke.loadtest.clients", "1000").split(",")) {
+            final int clients = Integer.parseInt(count.trim());
+            final WebServer server = new WebServer(PORT, clients);
+            server.start();
+            final List<Client> open = new ArrayList<>();
+            try {
+                final int threadsBefore = Thread.activeCount();
+                final long heapBefore = usedHeap();
+
+                for (int i = 0; i < clients; i++) {
+                    final Client client = new Client("/textStream");
+                    assertEquals("HTTP/1.1 200 OK", client.await("Jukebox is empty"));
+                    open.add(client);
+                }
+
+                final int threadsAfter = Thread.activeCount();
+                final long heapAfter = usedHeap();
+                System.out.println(clients + " open streams: " + threadsBefore + " -> " + threadsAfter + " threads, "
+                        + (heapAfter - heapBefore) / clients + " bytes of heap per stream");
+                assertTrue("threads grew with streams", threadsAfter - threadsBefore <= MAX_EXTRA_THREADS);
+
+                final Client rejected = new Client("/textStream");
+                assertEquals("HTTP/1.1 503 Service Unavailable", rejected.await("Too many listeners"));
+                rejected.socket.close();
+            } finally {
+                for (Client client : open)
+                    client.socket.close();
+                server.stop();
+            }
+        }
+    }
+
+    /* A browser that loads /htmlWaitReload over and over, following the page's script or not. */
+    private static class Poller implements Runnable {
+        private final boolean followSince;
+        private final Set<String> lyrics = new HashSet<>();
+        private int requests = 0;
+        private long bytes = 0;
+
+        private Poller(boolean followSince) {
+            this.followSince = followSince;
+        }
+
+        @Override
+        public void run() {
+            String query = "";
+            final byte[] buffer = new byte[4096];
+            try {
+                while (true) {
+                    final HttpURLConnection connection = (HttpURLConnection)
+                            new URL("http://localhost:" + POLL_PORT + "/htmlWaitReload" + query).openConnection();
+                    final ByteArrayOutputStream page = new ByteArrayOutputStream();
+                    try (InputStream in = connection.getInputStream()) {
+                        for (int length = in.read(buffer); length >= 0; length = in.read(buffer))
+                            page.write(buffer, 0, length);
+                    }
+                    final String text = new String(page.toByteArray(), StandardCharsets.UTF_8);
+                    synchronized (this) {
+                        requests++;
+                        bytes += page.size();
+                        final Matcher lyric = Pattern.compile("la\\d+").matcher(text);
+                        while (lyric.find())
+                            lyrics.add(lyric.group());
+                    }
+                    final Matcher since = Pattern.compile("since=(\\d+)").matcher(text);
+                    if (followSince && since.find())
+                        query = "?since=" + since.group(1);
+                }
+            } catch (IOException e) {
+                // the server stopped
+            }
+        }
+    }
+
+    /* helper to run polling browsers while lyrics are sung, and report what they received */
+    private static void runPollers(int count, boolean followSince) throws IOException, InterruptedException {
+        final WebServer server = new WebServer(POLL_PORT, count + 16);
+        server.start();
+        final List<Poller> pollers = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Poller poller = new Poller(followSince);
+                final Thread thread = new Thread(poller, "poller " + i);
+                thread.setDaemon(true);
+                thread.start();
+                pollers.add(poller);
+                threads.add(thread);
+            }
+            // wait until every browser is waiting for the first lyric
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while (server.lyricStreams().parked() < count && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(count, server.lyricStreams().parked());
+
+            final long start = System.nanoTime();
+            for (int i = 1; i <= LYRICS; i++) {
+                server.lyricStreams().signalReceived(Signal.lyric(new Lyric("1", "la" + i)), i);
+                Thread.sleep(LYRIC_MILLIS);
+            }
+            // give the browsers time for their last requests
+            Thread.sleep(500);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            long requests = 0;
+            long bytes = 0;
+            long received = 0;
+            for (Poller poller : pollers) {
+                synchronized (poller) {
+                    requests += poller.requests;
+                    bytes += poller.bytes;
+                    received += poller.lyrics.size();
+                }
+            }
+            System.out.println(String.format("%d browsers %s, %d lyrics every %d ms: %.0f requests/s,"
+                    + " %.1f requests and %.0f bytes per browser per lyric shown, %.1f%% of lyrics missed",
+                    count, followSince ? "polling with since" : "reloading", LYRICS, LYRIC_MILLIS,
+                    requests / seconds, requests / (double) received, bytes / (double) received,
+                    100.0 * (count * LYRICS - received) / (count * LYRICS)));
+            if (followSince)
+                assertEquals("lyrics missed while polling with since", count * LYRICS, received);
+        } finally {
+            server.stop();
+            for (Thread thread : threads)
+                thread.join(10_000);
+        }
+    }
+
+    // polls: reloaded without since, with since
+    @Test
+    public void testPollSinceVersusReload() throws IOException, InterruptedException {
+        final int count = Integer.getInteger("karaoke.loadtest.pollers", 200);
+        runPollers(count, false);
+        runPollers(count, true);
+    }
+
+    // NioLyricServer: idle connections as configured; a lyric sent to all of them
+    @Test
+    public void testManyNioStreams() throws IOException, InterruptedException {
+        for (String count : System.getProperty("karaoke.loadtest.nioClients", "5000").split(",")) {
+            final int clients = Integer.parseInt(count.trim());
+            final Jukebox jukebox = new Jukebox();
+            final Fanout fanout = new Fanout();
+            final LyricStreams streams = new LyricStreams(jukebox, fanout);
+            jukebox.addListener(streams);
+            final NioLyricServer server = new NioLyricServer(streams, NIO_PORT, NioLyricServer.DEFAULT_SELECTORS,
+                    clients, Fanout.DEFAULT_CAPACITY, Fanout.DEFAULT_OVERFLOW);
+            server.start();
+            final List<Client> open = new ArrayList<>();
+            try {
+                final int threadsBefore = Thread.activeCount();
+                final long heapBefore = usedHeap();
+
+                for (int i = 0; i < clients; i++) {
+                    final Client client = new Client(NIO_PORT, "/events");
+                    assertEquals("HTTP/1.1 200 OK", client.await("Jukebox is empty"));
+                    open.add(client);
+                }
+
+                final int threadsAfter = Thread.activeCount();
+                final long heapAfter = usedHeap();
+
+                final long start = System.nanoTime();
+                streams.signalReceived(Signal.lyric(new Lyric("1", "la")), 1);
+                for (Client client : open)
+                    client.await("data: la");
+                final double millis = (System.nanoTime() - start) / 1e6;
+
+                System.out.println(String.format("%d open NIO connections: %d -> %d threads, %d bytes of heap per"
+                        + " connection, %.0f ms to send a lyric to all of them", clients, threadsBefore, threadsAfter,
+                        (heapAfter - heapBefore) / clients, millis));
+                assertTrue("threads grew with connections", threadsAfter - threadsBefore <= MAX_EXTRA_THREADS);
+            } finally {
+                for (Client client : open)
+                    client.socket.close();
+                server.stop();
+                fanout.shutdown();
+            }
+        }
+    }
+
+}
@@ -1,10 +1,16 @@
 package karaoke.web;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.BindException;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 import java.util.Scanner;
 
 import org.junit.Test;
@@ -23,6 +29,22 @@ public class WebServerTest {
      *  add song requests: next song, queue, fail
      *  
      *  play requests: success, fail because empty, fail because busy
+     *  
+     *  event streams: new, resumed with Last-Event-ID
+     *  
+     *  timeline: page, event stream before a song plays
+     *  
+     *  rooms: default room, named rooms kept apart, unknown handler, invalid room name, in stats
+     *  
+     *  auto-advance requests: on, report
+     *  
+     *  output requests: clock, report; play to the clock, with no MIDI device needed
+     *  
+     *  mix requests: solo, mute, unsolo, report, while a song plays; in one room, not another
+     *  
+     *  tempo requests: factor, not a number, out of range, report, while a song plays
+     *  
+     *  executor modes: named in lower case, upper case, unknown name
      */
     
     @Test(expected=AssertionError.class)
@@ -30,6 +52,15 @@ public class WebServerTest {
         assert false; // make sure assertions are enabled with VM argument: -ea
     }
     
+    // executor modes: lower case, upper case, unknown name
+    @Test
+    public void testModeNamed() {
+        assertEquals(ServerExecutors.Mode.BOUNDED, ServerExecutors.modeNamed("bounded"));
+        assertEquals(ServerExecutors.Mode.CACHED, ServerExecutors.modeNamed("CACHED"));
+        assertEquals(ServerExecutors.Mode.VIRTUAL, ServerExecutors.modeNamed("platform"));
+        assertEquals(ServerExecutors.Mode.VIRTUAL, ServerExecutors.modeNamed(""));
+    }
+    
     // start: success
     @Test
     public void testStartServerNoError() throws IOException {
@@ -98,6 +129,156 @@ public class WebServerTest {
         }
     }
     
+    // stats requests: after first song added
+    @Test
+    public void testStatsReportsStartup() throws IOException, InterruptedException {
+        final int port = 8085;
+        WebServer server = new WebServer(port);
+        server.start();
+        try {
+            checkResponse(server, "/stats", "listening");
+            checkResponse(server, "/addSong/scale.abc", "Next song is Simple scale by Unknown");
+            // the grammar compiler thread reports the grammar compiled before the song was parsed
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (!server.startupReport().contains("grammar compiled") && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            checkResponse(server, "/stats", "grammar compiled");
+            checkResponse(server, "/stats", "first song added");
+            assert !server.startupReport().contains("first song playing");
+        } finally {
+            server.stop();
+        }
+    }
+    
+    // event streams: new, resumed with Last-Event-ID
+    @Test
+    public void testEventsResume() throws IOException {
+        final int port = 8086;
+        WebServer server = new WebServer(port);
+        server.start();
+        try {
+            HttpURLConnection first = (HttpURLConnection) new URL("http://localhost:" + port + "/events").openConnection();
+            assert first.getContentType().startsWith("text/event-stream");
+            InputStream firstEvents = first.getInputStream();
+            awaitText(firstEvents, "event: song-change\ndata: Jukebox is empty<br>\n\n");
+            
+            checkResponse(server, "/addSong/scale.abc", "Next song is Simple scale by Unknown");
+            awaitText(firstEvents, "id: 1\nevent: song-change\ndata: Next song is Simple scale by Unknown<br>\n\n");
+            first.disconnect();
+            
+            // a browser reconnecting after the first event is sent the events it missed
+            HttpURLConnection resumed = (HttpURLConnection) new URL("http://localhost:" + port + "/events").openConnection();
+            resumed.setRequestProperty("Last-Event-ID", "0");
+            awaitText(resumed.getInputStream(), "id: 1\nevent: song-change\ndata: Next song is Simple scale by Unknown<br>\n\n");
+            resumed.disconnect();
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public void testTimeline() throws IOException {
+        final int port = 8087;
+        WebServer server = new WebServer(port);
+        server.start();
+        try {
+            HttpURLConnection page = (HttpURLConnection) new URL("http://localhost:" + port + "/timeline/1").openConnection();
+            assert page.getContentType().startsWith("text/html");
+            awaitText(page.getInputStream(), "new EventSource(");
+            
+            HttpURLConnection events = (HttpURLConnection) new URL("http://localhost:" + port + "/timelineEvents/1").openConnection();
+            assert events.getContentType().startsWith("text/event-stream");
+            InputStream timeline = events.getInputStream();
+            awaitText(timeline, "event: song-change\ndata: Jukebox is empty<br>\n\n");
+            checkResponse(server, "/addSong/scale.abc", "Next song is Simple scale by Unknown");
+            awaitText(timeline, "event: song-change\ndata: Next song is Simple scale by Unknown<br>\n\n");
+            events.disconnect();
+        } finally {
+            server.stop();
+        }
+    }
+    
+    // rooms: default room, named rooms kept apart, unknown handler, invalid room name, in stats;
+    // auto-advance requests: on, report
+    @Test
+    public void testRooms() throws IOException {
+        final int port = 8088;
+        WebServer server = new WebServer(port);
+        server.start();
+        try {
+            HttpURLConnection stream = (HttpURLConnection) new URL("http://localhost:" + port + "/room/a/textStream").openConnection();
+            InputStream lyrics = stream.getInputStream();
+            awaitText(lyrics, "Jukebox is empty\n");
+            checkResponse(server, "/room/a/addSong/scale.abc", "Next song is Simple scale by Unknown");
+            awaitText(lyrics, "Next song is Simple scale by Unknown\n");
+            checkResponse(server, "/room/b/play", "Jukebox is empty");
+            checkResponse(server, "/play", "Jukebox is empty");
+            checkResponse(server, "/room/a/addSong/scale.abc", "Added Simple scale by Unknown at position 1 in queue");
+            
+            HttpURLConnection unknown = (HttpURLConnection) new URL("http://localhost:" + port + "/room/a/stop").openConnection();
+            assert unknown.getResponseCode() == 404;
+            HttpURLConnection invalid = (HttpURLConnection) new URL("http://localhost:" + port + "/room/a.b/play").openConnection();
+            assert invalid.getResponseCode() == 404;
+            checkResponse(server, "/room/a/autoAdvance/on", "Auto-advance is on, no transitions");
+            checkResponse(server, "/autoAdvance", "Auto-advance is off");
+            checkResponse(server, "/stats", "rooms: 2/");
+            stream.disconnect();
+        } finally {
+            server.stop();
+        }
+    }
+    
+    // output requests: clock, report, in a Turkish default locale; play to the clock; mix requests while playing: solo, mute, unsolo, report;
+    // tempo requests while playing: factor, not a number, out of range, report
+    @Test
+    public void testClockOutput() throws IOException {
+        final int port = 8089;
+        WebServer server = new WebServer(port);
+        server.start();
+        try {
+            HttpURLConnection stream = (HttpURLConnection) new URL("http://localhost:" + port + "/room/c/textStream").openConnection();
+            InputStream lyrics = stream.getInputStream();
+            awaitText(lyrics, "Jukebox is empty\n");
+            final Locale before = Locale.getDefault();
+            Locale.setDefault(new Locale("tr", "TR")); // which lower-cases I to a dotless i
+            try {
+                checkResponse(server, "/room/c/output/clock", "Output is clock");
+                checkResponse(server, "/output", "Output is midi");
+            } finally {
+                Locale.setDefault(before);
+            }
+            checkResponse(server, "/room/c/addSong/scale.abc", "Next song is Simple scale by Unknown");
+            checkResponse(server, "/room/c/play", "Now playing Simple scale by Unknown");
+            awaitText(lyrics, "Now playing Simple scale by Unknown\n");
+            checkResponse(server, "/stats", "[lyric clock]\njitter: ");
+            checkResponse(server, "/room/c/mix/solo/1", "Mix is muted: [], solo: [1]");
+            checkResponse(server, "/room/c/mix/mute/2", "Mix is muted: [2], solo: [1]");
+            checkResponse(server, "/room/c/mix/unsolo/1", "Mix is muted: [2], solo: []");
+            checkResponse(server, "/room/c/mix", "Mix is muted: [2], solo: []");
+            checkResponse(server, "/mix", "Mix is all voices");
+            checkResponse(server, "/room/c/tempo/0.75", "Tempo is 0.75x");
+            checkResponse(server, "/room/c/tempo/fast", "Tempo is 0.75x");
+            checkResponse(server, "/room/c/tempo/100", "Tempo is 0.75x");
+            checkResponse(server, "/tempo", "Tempo is 1.0x");
+            stream.disconnect();
+        } finally {
+            server.stop();
+        }
+    }
+    
+    /*
+     * Read from a streaming response until it contains text.
+     */
+    private static void awaitText(InputStream in, String text) throws IOException {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        while (!new String(received.toByteArray(), StandardCharsets.UTF_8).contains(text)) {
+            final int length = in.read(buffer);
+            assert length >= 0 : "no " + text + " in " + received;
+            received.write(buffer, 0, length);
+        }
+    }
+    
     /**
      * Assert that response when sending request to server is expected response.
      * @param server the web server